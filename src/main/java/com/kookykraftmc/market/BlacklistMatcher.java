@@ -0,0 +1,136 @@
+package com.kookykraftmc.market;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Blacklist entries compiled into a matcher that checks an item id in time
+ * proportional to the length of the id, however many entries there are.
+ *
+ * <p>Entries are patterns:</p>
+ * <ul>
+ *     <li>{@code minecraft:stone} blocks the item and every variant of it,
+ *     e.g. {@code minecraft:stone[variant=granite]}</li>
+ *     <li>{@code minecraft:stone[variant=granite]} blocks only that block
+ *     state</li>
+ *     <li>{@code avaritia:*} blocks every id starting with {@code avaritia:};
+ *     {@code *} is only allowed at the end</li>
+ *     <li>{@code nbt:Path.To.Tag} blocks items whose NBT has that tag</li>
+ * </ul>
+ *
+ * <p>Id patterns are kept in a trie over their characters; tag patterns are
+ * checked separately, so callers only read an item's data when there are
+ * tag patterns. A matcher is immutable and compiled again when the
+ * blacklist changes.</p>
+ */
+public final class BlacklistMatcher {
+
+    public static final String TAG_PREFIX = "nbt:";
+    private static final BlacklistMatcher EMPTY = new BlacklistMatcher(new Node(), Collections.emptyList());
+
+    private final Node root;
+    private final List<String> tags;
+
+    private BlacklistMatcher(Node root, List<String> tags) {
+        this.root = root;
+        this.tags = tags;
+    }
+
+    public static BlacklistMatcher empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Compile blacklist entries, skipping ones that are not valid patterns.
+     */
+    public static BlacklistMatcher compile(Collection<String> patterns) {
+        Node root = new Node();
+        List<String> tags = new ArrayList<>();
+        for (String pattern : patterns) {
+            if (!isValid(pattern)) {
+                continue;
+            }
+            if (pattern.startsWith(TAG_PREFIX)) {
+                tags.add(pattern.substring(TAG_PREFIX.length()));
+                continue;
+            }
+            boolean prefix = pattern.endsWith("*");
+            String id = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+            Node node = root;
+            for (int i = 0; i < id.length(); i++) {
+                node = node.children.computeIfAbsent(id.charAt(i), c -> new Node());
+            }
+            if (prefix) {
+                node.prefix = true;
+            } else {
+                node.exact = true;
+                node.variants |= id.indexOf('[') < 0;
+            }
+        }
+        return new BlacklistMatcher(root, Collections.unmodifiableList(tags));
+    }
+
+    public static boolean isValid(String pattern) {
+        if (pattern == null || pattern.isEmpty()) {
+            return false;
+        }
+        if (pattern.startsWith(TAG_PREFIX)) {
+            return pattern.length() > TAG_PREFIX.length() && pattern.indexOf('*') < 0;
+        }
+        int star = pattern.indexOf('*');
+        return star < 0 || star == pattern.length() - 1;
+    }
+
+    /**
+     * Whether an item or block state id is blacklisted by an id pattern.
+     */
+    public boolean matches(String id) {
+        Node node = root;
+        for (int i = 0; i < id.length(); i++) {
+            if (node.prefix) {
+                return true;
+            }
+            char c = id.charAt(i);
+            if (c == '[' && node.variants) {
+                return true;
+            }
+            node = node.children.get(c);
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.exact || node.prefix;
+    }
+
+    /**
+     * Whether an item is blacklisted by a tag pattern, according to
+     * {@code hasTag}.
+     */
+    public boolean matchesTag(Predicate<String> hasTag) {
+        for (String tag : tags) {
+            if (hasTag.test(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasTagRules() {
+        return !tags.isEmpty();
+    }
+
+    private static final class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        // a pattern ends here
+        private boolean exact;
+        // a pattern without block state properties ends here
+        private boolean variants;
+        // a pattern ending in * ends here
+        private boolean prefix;
+    }
+}
@@ -0,0 +1,118 @@
+package com.kookykraftmc.market;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Decodes large batches of stored items in two stages.
+ *
+ * <p>The parse stage has no game state and runs on a bounded fork-join pool.
+ * The finish stage turns parsed data into game objects. The game's data
+ * manager is not safe to call from several threads, so by default the finish
+ * stage runs on the calling thread. Inputs are taken in chunks: while one
+ * chunk is finished the next is parsed, so at most two chunks of parsed data
+ * are held at a time. Results keep the order of the inputs.</p>
+ */
+public class BulkDecoder implements AutoCloseable {
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final boolean parallelFinish;
+
+    /**
+     * @param parallelism    threads of the parse pool; 1 or less decodes on the calling thread
+     * @param chunkSize      inputs parsed per chunk
+     * @param parallelFinish also run the finish stage on the pool
+     */
+    public BulkDecoder(int parallelism, int chunkSize, boolean parallelFinish) {
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.parallelFinish = parallelFinish;
+    }
+
+    /**
+     * Decode every input. Inputs for which {@code finish} returns null are
+     * left out of the result.
+     */
+    public <T, P, R> List<R> decode(Iterable<T> inputs, Function<? super T, ? extends P> parse,
+                                    BiFunction<? super T, ? super P, ? extends R> finish) {
+        List<R> results = new ArrayList<>();
+        Iterator<T> it = inputs.iterator();
+        if (pool == null) {
+            while (it.hasNext()) {
+                T input = it.next();
+                add(results, finish.apply(input, parse.apply(input)));
+            }
+            return results;
+        }
+        if (parallelFinish) {
+            Function<T, R> decode = input -> finish.apply(input, parse.apply(input));
+            for (List<T> chunk = nextChunk(it); !chunk.isEmpty(); chunk = nextChunk(it)) {
+                join(mapAsync(chunk, decode)).forEach(r -> add(results, r));
+            }
+            return results;
+        }
+        List<T> chunk = nextChunk(it);
+        CompletableFuture<List<P>> parsed = mapAsync(chunk, parse);
+        while (!chunk.isEmpty()) {
+            List<T> next = nextChunk(it);
+            CompletableFuture<List<P>> nextParsed = mapAsync(next, parse);
+            List<P> values = join(parsed);
+            for (int i = 0; i < chunk.size(); i++) {
+                add(results, finish.apply(chunk.get(i), values.get(i)));
+            }
+            chunk = next;
+            parsed = nextParsed;
+        }
+        return results;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private <T> List<T> nextChunk(Iterator<T> it) {
+        List<T> chunk = new ArrayList<>(chunkSize);
+        while (chunk.size() < chunkSize && it.hasNext()) {
+            chunk.add(it.next());
+        }
+        return chunk;
+    }
+
+    // a parallel stream started inside the pool runs its tasks on that pool
+    private <T, V> CompletableFuture<List<V>> mapAsync(List<T> chunk, Function<? super T, ? extends V> function) {
+        if (chunk.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        return CompletableFuture.supplyAsync(() -> chunk.parallelStream()
+                .<V>map(function)
+                .collect(Collectors.toList()), pool);
+    }
+
+    private static <R> void add(List<R> results, R result) {
+        if (result != null) {
+            results.add(result);
+        }
+    }
+
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
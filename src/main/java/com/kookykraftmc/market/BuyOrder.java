@@ -0,0 +1,87 @@
+package com.kookykraftmc.market;
+
+/**
+ * A standing offer to buy up to {@code remaining} items of one type at no
+ * more than {@code maxUnitPrice} each. The buyer pays the full amount into
+ * escrow when the order is placed; fills are paid from the escrow and what is
+ * left is refunded when the order completes or is cancelled.
+ */
+public class BuyOrder {
+    private final int id;
+    private final String player;
+    private final String itemType;
+    private final int maxUnitPrice;
+    private final long createdAt;
+    private int remaining;
+    private long escrow;
+
+    public BuyOrder(int id, String player, String itemType, int maxUnitPrice, int remaining, long escrow, long createdAt) {
+        this.id = id;
+        this.player = player;
+        this.itemType = itemType;
+        this.maxUnitPrice = maxUnitPrice;
+        this.remaining = remaining;
+        this.escrow = escrow;
+        this.createdAt = createdAt;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getPlayer() {
+        return player;
+    }
+
+    public String getItemType() {
+        return itemType;
+    }
+
+    public int getMaxUnitPrice() {
+        return maxUnitPrice;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public int getRemaining() {
+        return remaining;
+    }
+
+    public long getEscrow() {
+        return escrow;
+    }
+
+    /**
+     * Record a fill of {@code quantity} items paid with {@code cost} from the
+     * escrow.
+     */
+    public void fill(int quantity, long cost) {
+        remaining -= quantity;
+        escrow -= cost;
+    }
+
+    /**
+     * Encode the order as a value of the Redis order hash.
+     */
+    public String encode() {
+        return player + "|" + itemType + "|" + maxUnitPrice + "|" + remaining + "|" + escrow + "|" + createdAt;
+    }
+
+    /**
+     * @return the decoded order or null if the value is malformed
+     */
+    public static BuyOrder decode(int id, String value) {
+        String[] parts = value.split("\\|");
+        if (parts.length < 6) {
+            return null;
+        }
+        try {
+            return new BuyOrder(id, parts[0], parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                    Long.parseLong(parts[4]), Long.parseLong(parts[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.kookykraftmc.market;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to a backend that keeps failing.
+ *
+ * <p>The breaker opens after a number of consecutive failures. While open,
+ * {@link #allowRequest()} refuses calls so they fail fast instead of waiting
+ * on timeouts. Once the open period has passed a single trial call is let
+ * through: if it succeeds the breaker closes, if it fails the breaker opens
+ * again for another period. A trial that never reports back is replaced by a
+ * new one after another open period.</p>
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongSupplier clock;
+
+    private State state = State.CLOSED;
+    private int failures;
+    // time the breaker opened, or the current trial started
+    private long since;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this(failureThreshold, openMillis, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Whether a call may go to the backend now.
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        long now = clock.getAsLong();
+        if (now - since < openMillis) {
+            return false;
+        }
+        state = State.HALF_OPEN;
+        since = now;
+        return true;
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            since = clock.getAsLong();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Whether calls are currently refused: the breaker is open, or a trial
+     * call is in flight. Unlike {@link #allowRequest()} this never starts a
+     * trial, so callers can check it before doing any work.
+     */
+    public synchronized boolean isRejecting() {
+        return state != State.CLOSED && clock.getAsLong() - since < openMillis;
+    }
+}
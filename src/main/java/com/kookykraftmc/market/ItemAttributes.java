@@ -0,0 +1,82 @@
+package com.kookykraftmc.market;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Searchable attributes of a listed item, extracted once when the listing is
+ * created so filters never need to deserialize the item.
+ */
+public class ItemAttributes {
+    private final String itemType;
+    private final String modId;
+    private final int durabilityPct;
+    private final Map<String, Integer> enchantments;
+    private final double unitPrice;
+
+    /**
+     * @param durabilityPct remaining durability in percent, or -1 if the item
+     *                      cannot be damaged
+     */
+    public ItemAttributes(String itemType, int durabilityPct, Map<String, Integer> enchantments, double unitPrice) {
+        this.itemType = itemType;
+        this.modId = itemType.indexOf(':') > 0 ? itemType.substring(0, itemType.indexOf(':')) : "minecraft";
+        this.durabilityPct = durabilityPct;
+        this.enchantments = Collections.unmodifiableMap(new LinkedHashMap<>(enchantments));
+        this.unitPrice = unitPrice;
+    }
+
+    public String getItemType() {
+        return itemType;
+    }
+
+    public String getModId() {
+        return modId;
+    }
+
+    public int getDurabilityPct() {
+        return durabilityPct;
+    }
+
+    public boolean hasDurability() {
+        return durabilityPct >= 0;
+    }
+
+    public Map<String, Integer> getEnchantments() {
+        return enchantments;
+    }
+
+    public double getUnitPrice() {
+        return unitPrice;
+    }
+
+    /**
+     * Encode enchantments as {@code id=level,id=level} for storage in a single
+     * field.
+     */
+    public String encodeEnchantments() {
+        StringBuilder sb = new StringBuilder();
+        enchantments.forEach((id, level) -> {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id).append('=').append(level);
+        });
+        return sb.toString();
+    }
+
+    public static Map<String, Integer> decodeEnchantments(String encoded) {
+        Map<String, Integer> enchantments = new LinkedHashMap<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return enchantments;
+        }
+        for (String part : encoded.split(",")) {
+            int split = part.lastIndexOf('=');
+            if (split > 0) {
+                enchantments.put(part.substring(0, split), Integer.parseInt(part.substring(split + 1)));
+            }
+        }
+        return enchantments;
+    }
+}
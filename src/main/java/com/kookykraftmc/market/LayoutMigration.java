@@ -0,0 +1,124 @@
+package com.kookykraftmc.market;
+
+import org.slf4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Moves a server's Redis listings from the legacy to the compact
+ * {@link RedisLayout} while the market keeps running.
+ *
+ * <p>Listings are moved in id order, one batch per transaction. Each
+ * transaction copies the fields into the buckets, deletes the old hashes,
+ * repacks the sellers in the open listings hash and raises the watermark, so
+ * readers always find a listing in exactly one layout. The batch is
+ * {@code WATCH}ed and retried if another server changes one of its listings
+ * meanwhile; this server's own writers are held off with the
+ * {@link RedisLayouts#pin() layout lock}. When the watermark passes the last
+ * listing id the layout is marked compact.</p>
+ */
+public class LayoutMigration {
+
+    private final RedisProvider redis;
+    private final RedisLayouts layouts;
+    private final String server;
+    private final int batchSize;
+    private final Logger logger;
+
+    public LayoutMigration(RedisProvider redis, RedisLayouts layouts, String server, int batchSize, Logger logger) {
+        this.redis = redis;
+        this.layouts = layouts;
+        this.server = server;
+        this.batchSize = Math.max(1, batchSize);
+        this.logger = logger;
+    }
+
+    /**
+     * @return the number of listings moved
+     */
+    public int run() {
+        int moved = 0;
+        int batches = 0;
+        try (Jedis jedis = redis.getResource(RedisKeys.forSale(server))) {
+            RedisLayouts.Snapshot snapshot = layouts.get(jedis, server);
+            long watermark = snapshot.getWatermark();
+            while (!snapshot.isCompact()) {
+                Lock lock = layouts.getLock().writeLock();
+                lock.lock();
+                try {
+                    String next = jedis.get(RedisKeys.lastMarketId(server));
+                    long end = next == null ? 0 : Long.parseLong(next);
+                    if (watermark >= end) {
+                        jedis.hset(RedisKeys.layout(server), "Version", "2");
+                        layouts.update(server, true, watermark);
+                        break;
+                    }
+                    long to = Math.min(end, watermark + batchSize);
+                    int count = moveBatch(jedis, watermark, to);
+                    if (count < 0) {
+                        continue;
+                    }
+                    moved += count;
+                    watermark = to;
+                    layouts.update(server, false, watermark);
+                } finally {
+                    lock.unlock();
+                }
+                if (++batches % 20 == 0) {
+                    logger.info("Moved {} listings of {} to the compact Redis layout", moved, server);
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Move the listings with ids in {@code [from, to)}.
+     *
+     * @return the number of listings moved, or -1 if the transaction was
+     * aborted by a concurrent change
+     */
+    private int moveBatch(Jedis jedis, long from, long to) {
+        List<String> ids = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (long id = from; id < to; id++) {
+            ids.add(String.valueOf(id));
+            keys.add(RedisLayout.LEGACY.key(server, String.valueOf(id)));
+        }
+        keys.add(RedisKeys.forSale(server));
+        jedis.watch(keys.toArray(new String[0]));
+        Pipeline p = jedis.pipelined();
+        List<Response<List<String>>> listings = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            listings.add(p.hmget(RedisLayout.LEGACY.key(server, id), RedisLayout.FIELDS));
+        }
+        Response<List<String>> open = p.hmget(RedisKeys.forSale(server), ids.toArray(new String[0]));
+        p.sync();
+
+        Transaction t = jedis.multi();
+        int count = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i);
+            Map<String, String> listing = RedisLayout.LEGACY.decodeAll(listings.get(i).get(), RedisLayout.FIELDS);
+            if (listing.isEmpty()) {
+                continue;
+            }
+            RedisLayout.COMPACT.write(t, server, id, listing);
+            t.del(RedisLayout.LEGACY.key(server, id));
+            String seller = open.get().get(i);
+            if (seller != null) {
+                t.hset(RedisKeys.forSale(server), id, RedisLayout.COMPACT.openValue(RedisLayout.sellerOf(seller)));
+            }
+            count++;
+        }
+        t.hset(RedisKeys.layout(server), "Watermark", String.valueOf(to));
+        return t.exec() == null ? -1 : count;
+    }
+}
@@ -0,0 +1,81 @@
+package com.kookykraftmc.market;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Pages over an index of keys whose values are loaded one page at a time.
+ *
+ * <p>A page is loaded when it is first asked for, and the page after it is
+ * loaded in the background so paging forward does not wait. Only the last
+ * {@link #MAX_CACHED_PAGES} pages are kept, so memory stays bounded however
+ * long the index is. A page that failed to load is loaded again when next
+ * asked for.</p>
+ */
+public class LazyPages<K, V> {
+
+    static final int MAX_CACHED_PAGES = 4;
+
+    private final List<K> index;
+    private final int pageSize;
+    private final Function<List<K>, List<V>> loader;
+    private final Executor executor;
+    private final Map<Integer, CompletableFuture<List<V>>> pages =
+            new LinkedHashMap<Integer, CompletableFuture<List<V>>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, CompletableFuture<List<V>>> eldest) {
+                    return size() > MAX_CACHED_PAGES;
+                }
+            };
+
+    public LazyPages(List<K> index, int pageSize, Function<List<K>, List<V>> loader, Executor executor) {
+        this.index = Collections.unmodifiableList(new ArrayList<>(index));
+        this.pageSize = Math.max(1, pageSize);
+        this.loader = loader;
+        this.executor = executor;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public int getPageCount() {
+        return Math.max(1, (index.size() + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * The values of a page, clamped to the pages that exist, and start
+     * loading the next page.
+     */
+    public CompletableFuture<List<V>> getPage(int page) {
+        int clamped = Math.max(0, Math.min(page, getPageCount() - 1));
+        CompletableFuture<List<V>> values = load(clamped);
+        if (clamped + 1 < getPageCount()) {
+            load(clamped + 1);
+        }
+        return values;
+    }
+
+    /**
+     * Forget a loaded page, e.g. after one of its values changed.
+     */
+    public synchronized void invalidate(int page) {
+        pages.remove(page);
+    }
+
+    private synchronized CompletableFuture<List<V>> load(int page) {
+        CompletableFuture<List<V>> values = pages.get(page);
+        if (values == null || values.isCompletedExceptionally()) {
+            List<K> keys = index.subList(page * pageSize, Math.min(index.size(), (page + 1) * pageSize));
+            values = CompletableFuture.supplyAsync(() -> loader.apply(keys), executor);
+            pages.put(page, values);
+        }
+        return values;
+    }
+}
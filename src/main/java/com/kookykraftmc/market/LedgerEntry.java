@@ -0,0 +1,132 @@
+package com.kookykraftmc.market;
+
+/**
+ * One row of a player's transaction history.
+ */
+public class LedgerEntry {
+
+    public enum Action {
+        BUY, SELL, STOCK, REMOVE, EXPIRE
+    }
+
+    private final long sequence;
+    private final String player;
+    private final long timestamp;
+    private final Action action;
+    private final String otherPlayer;
+    private final String listing;
+    private final String itemType;
+    private final int quantity;
+    private final int price;
+    private final String server;
+
+    /**
+     * @param sequence    tiebreaker among entries of the same millisecond: the
+     *                    row id in MySQL, the number Redis gave the entry
+     *                    within its millisecond once written
+     * @param otherPlayer uuid of the counterparty or staff member, may be null
+     */
+    public LedgerEntry(long sequence, String player, long timestamp, Action action, String otherPlayer,
+                       String listing, String itemType, int quantity, int price, String server) {
+        this.sequence = sequence;
+        this.player = player;
+        this.timestamp = timestamp;
+        this.action = action;
+        this.otherPlayer = otherPlayer;
+        this.listing = listing;
+        this.itemType = itemType;
+        this.quantity = quantity;
+        this.price = price;
+        this.server = server;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getPlayer() {
+        return player;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public String getOtherPlayer() {
+        return otherPlayer;
+    }
+
+    public String getListing() {
+        return listing;
+    }
+
+    public String getItemType() {
+        return itemType;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public int getPrice() {
+        return price;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * Keyset cursor pointing just past this entry, in {@code timestamp-sequence} form.
+     */
+    public String getCursor() {
+        return timestamp + "-" + sequence;
+    }
+
+    /**
+     * Parse a cursor created by {@link #getCursor()}.
+     *
+     * @return timestamp and sequence
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static long[] parseCursor(String cursor) {
+        int dash = cursor.indexOf('-');
+        try {
+            return new long[]{Long.parseLong(cursor.substring(0, dash)), Long.parseLong(cursor.substring(dash + 1))};
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    /**
+     * Encode the entry as a member of the player's Redis ledger. The
+     * sequence it was created with only keeps the member unique; the
+     * sequence read back is that of the member's score.
+     */
+    public String encode() {
+        return action + "|" + (otherPlayer == null ? "" : otherPlayer) + "|" + listing + "|" + itemType + "|"
+                + quantity + "|" + price + "|" + server + "|" + timestamp + "|" + sequence;
+    }
+
+    /**
+     * @param sequence the sequence of the member's score, see {@link RedisLedger}
+     * @return the decoded entry or null if the member is malformed
+     */
+    public static LedgerEntry decode(String player, String member, long sequence) {
+        String[] parts = member.split("\\|", -1);
+        if (parts.length < 9) {
+            return null;
+        }
+        try {
+            return new LedgerEntry(sequence, player, Long.parseLong(parts[7]), Action.valueOf(parts[0]),
+                    parts[1].isEmpty() ? null : parts[1], parts[2], parts[3], Integer.parseInt(parts[4]),
+                    Integer.parseInt(parts[5]), parts[6]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.kookykraftmc.market;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Structured search filter such as
+ * {@code enchant:sharpness>=4 durability>80% unit-price<=100 mod:thermal}.
+ *
+ * <p>Filters are evaluated by the backends against indexed attributes (see
+ * {@link ItemAttributes}); {@link #test(ItemAttributes)} evaluates them in
+ * memory.</p>
+ */
+public class ListingFilter {
+
+    public enum Attribute {
+        ENCHANT, DURABILITY, UNIT_PRICE, MOD, TYPE
+    }
+
+    public enum Operator {
+        EQ("="), GT(">"), GE(">="), LT("<"), LE("<=");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public boolean test(double actual, double expected) {
+            switch (this) {
+                case EQ:
+                    return actual == expected;
+                case GT:
+                    return actual > expected;
+                case GE:
+                    return actual >= expected;
+                case LT:
+                    return actual < expected;
+                default:
+                    return actual <= expected;
+            }
+        }
+
+        static Operator of(String symbol) {
+            for (Operator op : values()) {
+                if (op.symbol.equals(symbol)) {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operator " + symbol);
+        }
+    }
+
+    public static class Condition {
+        private final Attribute attribute;
+        private final String key;
+        private final Operator operator;
+        private final double value;
+
+        Condition(Attribute attribute, String key, Operator operator, double value) {
+            this.attribute = attribute;
+            this.key = key;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        public Attribute getAttribute() {
+            return attribute;
+        }
+
+        /**
+         * Enchantment, mod or item id the condition applies to, if any.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public Operator getOperator() {
+            return operator;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        public boolean test(ItemAttributes attributes) {
+            switch (attribute) {
+                case ENCHANT:
+                    for (Map.Entry<String, Integer> enchant : attributes.getEnchantments().entrySet()) {
+                        if (matchesId(enchant.getKey(), key) && operator.test(enchant.getValue(), value)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case DURABILITY:
+                    return attributes.hasDurability() && operator.test(attributes.getDurabilityPct(), value);
+                case UNIT_PRICE:
+                    return operator.test(attributes.getUnitPrice(), value);
+                case MOD:
+                    return attributes.getModId().equalsIgnoreCase(key);
+                default:
+                    return matchesId(attributes.getItemType(), key);
+            }
+        }
+    }
+
+    private static final String OPERATOR = "(>=|<=|>|<|=)";
+    private static final Pattern ENCHANT = Pattern.compile("enchant:([a-z0-9_.:-]+?)(?:" + OPERATOR + "(\\d+))?");
+    private static final Pattern NUMERIC = Pattern.compile("(durability|unit-price)" + OPERATOR + "(\\d+(?:\\.\\d+)?)%?");
+    private static final Pattern ID = Pattern.compile("(mod|type):(\\S+)");
+
+    private final List<Condition> conditions;
+
+    private ListingFilter(List<Condition> conditions) {
+        this.conditions = Collections.unmodifiableList(conditions);
+    }
+
+    /**
+     * Parse a space separated list of filter expressions.
+     *
+     * @throws IllegalArgumentException if an expression is not understood
+     */
+    public static ListingFilter parse(String input) {
+        List<Condition> conditions = new ArrayList<>();
+        for (String part : input.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            Matcher m;
+            if ((m = ENCHANT.matcher(part)).matches()) {
+                Operator op = m.group(2) == null ? Operator.GE : Operator.of(m.group(2));
+                double level = m.group(3) == null ? 1 : Double.parseDouble(m.group(3));
+                conditions.add(new Condition(Attribute.ENCHANT, m.group(1), op, level));
+            } else if ((m = NUMERIC.matcher(part)).matches()) {
+                Attribute attribute = m.group(1).equals("durability") ? Attribute.DURABILITY : Attribute.UNIT_PRICE;
+                conditions.add(new Condition(attribute, null, Operator.of(m.group(2)), Double.parseDouble(m.group(3))));
+            } else if ((m = ID.matcher(part)).matches()) {
+                Attribute attribute = m.group(1).equals("mod") ? Attribute.MOD : Attribute.TYPE;
+                conditions.add(new Condition(attribute, m.group(2), Operator.EQ, 0));
+            } else {
+                throw new IllegalArgumentException("Unknown filter: " + part);
+            }
+        }
+        if (conditions.isEmpty()) {
+            throw new IllegalArgumentException("No filters given");
+        }
+        return new ListingFilter(conditions);
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    public boolean test(ItemAttributes attributes) {
+        for (Condition condition : conditions) {
+            if (!condition.test(attributes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a namespaced id matches a filter id. Filter ids without a
+     * namespace match any namespace, so {@code sharpness} matches
+     * {@code minecraft:sharpness}.
+     */
+    public static boolean matchesId(String id, String filterId) {
+        if (filterId.indexOf(':') >= 0) {
+            return id.equalsIgnoreCase(filterId);
+        }
+        return id.equalsIgnoreCase(filterId) || id.toLowerCase(Locale.ROOT).endsWith(":" + filterId);
+    }
+}
@@ -0,0 +1,135 @@
+package com.kookykraftmc.market;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Serializes changes to a listing on this server while letting changes to
+ * different listings run in parallel.
+ *
+ * <p>Listings are mapped onto a fixed number of lock stripes by their
+ * reference, so memory does not grow with the number of listings; two
+ * listings sharing a stripe just wait for each other. Stock reservations
+ * queued on a listing while another one is running are combined: the next
+ * caller to get the lock takes every queued reservation and makes one backend
+ * update for all of them, falling back to one update each if the combined
+ * amount cannot be reserved.</p>
+ *
+ * <p>Locks only coordinate this server. Other servers are kept consistent by
+ * the backend updates themselves being atomic.</p>
+ */
+public class ListingLocks {
+
+    private static final int DEFAULT_STRIPES = 256;
+
+    private final ReentrantLock[] stripes;
+    private final Map<String, Queue<Reservation>> queued = new ConcurrentHashMap<>();
+
+    public ListingLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    ListingLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Lock a listing until the hold is closed.
+     */
+    public Hold lock(String listing) {
+        ReentrantLock lock = stripe(listing);
+        lock.lock();
+        return lock::unlock;
+    }
+
+    /**
+     * Reserve {@code amount} items of a listing. {@code reserve} takes the
+     * amount to reserve in the backend and returns the remaining stock, or -1
+     * if it could not be reserved; it may be called with the combined amount
+     * of several callers.
+     *
+     * @return the remaining stock after this caller's reservation took effect,
+     * or -1 if it could not be reserved
+     */
+    public int reserve(String listing, int amount, IntUnaryOperator reserve) {
+        Reservation own = new Reservation(amount);
+        Queue<Reservation> queue = queued.computeIfAbsent(listing, l -> new ConcurrentLinkedQueue<>());
+        queue.add(own);
+        try (Hold hold = lock(listing)) {
+            if (own.done) {
+                return own.remaining;
+            }
+            List<Reservation> batch = new ArrayList<>();
+            Reservation next;
+            while ((next = queue.poll()) != null) {
+                batch.add(next);
+            }
+            // a reservation may still be added to the dropped queue; its caller
+            // then finds it not done and drains the queue itself
+            queued.remove(listing, queue);
+            complete(batch, reserve);
+            return own.remaining;
+        }
+    }
+
+    private static void complete(List<Reservation> batch, IntUnaryOperator reserve) {
+        long total = 0;
+        for (Reservation reservation : batch) {
+            total += reservation.amount;
+        }
+        if (batch.size() > 1 && total <= Integer.MAX_VALUE) {
+            int remaining = reserve.applyAsInt((int) total);
+            if (remaining >= 0) {
+                for (Reservation reservation : batch) {
+                    reservation.finish(remaining);
+                }
+                return;
+            }
+        }
+        for (Reservation reservation : batch) {
+            reservation.finish(reserve.applyAsInt(reservation.amount));
+        }
+    }
+
+    int queueLength(String listing) {
+        return stripe(listing).getQueueLength();
+    }
+
+    private ReentrantLock stripe(String listing) {
+        int hash = listing.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[hash & (stripes.length - 1)];
+    }
+
+    public interface Hold extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final class Reservation {
+        private final int amount;
+        // written and read under the listing's lock
+        private boolean done;
+        // stays -1 if the batch it was taken into failed
+        private int remaining = -1;
+
+        private Reservation(int amount) {
+            this.amount = amount;
+        }
+
+        private void finish(int remaining) {
+            this.remaining = remaining;
+            this.done = true;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.kookykraftmc.market;
+
+import java.util.Map;
+
+/**
+ * Raw listing data as stored by a backend, before the item is deserialized.
+ */
+public class ListingRecord {
+    private final ListingRef ref;
+    private final String seller;
+    private final String item;
+    private final int stock;
+    private final int price;
+    private final int quantity;
+
+    public ListingRecord(ListingRef ref, String seller, String item, int stock, int price, int quantity) {
+        this.ref = ref;
+        this.seller = seller;
+        this.item = item;
+        this.stock = stock;
+        this.price = price;
+        this.quantity = quantity;
+    }
+
+    /**
+     * Build a record from the fields of a Redis listing hash, or return null
+     * if the hash is missing or incomplete.
+     */
+    public static ListingRecord fromRedis(ListingRef ref, Map<String, String> listing) {
+        if (listing == null || listing.get("Item") == null || listing.get("Seller") == null) {
+            return null;
+        }
+        return new ListingRecord(ref, listing.get("Seller"), listing.get("Item"),
+                parseInt(listing.get("Stock")), parseInt(listing.get("Price")), parseInt(listing.get("Quantity")));
+    }
+
+    private static int parseInt(String value) {
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+
+    public ListingRef getRef() {
+        return ref;
+    }
+
+    public String getSeller() {
+        return seller;
+    }
+
+    public String getItem() {
+        return item;
+    }
+
+    public int getStock() {
+        return stock;
+    }
+
+    public int getPrice() {
+        return price;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+}
@@ -0,0 +1,47 @@
+package com.kookykraftmc.market;
+
+/**
+ * Reference to a listing, optionally qualified with the server that owns it.
+ *
+ * <p>In Redis mode listing ids are only unique per server, so listings shown in
+ * a network wide view are referred to as {@code <server>:<id>}. Unqualified
+ * ids refer to the local server.</p>
+ */
+public class ListingRef {
+    private final String server;
+    private final String id;
+
+    public ListingRef(String server, String id) {
+        this.server = server;
+        this.id = id;
+    }
+
+    public static ListingRef parse(String ref, String localServer) {
+        int split = ref.lastIndexOf(':');
+        if (split <= 0) {
+            return new ListingRef(localServer, ref);
+        }
+        return new ListingRef(ref.substring(0, split), ref.substring(split + 1));
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Format this reference for commands, omitting the server name when it is
+     * the local server.
+     */
+    public String format(String localServer) {
+        return server.equals(localServer) ? id : server + ":" + id;
+    }
+
+    @Override
+    public String toString() {
+        return server + ":" + id;
+    }
+}
@@ -0,0 +1,151 @@
+package com.kookykraftmc.market;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a server's decoded listing documents, written on
+ * shutdown so the next start does not have to deserialize every item again.
+ *
+ * <p>Layout: magic, format version, server name, write time, document count,
+ * the documents, and a CRC32 of everything before it. Strings are stored as a
+ * length followed by UTF-8 bytes. A snapshot is read through a memory mapping
+ * and rejected as a whole if the checksum, format or server does not match.</p>
+ */
+public class ListingSnapshot {
+
+    private static final int MAGIC = 0x4D4B5331;
+    private static final int FORMAT = 2;
+
+    private final String server;
+    private final long writtenAt;
+    private final List<SearchIndex.Document> documents;
+
+    private ListingSnapshot(String server, long writtenAt, List<SearchIndex.Document> documents) {
+        this.server = server;
+        this.writtenAt = writtenAt;
+        this.documents = documents;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public long getWrittenAt() {
+        return writtenAt;
+    }
+
+    public List<SearchIndex.Document> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * Write the documents to {@code file}. The snapshot is written next to
+     * the target first and moved into place, so a crash never leaves a
+     * truncated snapshot behind.
+     */
+    public static void write(Path file, String server, long writtenAt, Collection<SearchIndex.Document> documents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        writeString(out, server);
+        out.writeLong(writtenAt);
+        out.writeInt(documents.size());
+        for (SearchIndex.Document document : documents) {
+            writeString(out, document.getRef());
+            writeString(out, document.getName());
+            writeString(out, document.getSellerName());
+            out.writeInt(document.getPrice());
+            out.writeInt(document.getQuantity());
+            out.writeInt(document.getTokens().size());
+            for (Map.Entry<String, Integer> token : document.getTokens().entrySet()) {
+                writeString(out, token.getKey());
+                out.writeInt(token.getValue());
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a snapshot written for {@code server}.
+     *
+     * @throws IOException if the file is unreadable, corrupt or belongs to
+     *                     another server or format version
+     */
+    public static ListingSnapshot read(Path file, String server) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 24 || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int bodyLength = (int) size - 8;
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.limit(bodyLength);
+            crc.update(body);
+            if (crc.getValue() != buffer.getLong(bodyLength)) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+            buffer.limit(bodyLength);
+            try {
+                if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+                    throw new IOException("Unknown snapshot format");
+                }
+                String snapshotServer = readString(buffer);
+                if (!snapshotServer.equals(server)) {
+                    throw new IOException("Snapshot belongs to server " + snapshotServer);
+                }
+                long writtenAt = buffer.getLong();
+                int count = buffer.getInt();
+                List<SearchIndex.Document> documents = new ArrayList<>(Math.min(count, bodyLength / 16));
+                for (int i = 0; i < count; i++) {
+                    SearchIndex.Document document = new SearchIndex.Document(readString(buffer), readString(buffer),
+                            readString(buffer), buffer.getInt(), buffer.getInt());
+                    int tokens = buffer.getInt();
+                    for (int t = 0; t < tokens; t++) {
+                        document.getTokens().put(readString(buffer), buffer.getInt());
+                    }
+                    documents.add(document);
+                }
+                return new ListingSnapshot(snapshotServer, writtenAt, documents);
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed snapshot", e);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,64 @@
+package com.kookykraftmc.market;
+
+/**
+ * Items waiting in a player's mailbox, such as the stock of an expired
+ * listing. The item is kept serialized so it is only deserialized when the
+ * player is online to receive it.
+ */
+public class Mail {
+    // MySQL row id, or position in the Redis mailbox list, of mail read back
+    private final long id;
+    private final String player;
+    private final String item;
+    private final int quantity;
+
+    public Mail(String player, String item, int quantity) {
+        this(-1, player, item, quantity);
+    }
+
+    public Mail(long id, String player, String item, int quantity) {
+        this.id = id;
+        this.player = player;
+        this.item = item;
+        this.quantity = quantity;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getPlayer() {
+        return player;
+    }
+
+    public String getItem() {
+        return item;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * Encode the mail as an element of the player's Redis mailbox list.
+     */
+    public String encode() {
+        return quantity + "|" + item;
+    }
+
+    /**
+     * @param index position of the element in the mailbox list
+     * @return the decoded mail or null if the element is malformed
+     */
+    public static Mail decode(long index, String player, String element) {
+        int separator = element.indexOf('|');
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            return new Mail(index, player, element.substring(separator + 1), Integer.parseInt(element.substring(0, separator)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
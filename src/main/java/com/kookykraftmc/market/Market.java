@@ -13,10 +13,13 @@ import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
 import ninja.leaping.configurate.loader.ConfigurationLoader;
 import org.slf4j.Logger;
 import org.spongepowered.api.Game;
-import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.command.CommandSource;
 import org.spongepowered.api.command.args.GenericArguments;
 import org.spongepowered.api.command.spec.CommandSpec;
 import org.spongepowered.api.config.DefaultConfig;
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.api.data.DataQuery;
 import org.spongepowered.api.data.DataView;
 import org.spongepowered.api.data.persistence.DataTranslators;
 import org.spongepowered.api.entity.living.player.Player;
@@ -24,15 +27,26 @@ import org.spongepowered.api.event.Listener;
 import org.spongepowered.api.event.cause.Cause;
 import org.spongepowered.api.event.cause.EventContext;
 import org.spongepowered.api.event.filter.Getter;
+import org.spongepowered.api.data.key.Keys;
 import org.spongepowered.api.event.game.state.GameInitializationEvent;
 import org.spongepowered.api.event.game.state.GamePreInitializationEvent;
+import org.spongepowered.api.event.game.state.GameStartedServerEvent;
 import org.spongepowered.api.event.game.state.GameStoppingServerEvent;
 import org.spongepowered.api.event.network.ClientConnectionEvent;
+import org.spongepowered.api.event.service.ChangeServiceProviderEvent;
+import org.spongepowered.api.data.property.item.UseLimitProperty;
 import org.spongepowered.api.item.ItemType;
+import org.spongepowered.api.item.enchantment.Enchantment;
 import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.item.inventory.ItemStackSnapshot;
+import org.spongepowered.api.item.inventory.entity.Hotbar;
+import org.spongepowered.api.item.inventory.transaction.InventoryTransactionResult;
+import org.spongepowered.api.item.inventory.type.GridInventory;
 import org.spongepowered.api.plugin.Plugin;
 import org.spongepowered.api.scheduler.Scheduler;
+import org.spongepowered.api.scheduler.SpongeExecutorService;
 import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.service.economy.Currency;
 import org.spongepowered.api.service.economy.EconomyService;
 import org.spongepowered.api.service.economy.account.UniqueAccount;
 import org.spongepowered.api.service.economy.transaction.ResultType;
@@ -42,20 +56,44 @@ import org.spongepowered.api.service.pagination.PaginationService;
 import org.spongepowered.api.text.Text;
 import org.spongepowered.api.text.action.TextActions;
 import org.spongepowered.api.text.format.TextColors;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisSentinelPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.SetParams;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Plugin(id = "market", name = "Market", description = "Market", url = "https://kookykraftmc.net", authors = {"TimeTheCat"})
@@ -83,7 +121,114 @@ public class Market {
     private int redisPort;
     private String redisHost;
     private String redisPass;
-    private JedisPool jedisPool;
+    private RedisProvider redisProvider;
+    // Layout of the Redis listings of each server, see RedisLayout
+    private final RedisLayouts layouts = new RedisLayouts();
+    private static final int LAYOUT_MIGRATION_BATCH_SIZE = 200;
+    private static final int MEMORY_SAMPLE_SIZE = 100;
+    private static final int ORPHAN_SWEEP_BATCH_SIZE = 100;
+
+    // Servers sharing the Redis instance, refreshed from their heartbeats
+    private volatile List<String> knownServers = Collections.emptyList();
+    private volatile long knownServersExpiry;
+    private static final long SERVER_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // Task announcing this server to the rest of the network
+    private Task heartbeatTask;
+
+    private SpongeExecutorService asyncExecutor;
+
+    // Full text index over the local server's open listings
+    private final SearchIndex searchIndex = new SearchIndex();
+    // read key guarding browse and search reads, see listingWritten
+    private static final String LISTINGS_READ_KEY = "listings";
+    // Shares listing scans between players running the same command at once
+    private RequestCoalescer<String, List<Text>> listingQueries = new RequestCoalescer<>(1000);
+    // Parses stored items in parallel during full scans
+    private BulkDecoder itemDecoder = new BulkDecoder(1, DECODE_CHUNK_SIZE, false);
+    private static final int DECODE_CHUNK_SIZE = 256;
+    private final AtomicBoolean migrationRunning = new AtomicBoolean();
+    private final AtomicBoolean searchRefreshRunning = new AtomicBoolean();
+
+    // Network timeouts of both backends and the breaker that turns the market
+    // read only while the backend in use keeps failing
+    private StorageTimeouts storageTimeouts = new StorageTimeouts(2000, 3000, 1000);
+    private CircuitBreaker storageBreaker = new CircuitBreaker(5, TimeUnit.SECONDS.toMillis(30));
+    // Last good result of each listing query, shown while the market is degraded
+    private final Map<String, List<Text>> lastListings = Collections.synchronizedMap(
+            new LinkedHashMap<String, List<Text>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<Text>> eldest) {
+                    return size() > MAX_CACHED_QUERIES;
+                }
+            });
+    private static final int MAX_CACHED_QUERIES = 256;
+    private static final int MAX_TEXT_RESULTS = 200;
+
+    private static final int BACKFILL_BATCH_SIZE = 200;
+    private Task searchIndexTask;
+
+    // Rolling price aggregates, fed by local purchases and other servers' sales
+    private final PriceHistory priceHistory = new PriceHistory();
+    // Local sales waiting to be written to the sales history
+    private final Queue<Sale> pendingSales = new ConcurrentLinkedQueue<>();
+    private final AtomicLong saleSequence = new AtomicLong();
+    private volatile boolean salesHistoryLoaded;
+    // MySQL: market_sales ids up to lastSaleId have been read. Ids are handed
+    // out before rows commit, so ids above it that were read are kept with
+    // the time they were first seen until a lower id can no longer appear
+    private long lastSaleId;
+    private final Map<Long, Long> recentSaleIds = new HashMap<>();
+    private static final long SALE_SETTLE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    // Redis: sequence of the last sale read from the sales feed
+    private long lastSaleSequence;
+    private static final int SALE_FEED_LENGTH = 100000;
+    private static final int SALE_PRUNE_BATCH_SIZE = 5000;
+    private Task priceHistoryTask;
+
+    // Players whose mail is being delivered, mapped to whether more was sent
+    // meanwhile, see deliverMail
+    private final Map<String, Boolean> mailDeliveries = new HashMap<>();
+
+    // Transaction history entries waiting for the next batched write
+    private final Queue<LedgerEntry> pendingLedger = new ConcurrentLinkedQueue<>();
+    private final AtomicLong ledgerSequence = new AtomicLong();
+    private static final int HISTORY_PAGE_SIZE = 10;
+    private static final DateTimeFormatter HISTORY_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    private Task ledgerTask;
+
+    // Seller proceeds are credited to a pending payout and deposited in one
+    // sum per seller instead of a transfer per sale when true
+    private boolean batchPayouts;
+    private Task payoutTask;
+    // how long a server may hold a payout claim before another takes it over
+    private static final long PAYOUT_CLAIM_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private volatile EconomyService economyService;
+    private final Map<UUID, UniqueAccount> accounts = Collections.synchronizedMap(
+            new LinkedHashMap<UUID, UniqueAccount>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, UniqueAccount> eldest) {
+                    return size() > MAX_CACHED_ACCOUNTS;
+                }
+            });
+    private static final int MAX_CACHED_ACCOUNTS = 1024;
+
+    // Listing lifetime, 0 for listings that never expire
+    private long listingLifetimeMillis;
+    private static final int EXPIRY_BATCH_SIZE = 100;
+    private static final int EXPIRY_MAX_BATCHES = 10;
+    private volatile boolean expiryAssigned;
+    private Task expiryTask;
+    private Task orphanSweepTask;
+
+    // Serializes changes to a listing on this server; taken after order
+    // monitors and before layout pins
+    private final ListingLocks listingLocks = new ListingLocks();
+
+    // Buy orders placed on this server, rebuilt from storage on startup
+    private final OrderBook orderBook = new OrderBook();
+    private static final int ORDER_MATCH_LIMIT = 100;
 
     // Optional MySQL storage service used for cross server synchronization
     private MySqlStorageService sqlStorage;
@@ -91,6 +236,9 @@ public class Market {
     // Task used to poll MySQL for cross server events
     private Task sqlListenerTask;
 
+    // Task deleting processed cross server events
+    private Task eventPruneTask;
+
     private Database database;
 
     // Flag indicating which backend is used for data storage
@@ -98,6 +246,8 @@ public class Market {
 
     private Cause marketCause;
     private List<String> blacklistedItems = Lists.newArrayList();
+    // compiled from blacklistedItems whenever it changes
+    private volatile BlacklistMatcher blacklistMatcher = BlacklistMatcher.empty();
 
     @Listener
     public void onPreInit(GamePreInitializationEvent event) {
@@ -114,12 +264,23 @@ public class Market {
                 this.cfg.getNode("Redis", "Port").setValue(6379);
                 this.cfg.getNode("Redis", "Use-password").setValue(false);
                 this.cfg.getNode("Redis", "Password").setValue("password");
+                this.cfg.getNode("Redis", "Mode")
+                        .setComment("Redis deployment type. Valid options: standalone, sentinel or cluster. In cluster mode "
+                                + "the slot holding this server's keys must not be resharded while the server runs")
+                        .setValue("standalone");
+                this.cfg.getNode("Redis", "Sentinel", "Master").setValue("mymaster");
+                this.cfg.getNode("Redis", "Sentinel", "Nodes").setValue(Collections.singletonList("localhost:26379"));
+                this.cfg.getNode("Redis", "Cluster", "Nodes").setValue(Collections.singletonList("localhost:7000"));
+                this.cfg.getNode("Redis", "Layout")
+                        .setComment("How listings are stored. compact groups listings into small hashes and uses much less memory; "
+                                + "existing legacy listings are moved in the background. Valid options: legacy or compact")
+                        .setValue("compact");
 
                 this.cfg.getNode("Market", "Sponge", "Server").setValue("TEST");
 
                 // Storage selection and MySQL defaults
                 this.cfg.getNode("Storage", "Type")
-                        .setComment("Storage backend used by the plugin. Valid options: redis or mysql")
+                        .setComment("Storage backend used by the plugin. Valid options: redis, mysql or embedded (a local database in the config directory)")
                         .setValue("redis");
                 this.cfg.getNode("MySQL").setComment("MySQL connection settings (used when Storage.Type is 'mysql')");
                 this.cfg.getNode("MySQL", "Host").setValue("localhost");
@@ -127,6 +288,79 @@ public class Market {
                 this.cfg.getNode("MySQL", "Database").setValue("market");
                 this.cfg.getNode("MySQL", "Username").setValue("root");
                 this.cfg.getNode("MySQL", "Password").setValue("");
+                this.cfg.getNode("MySQL", "Replicas")
+                        .setComment("Optional read replicas (host:port) used for browsing and searching")
+                        .setValue(Collections.emptyList());
+                this.cfg.getNode("MySQL", "Replica-Lag-Guard-Seconds")
+                        .setComment("How long reads of a player's own data stay on the primary after they write")
+                        .setValue(5);
+                this.cfg.getNode("Search", "Reindex-Interval-Minutes")
+                        .setComment("How often the text search index is reconciled with the backend")
+                        .setValue(5);
+                this.cfg.getNode("Prices", "Update-Interval-Seconds")
+                        .setComment("How often sales are written and price aggregates are persisted")
+                        .setValue(30);
+                this.cfg.getNode("Prices", "Retention-Days")
+                        .setComment("How long raw sales are kept. Aggregates cover at most 7 days")
+                        .setValue(30);
+                this.cfg.getNode("Events", "Retention-Hours")
+                        .setComment("How long processed cross server events are kept in MySQL")
+                        .setValue(24);
+                this.cfg.getNode("Events", "Prune-Interval-Minutes")
+                        .setComment("How often processed cross server events past their retention are deleted")
+                        .setValue(10);
+                this.cfg.getNode("Ledger", "Flush-Interval-Seconds")
+                        .setComment("How often transaction history entries are written in one batch")
+                        .setValue(5);
+                this.cfg.getNode("Payouts", "Batched")
+                        .setComment("Credit sellers' proceeds to a pending payout that is deposited periodically and on login, "
+                                + "instead of depositing every sale while the buyer waits")
+                        .setValue(false);
+                this.cfg.getNode("Payouts", "Settle-Interval-Seconds")
+                        .setComment("How often pending payouts, and proceeds whose deposit failed, are deposited")
+                        .setValue(60);
+                this.cfg.getNode("Listings", "Lifetime-Hours")
+                        .setComment("Hours until a listing expires and its stock is returned to the seller. 0 disables expiry")
+                        .setValue(168);
+                this.cfg.getNode("Listings", "Expiry-Sweep-Seconds")
+                        .setComment("How often expired listings are collected")
+                        .setValue(60);
+                this.cfg.getNode("Listings", "Orphan-Sweep-Minutes")
+                        .setComment("How often Redis data left behind by closed listings is looked for and deleted. 0 disables the sweep")
+                        .setValue(60);
+                this.cfg.getNode("Listings", "Orphan-Sweep-Keys-Per-Second")
+                        .setComment("Redis keys the orphaned listing sweep scans per second")
+                        .setValue(500);
+                this.cfg.getNode("Listings", "Coalesce-Window-Millis")
+                        .setComment("How long a listing or search result is shared by players running the same command")
+                        .setValue(1000);
+                this.cfg.getNode("Migration", "Batch-Size")
+                        .setComment("Rows copied per batch by /market migrate")
+                        .setValue(500);
+                this.cfg.getNode("Migration", "Rows-Per-Second")
+                        .setComment("Throughput limit of /market migrate, 0 for none")
+                        .setValue(2000);
+                this.cfg.getNode("Storage", "Connect-Timeout-Millis")
+                        .setComment("Time allowed to open a connection to Redis or MySQL")
+                        .setValue(2000);
+                this.cfg.getNode("Storage", "Read-Timeout-Millis")
+                        .setComment("Time allowed for Redis or MySQL to answer a command")
+                        .setValue(3000);
+                this.cfg.getNode("Storage", "Borrow-Timeout-Millis")
+                        .setComment("Time a command waits for a free pooled connection")
+                        .setValue(1000);
+                this.cfg.getNode("Storage", "Breaker-Failure-Threshold")
+                        .setComment("Consecutive storage failures after which the market turns read only and shows cached listings")
+                        .setValue(5);
+                this.cfg.getNode("Storage", "Breaker-Open-Seconds")
+                        .setComment("How long the market stays read only before it tries the storage again")
+                        .setValue(30);
+                this.cfg.getNode("Performance", "Decode-Threads")
+                        .setComment("Threads used to parse stored items during large scans, 0 for one per core")
+                        .setValue(0);
+                this.cfg.getNode("Performance", "Parallel-Item-Deserialize")
+                        .setComment("Also build item stacks on the decode threads. Only enable if your platform's data manager is thread safe")
+                        .setValue(false);
                 logger.info("Config created...");
                 this.getConfigManager().save(cfg);
             }
@@ -134,18 +368,37 @@ public class Market {
             this.cfg = this.configManager.load();
 
             this.serverName = cfg.getNode("Market", "Sponge", "Server").getString();
+            this.listingLifetimeMillis = TimeUnit.HOURS.toMillis(Math.max(0, cfg.getNode("Listings", "Lifetime-Hours").getInt(168)));
+            this.batchPayouts = cfg.getNode("Payouts", "Batched").getBoolean(false);
+            this.listingQueries = new RequestCoalescer<>(Math.max(0, cfg.getNode("Listings", "Coalesce-Window-Millis").getInt(1000)));
+            int decodeThreads = cfg.getNode("Performance", "Decode-Threads").getInt(0);
+            itemDecoder.close();
+            this.itemDecoder = new BulkDecoder(decodeThreads > 0 ? decodeThreads : Runtime.getRuntime().availableProcessors(),
+                    DECODE_CHUNK_SIZE, cfg.getNode("Performance", "Parallel-Item-Deserialize").getBoolean(false));
+
+            this.storageTimeouts = new StorageTimeouts(cfg.getNode("Storage", "Connect-Timeout-Millis").getInt(2000),
+                    cfg.getNode("Storage", "Read-Timeout-Millis").getInt(3000),
+                    cfg.getNode("Storage", "Borrow-Timeout-Millis").getInt(1000));
+            this.storageBreaker = new CircuitBreaker(cfg.getNode("Storage", "Breaker-Failure-Threshold").getInt(5),
+                    TimeUnit.SECONDS.toMillis(cfg.getNode("Storage", "Breaker-Open-Seconds").getInt(30)));
 
             String storageType = cfg.getNode("Storage", "Type").getString("redis");
-            useMySql = "mysql".equalsIgnoreCase(storageType);
+            boolean embedded = "embedded".equalsIgnoreCase(storageType);
+            // the embedded database speaks the MySQL dialect and shares its code paths
+            useMySql = embedded || "mysql".equalsIgnoreCase(storageType);
+
+            this.redisPort = cfg.getNode("Redis", "Port").getInt();
+            this.redisHost = cfg.getNode("Redis", "Host").getString();
+            this.redisPass = cfg.getNode("Redis", "Password").getString();
 
             if (useMySql) {
-                String sqlHost = cfg.getNode("MySQL", "Host").getString("localhost");
-                int sqlPort = cfg.getNode("MySQL", "Port").getInt(3306);
-                String sqlDatabase = cfg.getNode("MySQL", "Database").getString("market");
-                String sqlUser = cfg.getNode("MySQL", "Username").getString("root");
-                String sqlPassword = cfg.getNode("MySQL", "Password").getString("");
-                database = new Database(sqlHost, sqlPort, sqlDatabase, sqlUser, sqlPassword, logger);
-                database.runMigrations();
+                if (embedded) {
+                    database = Database.embedded(defaultCfg.getParentFile(), logger);
+                    database.runMigrations();
+                } else {
+                    database = connectMySql();
+                }
+                database.setCircuitBreaker(storageBreaker);
                 try {
                     sqlStorage = new MySqlStorageService(database.getDataSource(), logger);
                     subscribe();
@@ -153,14 +406,8 @@ public class Market {
                     logger.error("Failed to initialize MySQL storage service", e);
                 }
             } else {
-                this.redisPort = cfg.getNode("Redis", "Port").getInt();
-                this.redisHost = cfg.getNode("Redis", "Host").getString();
-                this.redisPass = cfg.getNode("Redis", "Password").getString();
-                if (this.cfg.getNode("Redis", "Use-password").getBoolean()) {
-                    jedisPool = setupRedis(this.redisHost, this.redisPort, this.redisPass);
-                } else {
-                    jedisPool = setupRedis(this.redisHost, this.redisPort);
-                }
+                redisProvider = RedisProvider.guarded(setupRedis(), storageBreaker);
+                migrateLegacyKeys(redisProvider);
             }
 
         } catch (Exception e) {
@@ -179,24 +426,32 @@ public class Market {
                 logger.error("MySQL initialization failed (database is null). Aborting initialization.");
                 return;
             }
-            try (Connection conn = database.getDataSource().getConnection();
+            try (Connection conn = database.getConnection();
                  PreparedStatement ps = conn.prepareStatement("SELECT item FROM blacklist");
                  ResultSet rs = ps.executeQuery()) {
                 blacklistedItems = new ArrayList<>();
                 while (rs.next()) {
                     blacklistedItems.add(rs.getString("item"));
                 }
+                blacklistChanged();
             } catch (SQLException e) {
                 logger.error("Failed to load blacklist from MySQL", e);
             }
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
                 logger.info("Skipping blacklist loading from Redis; no pool available.");
             } else {
-                try (Jedis jedis = pool.getResource()) {
+                try (Jedis jedis = redis.getResource(RedisKeys.BLACKLIST)) {
                     blacklistedItems = Lists.newArrayList(jedis.hgetAll(RedisKeys.BLACKLIST).keySet());
+                    blacklistChanged();
                 }
+                heartbeatTask = getScheduler().createTaskBuilder()
+                        .async()
+                        .execute(this::sendHeartbeat)
+                        .interval(1, TimeUnit.MINUTES)
+                        .name("Market Heartbeat")
+                        .submit(this);
             }
         }
 
@@ -210,6 +465,7 @@ public class Market {
         CommandSpec listingsCmd = CommandSpec.builder()
                 .executor(new ListingsCommand())
                 .permission("market.command.listings")
+                .arguments(GenericArguments.flags().flag("g", "-global").buildWith(GenericArguments.none()))
                 .description(Text.of("List all market listings."))
                 .build();
 
@@ -223,7 +479,8 @@ public class Market {
         CommandSpec buyCmd = CommandSpec.builder()
                 .executor(new BuyCommand())
                 .permission("market.command.buy")
-                .arguments(GenericArguments.string(Text.of("id")))
+                .arguments(GenericArguments.string(Text.of("id")),
+                        GenericArguments.optional(GenericArguments.integer(Text.of("lots"))))
                 .description(Text.of("Buy an Item from the market."))
                 .build();
 
@@ -244,7 +501,8 @@ public class Market {
         CommandSpec blacklistAddCmd = CommandSpec.builder()
                 .executor(new BlacklistAddCommand())
                 .permission("market.command.staff.blacklist.add")
-                .description(Text.of("Add an item to the market blacklist."))
+                .description(Text.of("Add the held item, or a pattern such as modid:*, to the market blacklist."))
+                .arguments(GenericArguments.optional(GenericArguments.string(Text.of("pattern"))))
                 .build();
 
         CommandSpec blacklistRmCmd = CommandSpec.builder()
@@ -265,23 +523,114 @@ public class Market {
         CommandSpec itemSearch = CommandSpec.builder()
                 .executor(new SearchCommand.ItemSearch())
                 .permission("market.command.search")
-                .arguments(GenericArguments.catalogedElement(Text.of("item"), ItemType.class))
+                .arguments(GenericArguments.flags().flag("g", "-global")
+                        .buildWith(GenericArguments.catalogedElement(Text.of("item"), ItemType.class)))
                 .description(Text.of("List all market listings for a specific item."))
                 .build();
 
         CommandSpec nameSearch = CommandSpec.builder()
                 .executor(new SearchCommand.NameSearch())
                 .permission("market.command.search")
-                .arguments(GenericArguments.user(Text.of("user")))
+                .arguments(GenericArguments.flags().flag("g", "-global")
+                        .buildWith(GenericArguments.user(Text.of("user"))))
                 .description(Text.of("List all market listings for a specific name."))
                 .build();
 
+        CommandSpec textSearch = CommandSpec.builder()
+                .executor(new SearchCommand.TextSearch())
+                .permission("market.command.search")
+                .arguments(GenericArguments.remainingJoinedStrings(Text.of("query")))
+                .description(Text.of("Search listings by item name, lore or mod."))
+                .build();
+
+        CommandSpec filterSearch = CommandSpec.builder()
+                .executor(new SearchCommand.FilterSearch())
+                .permission("market.command.search")
+                .arguments(GenericArguments.remainingJoinedStrings(Text.of("filters")))
+                .description(Text.of("Search listings by enchantment, durability, unit price or mod."))
+                .build();
+
         CommandSpec search = CommandSpec.builder()
                 .executor(new SearchCommand())
                 .permission("market.command.search")
                 .description(Text.of("List all search options."))
                 .child(itemSearch, "item")
                 .child(nameSearch, "name")
+                .child(textSearch, "text")
+                .child(filterSearch, "filter")
+                .build();
+
+        CommandSpec priceCmd = CommandSpec.builder()
+                .executor(new PriceCommand())
+                .permission("market.command.price")
+                .arguments(GenericArguments.optional(GenericArguments.catalogedElement(Text.of("item"), ItemType.class)))
+                .description(Text.of("Show recent prices of an item."))
+                .build();
+
+        CommandSpec historyCmd = CommandSpec.builder()
+                .executor(new HistoryCommand())
+                .permission("market.command.history")
+                .arguments(GenericArguments.optional(GenericArguments.user(Text.of("player"))),
+                        GenericArguments.optional(GenericArguments.string(Text.of("cursor"))))
+                .description(Text.of("Show the transaction history of a player."))
+                .build();
+
+        CommandSpec orderCreateCmd = CommandSpec.builder()
+                .executor(new OrderCommand.Create())
+                .permission("market.command.order.create")
+                .arguments(GenericArguments.integer(Text.of("quantity")), GenericArguments.integer(Text.of("price")),
+                        GenericArguments.optional(GenericArguments.catalogedElement(Text.of("item"), ItemType.class)))
+                .description(Text.of("Place a buy order for the item in your hand or the given item."))
+                .build();
+
+        CommandSpec orderCancelCmd = CommandSpec.builder()
+                .executor(new OrderCommand.Cancel())
+                .permission("market.command.order.cancel")
+                .arguments(GenericArguments.integer(Text.of("id")))
+                .description(Text.of("Cancel a buy order and get the escrow back."))
+                .build();
+
+        CommandSpec orderListCmd = CommandSpec.builder()
+                .executor(new OrderCommand.ListOrders())
+                .permission("market.command.order.list")
+                .arguments(GenericArguments.optional(GenericArguments.catalogedElement(Text.of("item"), ItemType.class)))
+                .description(Text.of("List your buy orders or the buy orders for an item."))
+                .build();
+
+        CommandSpec orderCmd = CommandSpec.builder()
+                .executor(new OrderCommand())
+                .permission("market.command.order")
+                .description(Text.of("List all buy order options."))
+                .child(orderCreateCmd, "create")
+                .child(orderCancelCmd, "cancel")
+                .child(orderListCmd, "list")
+                .build();
+
+        CommandSpec sellToOrderCmd = CommandSpec.builder()
+                .executor(new SellToOrderCommand())
+                .permission("market.command.selltoorder")
+                .arguments(GenericArguments.optional(GenericArguments.integer(Text.of("quantity"))))
+                .description(Text.of("Sell the item in your hand to the best buy orders."))
+                .build();
+
+        CommandSpec migrateCmd = CommandSpec.builder()
+                .executor(new MigrateCommand())
+                .permission("market.command.staff.migrate")
+                .arguments(GenericArguments.flags().flag("r", "-restart").buildWith(GenericArguments.none()))
+                .description(Text.of("Copy the market from the storage backend in use to the other configured backend."))
+                .build();
+
+        CommandSpec memoryCmd = CommandSpec.builder()
+                .executor(new MemoryCommand())
+                .permission("market.command.staff.memory")
+                .description(Text.of("Show how much Redis memory the market uses."))
+                .build();
+
+        CommandSpec guiCmd = CommandSpec.builder()
+                .executor(new GuiCommand())
+                .permission("market.command.gui")
+                .arguments(GenericArguments.optional(GenericArguments.remainingJoinedStrings(Text.of("filters"))))
+                .description(Text.of("Browse and buy listings in a chest view, optionally filtered like /market search filter."))
                 .build();
 
         CommandSpec marketCmd = CommandSpec.builder()
@@ -296,10 +645,87 @@ public class Market {
                 .child(removeListingCmd, "removelisting")
                 .child(blacklistCmd, "blacklist")
                 .child(search, "search")
+                .child(priceCmd, "price")
+                .child(historyCmd, "history")
+                .child(orderCmd, "order")
+                .child(sellToOrderCmd, "sell-to-order")
+                .child(migrateCmd, "migrate")
+                .child(memoryCmd, "memory")
+                .child(guiCmd, "gui")
                 .build();
         getGame().getCommandManager().register(this, marketCmd, "market");
     }
 
+    @Listener
+    public void onServerStarted(GameStartedServerEvent event) {
+        if (useMySql ? database == null : getJedis() == null) {
+            return;
+        }
+        loadOrders();
+        loadListingSnapshot();
+        if (!useMySql && "compact".equalsIgnoreCase(cfg.getNode("Redis", "Layout").getString("legacy"))) {
+            getScheduler().createTaskBuilder()
+                    .async()
+                    .execute(this::compactListings)
+                    .name("Market Redis Layout Migration")
+                    .submit(this);
+        }
+        getScheduler().createTaskBuilder()
+                .async()
+                .execute(this::backfillAttributes)
+                .name("Market Attribute Backfill")
+                .submit(this);
+        searchIndexTask = getScheduler().createTaskBuilder()
+                .async()
+                .execute(this::refreshSearchIndex)
+                .interval(cfg.getNode("Search", "Reindex-Interval-Minutes").getInt(5), TimeUnit.MINUTES)
+                .name("Market Search Index Refresh")
+                .submit(this);
+        priceHistoryTask = getScheduler().createTaskBuilder()
+                .async()
+                .execute(this::updatePriceHistory)
+                .interval(cfg.getNode("Prices", "Update-Interval-Seconds").getInt(30), TimeUnit.SECONDS)
+                .name("Market Price History")
+                .submit(this);
+        ledgerTask = getScheduler().createTaskBuilder()
+                .async()
+                .execute(this::flushLedger)
+                .interval(cfg.getNode("Ledger", "Flush-Interval-Seconds").getInt(5), TimeUnit.SECONDS)
+                .name("Market Ledger")
+                .submit(this);
+        // pending payouts also hold failed deposits, so they are settled even when sales are paid at once
+        payoutTask = getScheduler().createTaskBuilder()
+                .async()
+                .execute(this::settlePayouts)
+                .interval(cfg.getNode("Payouts", "Settle-Interval-Seconds").getInt(60), TimeUnit.SECONDS)
+                .name("Market Payouts")
+                .submit(this);
+        expiryTask = getScheduler().createTaskBuilder()
+                .async()
+                .execute(this::sweepExpiredListings)
+                .interval(cfg.getNode("Listings", "Expiry-Sweep-Seconds").getInt(60), TimeUnit.SECONDS)
+                .name("Market Listing Expiry")
+                .submit(this);
+        if (sqlStorage != null) {
+            long eventRetentionMillis = TimeUnit.HOURS.toMillis(Math.max(1, cfg.getNode("Events", "Retention-Hours").getInt(24)));
+            eventPruneTask = getScheduler().createTaskBuilder()
+                    .async()
+                    .execute(() -> sqlStorage.pruneEvents(System.currentTimeMillis() - eventRetentionMillis))
+                    .interval(cfg.getNode("Events", "Prune-Interval-Minutes").getInt(10), TimeUnit.MINUTES)
+                    .name("Market Event Pruning")
+                    .submit(this);
+        }
+        int orphanSweepMinutes = cfg.getNode("Listings", "Orphan-Sweep-Minutes").getInt(60);
+        if (!useMySql && orphanSweepMinutes > 0) {
+            orphanSweepTask = getScheduler().createTaskBuilder()
+                    .async()
+                    .execute(this::sweepOrphanedListings)
+                    .interval(orphanSweepMinutes, TimeUnit.MINUTES)
+                    .name("Market Orphan Sweep")
+                    .submit(this);
+        }
+    }
+
     @Listener
     public void onServerStop(GameStoppingServerEvent event) {
         // The Sponge API Task interface no longer exposes an "isCancelled" method
@@ -310,9 +736,51 @@ public class Market {
             sqlListenerTask.cancel();
             sqlListenerTask = null;
         }
-        if (jedisPool != null) {
-            jedisPool.close();
-            jedisPool = null;
+        if (eventPruneTask != null) {
+            eventPruneTask.cancel();
+            eventPruneTask = null;
+        }
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel();
+            heartbeatTask = null;
+        }
+        if (searchIndexTask != null) {
+            searchIndexTask.cancel();
+            searchIndexTask = null;
+        }
+        if (priceHistoryTask != null) {
+            priceHistoryTask.cancel();
+            priceHistoryTask = null;
+        }
+        if (ledgerTask != null) {
+            ledgerTask.cancel();
+            ledgerTask = null;
+        }
+        if (payoutTask != null) {
+            payoutTask.cancel();
+            payoutTask = null;
+        }
+        if (expiryTask != null) {
+            expiryTask.cancel();
+            expiryTask = null;
+        }
+        if (orphanSweepTask != null) {
+            orphanSweepTask.cancel();
+            orphanSweepTask = null;
+        }
+        flushSales();
+        flushLedger();
+        saveListingSnapshot();
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+        // decode on the calling thread until the decoder is configured again
+        itemDecoder.close();
+        itemDecoder = new BulkDecoder(1, DECODE_CHUNK_SIZE, false);
+        if (redisProvider != null) {
+            redisProvider.close();
+            redisProvider = null;
         }
         if (database != null) {
             database.close();
@@ -322,24 +790,40 @@ public class Market {
     @Listener
     public void onPlayerJoin(ClientConnectionEvent.Join event, @Getter("getTargetEntity") Player player) {
         updateUUIDCache(player.getUniqueId().toString(), player.getName());
+        getScheduler().createTaskBuilder()
+                .async()
+                .execute(() -> {
+                    settlePayout(player.getUniqueId().toString());
+                    deliverMail(player);
+                })
+                .submit(this);
+    }
+
+    @Listener
+    public void onServiceChange(ChangeServiceProviderEvent event) {
+        if (event.getService().equals(EconomyService.class)) {
+            economyService = null;
+            accounts.clear();
+        }
     }
 
     private void updateUUIDCache(String uuid, String name) {
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
+            try (Connection conn = database.getConnection();
                  PreparedStatement ps = conn.prepareStatement("REPLACE INTO uuid_cache (uuid, name) VALUES (?, ?)")) {
                 ps.setString(1, uuid);
                 ps.setString(2, name);
                 ps.executeUpdate();
+                database.markWritten(uuid);
             } catch (SQLException e) {
                 logger.error("Failed to update UUID cache", e);
             }
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
                 return;
             }
-            try (Jedis jedis = pool.getResource()) {
+            try (Jedis jedis = redis.getResource(RedisKeys.UUID_CACHE)) {
                 jedis.hset(RedisKeys.UUID_CACHE, uuid, name);
             }
         }
@@ -347,7 +831,7 @@ public class Market {
 
     private String getNameFromUUID(String uuid) {
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
+            try (Connection conn = database.getReadConnection(uuid);
                  PreparedStatement ps = conn.prepareStatement("SELECT name FROM uuid_cache WHERE uuid = ?")) {
                 ps.setString(1, uuid);
                 try (ResultSet rs = ps.executeQuery()) {
@@ -360,17 +844,42 @@ public class Market {
             }
             return uuid;
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
                 return uuid;
             }
-            try (Jedis jedis = pool.getResource()) {
+            try (Jedis jedis = redis.getResource(RedisKeys.UUID_CACHE)) {
                 String name = jedis.hget(RedisKeys.UUID_CACHE, uuid);
                 return name != null ? name : uuid;
             }
         }
     }
 
+    Map<String, String> getNamesFromUUIDs(Set<String> uuids) {
+        Map<String, String> names = new HashMap<>();
+        if (uuids.isEmpty()) {
+            return names;
+        }
+        if (useMySql) {
+            for (String uuid : uuids) {
+                names.put(uuid, getNameFromUUID(uuid));
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return names;
+            }
+            List<String> keys = new ArrayList<>(uuids);
+            try (Jedis jedis = redis.getResource(RedisKeys.UUID_CACHE)) {
+                List<String> values = jedis.hmget(RedisKeys.UUID_CACHE, keys.toArray(new String[0]));
+                for (int i = 0; i < keys.size(); i++) {
+                    names.put(keys.get(i), values.get(i) != null ? values.get(i) : keys.get(i));
+                }
+            }
+        }
+        return names;
+    }
+
     private ConfigurationLoader<CommentedConfigurationNode> getConfigManager() {
         return configManager;
     }
@@ -389,20 +898,337 @@ public class Market {
         }
     }
 
+    /**
+     * Connect to the configured MySQL database and bring its schema up to date.
+     */
+    private Database connectMySql() {
+        String sqlHost = cfg.getNode("MySQL", "Host").getString("localhost");
+        int sqlPort = cfg.getNode("MySQL", "Port").getInt(3306);
+        String sqlDatabase = cfg.getNode("MySQL", "Database").getString("market");
+        String sqlUser = cfg.getNode("MySQL", "Username").getString("root");
+        String sqlPassword = cfg.getNode("MySQL", "Password").getString("");
+        Database db = new Database(sqlHost, sqlPort, sqlDatabase, sqlUser, sqlPassword, storageTimeouts, logger);
+        for (String replica : getStringList(cfg.getNode("MySQL", "Replicas"))) {
+            String[] hostPort = replica.split(":", 2);
+            int replicaPort = hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : sqlPort;
+            db.addReplica(hostPort[0], replicaPort, sqlDatabase, sqlUser, sqlPassword);
+        }
+        db.setReplicaLagGuard(cfg.getNode("MySQL", "Replica-Lag-Guard-Seconds").getInt(5), TimeUnit.SECONDS);
+        db.runMigrations();
+        return db;
+    }
+
+    /**
+     * Copy listings, blacklist and UUID cache from the storage backend in use
+     * to the other one configured, in the background. The migration resumes
+     * where a previous run stopped unless {@code restart} is set.
+     *
+     * @return false if a migration is already running
+     */
+    public boolean migrateStorage(CommandSource src, boolean restart) {
+        if (!migrationRunning.compareAndSet(false, true)) {
+            return false;
+        }
+        int batchSize = cfg.getNode("Migration", "Batch-Size").getInt(500);
+        int rowsPerSecond = cfg.getNode("Migration", "Rows-Per-Second").getInt(2000);
+        getScheduler().createTaskBuilder()
+                .async()
+                .execute(() -> {
+                    RedisProvider targetRedis = null;
+                    Database targetDatabase = null;
+                    Text result;
+                    try {
+                        StorageMigration migration;
+                        if (useMySql) {
+                            targetRedis = setupRedis();
+                            migration = new StorageMigration(StorageMigration.Direction.MYSQL_TO_REDIS, targetRedis,
+                                    database.getDataSource(), layouts, serverName, batchSize, rowsPerSecond, logger);
+                        } else {
+                            targetDatabase = connectMySql();
+                            migration = new StorageMigration(StorageMigration.Direction.REDIS_TO_MYSQL, getJedis(),
+                                    targetDatabase.getDataSource(), layouts, serverName, batchSize, rowsPerSecond, logger);
+                        }
+                        Map<String, Integer> copied = migration.run(restart);
+                        logger.info("Storage migration finished: {}", copied);
+                        result = Texts.MIGRATION_DONE(copied.toString());
+                    } catch (SQLException | JedisException e) {
+                        logger.error("Failed to migrate storage", e);
+                        result = Texts.MIGRATION_FAILED;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        result = Texts.MIGRATION_FAILED;
+                    } finally {
+                        if (targetRedis != null) {
+                            targetRedis.close();
+                        }
+                        if (targetDatabase != null) {
+                            targetDatabase.close();
+                        }
+                        migrationRunning.set(false);
+                    }
+                    Text message = result;
+                    getScheduler().createTaskBuilder().execute(() -> src.sendMessage(message)).submit(this);
+                })
+                .name("Market Storage Migration")
+                .submit(this);
+        return true;
+    }
+
     //////////////////////////////// REDIS ////////////////////////////////
-    private JedisPool setupRedis(String host, int port) {
+    private RedisProvider setupRedis() {
         JedisPoolConfig config = new JedisPoolConfig();
         config.setMaxTotal(128);
-        return new JedisPool(config, host, port, 0);
+        config.setMaxWaitMillis(storageTimeouts.getBorrowMillis());
+        int connectTimeout = storageTimeouts.getConnectMillis();
+        int readTimeout = storageTimeouts.getReadMillis();
+        // a named connection waits for a reply when it is opened, so a hung
+        // server fails the borrow instead of the first command
+        String clientName = "market-" + serverName.replaceAll("\\s", "_");
+        String password = this.cfg.getNode("Redis", "Use-password").getBoolean() ? this.redisPass : null;
+        String mode = cfg.getNode("Redis", "Mode").getString("standalone");
+        if ("sentinel".equalsIgnoreCase(mode)) {
+            String master = cfg.getNode("Redis", "Sentinel", "Master").getString("mymaster");
+            Set<String> sentinels = new HashSet<>(getStringList(cfg.getNode("Redis", "Sentinel", "Nodes")));
+            return RedisProvider.of(new JedisSentinelPool(master, sentinels, config, connectTimeout, readTimeout, password,
+                    Protocol.DEFAULT_DATABASE, clientName));
+        } else if ("cluster".equalsIgnoreCase(mode)) {
+            Set<HostAndPort> nodes = getStringList(cfg.getNode("Redis", "Cluster", "Nodes")).stream()
+                    .map(HostAndPort::parseString)
+                    .collect(Collectors.toSet());
+            return RedisProvider.cluster(nodes, connectTimeout, readTimeout, password, clientName, config);
+        }
+        return RedisProvider.of(new JedisPool(config, this.redisHost, this.redisPort, connectTimeout, readTimeout, password,
+                Protocol.DEFAULT_DATABASE, clientName));
     }
 
-    private JedisPool setupRedis(String host, int port, String password) {
-        JedisPoolConfig config = new JedisPoolConfig();
-        config.setMaxTotal(128);
-        return new JedisPool(config, host, port, 0, password);
+    private static List<String> getStringList(ConfigurationNode node) {
+        return node.getChildrenList().stream()
+                .map(ConfigurationNode::getString)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Renames keys written before hash tags were added to the key layout, e.g.
+     * {@code market:TEST:open} becomes {@code market:{TEST}:open}. On a cluster
+     * the old keys live in other slots and cannot be renamed, so they are left
+     * for an operator to move.
+     */
+    private void migrateLegacyKeys(RedisProvider redis) {
+        String legacy = RedisKeys.legacyNamespace(serverName) + ":";
+        if (redis.isCluster()) {
+            logger.warn("Redis cluster mode active; legacy keys under {}* are not migrated and must be moved to {}:* by hand",
+                    legacy, RedisKeys.namespace(serverName));
+            return;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+            ScanParams params = new ScanParams().match(legacy + "*").count(500);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            int moved = 0;
+            do {
+                ScanResult<String> result = jedis.scan(cursor, params);
+                for (String key : result.getResult()) {
+                    String target = RedisKeys.namespace(serverName) + ":" + key.substring(legacy.length());
+                    if (jedis.renamenx(key, target) == 1) {
+                        moved++;
+                    } else {
+                        logger.warn("Not migrating {} because {} already exists", key, target);
+                    }
+                }
+                cursor = result.getCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+            if (moved > 0) {
+                logger.info("Migrated {} Redis keys to the hash tagged layout.", moved);
+            }
+        }
+    }
+
+    /**
+     * Move this server's Redis listings to the compact layout, see
+     * {@link LayoutMigration}.
+     */
+    void compactListings() {
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return;
+        }
+        try {
+            int moved = new LayoutMigration(redis, layouts, serverName, LAYOUT_MIGRATION_BATCH_SIZE, logger).run();
+            if (moved > 0) {
+                logger.info("Moved {} listings to the compact Redis layout.", moved);
+            }
+        } catch (JedisException e) {
+            logger.error("Failed to move listings to the compact Redis layout", e);
+        }
+    }
+
+    /**
+     * Delete the Redis data of listings that were closed without it, as
+     * listings closed before closing deleted them were. Keys are scanned at
+     * most {@code Orphan-Sweep-Keys-Per-Second} a second; only ids below the
+     * last listing id are looked at, so listings being created are never
+     * touched.
+     */
+    void sweepOrphanedListings() {
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return;
+        }
+        int keysPerSecond = Math.max(1, cfg.getNode("Listings", "Orphan-Sweep-Keys-Per-Second").getInt(500));
+        String prefix = RedisKeys.namespace(serverName) + ":";
+        long startedAt = System.currentTimeMillis();
+        long scanned = 0;
+        int reclaimed = 0;
+        try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+            ScanParams params = new ScanParams().match(prefix + "*").count(ORPHAN_SWEEP_BATCH_SIZE);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> result = jedis.scan(cursor, params);
+                try (RedisLayouts.Pin pin = layouts.pin()) {
+                    reclaimed += reclaimOrphans(jedis, prefix, result.getResult());
+                }
+                scanned += result.getResult().size();
+                cursor = result.getCursor();
+                long wait = startedAt + scanned * 1000 / keysPerSecond - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (JedisException e) {
+            logger.error("Failed to sweep orphaned listings", e);
+        }
+        if (reclaimed > 0) {
+            logger.info("Deleted {} orphaned Redis listings.", reclaimed);
+        }
+    }
+
+    /**
+     * Delete the listings stored in {@code keys} that are no longer open.
+     *
+     * @return the number of listings deleted
+     */
+    private int reclaimOrphans(Jedis jedis, String prefix, List<String> keys) {
+        String last = jedis.get(RedisKeys.lastMarketId(serverName));
+        long end = last == null ? 0 : Long.parseLong(last);
+        // listing id -> the layout of the key its fields were found in
+        Map<String, RedisLayout> found = new LinkedHashMap<>();
+        for (String key : keys) {
+            String name = key.substring(prefix.length());
+            if (name.matches("\\d+")) {
+                found.put(name, RedisLayout.LEGACY);
+            } else if (name.matches("lb?:\\d+")) {
+                for (String field : jedis.hkeys(key)) {
+                    found.put(field.substring(0, field.length() - 1), RedisLayout.COMPACT);
+                }
+            }
+        }
+        found.keySet().removeIf(id -> Long.parseLong(id) >= end);
+        if (found.isEmpty()) {
+            return 0;
+        }
+        List<String> ids = new ArrayList<>(found.keySet());
+        List<String> open = jedis.hmget(RedisKeys.forSale(serverName), ids.toArray(new String[0]));
+        int reclaimed = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            if (open.get(i) != null) {
+                continue;
+            }
+            String id = ids.get(i);
+            RedisLayout layout = found.get(id);
+            Map<String, String> fields = readListing(jedis, layout, serverName, id, "Type", "Enchants");
+            unindexAttributes(jedis, serverName, id, fields.get("Type"), fields.get("Enchants"));
+            Pipeline p = jedis.pipelined();
+            layout.delete(p, serverName, id);
+            p.sync();
+            reclaimed++;
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Report the Redis memory used by this server's listings. Listing memory
+     * is estimated with {@code MEMORY USAGE} over a sample of the open
+     * listings.
+     */
+    public PaginationList getMemoryReport() {
+        List<Text> texts = new ArrayList<>();
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            texts.add(Text.of(TextColors.RED, "The memory report is only available with Redis storage."));
+        } else {
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+                RedisLayouts.Snapshot layout = layouts.get(jedis, serverName);
+                String open = RedisKeys.forSale(serverName);
+                long openCount = jedis.hlen(open);
+                texts.add(Text.of("Layout: " + (layout.isCompact() ? "compact"
+                        : layout.getWatermark() > 0 ? "moving to compact, ids below " + layout.getWatermark() + " moved" : "legacy")));
+                texts.add(Text.of("Open listings: " + openCount));
+                texts.add(Text.of("Open listings hash: " + formatBytes(memoryUsage(jedis, open)) + ", " + jedis.objectEncoding(open)));
+
+                ScanResult<Map.Entry<String, String>> sample = jedis.hscan(open, ScanParams.SCAN_POINTER_START,
+                        new ScanParams().count(MEMORY_SAMPLE_SIZE));
+                Map<String, RedisLayout> keys = new HashMap<>();
+                for (Map.Entry<String, String> entry : sample.getResult()) {
+                    RedisLayout listingLayout = layout.of(entry.getKey());
+                    keys.put(listingLayout.key(serverName, entry.getKey()), listingLayout);
+                }
+                String stockField = RedisLayout.COMPACT.field("", "Stock");
+                long bytes = 0;
+                long listings = 0;
+                Map<String, Integer> encodings = new TreeMap<>();
+                for (Map.Entry<String, RedisLayout> key : keys.entrySet()) {
+                    bytes += memoryUsage(jedis, key.getKey());
+                    if (key.getValue() == RedisLayout.COMPACT) {
+                        // a bucket also holds listings that were not sampled; their large fields are kept apart
+                        String bucket = key.getKey().substring(key.getKey().lastIndexOf(':') + 1);
+                        bytes += memoryUsage(jedis, RedisKeys.listingBlobs(serverName, Long.parseLong(bucket)));
+                        listings += jedis.hkeys(key.getKey()).stream().filter(field -> field.endsWith(stockField)).count();
+                    } else {
+                        listings++;
+                    }
+                    encodings.merge(String.valueOf(jedis.objectEncoding(key.getKey())), 1, Integer::sum);
+                }
+                if (listings > 0) {
+                    long perListing = bytes / listings;
+                    texts.add(Text.of("Listing data: about " + formatBytes(perListing) + " per listing, "
+                            + formatBytes(perListing * openCount) + " in total (sampled " + listings + " listings)"));
+                    texts.add(Text.of("Listing hash encodings: " + encodings));
+                    if (layout.isCompact() && encodings.containsKey("hashtable")) {
+                        texts.add(Text.of(TextColors.YELLOW, "Some buckets exceed the listpack limits; check "
+                                + "hash-max-listpack-entries and hash-max-listpack-value (hash-max-ziplist-* before Redis 7)."));
+                    }
+                }
+                for (String line : jedis.info("memory").split("\r?\n")) {
+                    if (line.startsWith("used_memory_human:")) {
+                        texts.add(Text.of("Redis used memory: " + line.substring(line.indexOf(':') + 1)));
+                    }
+                }
+            } catch (JedisException e) {
+                logger.error("Failed to report Redis memory", e);
+                texts.add(Text.of(TextColors.RED, "Could not read the memory usage, see the server log."));
+            }
+        }
+        return getPaginationService().builder().contents(texts).title(Text.of(TextColors.GREEN, "Market Memory")).build();
     }
 
-    public JedisPool getJedis() {
+    private static long memoryUsage(Jedis jedis, String key) {
+        Long bytes = jedis.memoryUsage(key);
+        return bytes == null ? 0 : bytes;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KiB", bytes / 1024.0);
+        }
+        return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+    }
+
+    public RedisProvider getJedis() {
         if (cfg == null) {
             logger.error("Configuration not loaded. Unable to provide Jedis pool.");
             return null;
@@ -413,16 +1239,11 @@ public class Market {
             return null;
         }
 
-        if (jedisPool == null) {
-            // Use the same case as onPreInit ("Redis")
-            if (this.cfg.getNode("Redis", "Use-password").getBoolean()) {
-                jedisPool = setupRedis(this.redisHost, this.redisPort, this.redisPass);
-            } else {
-                jedisPool = setupRedis(this.redisHost, this.redisPort);
-            }
+        if (redisProvider == null) {
+            redisProvider = RedisProvider.guarded(setupRedis(), storageBreaker);
         }
 
-        return jedisPool;
+        return redisProvider;
     }
 
     public PaginationService getPaginationService() {
@@ -442,7 +1263,7 @@ public class Market {
         commands.add(Text.builder()
                 .onHover(TextActions.showText(Text.of("Show the items in the market.")))
                 .onClick(TextActions.suggestCommand("/market listings"))
-                .append(Text.of("/market listings"))
+                .append(Text.of("/market listings [-g]"))
                 .build());
         commands.add(Text.builder()
                 .onHover(TextActions.showText(Text.of("Add the item in your hand to the market.")))
@@ -455,9 +1276,9 @@ public class Market {
                 .append(Text.of("/market check <id>"))
                 .build());
         commands.add(Text.builder()
-                .onHover(TextActions.showText(Text.of("Buy an item from the market.")))
-                .onClick(TextActions.suggestCommand("/market buy <id>"))
-                .append(Text.of("/market buy <id>"))
+                .onHover(TextActions.showText(Text.of("Buy one or more lots of a listing.")))
+                .onClick(TextActions.suggestCommand("/market buy <id> [lots]"))
+                .append(Text.of("/market buy <id> [lots]"))
                 .build());
         commands.add(Text.builder()
                 .onHover(TextActions.showText(Text.of("Add more stock to your listing.")))
@@ -466,8 +1287,28 @@ public class Market {
                 .build());
         commands.add(Text.builder()
                 .onHover(TextActions.showText(Text.of("Search the market for a playername or item id.")))
-                .onClick(TextActions.suggestCommand("/market search <name|item>"))
-                .append(Text.of("/market search <name|item>"))
+                .onClick(TextActions.suggestCommand("/market search <name|item|text>"))
+                .append(Text.of("/market search <name|item|text>"))
+                .build());
+        commands.add(Text.builder()
+                .onHover(TextActions.showText(Text.of("Show recent prices of an item or the item in your hand.")))
+                .onClick(TextActions.suggestCommand("/market price "))
+                .append(Text.of("/market price [item]"))
+                .build());
+        commands.add(Text.builder()
+                .onHover(TextActions.showText(Text.of("Show your purchases, sales and listing changes.")))
+                .onClick(TextActions.suggestCommand("/market history"))
+                .append(Text.of("/market history [player]"))
+                .build());
+        commands.add(Text.builder()
+                .onHover(TextActions.showText(Text.of("Place, cancel and list buy orders.")))
+                .onClick(TextActions.suggestCommand("/market order"))
+                .append(Text.of("/market order <create|cancel|list>"))
+                .build());
+        commands.add(Text.builder()
+                .onHover(TextActions.showText(Text.of("Sell the item in your hand to the best buy orders.")))
+                .onClick(TextActions.suggestCommand("/market sell-to-order "))
+                .append(Text.of("/market sell-to-order [quantity]"))
                 .build());
         commands.add(Text.builder()
                 .onHover(TextActions.showText(Text.of("Remove a listing from the market.")))
@@ -477,7 +1318,9 @@ public class Market {
         return commands;
     }
 
-    private String serializeItem(ItemStack itemStack) {
+    // Package-private, with parseItem, so tests can replace the HOCON
+    // format, which needs Sponge's data translators
+    String serializeItem(ItemStack itemStack) {
         ConfigurationNode node = DataTranslators.CONFIGURATION_NODE.translate(itemStack.toContainer());
         StringWriter stringWriter = new StringWriter();
         try {
@@ -489,20 +1332,52 @@ public class Market {
     }
 
     private Optional<ItemStack> deserializeItemStack(String item) {
-        ConfigurationNode node = null;
+        return toItemStack(parseItem(item));
+    }
+
+    /**
+     * Parse a serialized item into a data view. This touches no game state and
+     * is safe to run off the main thread.
+     *
+     * @return the data view, or null if the item could not be parsed
+     */
+    DataView parseItem(String item) {
+        ConfigurationNode node;
         try {
             node = HoconConfigurationLoader.builder().setSource(() -> new BufferedReader(new StringReader(item))).build().load();
         } catch (IOException e) {
             logger.error("Failed to deserialize item stack", e);
+            return null;
         }
-        if (node == null) {
+        return DataTranslators.CONFIGURATION_NODE.translate(node);
+    }
+
+    /**
+     * Turn a parsed item into a stack. This goes through Sponge's data
+     * manager and must run on the main thread.
+     */
+    Optional<ItemStack> toItemStack(DataView dataView) {
+        if (dataView == null) {
             return Optional.empty();
         }
-        DataView dataView = DataTranslators.CONFIGURATION_NODE.translate(node);
         return getGame().getDataManager().deserialize(ItemStack.class, dataView);
     }
 
+    /**
+     * Deserialize the items of many listings, parsing them in parallel.
+     * Listings whose item cannot be read are left out; the order is kept.
+     */
+    private List<Map.Entry<ListingRecord, ItemStack>> decodeRecords(List<ListingRecord> records) {
+        return itemDecoder.decode(records, record -> parseItem(record.getItem()),
+                (record, view) -> toItemStack(view)
+                        .<Map.Entry<ListingRecord, ItemStack>>map(is -> new AbstractMap.SimpleImmutableEntry<>(record, is))
+                        .orElse(null));
+    }
+
     public int addListing(Player player, ItemStack itemStack, int quantityPerSale, int price) {
+        if (isDegraded()) {
+            return 0;
+        }
         if (useMySql) {
             if (itemStack.getQuantity() < quantityPerSale || quantityPerSale <= 0 || isBlacklisted(itemStack)) {
                 return 0;
@@ -517,19 +1392,30 @@ public class Market {
             if (checkForOtherListings(itemStack, player.getUniqueId().toString())) {
                 return -1;
             }
-            try (Connection conn = database.getDataSource().getConnection();
+            ItemAttributes attributes = extractAttributes(itemStack, price, quantityPerSale);
+            try (Connection conn = database.getConnection();
                  PreparedStatement ps = conn.prepareStatement(
-                         "INSERT INTO listings (seller_uuid, item, stock, price, quantity) VALUES (?, ?, ?, ?, ?)",
+                         "INSERT INTO listings (seller_uuid, item, stock, price, quantity, item_type, mod_id, durability_pct, unit_price, expires_at) "
+                                 + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
                          Statement.RETURN_GENERATED_KEYS)) {
                 ps.setString(1, player.getUniqueId().toString());
                 ps.setString(2, serializeItem(itemStack));
                 ps.setInt(3, itemStack.getQuantity());
                 ps.setInt(4, price);
                 ps.setInt(5, quantityPerSale);
+                setAttributeParameters(ps, 6, attributes);
+                setExpiryParameter(ps, 10, listingExpiry());
                 ps.executeUpdate();
                 try (ResultSet rs = ps.getGeneratedKeys()) {
                     if (rs.next()) {
-                        return rs.getInt(1);
+                        int id = rs.getInt(1);
+                        insertEnchantments(conn, id, attributes);
+                        listingWritten(player.getUniqueId().toString(), String.valueOf(id));
+                        indexListing(new ListingRef(serverName, String.valueOf(id)), player.getName(), itemStack, price, quantityPerSale);
+                        matchListing(new ListingRef(serverName, String.valueOf(id)), player.getUniqueId().toString(),
+                                itemStack, price, quantityPerSale, attributes);
+                        listingsChanged();
+                        return id;
                     }
                 }
             } catch (SQLException e) {
@@ -537,56 +1423,92 @@ public class Market {
             }
             return 0;
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
                 return 0;
             }
-            try (Jedis jedis = pool.getResource()) {
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName));
+                 RedisLayouts.Pin pin = layouts.pin()) {
                 // if there are fewer items than they want to sell every time, return 0
                 if (itemStack.getQuantity() < quantityPerSale || quantityPerSale <= 0 || isBlacklisted(itemStack)) return 0;
-                if (!jedis.exists(RedisKeys.lastMarketId())) {
-                    jedis.set(RedisKeys.lastMarketId(), String.valueOf(1));
+                ItemAttributes attributes = extractAttributes(itemStack, price, quantityPerSale);
+                long expiresAt = listingExpiry();
+                if (!jedis.exists(RedisKeys.lastMarketId(serverName))) {
+                    jedis.set(RedisKeys.lastMarketId(serverName), String.valueOf(1));
                     int id = 1;
-                    String key = RedisKeys.marketItemKey(String.valueOf(id));
+                    RedisLayout layout = layouts.get(jedis, serverName).of(String.valueOf(id));
                     Transaction m = jedis.multi();
-                    m.hset(key, "Item", serializeItem(itemStack));
-                    m.hset(key, "Seller", player.getUniqueId().toString());
-                    m.hset(key, "Stock", String.valueOf(itemStack.getQuantity()));
-                    m.hset(key, "Price", String.valueOf(price));
-                    m.hset(key, "Quantity", String.valueOf(quantityPerSale));
+                    writeListing(m, layout, String.valueOf(id), player, itemStack, price, quantityPerSale);
+                    indexAttributes(m, layout, serverName, String.valueOf(id), attributes);
+                    if (expiresAt > 0) {
+                        m.zadd(RedisKeys.expiry(serverName), expiresAt, String.valueOf(id));
+                    }
                     m.exec();
 
-                    jedis.hset(RedisKeys.forSale(), String.valueOf(id), player.getUniqueId().toString());
+                    jedis.hset(RedisKeys.forSale(serverName), String.valueOf(id), layout.openValue(player.getUniqueId().toString()));
 
-                    jedis.incr(RedisKeys.lastMarketId());
+                    jedis.incr(RedisKeys.lastMarketId(serverName));
 
+                    indexListing(new ListingRef(serverName, String.valueOf(id)), player.getName(), itemStack, price, quantityPerSale);
+                    matchListing(new ListingRef(serverName, String.valueOf(id)), player.getUniqueId().toString(),
+                            itemStack, price, quantityPerSale, attributes);
+                    listingsChanged();
                     return id;
                 } else {
-                    int id = Integer.parseInt(jedis.get(RedisKeys.lastMarketId()));
-                    String key = RedisKeys.marketItemKey(String.valueOf(id));
+                    int id = Integer.parseInt(jedis.get(RedisKeys.lastMarketId(serverName)));
                     if (checkForOtherListings(itemStack, player.getUniqueId().toString())) return -1;
 
+                    RedisLayout layout = layouts.get(jedis, serverName).of(String.valueOf(id));
                     Transaction m = jedis.multi();
-                    m.hset(key, "Item", serializeItem(itemStack));
-                    m.hset(key, "Seller", player.getUniqueId().toString());
-                    m.hset(key, "Stock", String.valueOf(itemStack.getQuantity()));
-                    m.hset(key, "Price", String.valueOf(price));
-                    m.hset(key, "Quantity", String.valueOf(quantityPerSale));
+                    writeListing(m, layout, String.valueOf(id), player, itemStack, price, quantityPerSale);
+                    indexAttributes(m, layout, serverName, String.valueOf(id), attributes);
+                    if (expiresAt > 0) {
+                        m.zadd(RedisKeys.expiry(serverName), expiresAt, String.valueOf(id));
+                    }
                     m.exec();
 
-                    jedis.hset(RedisKeys.forSale(), String.valueOf(id), player.getUniqueId().toString());
+                    jedis.hset(RedisKeys.forSale(serverName), String.valueOf(id), layout.openValue(player.getUniqueId().toString()));
 
-                    jedis.incr(RedisKeys.lastMarketId());
+                    jedis.incr(RedisKeys.lastMarketId(serverName));
 
+                    indexListing(new ListingRef(serverName, String.valueOf(id)), player.getName(), itemStack, price, quantityPerSale);
+                    matchListing(new ListingRef(serverName, String.valueOf(id)), player.getUniqueId().toString(),
+                            itemStack, price, quantityPerSale, attributes);
+                    listingsChanged();
                     return id;
                 }
             }
         }
     }
 
+    /**
+     * Queue the fields of a new Redis listing on a transaction.
+     */
+    private void writeListing(PipelineBase p, RedisLayout layout, String id, Player player, ItemStack itemStack,
+                              int price, int quantityPerSale) {
+        Map<String, String> listing = new LinkedHashMap<>();
+        listing.put("Item", serializeItem(itemStack));
+        listing.put("Seller", player.getUniqueId().toString());
+        listing.put("Stock", String.valueOf(itemStack.getQuantity()));
+        listing.put("Price", String.valueOf(price));
+        listing.put("Quantity", String.valueOf(quantityPerSale));
+        layout.write(p, serverName, id, listing);
+    }
+
+    /**
+     * Read fields of a Redis listing by their legacy names, leaving out
+     * missing ones.
+     */
+    private static Map<String, String> readListing(Jedis jedis, RedisLayout layout, String server, String id, String... names) {
+        Pipeline p = jedis.pipelined();
+        Supplier<Map<String, String>> listing = layout.read(p, server, id, names);
+        p.sync();
+        return listing.get();
+    }
+
     private boolean checkForOtherListings(ItemStack itemStack, String s) {
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
+            try (Connection conn = database.getConnection();
                  PreparedStatement ps = conn.prepareStatement("SELECT item FROM listings WHERE seller_uuid = ?")) {
                 ps.setString(1, s);
                 try (ResultSet rs = ps.executeQuery()) {
@@ -602,21 +1524,22 @@ public class Market {
             }
             return false;
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
                 return false;
             }
-            try (Jedis jedis = pool.getResource()) {
-                Map<String, String> d = jedis.hgetAll(RedisKeys.forSale());
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+                RedisLayouts.Snapshot layout = layouts.get(jedis, serverName);
+                Map<String, String> d = jedis.hgetAll(RedisKeys.forSale(serverName));
 
                 Map<String, String> e = d.entrySet().stream()
-                        .filter(stringStringEntry -> stringStringEntry.getValue().equals(s))
+                        .filter(stringStringEntry -> RedisLayout.sellerOf(stringStringEntry.getValue()).equals(s))
                         .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
                 if (e.size() == 0) return false;
                 else {
                     final boolean[] hasOther = {false};
                     e.forEach((s1, s2) -> {
-                        Optional<ItemStack> ooi = deserializeItemStack(jedis.hget(RedisKeys.marketItemKey(s1), "Item"));
+                        Optional<ItemStack> ooi = deserializeItemStack(readListing(jedis, layout.of(s1), serverName, s1, "Item").get("Item"));
                         if (!ooi.isPresent()) return;
                         if (matchItemStacks(ooi.get(), itemStack)) {
                             hasOther[0] = true;
@@ -628,84 +1551,247 @@ public class Market {
         }
     }
 
-    public PaginationList getListings() {
+    public CompletableFuture<PaginationList> getListings() {
+        return getListings(false);
+    }
+
+    /**
+     * List open listings. In Redis mode {@code global} merges the listings of
+     * every known server; MySQL servers share one table so it has no effect.
+     * The page completes on the main thread; see {@link #queryListings}.
+     */
+    public CompletableFuture<PaginationList> getListings(boolean global) {
+        return queryListings("listings:" + global, () -> fetchListings(global, null), is -> true)
+                .thenApply(texts -> listingPage(texts, Texts.MARKET_LISTINGS));
+    }
+
+    /**
+     * Whether the storage backend is failing and the market is read only.
+     * Commands that change the market refuse to run while this is true.
+     */
+    public boolean isDegraded() {
+        return storageBreaker.isRejecting();
+    }
+
+    /**
+     * Run a listing query, remembering its result. The listings are read and
+     * their items parsed asynchronously, and formatted on the main thread;
+     * identical queries made meanwhile share the result. While the market is
+     * degraded, or when the query fails, the last good result is returned
+     * instead.
+     */
+    private CompletableFuture<List<Text>> queryListings(String key, Supplier<List<ListingRecord>> fetch, Predicate<ItemStack> filter) {
+        if (isDegraded()) {
+            return CompletableFuture.completedFuture(lastListings(key));
+        }
+        return listingQueries.getAsync(key, () -> loadListingTexts(fetch, filter)).handle((texts, error) -> {
+            if (error != null) {
+                logger.error("Failed to query listings", error instanceof CompletionException ? error.getCause() : error);
+                return lastListings(key);
+            }
+            if (storageBreaker.getState() != CircuitBreaker.State.CLOSED) {
+                return lastListings(key);
+            }
+            lastListings.put(key, texts);
+            return texts;
+        });
+    }
+
+    private List<Text> lastListings(String key) {
+        List<Text> cached = lastListings.get(key);
+        return cached != null ? cached : Collections.singletonList(Text.of(TextColors.RED, "No cached listings available."));
+    }
+
+    private CompletableFuture<List<Text>> loadListingTexts(Supplier<List<ListingRecord>> fetch, Predicate<ItemStack> filter) {
+        CompletableFuture<List<Text>> texts = new CompletableFuture<>();
+        getScheduler().createTaskBuilder()
+                .async()
+                .execute(() -> {
+                    try {
+                        List<ListingRecord> records = fetch.get();
+                        List<Map.Entry<ListingRecord, DataView>> parsed = parseRecords(records);
+                        Map<String, String> names = getNamesFromUUIDs(records.stream().map(ListingRecord::getSeller).collect(Collectors.toSet()));
+                        getScheduler().createTaskBuilder()
+                                .execute(() -> {
+                                    try {
+                                        List<Map.Entry<ListingRecord, ItemStack>> decoded = new ArrayList<>(parsed.size());
+                                        for (Map.Entry<ListingRecord, DataView> entry : parsed) {
+                                            toItemStack(entry.getValue()).ifPresent(is ->
+                                                    decoded.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), is)));
+                                        }
+                                        texts.complete(Collections.unmodifiableList(formatListings(decoded, names, filter)));
+                                    } catch (RuntimeException e) {
+                                        texts.completeExceptionally(e);
+                                    }
+                                })
+                                .submit(this);
+                    } catch (RuntimeException e) {
+                        texts.completeExceptionally(e);
+                    }
+                })
+                .submit(this);
+        return texts;
+    }
+
+    private PaginationList listingPage(List<Text> texts, Text title) {
+        PaginationList.Builder builder = getPaginationService().builder().contents(texts).title(title);
+        if (isDegraded()) {
+            builder.header(Texts.MARKET_DEGRADED);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Fetch raw listing records, optionally limited to one seller.
+     *
+     * @throws StorageException if the MySQL read fails
+     */
+    private List<ListingRecord> fetchListings(boolean global, String sellerUuid) {
+        List<ListingRecord> records = new ArrayList<>();
         if (useMySql) {
-            List<Text> texts = new ArrayList<>();
-            try (Connection conn = database.getDataSource().getConnection();
-                 PreparedStatement ps = conn.prepareStatement("SELECT id, seller_uuid, item, price, quantity FROM listings");
-                 ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    Text.Builder l = Text.builder();
-                    Optional<ItemStack> is = deserializeItemStack(rs.getString("item"));
-                    if (!is.isPresent()) continue;
-                    l.append(Texts.quickItemFormat(is.get()));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.WHITE, "@"));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.GREEN, "$" + rs.getInt("price")));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.WHITE, "for"));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.GREEN, rs.getInt("quantity") + "x"));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.WHITE, "Seller:"));
-                    l.append(Text.of(TextColors.LIGHT_PURPLE, " " + getNameFromUUID(rs.getString("seller_uuid"))));
-                    l.append(Text.of(" "));
-                    l.append(Text.builder()
-                            .color(TextColors.GREEN)
-                            .onClick(TextActions.runCommand("/market check " + rs.getInt("id")))
-                            .append(Text.of("[Info]"))
-                            .onHover(TextActions.showText(Text.of("View more info about this listing.")))
-                            .build());
-                    texts.add(l.build());
+            String sql = "SELECT id, seller_uuid, item, stock, price, quantity FROM listings"
+                    + (sellerUuid == null ? "" : " WHERE seller_uuid = ?");
+            try (Connection conn = database.getReadConnection(sellerUuid == null ? LISTINGS_READ_KEY : sellerUuid);
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                if (sellerUuid != null) {
+                    ps.setString(1, sellerUuid);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        records.add(new ListingRecord(new ListingRef(serverName, String.valueOf(rs.getInt("id"))),
+                                rs.getString("seller_uuid"), rs.getString("item"), rs.getInt("stock"),
+                                rs.getInt("price"), rs.getInt("quantity")));
+                    }
                 }
             } catch (SQLException e) {
-                logger.error("Failed to get listings", e);
+                throw new StorageException("Failed to get listings", e);
             }
-            return getPaginationService().builder().contents(texts).title(Texts.MARKET_LISTINGS).build();
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
-                return getPaginationService().builder().contents(Collections.emptyList()).title(Texts.MARKET_LISTINGS).build();
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return records;
             }
-            try (Jedis jedis = pool.getResource()) {
-                Set<String> openListings = jedis.hgetAll(RedisKeys.forSale()).keySet();
-                List<Text> texts = new ArrayList<>();
-                for (String openListing : openListings) {
-                    Map<String, String> listing = jedis.hgetAll(RedisKeys.marketItemKey(openListing));
-                    Text.Builder l = Text.builder();
-                    Optional<ItemStack> is = deserializeItemStack(listing.get("Item"));
-                    if (!is.isPresent()) continue;
-                    l.append(Texts.quickItemFormat(is.get()));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.WHITE, "@"));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.GREEN, "$" + listing.get("Price")));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.WHITE, "for"));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.GREEN, listing.get("Quantity") + "x"));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.WHITE, "Seller:"));
-                    l.append(Text.of(TextColors.LIGHT_PURPLE, " " + jedis.hget(RedisKeys.UUID_CACHE, listing.get("Seller"))));
-                    l.append(Text.of(" "));
-                    l.append(Text.builder()
-                            .color(TextColors.GREEN)
-                            .onClick(TextActions.runCommand("/market check " + openListing))
-                            .append(Text.of("[Info]"))
-                            .onHover(TextActions.showText(Text.of("View more info about this listing.")))
-                            .build());
-
-                    texts.add(l.build());
+            if (global) {
+                List<CompletableFuture<List<ListingRecord>>> futures = getKnownServers().stream()
+                        .map(server -> CompletableFuture.supplyAsync(() -> fetchServerListings(redis, server), getAsyncExecutor()))
+                        .collect(Collectors.toList());
+                for (CompletableFuture<List<ListingRecord>> future : futures) {
+                    try {
+                        records.addAll(future.join());
+                    } catch (CompletionException e) {
+                        logger.error("Failed to fetch listings of a server", e.getCause());
+                    }
                 }
-                return getPaginationService().builder().contents(texts).title(Texts.MARKET_LISTINGS).build();
+            } else {
+                records.addAll(fetchServerListings(redis, serverName));
+            }
+            if (sellerUuid != null) {
+                records.removeIf(record -> !record.getSeller().equals(sellerUuid));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Read all open listings of one server namespace over a single connection,
+     * pipelining the reads of the listing hashes.
+     */
+    private List<ListingRecord> fetchServerListings(RedisProvider redis, String server) {
+        try (Jedis jedis = redis.getResource(RedisKeys.forSale(server))) {
+            return fetchRecords(jedis, server, jedis.hkeys(RedisKeys.forSale(server)), false);
+        }
+    }
+
+    /**
+     * Read the given listings of one server with a single pipeline.
+     *
+     * @param checkOpen skip listings that are no longer for sale
+     */
+    private List<ListingRecord> fetchRecords(Jedis jedis, String server, Collection<String> listingIds, boolean checkOpen) {
+        List<String> ids = new ArrayList<>(listingIds);
+        RedisLayouts.Snapshot layout = layouts.get(jedis, server);
+        Pipeline pipeline = jedis.pipelined();
+        List<Supplier<Map<String, String>>> responses = new ArrayList<>(ids.size());
+        List<Response<Boolean>> open = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            responses.add(layout.of(id).read(pipeline, server, id, RedisLayout.FIELDS));
+            if (checkOpen) {
+                open.add(pipeline.hexists(RedisKeys.forSale(server), id));
+            }
+        }
+        pipeline.sync();
+        List<ListingRecord> records = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (checkOpen && !open.get(i).get()) {
+                continue;
             }
+            ListingRecord record = ListingRecord.fromRedis(new ListingRef(server, ids.get(i)), responses.get(i).get());
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Deserialize and format listing records, sorted by item name and then by
+     * unit price.
+     */
+    private List<Text> formatListings(List<ListingRecord> records, Predicate<ItemStack> filter) {
+        Map<String, String> names = getNamesFromUUIDs(records.stream().map(ListingRecord::getSeller).collect(Collectors.toSet()));
+        return formatListings(decodeRecords(records), names, filter);
+    }
+
+    private List<Text> formatListings(List<Map.Entry<ListingRecord, ItemStack>> decoded, Map<String, String> names,
+                                      Predicate<ItemStack> filter) {
+        decoded.removeIf(entry -> !filter.test(entry.getValue()));
+        decoded.sort(Comparator.<Map.Entry<ListingRecord, ItemStack>, String>comparing(e -> e.getValue().getTranslation().get())
+                .thenComparingDouble(e -> (double) e.getKey().getPrice() / Math.max(1, e.getKey().getQuantity())));
+        List<Text> texts = new ArrayList<>(decoded.size());
+        for (Map.Entry<ListingRecord, ItemStack> entry : decoded) {
+            ListingRecord record = entry.getKey();
+            texts.add(formatListing(Texts.quickItemFormat(entry.getValue()), record.getRef().format(serverName), record.getPrice(),
+                    record.getQuantity(), names.getOrDefault(record.getSeller(), record.getSeller())));
         }
+        return texts;
+    }
+
+    private Text formatListing(Text item, String ref, int price, int quantity, String sellerName) {
+        Text.Builder l = Text.builder();
+        l.append(item);
+        l.append(Text.of(" "));
+        l.append(Text.of(TextColors.WHITE, "@"));
+        l.append(Text.of(" "));
+        l.append(Text.of(TextColors.GREEN, "$" + price));
+        l.append(Text.of(" "));
+        l.append(Text.of(TextColors.WHITE, "for"));
+        l.append(Text.of(" "));
+        l.append(Text.of(TextColors.GREEN, quantity + "x"));
+        l.append(Text.of(" "));
+        l.append(Text.of(TextColors.WHITE, "Seller:"));
+        l.append(Text.of(TextColors.LIGHT_PURPLE, " " + sellerName));
+        l.append(Text.of(" "));
+        l.append(Text.builder()
+                .color(TextColors.GREEN)
+                .onClick(TextActions.runCommand("/market check " + ref))
+                .append(Text.of("[Info]"))
+                .onHover(TextActions.showText(Text.of("View more info about this listing.")))
+                .build());
+        return l.build();
     }
 
     public Optional<List<ItemStack>> removeListing(String id, String uuid, boolean staff) {
+        if (isDegraded()) {
+            return Optional.empty();
+        }
+        try (ListingLocks.Hold hold = listingLocks.lock(new ListingRef(serverName, id).toString())) {
+            return removeLockedListing(id, uuid, staff);
+        }
+    }
+
+    private Optional<List<ItemStack>> removeLockedListing(String id, String uuid, boolean staff) {
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
+            try (Connection conn = database.getConnection();
                  PreparedStatement ps = conn.prepareStatement("SELECT seller_uuid, item, stock FROM listings WHERE id = ?")) {
                 ps.setInt(1, Integer.parseInt(id));
                 try (ResultSet rs = ps.executeQuery()) {
@@ -716,20 +1802,16 @@ public class Market {
                     Optional<ItemStack> item = deserializeItemStack(rs.getString("item"));
                     if (!item.isPresent()) return Optional.empty();
                     ItemStack listingIS = item.get();
-                    int stacksInStock = inStock / listingIS.getMaxStackQuantity();
-                    List<ItemStack> stacks = new ArrayList<>();
-                    for (int i = 0; i < stacksInStock; i++) {
-                        stacks.add(listingIS.copy());
-                    }
-                    if (inStock % listingIS.getMaxStackQuantity() != 0) {
-                        ItemStack extra = listingIS.copy();
-                        extra.setQuantity(inStock % listingIS.getMaxStackQuantity());
-                        stacks.add(extra);
-                    }
+                    List<ItemStack> stacks = toStacks(listingIS, inStock);
                     try (PreparedStatement del = conn.prepareStatement("DELETE FROM listings WHERE id = ?")) {
                         del.setInt(1, Integer.parseInt(id));
                         del.executeUpdate();
                     }
+                    listingWritten(seller, id);
+                    searchIndex.remove(new ListingRef(serverName, id).toString());
+                    listingsChanged();
+                    recordLedger(seller, LedgerEntry.Action.REMOVE, seller.equals(uuid) ? null : uuid,
+                            new ListingRef(serverName, id), listingIS.getType().getId(), inStock, 0);
                     return Optional.of(stacks);
                 }
             } catch (SQLException e) {
@@ -737,15 +1819,17 @@ public class Market {
             }
             return Optional.empty();
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
                 return Optional.empty();
             }
-            try (Jedis jedis = pool.getResource()) {
-                if (!jedis.hexists(RedisKeys.forSale(), id)) return Optional.empty();
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName));
+                 RedisLayouts.Pin pin = layouts.pin()) {
+                if (!jedis.hexists(RedisKeys.forSale(serverName), id)) return Optional.empty();
                 else {
                     // get info about the listing
-                    Map<String, String> listing = jedis.hgetAll(RedisKeys.marketItemKey(id));
+                    Map<String, String> listing = readListing(jedis, layouts.get(jedis, serverName).of(id), serverName, id,
+                            RedisLayout.FIELDS);
                     // check to see if the uuid matches the seller, or the user is a staff member
                     if (!listing.get("Seller").equals(uuid) && !staff) return Optional.empty();
                     // get how much stock it has
@@ -756,34 +1840,523 @@ public class Market {
                         return Optional.empty();
                     }
                     ItemStack listingIS = listingOpt.get();
-                    // calculate the amount of stacks to make
-                    int stacksInStock = inStock / listingIS.getMaxStackQuantity();
-                    // new list for stacks
-                    List<ItemStack> stacks = new ArrayList<>();
-                    // until all stacks are pulled out, keep adding more stacks to stacks
-                    for (int i = 0; i < stacksInStock; i++) {
-                        stacks.add(listingIS.copy());
-                    }
-                    if (inStock % listingIS.getMaxStackQuantity() != 0) {
-                        ItemStack extra = listingIS.copy();
-                        extra.setQuantity(inStock % listingIS.getMaxStackQuantity());
-                        stacks.add(extra);
-                    }
-                    // remove from the listings
-                    jedis.hdel(RedisKeys.forSale(), id);
+                    // split the stock into full stacks
+                    List<ItemStack> stacks = toStacks(listingIS, inStock);
+                    // close the listing and delete it in one step; another server
+                    // may have bought or removed it since it was read
+                    RedisLayout layout = layouts.get(jedis, serverName).of(id);
+                    Transaction t = jedis.multi();
+                    Response<Long> closed = t.hdel(RedisKeys.forSale(serverName), id);
+                    layout.delete(t, serverName, id);
+                    t.exec();
+                    if (closed.get() == 0) return Optional.empty();
+                    unindexAttributes(jedis, serverName, id, listing.get("Type"), listing.get("Enchants"));
+                    searchIndex.remove(new ListingRef(serverName, id).toString());
+                    listingsChanged();
+                    String seller = listing.get("Seller");
+                    recordLedger(seller, LedgerEntry.Action.REMOVE, seller.equals(uuid) ? null : uuid,
+                            new ListingRef(serverName, id), listingIS.getType().getId(), inStock, 0);
                     return Optional.of(stacks);
                 }
             }
-            return Optional.empty();
         }
     }
 
-    public PaginationList getListing(String id) {
+    /**
+     * Split {@code quantity} items of a kind into stacks of at most the
+     * maximum stack size.
+     */
+    private static List<ItemStack> toStacks(ItemStack item, int quantity) {
+        int max = item.getMaxStackQuantity();
+        List<ItemStack> stacks = new ArrayList<>();
+        for (int remaining = quantity; remaining > 0; remaining -= max) {
+            ItemStack stack = item.copy();
+            stack.setQuantity(Math.min(max, remaining));
+            stacks.add(stack);
+        }
+        return stacks;
+    }
+
+    private long listingExpiry() {
+        return listingLifetimeMillis > 0 ? System.currentTimeMillis() + listingLifetimeMillis : 0;
+    }
+
+    private static void setExpiryParameter(PreparedStatement ps, int index, long expiresAt) throws SQLException {
+        if (expiresAt > 0) {
+            ps.setLong(index, expiresAt);
+        } else {
+            ps.setNull(index, Types.BIGINT);
+        }
+    }
+
+    /**
+     * Expire listings whose lifetime has passed, oldest first and in bounded
+     * batches, and mail their remaining stock to the sellers. Expired
+     * listings are read from the expiry index, so the cost depends only on
+     * the number of listings expiring.
+     */
+    private void sweepExpiredListings() {
+        if (!expiryAssigned) {
+            assignMissingExpiry();
+            expiryAssigned = true;
+        }
+        long now = System.currentTimeMillis();
+        Set<String> sellers = new HashSet<>();
+        if (!useMySql) {
+            // stock left over by a sweep that stopped before mailing it
+            mailExpiredStock(sellers);
+        }
+        for (int batch = 0; batch < EXPIRY_MAX_BATCHES; batch++) {
+            if (expireBatch(now, sellers) < EXPIRY_BATCH_SIZE) {
+                break;
+            }
+        }
+        if (sellers.isEmpty()) {
+            return;
+        }
+        getScheduler().createTaskBuilder()
+                .execute(() -> {
+                    for (String seller : sellers) {
+                        getGame().getServer().getPlayer(UUID.fromString(seller)).ifPresent(player ->
+                                getScheduler().createTaskBuilder()
+                                        .async()
+                                        .execute(() -> deliverMail(player))
+                                        .submit(this));
+                    }
+                })
+                .submit(this);
+    }
+
+    /**
+     * @return number of expired listings found, claimed or not
+     */
+    private int expireBatch(long now, Set<String> sellers) {
+        List<Mail> mail = new ArrayList<>();
+        List<LedgerEntry> expired = new ArrayList<>();
+        int found = 0;
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
-                 PreparedStatement ps = conn.prepareStatement("SELECT seller_uuid, item, stock, price, quantity FROM listings WHERE id = ?")) {
-                ps.setInt(1, Integer.parseInt(id));
-                try (ResultSet rs = ps.executeQuery()) {
+            try (Connection conn = database.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement select = conn.prepareStatement(
+                        "SELECT id, seller_uuid, item, stock, item_type FROM listings WHERE expires_at <= ? ORDER BY expires_at LIMIT ? FOR UPDATE");
+                     PreparedStatement delete = conn.prepareStatement("DELETE FROM listings WHERE id = ? AND expires_at <= ?")) {
+                    select.setLong(1, now);
+                    select.setInt(2, EXPIRY_BATCH_SIZE);
+                    List<Mail> candidates = new ArrayList<>();
+                    List<LedgerEntry> candidateEntries = new ArrayList<>();
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            String id = String.valueOf(rs.getInt("id"));
+                            String seller = rs.getString("seller_uuid");
+                            candidates.add(new Mail(seller, rs.getString("item"), rs.getInt("stock")));
+                            candidateEntries.add(expiryEntry(seller, id, rs.getString("item_type"), rs.getInt("stock"), now));
+                            delete.setInt(1, rs.getInt("id"));
+                            delete.setLong(2, now);
+                            delete.addBatch();
+                        }
+                    }
+                    found = candidates.size();
+                    // the rows are locked, so their stock is what was read; rows
+                    // another server expired or removed before the select are gone
+                    int[] deleted = delete.executeBatch();
+                    for (int i = 0; i < deleted.length; i++) {
+                        if (deleted[i] > 0) {
+                            mail.add(candidates.get(i));
+                            expired.add(candidateEntries.get(i));
+                        }
+                    }
+                    insertMail(conn, mail);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to expire listings", e);
+                return 0;
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return 0;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName));
+                 RedisLayouts.Pin pin = layouts.pin()) {
+                String expiry = RedisKeys.expiry(serverName);
+                List<String> ids = new ArrayList<>(jedis.zrangeByScore(expiry, "-inf", String.valueOf(now), 0, EXPIRY_BATCH_SIZE));
+                found = ids.size();
+                if (ids.isEmpty()) {
+                    return 0;
+                }
+                RedisLayouts.Snapshot layout = layouts.get(jedis, serverName);
+                Pipeline p = jedis.pipelined();
+                List<Response<Object>> claims = new ArrayList<>(ids.size());
+                for (String id : ids) {
+                    RedisLayout listingLayout = layout.of(id);
+                    List<String> args = new ArrayList<>(Collections.singletonList(id));
+                    args.addAll(Arrays.asList(listingLayout.fields(id, "Seller", "Item", "Stock", "Type", "Enchants")));
+                    args.addAll(Arrays.asList(listingLayout.fields(id, RedisLayout.FIELDS)));
+                    claims.add(p.eval(EXPIRE_SCRIPT, Arrays.asList(RedisKeys.forSale(serverName), expiry,
+                            RedisKeys.expiredStock(serverName), listingLayout.key(serverName, id),
+                            listingLayout.key(serverName, id, "Item")), args));
+                }
+                p.sync();
+                for (int i = 0; i < ids.size(); i++) {
+                    List<?> claimed = (List<?>) claims.get(i).get();
+                    if (claimed == null || claimed.get(0) == null || claimed.get(1) == null) {
+                        continue;
+                    }
+                    String seller = RedisLayout.sellerOf((String) claimed.get(0));
+                    int stock = Integer.parseInt((String) claimed.get(1));
+                    expired.add(expiryEntry(seller, ids.get(i), (String) claimed.get(2), stock, now));
+                    unindexAttributes(jedis, serverName, ids.get(i), (String) claimed.get(2), (String) claimed.get(3));
+                }
+            }
+            mailExpiredStock(sellers);
+        }
+        for (LedgerEntry entry : expired) {
+            String id = ListingRef.parse(entry.getListing(), serverName).getId();
+            searchIndex.remove(entry.getListing());
+            listingsChanged();
+            if (useMySql) {
+                listingWritten(entry.getPlayer(), id);
+            }
+            pendingLedger.add(entry);
+            sellers.add(entry.getPlayer());
+        }
+        return found;
+    }
+
+    // Expire listing ARGV[1]: remove it from the open listings KEYS[1] and the
+    // expiry index KEYS[2], delete its fields, ARGV[7] onwards, from KEYS[4]
+    // and KEYS[5], and record its seller, stock and item in KEYS[3] to be
+    // mailed, all at once. The seller, stock, type and enchantments are the
+    // fields ARGV[2], ARGV[4], ARGV[5] and ARGV[6] of KEYS[4]; the item and
+    // enchantments are in KEYS[5]. Returns nil if the listing was not open,
+    // else its seller, stock, type and enchantments.
+    private static final String EXPIRE_SCRIPT =
+            "redis.call('ZREM', KEYS[2], ARGV[1])\n"
+                    + "if redis.call('HDEL', KEYS[1], ARGV[1]) == 0 then return nil end\n"
+                    + "local seller = redis.call('HGET', KEYS[4], ARGV[2])\n"
+                    + "local item = redis.call('HGET', KEYS[5], ARGV[3])\n"
+                    + "local stock = redis.call('HGET', KEYS[4], ARGV[4])\n"
+                    + "local itemType = redis.call('HGET', KEYS[4], ARGV[5])\n"
+                    + "local enchants = redis.call('HGET', KEYS[5], ARGV[6])\n"
+                    + "for i = 7, #ARGV do\n"
+                    + "  redis.call('HDEL', KEYS[4], ARGV[i])\n"
+                    + "  redis.call('HDEL', KEYS[5], ARGV[i])\n"
+                    + "end\n"
+                    + "if not seller or not item or not stock then return nil end\n"
+                    + "redis.call('HSET', KEYS[3], ARGV[1], seller .. '|' .. stock .. '|' .. item)\n"
+                    + "return {seller, stock, itemType, enchants}";
+
+    /**
+     * Mail the stock recorded by {@link #EXPIRE_SCRIPT} to the sellers,
+     * dropping each entry once it is in the mailbox. A crash in between mails
+     * the stock twice rather than losing it.
+     *
+     * @param sellers collects the sellers that got mail
+     */
+    private void mailExpiredStock(Set<String> sellers) {
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return;
+        }
+        String key = RedisKeys.expiredStock(serverName);
+        try (Jedis jedis = redis.getResource(key)) {
+            for (Map.Entry<String, String> entry : jedis.hgetAll(key).entrySet()) {
+                String value = entry.getValue();
+                int separator = value.indexOf('|');
+                Mail mail = Mail.decode(-1, RedisLayout.sellerOf(value.substring(0, separator)), value.substring(separator + 1));
+                if (mail != null) {
+                    storeMail(Collections.singletonList(mail));
+                    sellers.add(mail.getPlayer());
+                } else {
+                    logger.error("Dropping malformed expired stock of listing {}", entry.getKey());
+                }
+                jedis.hdel(key, entry.getKey());
+            }
+        } catch (JedisException e) {
+            logger.error("Failed to mail expired stock", e);
+        }
+    }
+
+    private LedgerEntry expiryEntry(String seller, String id, String itemType, int stock, long now) {
+        return new LedgerEntry(useMySql ? 0 : ledgerSequence.incrementAndGet(), seller, now, LedgerEntry.Action.EXPIRE,
+                null, new ListingRef(serverName, id).toString(), itemType == null ? "unknown" : itemType, stock, 0, serverName);
+    }
+
+    /**
+     * Give listings created before expiry existed a full lifetime from now.
+     */
+    private void assignMissingExpiry() {
+        long expiresAt = listingExpiry();
+        if (expiresAt == 0) {
+            return;
+        }
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("UPDATE listings SET expires_at = ? WHERE expires_at IS NULL")) {
+                ps.setLong(1, expiresAt);
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                logger.error("Failed to assign listing expiry", e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+                String expiry = RedisKeys.expiry(serverName);
+                List<String> ids = new ArrayList<>(jedis.hkeys(RedisKeys.forSale(serverName)));
+                Pipeline p = jedis.pipelined();
+                List<Response<Double>> scores = new ArrayList<>(ids.size());
+                for (String id : ids) {
+                    scores.add(p.zscore(expiry, id));
+                }
+                p.sync();
+                Pipeline add = jedis.pipelined();
+                for (int i = 0; i < ids.size(); i++) {
+                    if (scores.get(i).get() == null) {
+                        add.zadd(expiry, expiresAt, ids.get(i));
+                    }
+                }
+                add.sync();
+            }
+        }
+    }
+
+    private void insertMail(Connection conn, List<Mail> mail) throws SQLException {
+        if (mail.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO market_mailbox (player_uuid, item, quantity, created_at) VALUES (?, ?, ?, ?)")) {
+            long now = System.currentTimeMillis();
+            for (Mail m : mail) {
+                ps.setString(1, m.getPlayer());
+                ps.setString(2, m.getItem());
+                ps.setInt(3, m.getQuantity());
+                ps.setLong(4, now);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * Put items into the mailboxes of their players.
+     */
+    private void storeMail(List<Mail> mail) {
+        if (mail.isEmpty()) {
+            return;
+        }
+        if (useMySql) {
+            try (Connection conn = database.getConnection()) {
+                insertMail(conn, mail);
+            } catch (SQLException e) {
+                logger.error("Failed to store mail", e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            for (Map.Entry<String, List<Mail>> player : mail.stream().collect(Collectors.groupingBy(Mail::getPlayer)).entrySet()) {
+                String key = RedisKeys.mailbox(player.getKey());
+                try (Jedis jedis = redis.getResource(key)) {
+                    jedis.rpush(key, player.getValue().stream().map(Mail::encode).toArray(String[]::new));
+                }
+            }
+        }
+    }
+
+    /**
+     * Read everything in a player's mailbox. The mail stays there until
+     * {@link #clearMail(String, List, List)} records its delivery.
+     */
+    private List<Mail> readMail(String uuid) {
+        List<Mail> mail = new ArrayList<>();
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "SELECT id, item, quantity FROM market_mailbox WHERE player_uuid = ? ORDER BY id")) {
+                ps.setString(1, uuid);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        mail.add(new Mail(rs.getLong("id"), uuid, rs.getString("item"), rs.getInt("quantity")));
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to read mail", e);
+                return Collections.emptyList();
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return mail;
+            }
+            String key = RedisKeys.mailbox(uuid);
+            try (Jedis jedis = redis.getResource(key)) {
+                List<String> elements = jedis.lrange(key, 0, -1);
+                for (int i = 0; i < elements.size(); i++) {
+                    Mail m = Mail.decode(i, uuid, elements.get(i));
+                    if (m != null) {
+                        mail.add(m);
+                    }
+                }
+            }
+        }
+        return mail;
+    }
+
+    /**
+     * Remove mail read by {@link #readMail(String)} from a player's mailbox
+     * and put back what was not delivered. Mail that arrived after the read
+     * is kept.
+     */
+    private void clearMail(String uuid, List<Mail> read, List<Mail> leftover) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement delete = conn.prepareStatement("DELETE FROM market_mailbox WHERE id = ?")) {
+                    for (Mail m : read) {
+                        delete.setLong(1, m.getId());
+                        delete.addBatch();
+                    }
+                    delete.executeBatch();
+                    insertMail(conn, leftover);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to clear delivered mail of {}", uuid, e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            String key = RedisKeys.mailbox(uuid);
+            try (Jedis jedis = redis.getResource(key)) {
+                // new mail is pushed to the end, so the mail read is at the front
+                Transaction t = jedis.multi();
+                t.ltrim(key, read.get(read.size() - 1).getId() + 1, -1);
+                if (!leftover.isEmpty()) {
+                    t.rpush(key, leftover.stream().map(Mail::encode).toArray(String[]::new));
+                }
+                t.exec();
+            } catch (JedisException e) {
+                logger.error("Failed to clear delivered mail of {}", uuid, e);
+            }
+        }
+    }
+
+    /**
+     * Deliver a player's mailbox into their inventory. The mailbox is read
+     * off the main thread, items are given on it, and the mailbox is cleared
+     * afterwards, with whatever did not fit put back. Mail is only removed
+     * once it was given, so a crash in between delivers it again rather than
+     * losing it; one delivery per player runs at a time, and mail arriving
+     * during one is delivered right after it.
+     */
+    private void deliverMail(Player player) {
+        if (startMailDelivery(player.getUniqueId().toString())) {
+            runMailDelivery(player);
+        }
+    }
+
+    private void runMailDelivery(Player player) {
+        String uuid = player.getUniqueId().toString();
+        List<Mail> mail = readMail(uuid);
+        if (mail.isEmpty()) {
+            if (finishMailDelivery(uuid)) {
+                runMailDelivery(player);
+            }
+            return;
+        }
+        getScheduler().createTaskBuilder()
+                .execute(() -> {
+                    List<Mail> leftover = new ArrayList<>();
+                    int delivered = 0;
+                    try {
+                        for (Mail m : mail) {
+                            Optional<ItemStack> item = player.isOnline() ? deserializeItemStack(m.getItem()) : Optional.empty();
+                            if (!item.isPresent()) {
+                                leftover.add(m);
+                                continue;
+                            }
+                            for (ItemStack stack : toStacks(item.get(), m.getQuantity())) {
+                                int quantity = stack.getQuantity();
+                                InventoryTransactionResult offer = player.getInventory().query(Hotbar.class, GridInventory.class).offer(stack);
+                                int rejected = offer.getRejectedItems().stream().mapToInt(ItemStackSnapshot::getQuantity).sum();
+                                if (rejected > 0) {
+                                    leftover.add(new Mail(m.getPlayer(), m.getItem(), rejected));
+                                }
+                                delivered += quantity - rejected;
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        // nothing is cleared, so the mailbox is delivered again next time
+                        finishMailDelivery(uuid);
+                        throw e;
+                    }
+                    if (player.isOnline()) {
+                        if (delivered > 0) {
+                            player.sendMessage(Texts.MAIL_DELIVERED(delivered));
+                        }
+                        if (!leftover.isEmpty()) {
+                            player.sendMessage(Texts.MAIL_INV_FULL);
+                        }
+                    }
+                    getScheduler().createTaskBuilder()
+                            .async()
+                            .execute(() -> {
+                                clearMail(uuid, mail, leftover);
+                                if (finishMailDelivery(uuid)) {
+                                    runMailDelivery(player);
+                                }
+                            })
+                            .submit(this);
+                })
+                .submit(this);
+    }
+
+    private boolean startMailDelivery(String uuid) {
+        synchronized (mailDeliveries) {
+            if (mailDeliveries.containsKey(uuid)) {
+                mailDeliveries.put(uuid, true);
+                return false;
+            }
+            mailDeliveries.put(uuid, false);
+            return true;
+        }
+    }
+
+    /**
+     * @return whether mail was sent meanwhile and the delivery runs again
+     */
+    private boolean finishMailDelivery(String uuid) {
+        synchronized (mailDeliveries) {
+            if (Boolean.TRUE.equals(mailDeliveries.get(uuid))) {
+                mailDeliveries.put(uuid, false);
+                return true;
+            }
+            mailDeliveries.remove(uuid);
+            return false;
+        }
+    }
+
+    public PaginationList getListing(String id) {
+        ListingRef ref = ListingRef.parse(id, serverName);
+        if (useMySql) {
+            try (Connection conn = database.getReadConnection(listingReadKey(ref.getId()));
+                 PreparedStatement ps = conn.prepareStatement("SELECT seller_uuid, item, stock, price, quantity FROM listings WHERE id = ?")) {
+                ps.setInt(1, Integer.parseInt(ref.getId()));
+                try (ResultSet rs = ps.executeQuery()) {
                     if (!rs.next()) return null;
                     List<Text> texts = new ArrayList<>();
                     ItemStack stack = deserializeItemStack(rs.getString("item"))
@@ -814,15 +2387,16 @@ public class Market {
             }
             return null;
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
                 return null;
             }
-            try (Jedis jedis = pool.getResource()) {
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(ref.getServer()))) {
                 // if the item is not for sale, do not get the listing
-                if (!jedis.hexists(RedisKeys.forSale(), id)) return null;
+                if (!jedis.hexists(RedisKeys.forSale(ref.getServer()), ref.getId())) return null;
                 // get info about the listing
-                Map<String, String> listing = jedis.hgetAll(RedisKeys.marketItemKey(id));
+                Map<String, String> listing = readListing(jedis, layouts.get(jedis, ref.getServer()).of(ref.getId()),
+                        ref.getServer(), ref.getId(), RedisLayout.FIELDS);
                 // create list of Texts for pages
                 List<Text> texts = new ArrayList<>();
                 // replace with item if key is "Item", replace uuid with name from cache.
@@ -834,7 +2408,12 @@ public class Market {
                             texts.add(Texts.quickItemFormat(stack));
                             break;
                         case "Seller":
-                            texts.add(Text.of("Seller: " + jedis.hget(RedisKeys.UUID_CACHE, value)));
+                            texts.add(Text.of("Seller: " + getNameFromUUID(value)));
+                            break;
+                        case "Type":
+                        case "Enchants":
+                        case "Durability":
+                            // indexed attributes, not shown
                             break;
                         default:
                             texts.add(Text.of(key + ": " + value));
@@ -863,8 +2442,17 @@ public class Market {
     }
 
     public boolean addStock(ItemStack itemStack, String id, UUID uuid) {
+        if (isDegraded()) {
+            return false;
+        }
+        try (ListingLocks.Hold hold = listingLocks.lock(new ListingRef(serverName, id).toString())) {
+            return addLockedStock(itemStack, id, uuid);
+        }
+    }
+
+    private boolean addLockedStock(ItemStack itemStack, String id, UUID uuid) {
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
+            try (Connection conn = database.getConnection();
                  PreparedStatement ps = conn.prepareStatement("SELECT seller_uuid, item, stock FROM listings WHERE id = ?")) {
                 ps.setInt(1, Integer.parseInt(id));
                 try (ResultSet rs = ps.executeQuery()) {
@@ -876,11 +2464,17 @@ public class Market {
                     if (matchItemStacks(listingStack, itemStack)) {
                         int stock = rs.getInt("stock");
                         int quan = itemStack.getQuantity() + stock;
-                        try (PreparedStatement upd = conn.prepareStatement("UPDATE listings SET stock = ? WHERE id = ?")) {
+                        // restocking renews the listing's lifetime
+                        try (PreparedStatement upd = conn.prepareStatement("UPDATE listings SET stock = ?, expires_at = ? WHERE id = ?")) {
                             upd.setInt(1, quan);
-                            upd.setInt(2, Integer.parseInt(id));
+                            setExpiryParameter(upd, 2, listingExpiry());
+                            upd.setInt(3, Integer.parseInt(id));
                             upd.executeUpdate();
                         }
+                        listingWritten(uuid.toString(), id);
+                        listingsChanged();
+                        recordLedger(uuid.toString(), LedgerEntry.Action.STOCK, null, new ListingRef(serverName, id),
+                                listingStack.getType().getId(), itemStack.getQuantity(), 0);
                         return true;
                     } else {
                         return false;
@@ -891,22 +2485,31 @@ public class Market {
             }
             return false;
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
                 return false;
             }
-            try (Jedis jedis = pool.getResource()) {
-                if (!jedis.hexists(RedisKeys.forSale(), id)) return false;
-                else if (!jedis.hget(RedisKeys.marketItemKey(id), "Seller").equals(uuid.toString())) return false;
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName));
+                 RedisLayouts.Pin pin = layouts.pin()) {
+                if (!jedis.hexists(RedisKeys.forSale(serverName), id)) return false;
+                RedisLayout layout = layouts.get(jedis, serverName).of(id);
+                Map<String, String> listing = readListing(jedis, layout, serverName, id, "Seller", "Item");
+                if (!uuid.toString().equals(listing.get("Seller"))) return false;
                 else {
-                    Optional<ItemStack> listingOpt = deserializeItemStack(jedis.hget(RedisKeys.marketItemKey(id), "Item"));
+                    Optional<ItemStack> listingOpt = deserializeItemStack(listing.get("Item"));
                     if (!listingOpt.isPresent()) return false;
                     ItemStack listingStack = listingOpt.get();
                     // if the stack in the listing matches the stack it's trying to add, add it to the stack
                     if (matchItemStacks(listingStack, itemStack)) {
-                        int stock = Integer.parseInt(jedis.hget(RedisKeys.marketItemKey(id), "Stock"));
-                        int quan = itemStack.getQuantity() + stock;
-                        jedis.hset(RedisKeys.marketItemKey(id), "Stock", String.valueOf(quan));
+                        jedis.hincrBy(layout.key(serverName, id), layout.field(id, "Stock"), itemStack.getQuantity());
+                        // restocking renews the listing's lifetime
+                        long expiresAt = listingExpiry();
+                        if (expiresAt > 0) {
+                            jedis.zadd(RedisKeys.expiry(serverName), expiresAt, id);
+                        }
+                        listingsChanged();
+                        recordLedger(uuid.toString(), LedgerEntry.Action.STOCK, null, new ListingRef(serverName, id),
+                                listingStack.getType().getId(), itemStack.getQuantity(), 0);
                         return true;
                     } else return false;
                 }
@@ -914,323 +2517,2139 @@ public class Market {
         }
     }
 
+    /**
+     * Key used to keep reads of a listing on the primary right after it changed.
+     */
+    private static String listingReadKey(String id) {
+        return "listing:" + id;
+    }
+
+    /**
+     * Record a change to a listing, so reads of the listing, of its seller's
+     * listings and of the shared listing screens are served by the primary
+     * until replicas have caught up. The screens are cached for every player,
+     * so they are guarded as a whole rather than per viewer.
+     */
+    private void listingWritten(String player, String id) {
+        database.markWritten(player, listingReadKey(id), LISTINGS_READ_KEY);
+    }
+
     private boolean matchItemStacks(ItemStack is0, ItemStack is1) {
         return new DataComparator().test(is0, is1);
     }
 
-    public ItemStack purchase(UniqueAccount uniqueAccount, String id) {
+    /**
+     * Buy one lot of a listing.
+     */
+    public List<ItemStack> purchase(UniqueAccount uniqueAccount, String id) {
+        return purchase(uniqueAccount, id, 1);
+    }
+
+    /**
+     * Buy several lots of a listing at once. The buyer is charged for all lots
+     * in one withdrawal, the stock for all of them is reserved with a single
+     * atomic decrement and the seller is paid once. If the stock cannot be
+     * reserved the buyer is refunded.
+     *
+     * @return the bought items in full stacks, or null if the purchase failed
+     */
+    public List<ItemStack> purchase(UniqueAccount uniqueAccount, String id, int lots) {
+        if (isDegraded()) {
+            return null;
+        }
+        if (lots <= 0) {
+            return null;
+        }
+        ListingRef ref = ListingRef.parse(id, serverName);
+        String seller;
+        String item;
+        int price;
+        int quantity;
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
-                 PreparedStatement ps = conn.prepareStatement("SELECT seller_uuid, item, price, quantity, stock FROM listings WHERE id = ?")) {
-                ps.setInt(1, Integer.parseInt(id));
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("SELECT seller_uuid, item, price, quantity FROM listings WHERE id = ?")) {
+                ps.setInt(1, Integer.parseInt(ref.getId()));
                 try (ResultSet rs = ps.executeQuery()) {
                     if (!rs.next()) return null;
-                    TransactionResult tr = uniqueAccount.transfer(
-                            getEconomyService().getOrCreateAccount(UUID.fromString(rs.getString("seller_uuid"))).get(),
-                            getEconomyService().getDefaultCurrency(),
-                            BigDecimal.valueOf(rs.getInt("price")),
-                            marketCause);
-                    if (tr.getResult().equals(ResultType.SUCCESS)) {
-                        Optional<ItemStack> opt = deserializeItemStack(rs.getString("item"));
-                        if (!opt.isPresent()) return null;
-                        ItemStack is = opt.get();
-                        int quant = rs.getInt("quantity");
-                        int inStock = rs.getInt("stock");
-                        int newQuant = inStock - quant;
-                        if (newQuant < quant) {
-                            try (PreparedStatement del = conn.prepareStatement("DELETE FROM listings WHERE id = ?")) {
-                                del.setInt(1, Integer.parseInt(id));
-                                del.executeUpdate();
-                            }
-                        } else {
-                            try (PreparedStatement upd = conn.prepareStatement("UPDATE listings SET stock = ? WHERE id = ?")) {
-                                upd.setInt(1, newQuant);
-                                upd.setInt(2, Integer.parseInt(id));
-                                upd.executeUpdate();
-                            }
-                        }
-                        ItemStack nis = is.copy();
-                        nis.setQuantity(quant);
-                        return nis;
-                    } else {
-                        return null;
-                    }
+                    seller = rs.getString("seller_uuid");
+                    item = rs.getString("item");
+                    price = rs.getInt("price");
+                    quantity = rs.getInt("quantity");
                 }
             } catch (SQLException e) {
                 logger.error("Failed to purchase listing", e);
+                return null;
             }
-            return null;
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
                 return null;
             }
-            try (Jedis jedis = pool.getResource()) {
-                if (!jedis.hexists(RedisKeys.forSale(), id)) return null;
-                else {
-                    TransactionResult tr = uniqueAccount.transfer(
-                            getEconomyService().getOrCreateAccount(UUID.fromString(jedis.hget(RedisKeys.marketItemKey(id), "Seller"))).get(),
-                            getEconomyService().getDefaultCurrency(),
-                            BigDecimal.valueOf(Long.parseLong(jedis.hget(RedisKeys.marketItemKey(id), "Price"))),
-                            marketCause // SpongeAPI 7: pass the Cause directly
-                    );
-                    if (tr.getResult().equals(ResultType.SUCCESS)) {
-                        // get the itemstack
-                        Optional<ItemStack> opt = deserializeItemStack(jedis.hget(RedisKeys.marketItemKey(id), "Item"));
-                        if (!opt.isPresent()) return null;
-                        ItemStack is = opt.get();
-                        // get the quantity per sale
-                        int quant = Integer.parseInt(jedis.hget(RedisKeys.marketItemKey(id), "Quantity"));
-                        // get the amount in stock
-                        int inStock = Integer.parseInt(jedis.hget(RedisKeys.marketItemKey(id), "Stock"));
-                        // get the new quantity
-                        int newQuant = inStock - quant;
-                        // if the new quantity is less than the quantity to be sold, expire the listing
-                        if (newQuant < quant) {
-                            jedis.hdel(RedisKeys.forSale(), id);
-                        } else {
-                            jedis.hset(RedisKeys.marketItemKey(id), "Stock", String.valueOf(newQuant));
-                        }
-                        ItemStack nis = is.copy();
-                        nis.setQuantity(quant);
-                        return nis;
-                    } else {
-                        return null;
-                    }
-                }
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(ref.getServer()))) {
+                if (!jedis.hexists(RedisKeys.forSale(ref.getServer()), ref.getId())) return null;
+                RedisLayout layout = layouts.get(jedis, ref.getServer()).of(ref.getId());
+                Map<String, String> listing = readListing(jedis, layout, ref.getServer(), ref.getId(),
+                        "Seller", "Item", "Price", "Quantity");
+                if (listing.size() < 4) return null;
+                seller = listing.get("Seller");
+                item = listing.get("Item");
+                price = Integer.parseInt(listing.get("Price"));
+                quantity = Integer.parseInt(listing.get("Quantity"));
+            }
+        }
+        long totalPrice = (long) price * lots;
+        long totalQuantity = (long) quantity * lots;
+        if (totalPrice > Integer.MAX_VALUE || totalQuantity > Integer.MAX_VALUE) {
+            return null;
+        }
+        Optional<ItemStack> opt = deserializeItemStack(item);
+        if (!opt.isPresent()) return null;
+        ItemStack is = opt.get();
+
+        Currency currency = getEconomyService().getDefaultCurrency();
+        BigDecimal amount = BigDecimal.valueOf(totalPrice);
+        TransactionResult withdraw = uniqueAccount.withdraw(currency, amount, marketCause);
+        if (!withdraw.getResult().equals(ResultType.SUCCESS)) {
+            return null;
+        }
+        int remaining = reserve(ref, seller, (int) totalQuantity, quantity);
+        if (remaining < 0) {
+            if (!uniqueAccount.deposit(currency, amount, marketCause).getResult().equals(ResultType.SUCCESS)) {
+                pay(uniqueAccount.getUniqueId().toString(), totalPrice, ref);
             }
+            return null;
         }
+        listingsChanged();
+        payProceeds(seller, totalPrice, ref);
+        if (remaining < quantity) {
+            searchIndex.remove(ref.toString());
+        }
+        recordSale(is.getType().getId(), (int) totalPrice, (int) totalQuantity);
+        recordPurchase(uniqueAccount.getUniqueId().toString(), seller, ref, is.getType().getId(), (int) totalQuantity, (int) totalPrice);
+        return toStacks(is, (int) totalQuantity);
     }
 
-    public EconomyService getEconomyService() {
-        return game.getServiceManager().provide(EconomyService.class).get();
+    /**
+     * Deposit money for a sale into a player's account. If the deposit fails
+     * the amount is added to the player's pending payout, so
+     * {@link #settlePayouts()} retries it instead of the money being lost.
+     */
+    private void pay(String uuid, long amount, ListingRef ref) {
+        if (deposit(uuid, amount)) {
+            return;
+        }
+        if (accruePayout(uuid, amount)) {
+            logger.warn("Failed to pay {} to {} for {}, retrying at the next settlement", amount, uuid, ref);
+        } else {
+            logger.error("Failed to pay {} to {} for {}", amount, uuid, ref);
+        }
     }
 
-    public boolean blacklistAddCmd(String id) {
+    private boolean deposit(String uuid, long amount) {
+        Optional<UniqueAccount> account = getAccount(UUID.fromString(uuid));
+        return account.isPresent() && account.get().deposit(getEconomyService().getDefaultCurrency(),
+                BigDecimal.valueOf(amount), marketCause).getResult().equals(ResultType.SUCCESS);
+    }
+
+    /**
+     * Pay a seller the proceeds of a sale. With batched payouts the amount is
+     * added to the seller's pending payout and deposited later by
+     * {@link #settlePayouts()}; if it cannot be recorded it is paid at once.
+     */
+    private void payProceeds(String seller, long amount, ListingRef ref) {
+        if (!batchPayouts || !accruePayout(seller, amount)) {
+            pay(seller, amount, ref);
+        }
+    }
+
+    private boolean accruePayout(String seller, long amount) {
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
-                 PreparedStatement ps = conn.prepareStatement("INSERT IGNORE INTO blacklist(item) VALUES (?)")) {
-                ps.setString(1, id);
-                int rows = ps.executeUpdate();
-                if (rows == 0) return false;
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("INSERT INTO market_payouts (seller_uuid, amount) VALUES (?, ?) "
+                         + "ON DUPLICATE KEY UPDATE amount = amount + VALUES(amount)")) {
+                ps.setString(1, seller);
+                ps.setLong(2, amount);
+                ps.executeUpdate();
+                return true;
             } catch (SQLException e) {
-                logger.error("Failed to add blacklist entry", e);
-                return false;
-            }
-        } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
+                logger.error("Failed to record payout", e);
                 return false;
             }
-            try (Jedis jedis = pool.getResource()) {
-                if (jedis.hexists(RedisKeys.BLACKLIST, id)) return false;
-                jedis.hset(RedisKeys.BLACKLIST, id, String.valueOf(true));
-            }
         }
-        addIDToBlackList(id);
-        return true;
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return false;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.PAYOUTS)) {
+            jedis.hincrBy(RedisKeys.PAYOUTS, seller, amount);
+            return true;
+        } catch (JedisException e) {
+            logger.error("Failed to record payout", e);
+            return false;
+        }
     }
 
-    public boolean blacklistRemoveCmd(String id) {
+    /**
+     * Deposit the pending payouts of every seller, one deposit per seller.
+     * Runs asynchronously; see {@link #depositPayouts(Map)}.
+     */
+    void settlePayouts() {
+        List<String> sellers = new ArrayList<>();
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
-                 PreparedStatement ps = conn.prepareStatement("DELETE FROM blacklist WHERE item = ?")) {
-                ps.setString(1, id);
-                int rows = ps.executeUpdate();
-                if (rows == 0) return false;
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("SELECT seller_uuid FROM market_payouts");
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    sellers.add(rs.getString("seller_uuid"));
+                }
             } catch (SQLException e) {
-                logger.error("Failed to remove blacklist entry", e);
-                return false;
+                logger.error("Failed to load payouts", e);
+                return;
             }
         } else {
-            JedisPool pool = getJedis();
-            if (pool == null) {
-                return false;
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
             }
-            try (Jedis jedis = pool.getResource()) {
-                if (!jedis.hexists(RedisKeys.BLACKLIST, id)) return false;
-                jedis.hdel(RedisKeys.BLACKLIST, id);
+            try (Jedis jedis = redis.getResource(RedisKeys.PAYOUTS)) {
+                sellers.addAll(jedis.hkeys(RedisKeys.PAYOUTS));
             }
         }
-        rmIDFromBlackList(id);
-        return true;
-    }
-
-    public void addIDToBlackList(String id) {
-        blacklistedItems.add(id);
-    }
-
-    private List<String> getBlacklistedItems() {
-        return blacklistedItems;
-    }
-
-    private boolean isBlacklisted(ItemStack itemStack) {
-        Optional<BlockType> type = itemStack.getItem().getBlock();
-        String id = type.map(blockType -> blockType.getDefaultState().getId())
-                .orElseGet(() -> itemStack.getItem().getId());
-        return blacklistedItems.contains(id);
+        Map<String, Long> claimed = new LinkedHashMap<>();
+        for (String seller : sellers) {
+            long amount = claimPayout(seller);
+            if (amount > 0) {
+                claimed.put(seller, amount);
+            }
+        }
+        depositPayouts(claimed);
     }
 
-    public PaginationList getBlacklistedItemList() {
-        List<Text> texts = new ArrayList<>();
-        for (String blacklistedItem : getBlacklistedItems()) {
-            texts.add(Text.of(blacklistedItem));
+    /**
+     * Deposit a seller's pending payout. Runs asynchronously.
+     */
+    private void settlePayout(String seller) {
+        long amount = claimPayout(seller);
+        if (amount > 0) {
+            depositPayouts(Collections.singletonMap(seller, amount));
         }
-        return getPaginationService().builder().contents(texts).title(Text.of(TextColors.GREEN, "Market Blacklist")).build();
     }
 
-    public void rmIDFromBlackList(String message) {
-        blacklistedItems.remove(message);
+    /**
+     * Deposit claimed payouts on the main thread, then take the amounts paid
+     * off the pending payouts, or release the claims of failed deposits for
+     * the next settlement. A payout stays recorded until it was deposited, so
+     * a crash in between pays it again once the claim has lapsed rather than
+     * losing it.
+     */
+    private void depositPayouts(Map<String, Long> claimed) {
+        if (claimed.isEmpty()) {
+            return;
+        }
+        getScheduler().createTaskBuilder()
+                .execute(() -> {
+                    Set<String> paid = new HashSet<>();
+                    claimed.forEach((seller, amount) -> {
+                        try {
+                            if (deposit(seller, amount)) {
+                                paid.add(seller);
+                            }
+                        } catch (RuntimeException e) {
+                            logger.error("Economy failed to deposit a payout", e);
+                        }
+                    });
+                    getScheduler().createTaskBuilder()
+                            .async()
+                            .execute(() -> claimed.forEach((seller, amount) -> {
+                                if (paid.contains(seller)) {
+                                    completePayout(seller, amount);
+                                } else {
+                                    logger.error("Failed to pay {} pending proceeds to {}, retrying at the next settlement", amount, seller);
+                                    releasePayout(seller);
+                                }
+                            }))
+                            .submit(this);
+                })
+                .submit(this);
     }
 
-    public PaginationList searchForItem(ItemType itemType) {
-        List<Text> texts = new ArrayList<>();
+    /**
+     * Claim a seller's pending payout for this server until it is completed,
+     * released or {@link #PAYOUT_CLAIM_MILLIS} have passed, so servers
+     * settling at the same time never pay it twice.
+     *
+     * @return the amount claimed, or 0 if there is none or another server
+     * holds the claim
+     */
+    private long claimPayout(String seller) {
+        long now = System.currentTimeMillis();
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
-                 PreparedStatement ps = conn.prepareStatement("SELECT id, seller_uuid, item, price, quantity FROM listings");
-                 ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    Optional<ItemStack> is = deserializeItemStack(rs.getString("item"));
-                    if (!is.isPresent() || !is.get().getItem().equals(itemType)) continue;
-                    Text.Builder l = Text.builder();
-                    l.append(Texts.quickItemFormat(is.get()));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.WHITE, "@"));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.GREEN, "$" + rs.getInt("price")));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.WHITE, "for"));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.GREEN, rs.getInt("quantity") + "x"));
-                    l.append(Text.of(" "));
-                    l.append(Text.of(TextColors.WHITE, "Seller:"));
-                    l.append(Text.of(TextColors.LIGHT_PURPLE, " " + getNameFromUUID(rs.getString("seller_uuid"))));
-                    l.append(Text.of(" "));
-                    l.append(Text.builder()
-                            .color(TextColors.GREEN)
-                            .onClick(TextActions.runCommand("/market check " + rs.getInt("id")))
-                            .append(Text.of("[Info]"))
-                            .onHover(TextActions.showText(Text.of("View more info about this listing.")))
-                            .build());
-                    texts.add(l.build());
+            try (Connection conn = database.getConnection();
+                 PreparedStatement claim = conn.prepareStatement("UPDATE market_payouts SET claimed_at = ? "
+                         + "WHERE seller_uuid = ? AND (claimed_at IS NULL OR claimed_at < ?)");
+                 PreparedStatement select = conn.prepareStatement("SELECT amount FROM market_payouts WHERE seller_uuid = ?")) {
+                claim.setLong(1, now);
+                claim.setString(2, seller);
+                claim.setLong(3, now - PAYOUT_CLAIM_MILLIS);
+                if (claim.executeUpdate() == 0) {
+                    return 0;
+                }
+                select.setString(1, seller);
+                try (ResultSet rs = select.executeQuery()) {
+                    return rs.next() ? rs.getLong("amount") : 0;
                 }
             } catch (SQLException e) {
-                logger.error("Failed to search listings", e);
+                logger.error("Failed to claim payout", e);
+                return 0;
             }
-        } else {
-            JedisPool pool = getJedis();
-            if (pool != null) {
-                try (Jedis jedis = pool.getResource()) {
-                    Set<String> openListings = jedis.hgetAll(RedisKeys.forSale()).keySet();
-                    for (String openListing : openListings) {
-                        Map<String, String> listing = jedis.hgetAll(RedisKeys.marketItemKey(openListing));
-                        Text.Builder l = Text.builder();
-                        Optional<ItemStack> is = deserializeItemStack(listing.get("Item"));
-                        if (!is.isPresent()) continue;
-                        if (is.get().getItem().equals(itemType)) {
-                            l.append(Texts.quickItemFormat(is.get()));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.WHITE, "@"));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.GREEN, "$" + listing.get("Price")));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.WHITE, "for"));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.GREEN, listing.get("Quantity") + "x"));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.WHITE, "Seller:"));
-                            l.append(Text.of(TextColors.LIGHT_PURPLE, " " + jedis.hget(RedisKeys.UUID_CACHE, listing.get("Seller"))));
-                            l.append(Text.of(" "));
-                            l.append(Text.builder()
-                                    .color(TextColors.GREEN)
-                                    .onClick(TextActions.runCommand("/market check " + openListing))
-                                    .append(Text.of("[Info]"))
-                                    .onHover(TextActions.showText(Text.of("View more info about this listing.")))
-                                    .build());
-                            texts.add(l.build());
-                        }
-                    }
-                }
+        }
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return 0;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.PAYOUTS)) {
+            if (jedis.set(RedisKeys.payoutClaim(seller), serverName, SetParams.setParams().nx().px(PAYOUT_CLAIM_MILLIS)) == null) {
+                return 0;
             }
+            String amount = jedis.hget(RedisKeys.PAYOUTS, seller);
+            return amount == null ? 0 : Long.parseLong(amount);
+        } catch (JedisException e) {
+            logger.error("Failed to claim payout", e);
+            return 0;
         }
-        if (texts.size() == 0) texts.add(Text.of(TextColors.RED, "No listings found."));
-        return getPaginationService().builder().contents(texts).title(Texts.MARKET_SEARCH).build();
     }
 
-    public PaginationList searchForUUID(UUID uniqueId) {
-        List<Text> texts = new ArrayList<>();
+    // Takes a deposited amount off a pending payout and drops the claim.
+    // KEYS: payouts hash, claim. ARGV: seller, amount
+    private static final String COMPLETE_PAYOUT_SCRIPT =
+            "if redis.call('HINCRBY', KEYS[1], ARGV[1], -tonumber(ARGV[2])) <= 0 then\n"
+                    + "  redis.call('HDEL', KEYS[1], ARGV[1])\n"
+                    + "end\n"
+                    + "redis.call('DEL', KEYS[2])\n"
+                    + "return 1";
+
+    /**
+     * Take a deposited amount off a seller's pending payout and drop the
+     * claim. Proceeds accrued since the claim stay pending.
+     */
+    private void completePayout(String seller, long amount) {
         if (useMySql) {
-            try (Connection conn = database.getDataSource().getConnection();
-                 PreparedStatement ps = conn.prepareStatement("SELECT id, seller_uuid, item, price, quantity FROM listings WHERE seller_uuid = ?")) {
-                ps.setString(1, uniqueId.toString());
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        Text.Builder l = Text.builder();
-                        Optional<ItemStack> is = deserializeItemStack(rs.getString("item"));
-                        if (!is.isPresent()) continue;
-                        l.append(Texts.quickItemFormat(is.get()));
-                        l.append(Text.of(" "));
-                        l.append(Text.of(TextColors.WHITE, "@"));
-                        l.append(Text.of(" "));
-                        l.append(Text.of(TextColors.GREEN, "$" + rs.getInt("price")));
-                        l.append(Text.of(" "));
-                        l.append(Text.of(TextColors.WHITE, "for"));
-                        l.append(Text.of(" "));
-                        l.append(Text.of(TextColors.GREEN, rs.getInt("quantity") + "x"));
-                        l.append(Text.of(" "));
-                        l.append(Text.of(TextColors.WHITE, "Seller:"));
-                        l.append(Text.of(TextColors.LIGHT_PURPLE, " " + getNameFromUUID(rs.getString("seller_uuid"))));
-                        l.append(Text.of(" "));
-                        l.append(Text.builder()
-                                .color(TextColors.GREEN)
-                                .onClick(TextActions.runCommand("/market check " + rs.getInt("id")))
-                                .append(Text.of("[Info]"))
-                                .onHover(TextActions.showText(Text.of("View more info about this listing.")))
-                                .build());
-                        texts.add(l.build());
+            try (Connection conn = database.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement update = conn.prepareStatement(
+                        "UPDATE market_payouts SET amount = amount - ?, claimed_at = NULL WHERE seller_uuid = ?");
+                     PreparedStatement delete = conn.prepareStatement(
+                             "DELETE FROM market_payouts WHERE seller_uuid = ? AND amount <= 0")) {
+                    update.setLong(1, amount);
+                    update.setString(2, seller);
+                    update.executeUpdate();
+                    delete.setString(1, seller);
+                    delete.executeUpdate();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to record payout of {} to {}", amount, seller, e);
+            }
+            return;
+        }
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.PAYOUTS)) {
+            jedis.eval(COMPLETE_PAYOUT_SCRIPT, Arrays.asList(RedisKeys.PAYOUTS, RedisKeys.payoutClaim(seller)),
+                    Arrays.asList(seller, String.valueOf(amount)));
+        } catch (JedisException e) {
+            logger.error("Failed to record payout of {} to {}", amount, seller, e);
+        }
+    }
+
+    private void releasePayout(String seller) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("UPDATE market_payouts SET claimed_at = NULL WHERE seller_uuid = ?")) {
+                ps.setString(1, seller);
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                logger.error("Failed to release payout claim", e);
+            }
+            return;
+        }
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.PAYOUTS)) {
+            jedis.del(RedisKeys.payoutClaim(seller));
+        } catch (JedisException e) {
+            logger.error("Failed to release payout claim", e);
+        }
+    }
+
+    /**
+     * Place a buy order for an item type. The full price is taken into escrow
+     * and the order is immediately matched against the cheapest listings.
+     *
+     * @return the order id, or 0 if the order could not be placed
+     */
+    public int createBuyOrder(Player player, ItemType itemType, int quantity, int maxUnitPrice) {
+        if (isDegraded()) {
+            return 0;
+        }
+        if (quantity <= 0 || maxUnitPrice <= 0 || isBlacklisted(ItemStack.of(itemType, 1))) {
+            return 0;
+        }
+        long escrow = (long) quantity * maxUnitPrice;
+        Currency currency = getEconomyService().getDefaultCurrency();
+        Optional<UniqueAccount> account = getAccount(player.getUniqueId());
+        if (!account.isPresent() || !account.get().withdraw(currency, BigDecimal.valueOf(escrow), marketCause)
+                .getResult().equals(ResultType.SUCCESS)) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int id = insertOrder(player.getUniqueId().toString(), itemType.getId(), maxUnitPrice, quantity, escrow, now);
+        if (id <= 0) {
+            account.get().deposit(currency, BigDecimal.valueOf(escrow), marketCause);
+            return 0;
+        }
+        BuyOrder order = new BuyOrder(id, player.getUniqueId().toString(), itemType.getId(), maxUnitPrice, quantity, escrow, now);
+        orderBook.add(order);
+        matchOrder(order);
+        return id;
+    }
+
+    /**
+     * Cancel a buy order and refund what is left of its escrow.
+     */
+    public boolean cancelBuyOrder(UUID player, int id, boolean staff) {
+        if (isDegraded()) {
+            return false;
+        }
+        BuyOrder order = orderBook.get(id);
+        if (order == null || (!order.getPlayer().equals(player.toString()) && !staff)) {
+            return false;
+        }
+        synchronized (order) {
+            if (orderBook.remove(id) == null) {
+                return false;
+            }
+            deleteOrder(id);
+            pay(order.getPlayer(), order.getEscrow(), orderRef(order));
+        }
+        return true;
+    }
+
+    /**
+     * The buy orders of a player, or the order book of an item type when
+     * {@code itemType} is given.
+     */
+    public PaginationList getBuyOrders(UUID player, ItemType itemType) {
+        List<BuyOrder> orders = itemType == null
+                ? orderBook.getOrdersOf(player.toString())
+                : orderBook.getOrders(itemType.getId());
+        Map<String, String> names = getNamesFromUUIDs(orders.stream().map(BuyOrder::getPlayer).collect(Collectors.toSet()));
+        List<Text> texts = new ArrayList<>();
+        for (BuyOrder order : orders) {
+            texts.add(Text.builder()
+                    .append(Text.of(TextColors.WHITE, "#" + order.getId() + " "))
+                    .append(Text.of(TextColors.AQUA, order.getRemaining() + "x " + order.getItemType()))
+                    .append(Text.of(TextColors.WHITE, " at up to "))
+                    .append(Text.of(TextColors.GREEN, order.getMaxUnitPrice()))
+                    .append(Text.of(TextColors.WHITE, " each by " + names.getOrDefault(order.getPlayer(), order.getPlayer())))
+                    .build());
+        }
+        if (texts.isEmpty()) texts.add(Text.of(TextColors.RED, "No buy orders found."));
+        return getPaginationService().builder().contents(texts).title(Texts.MARKET_ORDERS).build();
+    }
+
+    /**
+     * Sell items straight into the best matching buy orders, without
+     * creating a listing. Each order is paid at its own price. Blacklisted
+     * items are refused as they are for listings.
+     *
+     * @return the number of items sold
+     */
+    public int sellToOrders(Player player, ItemStack itemStack, int quantity) {
+        if (isDegraded()) {
+            return 0;
+        }
+        if (!isPlain(extractAttributes(itemStack, 1, 1)) || isBlacklisted(itemStack)) {
+            return 0;
+        }
+        String seller = player.getUniqueId().toString();
+        String itemType = itemStack.getType().getId();
+        String item = null;
+        int offered = Math.min(quantity, itemStack.getQuantity());
+        int left = offered;
+        for (BuyOrder order : orderBook.matching(itemType, 0)) {
+            if (left == 0) {
+                break;
+            }
+            if (order.getPlayer().equals(seller)) {
+                continue;
+            }
+            synchronized (order) {
+                int units = Math.min(left, order.getRemaining());
+                if (units == 0 || orderBook.get(order.getId()) != order) {
+                    continue;
+                }
+                if (item == null) {
+                    item = serializeItem(itemStack);
+                }
+                long cost = (long) units * order.getMaxUnitPrice();
+                order.fill(units, cost);
+                updateOrder(order);
+                pay(seller, cost, orderRef(order));
+                deliverToBuyer(order.getPlayer(), item, units);
+                recordSale(itemType, (int) cost, units);
+                recordPurchase(order.getPlayer(), seller, orderRef(order), itemType, units, (int) cost);
+                left -= units;
+            }
+        }
+        return offered - left;
+    }
+
+    /**
+     * Fill a new buy order from the cheapest matching listings, paying each
+     * listing's own price.
+     */
+    private void matchOrder(BuyOrder order) {
+        for (ListingRecord listing : findOrderCandidates(order.getItemType(), order.getMaxUnitPrice())) {
+            if (listing.getSeller().equals(order.getPlayer())) {
+                continue;
+            }
+            int lots = Math.min(order.getRemaining() / listing.getQuantity(), listing.getStock() / listing.getQuantity());
+            if (lots > 0) {
+                fillOrder(order, listing.getRef(), listing.getSeller(), listing.getItem(), listing.getQuantity(), lots,
+                        (long) listing.getPrice() * lots);
+            }
+            if (order.getRemaining() == 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Fill resting buy orders from a newly created listing, best order first.
+     * Each order is filled at its own price.
+     */
+    private void matchListing(ListingRef ref, String seller, ItemStack itemStack, int price, int quantity, ItemAttributes attributes) {
+        if (!isPlain(attributes)) {
+            return;
+        }
+        String item = null;
+        int lotsLeft = itemStack.getQuantity() / quantity;
+        for (BuyOrder order : orderBook.matching(attributes.getItemType(), (double) price / quantity)) {
+            if (lotsLeft == 0) {
+                break;
+            }
+            int lots = Math.min(order.getRemaining() / quantity, lotsLeft);
+            if (lots == 0 || order.getPlayer().equals(seller)) {
+                continue;
+            }
+            if (item == null) {
+                item = serializeItem(itemStack);
+            }
+            if (fillOrder(order, ref, seller, item, quantity, lots, (long) order.getMaxUnitPrice() * lots * quantity)) {
+                lotsLeft -= lots;
+            }
+        }
+    }
+
+    /**
+     * Buy {@code lots} lots of a listing for a buy order: reserve the stock,
+     * pay the seller from the escrow and mail the items to the buyer.
+     *
+     * @return false if the order changed meanwhile or the stock could not be reserved
+     */
+    private boolean fillOrder(BuyOrder order, ListingRef ref, String seller, String item, int quantity, int lots, long cost) {
+        int units = lots * quantity;
+        synchronized (order) {
+            if (order.getRemaining() < units || orderBook.get(order.getId()) != order) {
+                return false;
+            }
+            int remaining = reserve(ref, seller, units, quantity);
+            if (remaining < 0) {
+                return false;
+            }
+            order.fill(units, cost);
+            updateOrder(order);
+            listingsChanged();
+            if (remaining < quantity) {
+                searchIndex.remove(ref.toString());
+            }
+        }
+        payProceeds(seller, cost, ref);
+        deliverToBuyer(order.getPlayer(), item, units);
+        recordSale(order.getItemType(), (int) cost, units);
+        recordPurchase(order.getPlayer(), seller, ref, order.getItemType(), units, (int) cost);
+        return true;
+    }
+
+    /**
+     * Persist a changed order. A completed order is removed and the unused
+     * part of its escrow refunded.
+     */
+    private void updateOrder(BuyOrder order) {
+        if (order.getRemaining() > 0) {
+            saveOrder(order);
+            return;
+        }
+        orderBook.remove(order.getId());
+        deleteOrder(order.getId());
+        if (order.getEscrow() > 0) {
+            pay(order.getPlayer(), order.getEscrow(), orderRef(order));
+        }
+    }
+
+    private void deliverToBuyer(String buyer, String item, int quantity) {
+        storeMail(Collections.singletonList(new Mail(buyer, item, quantity)));
+        getGame().getServer().getPlayer(UUID.fromString(buyer)).ifPresent(player ->
+                getScheduler().createTaskBuilder()
+                        .async()
+                        .execute(() -> deliverMail(player))
+                        .submit(this));
+    }
+
+    private ListingRef orderRef(BuyOrder order) {
+        return new ListingRef(serverName, "order" + order.getId());
+    }
+
+    /**
+     * Buy orders only match undamaged items without enchantments.
+     */
+    private static boolean isPlain(ItemAttributes attributes) {
+        return attributes.getEnchantments().isEmpty() && (!attributes.hasDurability() || attributes.getDurabilityPct() >= 100);
+    }
+
+    /**
+     * Open plain listings of an item type at or below a unit price, cheapest
+     * and then oldest first.
+     */
+    private List<ListingRecord> findOrderCandidates(String itemType, int maxUnitPrice) {
+        List<ListingRecord> records = new ArrayList<>();
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "SELECT id, seller_uuid, item, stock, price, quantity FROM listings l "
+                                 + "WHERE item_type = ? AND unit_price <= ? AND (durability_pct IS NULL OR durability_pct >= 100) "
+                                 + "AND NOT EXISTS (SELECT 1 FROM listing_enchantments e WHERE e.listing_id = l.id) "
+                                 + "ORDER BY unit_price, id LIMIT ?")) {
+                ps.setString(1, itemType);
+                ps.setDouble(2, maxUnitPrice);
+                ps.setInt(3, ORDER_MATCH_LIMIT);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        records.add(new ListingRecord(new ListingRef(serverName, String.valueOf(rs.getInt("id"))),
+                                rs.getString("seller_uuid"), rs.getString("item"), rs.getInt("stock"),
+                                rs.getInt("price"), rs.getInt("quantity")));
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to find listings for buy order", e);
+            }
+            return records;
+        }
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return records;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+            List<String> ids = new ArrayList<>(jedis.smembers(RedisKeys.attributeIndex(serverName, "type:" + itemType)));
+            RedisLayouts.Snapshot layout = layouts.get(jedis, serverName);
+            Pipeline p = jedis.pipelined();
+            List<Response<Double>> unitPrices = new ArrayList<>(ids.size());
+            List<Supplier<Map<String, String>>> attributes = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                unitPrices.add(p.zscore(RedisKeys.attributeIndex(serverName, "unitprice"), id));
+                attributes.add(layout.of(id).read(p, serverName, id, "Enchants", "Durability"));
+            }
+            p.sync();
+            List<String> plain = new ArrayList<>();
+            for (int i = 0; i < ids.size(); i++) {
+                Double unitPrice = unitPrices.get(i).get();
+                Map<String, String> fields = attributes.get(i).get();
+                if (unitPrice != null && unitPrice <= maxUnitPrice && fields.get("Enchants") == null
+                        && (fields.get("Durability") == null || Integer.parseInt(fields.get("Durability")) >= 100)) {
+                    plain.add(ids.get(i));
+                }
+            }
+            records.addAll(fetchRecords(jedis, serverName, plain, true));
+        }
+        records.sort(Comparator.comparingDouble((ListingRecord r) -> (double) r.getPrice() / r.getQuantity())
+                .thenComparingInt(r -> Integer.parseInt(r.getRef().getId())));
+        return records.size() > ORDER_MATCH_LIMIT ? new ArrayList<>(records.subList(0, ORDER_MATCH_LIMIT)) : records;
+    }
+
+    /**
+     * Rebuild the order book from storage.
+     */
+    private void loadOrders() {
+        orderBook.clear();
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "SELECT id, player_uuid, item_type, max_price, remaining, escrow, created_at FROM market_orders WHERE server = ?")) {
+                ps.setString(1, serverName);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        orderBook.add(new BuyOrder(rs.getInt("id"), rs.getString("player_uuid"), rs.getString("item_type"),
+                                rs.getInt("max_price"), rs.getInt("remaining"), rs.getLong("escrow"), rs.getLong("created_at")));
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to load buy orders", e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.orders(serverName))) {
+                for (Map.Entry<String, String> entry : jedis.hgetAll(RedisKeys.orders(serverName)).entrySet()) {
+                    BuyOrder order = BuyOrder.decode(Integer.parseInt(entry.getKey()), entry.getValue());
+                    if (order != null) {
+                        orderBook.add(order);
+                    }
+                }
+            }
+        }
+        logger.info("Loaded {} buy orders", orderBook.size());
+    }
+
+    /**
+     * @return the new order's id, or -1 if it could not be stored
+     */
+    private int insertOrder(String player, String itemType, int maxUnitPrice, int quantity, long escrow, long createdAt) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "INSERT INTO market_orders (player_uuid, item_type, max_price, remaining, escrow, created_at, server) "
+                                 + "VALUES (?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+                ps.setString(1, player);
+                ps.setString(2, itemType);
+                ps.setInt(3, maxUnitPrice);
+                ps.setInt(4, quantity);
+                ps.setLong(5, escrow);
+                ps.setLong(6, createdAt);
+                ps.setString(7, serverName);
+                ps.executeUpdate();
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    return rs.next() ? rs.getInt(1) : -1;
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to store buy order", e);
+                return -1;
+            }
+        }
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return -1;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.orders(serverName))) {
+            int id = jedis.incr(RedisKeys.lastOrderId(serverName)).intValue();
+            jedis.hset(RedisKeys.orders(serverName), String.valueOf(id),
+                    new BuyOrder(id, player, itemType, maxUnitPrice, quantity, escrow, createdAt).encode());
+            return id;
+        }
+    }
+
+    private void saveOrder(BuyOrder order) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("UPDATE market_orders SET remaining = ?, escrow = ? WHERE id = ?")) {
+                ps.setInt(1, order.getRemaining());
+                ps.setLong(2, order.getEscrow());
+                ps.setInt(3, order.getId());
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                logger.error("Failed to update buy order", e);
+            }
+            return;
+        }
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.orders(serverName))) {
+            jedis.hset(RedisKeys.orders(serverName), String.valueOf(order.getId()), order.encode());
+        }
+    }
+
+    private void deleteOrder(int id) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("DELETE FROM market_orders WHERE id = ?")) {
+                ps.setInt(1, id);
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                logger.error("Failed to delete buy order", e);
+            }
+            return;
+        }
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.orders(serverName))) {
+            jedis.hdel(RedisKeys.orders(serverName), String.valueOf(id));
+        }
+    }
+
+    // Reserve ARGV[2] items of listing ARGV[1], whose stock, lot size and type
+    // are the fields ARGV[3], ARGV[4] and ARGV[6] of KEYS[1] and whose item
+    // and enchantments are the fields ARGV[5] and ARGV[7] of KEYS[3]. Returns
+    // the remaining stock, or -1 if the listing is not open, has too little
+    // stock or was just moved to the compact layout. A listing left with less
+    // than one lot is closed: its fields, ARGV[8] onwards, are deleted from
+    // both keys and its item, type and enchantments are returned too.
+    private static final String RESERVE_SCRIPT =
+            "if redis.call('HEXISTS', KEYS[2], ARGV[1]) == 0 then return {-1} end\n"
+                    + "local stock = tonumber(redis.call('HGET', KEYS[1], ARGV[3]))\n"
+                    + "local amount = tonumber(ARGV[2])\n"
+                    + "if not stock or stock < amount then return {-1} end\n"
+                    + "stock = stock - amount\n"
+                    + "if stock >= tonumber(redis.call('HGET', KEYS[1], ARGV[4])) then\n"
+                    + "  redis.call('HSET', KEYS[1], ARGV[3], stock)\n"
+                    + "  return {stock}\n"
+                    + "end\n"
+                    + "local item = redis.call('HGET', KEYS[3], ARGV[5])\n"
+                    + "local itemType = redis.call('HGET', KEYS[1], ARGV[6])\n"
+                    + "local enchants = redis.call('HGET', KEYS[3], ARGV[7])\n"
+                    + "redis.call('HDEL', KEYS[2], ARGV[1])\n"
+                    + "for i = 8, #ARGV do\n"
+                    + "  redis.call('HDEL', KEYS[1], ARGV[i])\n"
+                    + "  redis.call('HDEL', KEYS[3], ARGV[i])\n"
+                    + "end\n"
+                    + "return {stock, item, itemType, enchants}";
+
+    /**
+     * Take {@code amount} items from a listing's stock, in one backend update
+     * with other reservations of the listing queued on this server meanwhile.
+     *
+     * @return the remaining stock, or -1 if the stock could not be reserved
+     */
+    private int reserve(ListingRef ref, String seller, int amount, int quantity) {
+        return listingLocks.reserve(ref.toString(), amount, total -> reserveStock(ref, seller, total, quantity));
+    }
+
+    /**
+     * Atomically take {@code amount} items from a listing's stock. A listing
+     * left with less than one lot is closed and deleted, and the remainder is
+     * mailed back to the seller.
+     *
+     * @return the remaining stock, or -1 if the stock could not be reserved
+     */
+    private int reserveStock(ListingRef ref, String seller, int amount, int quantity) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement upd = conn.prepareStatement("UPDATE listings SET stock = stock - ? WHERE id = ? AND stock >= ?");
+                     PreparedStatement sel = conn.prepareStatement("SELECT item, stock FROM listings WHERE id = ?")) {
+                    int id = Integer.parseInt(ref.getId());
+                    upd.setInt(1, amount);
+                    upd.setInt(2, id);
+                    upd.setInt(3, amount);
+                    if (upd.executeUpdate() == 0) {
+                        conn.rollback();
+                        return -1;
+                    }
+                    sel.setInt(1, id);
+                    int remaining;
+                    String item;
+                    try (ResultSet rs = sel.executeQuery()) {
+                        rs.next();
+                        remaining = rs.getInt("stock");
+                        item = rs.getString("item");
+                    }
+                    if (remaining < quantity) {
+                        try (PreparedStatement del = conn.prepareStatement("DELETE FROM listings WHERE id = ?")) {
+                            del.setInt(1, id);
+                            del.executeUpdate();
+                        }
+                        if (remaining > 0) {
+                            insertMail(conn, Collections.singletonList(new Mail(seller, item, remaining)));
+                        }
+                    }
+                    conn.commit();
+                    listingWritten(seller, ref.getId());
+                    return remaining;
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to reserve listing stock", e);
+                return -1;
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return -1;
+            }
+            // not pinned: this runs while order monitors are held, and a listing
+            // moved meanwhile just fails the reservation
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(ref.getServer()))) {
+                RedisLayout layout = layouts.get(jedis, ref.getServer()).of(ref.getId());
+                List<String> args = new ArrayList<>(Arrays.asList(ref.getId(), String.valueOf(amount)));
+                args.addAll(Arrays.asList(layout.fields(ref.getId(), "Stock", "Quantity", "Item", "Type", "Enchants")));
+                args.addAll(Arrays.asList(layout.fields(ref.getId(), RedisLayout.FIELDS)));
+                List<?> reply = (List<?>) jedis.eval(RESERVE_SCRIPT,
+                        Arrays.asList(layout.key(ref.getServer(), ref.getId()), RedisKeys.forSale(ref.getServer()),
+                                layout.key(ref.getServer(), ref.getId(), "Item")), args);
+                int remaining = ((Long) reply.get(0)).intValue();
+                if (remaining >= 0 && remaining < quantity) {
+                    unindexAttributes(jedis, ref.getServer(), ref.getId(), (String) reply.get(2), (String) reply.get(3));
+                    if (remaining > 0) {
+                        storeMail(Collections.singletonList(new Mail(seller, (String) reply.get(1), remaining)));
+                    }
+                }
+                return remaining;
+            }
+        }
+    }
+
+    private void recordPurchase(String buyer, String seller, ListingRef ref, String itemType, int quantity, int price) {
+        recordLedger(buyer, LedgerEntry.Action.BUY, seller, ref, itemType, quantity, price);
+        recordLedger(seller, LedgerEntry.Action.SELL, buyer, ref, itemType, quantity, price);
+    }
+
+    private void recordLedger(String player, LedgerEntry.Action action, String otherPlayer, ListingRef ref,
+                              String itemType, int quantity, int price) {
+        // MySQL assigns the sequence as the row id on insert and Redis as the
+        // entry's score; this one only keeps the Redis member unique
+        long sequence = useMySql ? 0 : ledgerSequence.incrementAndGet();
+        pendingLedger.add(new LedgerEntry(sequence, player, System.currentTimeMillis(), action, otherPlayer,
+                ref.toString(), itemType, quantity, price, serverName));
+    }
+
+    /**
+     * Append queued transaction history entries in one batch. Entries that
+     * fail to write are queued again for the next run.
+     */
+    private void flushLedger() {
+        List<LedgerEntry> entries = new ArrayList<>();
+        LedgerEntry entry;
+        while ((entry = pendingLedger.poll()) != null) {
+            entries.add(entry);
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (useMySql) {
+            if (database == null) {
+                return;
+            }
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "INSERT INTO market_ledger (player_uuid, ts, action, other_uuid, listing, item_type, quantity, price, server) "
+                                 + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                for (LedgerEntry e : entries) {
+                    ps.setString(1, e.getPlayer());
+                    ps.setLong(2, e.getTimestamp());
+                    ps.setString(3, e.getAction().name());
+                    ps.setString(4, e.getOtherPlayer());
+                    ps.setString(5, e.getListing());
+                    ps.setString(6, e.getItemType());
+                    ps.setInt(7, e.getQuantity());
+                    ps.setInt(8, e.getPrice());
+                    ps.setString(9, e.getServer());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            } catch (SQLException e) {
+                logger.error("Failed to write transaction history", e);
+                pendingLedger.addAll(entries);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            // ledgers of different players may live on different cluster nodes
+            Map<String, List<LedgerEntry>> byPlayer = entries.stream()
+                    .collect(Collectors.groupingBy(LedgerEntry::getPlayer));
+            for (Map.Entry<String, List<LedgerEntry>> player : byPlayer.entrySet()) {
+                try (Jedis jedis = redis.getResource(RedisKeys.ledger(player.getKey()))) {
+                    RedisLedger.append(jedis, player.getKey(), player.getValue());
+                } catch (JedisException e) {
+                    logger.error("Failed to write transaction history", e);
+                    pendingLedger.addAll(player.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * One page of a player's transaction history, newest first. Pages are
+     * addressed by the cursor of the last entry shown, so each page is a
+     * single index range read however long the history is.
+     *
+     * @param cursor cursor from the previous page or null for the first page
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public PaginationList getHistory(UUID player, String playerName, String cursor) {
+        long[] before = cursor == null ? null : LedgerEntry.parseCursor(cursor);
+        String uuid = player.toString();
+        List<LedgerEntry> entries = new ArrayList<>();
+        if (useMySql) {
+            String sql = "SELECT id, ts, action, other_uuid, listing, item_type, quantity, price, server FROM market_ledger "
+                    + "WHERE player_uuid = ?" + (before == null ? "" : " AND (ts < ? OR (ts = ? AND id < ?))")
+                    + " ORDER BY ts DESC, id DESC LIMIT ?";
+            try (Connection conn = database.getReadConnection(uuid);
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                int i = 1;
+                ps.setString(i++, uuid);
+                if (before != null) {
+                    ps.setLong(i++, before[0]);
+                    ps.setLong(i++, before[0]);
+                    ps.setLong(i++, before[1]);
+                }
+                ps.setInt(i, HISTORY_PAGE_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        entries.add(new LedgerEntry(rs.getLong("id"), uuid, rs.getLong("ts"),
+                                LedgerEntry.Action.valueOf(rs.getString("action")), rs.getString("other_uuid"),
+                                rs.getString("listing"), rs.getString("item_type"), rs.getInt("quantity"),
+                                rs.getInt("price"), rs.getString("server")));
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to load transaction history", e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis != null) {
+                try (Jedis jedis = redis.getResource(RedisKeys.ledger(uuid))) {
+                    entries.addAll(RedisLedger.page(jedis, uuid, before, HISTORY_PAGE_SIZE));
+                }
+            }
+        }
+
+        Set<String> uuids = entries.stream()
+                .map(LedgerEntry::getOtherPlayer)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        Map<String, String> names = getNamesFromUUIDs(uuids);
+        List<Text> texts = new ArrayList<>();
+        for (LedgerEntry entry : entries) {
+            String other = entry.getOtherPlayer() == null ? null : names.getOrDefault(entry.getOtherPlayer(), entry.getOtherPlayer());
+            texts.add(formatLedgerEntry(entry, other));
+        }
+        if (texts.isEmpty()) {
+            texts.add(Text.of(TextColors.RED, cursor == null ? "No transactions found." : "No older transactions."));
+        }
+        PaginationList.Builder builder = getPaginationService().builder()
+                .contents(texts)
+                .title(Texts.MARKET_HISTORY(playerName));
+        if (entries.size() == HISTORY_PAGE_SIZE) {
+            String next = "/market history " + playerName + " " + entries.get(entries.size() - 1).getCursor();
+            builder.footer(Text.builder()
+                    .color(TextColors.GREEN)
+                    .append(Text.of("Older transactions >>"))
+                    .onClick(TextActions.runCommand(next))
+                    .build());
+        }
+        return builder.build();
+    }
+
+    private Text formatLedgerEntry(LedgerEntry entry, String otherName) {
+        Text.Builder b = Text.builder()
+                .append(Text.of(TextColors.GRAY, HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(entry.getTimestamp())) + " "));
+        String item = entry.getQuantity() + "x " + entry.getItemType();
+        switch (entry.getAction()) {
+            case BUY:
+                b.append(Text.of(TextColors.WHITE, "Bought ", TextColors.AQUA, item,
+                        TextColors.WHITE, " from " + otherName + " for ", TextColors.GREEN, entry.getPrice()));
+                break;
+            case SELL:
+                b.append(Text.of(TextColors.WHITE, "Sold ", TextColors.AQUA, item,
+                        TextColors.WHITE, " to " + otherName + " for ", TextColors.GREEN, entry.getPrice()));
+                break;
+            case STOCK:
+                b.append(Text.of(TextColors.WHITE, "Added ", TextColors.AQUA, item, TextColors.WHITE, " to stock"));
+                break;
+            case EXPIRE:
+                b.append(Text.of(TextColors.WHITE, "Listing expired, returned ", TextColors.AQUA, item));
+                break;
+            default:
+                b.append(Text.of(TextColors.WHITE, "Removed listing with ", TextColors.AQUA, item));
+                if (otherName != null) {
+                    b.append(Text.of(TextColors.WHITE, " (by " + otherName + ")"));
+                }
+                break;
+        }
+        ListingRef ref = ListingRef.parse(entry.getListing(), serverName);
+        return b.append(Text.of(TextColors.GRAY, " #" + ref.format(serverName))).build();
+    }
+
+    private void recordSale(String itemType, int price, int quantity) {
+        long now = System.currentTimeMillis();
+        Sale sale = new Sale(itemType, (double) price / quantity, quantity, now, serverName);
+        priceHistory.record(sale, now);
+        pendingSales.add(sale);
+    }
+
+    /**
+     * Rolling price aggregates of an item type over the last hour, day and
+     * week, answered from memory.
+     */
+    public PaginationList getPriceSummary(ItemType itemType) {
+        Map<PriceHistory.Period, PriceHistory.Summary> summaries =
+                priceHistory.getSummaries(itemType.getId(), System.currentTimeMillis());
+        List<Text> texts = new ArrayList<>();
+        texts.add(Text.of(TextColors.AQUA, itemType.getId()));
+        for (PriceHistory.Period period : PriceHistory.Period.values()) {
+            PriceHistory.Summary summary = summaries.get(period);
+            if (summary == null) {
+                texts.add(Text.of(TextColors.WHITE, period.getLabel() + ": ", TextColors.GRAY, "no sales"));
+                continue;
+            }
+            texts.add(Text.of(TextColors.WHITE, period.getLabel() + ": ",
+                    TextColors.GREEN, summary.getVolume() + " sold in " + summary.getSales() + " sales",
+                    TextColors.WHITE, ", min ", TextColors.GREEN, formatPrice(summary.getMin()),
+                    TextColors.WHITE, ", median ", TextColors.GREEN, formatPrice(summary.getMedian()),
+                    TextColors.WHITE, ", avg ", TextColors.GREEN, formatPrice(summary.getAverage())));
+        }
+        return getPaginationService().builder().contents(texts).title(Texts.MARKET_PRICES).build();
+    }
+
+    private static String formatPrice(double price) {
+        return String.format(Locale.ROOT, "%.2f", price);
+    }
+
+    /**
+     * Periodic price history upkeep: load the last week of sales on the first
+     * run, then pick up sales made on other servers, write local sales,
+     * persist changed aggregates and prune expired raw history.
+     */
+    private void updatePriceHistory() {
+        long now = System.currentTimeMillis();
+        if (!salesHistoryLoaded) {
+            loadSales(now - PriceHistory.Period.WEEK.getMillis(), now);
+            salesHistoryLoaded = true;
+        } else {
+            pollSales(now);
+        }
+        flushSales();
+        priceHistory.expire(now);
+        storePriceStats(priceHistory.drainDirty(), now);
+        int retentionDays = Math.max(7, cfg.getNode("Prices", "Retention-Days").getInt(30));
+        pruneSales(now - TimeUnit.DAYS.toMillis(retentionDays));
+    }
+
+    /**
+     * Feed stored sales made since {@code since} into the aggregates, and
+     * remember where they end so {@link #pollSales(long)} continues from there.
+     */
+    private void loadSales(long since, long now) {
+        if (useMySql) {
+            try (Connection conn = database.getReadConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "SELECT id, item_type, unit_price, quantity, sold_at, server FROM market_sales WHERE sold_at >= ? ORDER BY id")) {
+                ps.setLong(1, since);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        long id = rs.getLong("id");
+                        // a sale this old was written long ago, as were all sales with lower ids
+                        if (rs.getLong("sold_at") < now - SALE_SETTLE_MILLIS) {
+                            lastSaleId = Math.max(lastSaleId, id);
+                        } else {
+                            recentSaleIds.put(id, now);
+                        }
+                        priceHistory.record(new Sale(rs.getString("item_type"), rs.getDouble("unit_price"),
+                                rs.getInt("quantity"), rs.getLong("sold_at"), rs.getString("server")), now);
+                    }
+                }
+                recentSaleIds.keySet().removeIf(id -> id <= lastSaleId);
+            } catch (SQLException e) {
+                logger.error("Failed to load sales history", e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.SALES)) {
+                Transaction t = jedis.multi();
+                Response<String> sequence = t.get(RedisKeys.SALES_SEQUENCE);
+                Response<Set<Tuple>> sales = t.zrangeByScoreWithScores(RedisKeys.SALES, since, Double.POSITIVE_INFINITY);
+                t.exec();
+                lastSaleSequence = sequence.get() == null ? 0 : Long.parseLong(sequence.get());
+                for (Tuple tuple : sales.get()) {
+                    Sale sale = Sale.decode(tuple.getElement());
+                    if (sale != null) {
+                        priceHistory.record(sale, now);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Feed sales written by other servers since the last load or poll into
+     * the aggregates. Local sales were recorded when they happened. Sales are
+     * read in the order they were written rather than by when they were made,
+     * as other servers write theirs in batches.
+     */
+    private void pollSales(long now) {
+        if (useMySql) {
+            // own sales are read too, so the watermark moves past them
+            try (Connection conn = database.getReadConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "SELECT id, item_type, unit_price, quantity, sold_at, server FROM market_sales WHERE id > ? ORDER BY id")) {
+                ps.setLong(1, lastSaleId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        if (recentSaleIds.putIfAbsent(rs.getLong("id"), now) != null || rs.getString("server").equals(serverName)) {
+                            continue;
+                        }
+                        priceHistory.record(new Sale(rs.getString("item_type"), rs.getDouble("unit_price"),
+                                rs.getInt("quantity"), rs.getLong("sold_at"), rs.getString("server")), now);
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to load sales history", e);
+                return;
+            }
+            // a row with a lower id commits within moments of a higher one
+            // becoming visible, so ids seen a while ago are settled
+            long settled = lastSaleId;
+            for (Map.Entry<Long, Long> seen : recentSaleIds.entrySet()) {
+                if (seen.getValue() <= now - SALE_SETTLE_MILLIS) {
+                    settled = Math.max(settled, seen.getKey());
+                }
+            }
+            lastSaleId = settled;
+            recentSaleIds.keySet().removeIf(id -> id <= settled);
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.SALES)) {
+                for (Tuple tuple : jedis.zrangeByScoreWithScores(RedisKeys.SALES_FEED, lastSaleSequence + 1, Double.POSITIVE_INFINITY)) {
+                    lastSaleSequence = Math.max(lastSaleSequence, (long) tuple.getScore());
+                    Sale sale = Sale.decode(tuple.getElement());
+                    if (sale != null && !sale.getServer().equals(serverName)) {
+                        priceHistory.record(sale, now);
+                    }
+                }
+            }
+        }
+    }
+
+    // Adds sales to the history and to the feed other servers poll, numbered
+    // in the order they are written. ARGV: timestamp and member pairs
+    private static final String ADD_SALES_SCRIPT =
+            "local n = #ARGV / 2\n"
+                    + "local last = redis.call('INCRBY', KEYS[2], n)\n"
+                    + "for i = 1, n do\n"
+                    + "  redis.call('ZADD', KEYS[1], ARGV[2 * i - 1], ARGV[2 * i])\n"
+                    + "  redis.call('ZADD', KEYS[3], last - n + i, ARGV[2 * i])\n"
+                    + "end\n"
+                    + "return last";
+
+    /**
+     * Write queued local sales in one batch. Sales that fail to write are
+     * queued again for the next run.
+     */
+    private void flushSales() {
+        List<Sale> sales = new ArrayList<>();
+        Sale sale;
+        while ((sale = pendingSales.poll()) != null) {
+            sales.add(sale);
+        }
+        if (sales.isEmpty()) {
+            return;
+        }
+        if (useMySql) {
+            if (database == null) {
+                return;
+            }
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "INSERT INTO market_sales (item_type, unit_price, quantity, sold_at, server) VALUES (?, ?, ?, ?, ?)")) {
+                for (Sale s : sales) {
+                    ps.setString(1, s.getItemType());
+                    ps.setDouble(2, s.getUnitPrice());
+                    ps.setInt(3, s.getQuantity());
+                    ps.setLong(4, s.getTimestamp());
+                    ps.setString(5, s.getServer());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            } catch (SQLException e) {
+                logger.error("Failed to write sales history", e);
+                pendingSales.addAll(sales);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            List<String> args = new ArrayList<>();
+            for (Sale s : sales) {
+                args.add(String.valueOf(s.getTimestamp()));
+                args.add(s.encode(saleSequence.incrementAndGet()));
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.SALES)) {
+                jedis.eval(ADD_SALES_SCRIPT, Arrays.asList(RedisKeys.SALES, RedisKeys.SALES_SEQUENCE, RedisKeys.SALES_FEED), args);
+            } catch (JedisException e) {
+                logger.error("Failed to write sales history", e);
+                pendingSales.addAll(sales);
+            }
+        }
+    }
+
+    private void storePriceStats(Set<String> itemTypes, long now) {
+        if (itemTypes.isEmpty()) {
+            return;
+        }
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement upsert = conn.prepareStatement(
+                         "INSERT INTO market_price_stats (item_type, period, sales, volume, min_price, median_price, avg_price, updated_at) "
+                                 + "VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE sales = VALUES(sales), volume = VALUES(volume), "
+                                 + "min_price = VALUES(min_price), median_price = VALUES(median_price), avg_price = VALUES(avg_price), "
+                                 + "updated_at = VALUES(updated_at)");
+                 PreparedStatement delete = conn.prepareStatement(
+                         "DELETE FROM market_price_stats WHERE item_type = ? AND period = ?")) {
+                for (String itemType : itemTypes) {
+                    Map<PriceHistory.Period, PriceHistory.Summary> summaries = priceHistory.getSummaries(itemType, now);
+                    for (PriceHistory.Period period : PriceHistory.Period.values()) {
+                        PriceHistory.Summary summary = summaries.get(period);
+                        if (summary == null) {
+                            delete.setString(1, itemType);
+                            delete.setString(2, period.getLabel());
+                            delete.addBatch();
+                            continue;
+                        }
+                        upsert.setString(1, itemType);
+                        upsert.setString(2, period.getLabel());
+                        upsert.setInt(3, summary.getSales());
+                        upsert.setLong(4, summary.getVolume());
+                        upsert.setDouble(5, summary.getMin());
+                        upsert.setDouble(6, summary.getMedian());
+                        upsert.setDouble(7, summary.getAverage());
+                        upsert.setLong(8, now);
+                        upsert.addBatch();
+                    }
+                }
+                upsert.executeBatch();
+                delete.executeBatch();
+            } catch (SQLException e) {
+                logger.error("Failed to store price aggregates", e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.PRICE_STATS)) {
+                Pipeline p = jedis.pipelined();
+                for (String itemType : itemTypes) {
+                    Map<PriceHistory.Period, PriceHistory.Summary> summaries = priceHistory.getSummaries(itemType, now);
+                    if (summaries.isEmpty()) {
+                        p.hdel(RedisKeys.PRICE_STATS, itemType);
+                        continue;
+                    }
+                    // period=sales,volume,min,median,avg;...
+                    StringJoiner value = new StringJoiner(";");
+                    summaries.forEach((period, summary) -> value.add(period.getLabel() + "=" + summary.getSales()
+                            + "," + summary.getVolume() + "," + summary.getMin() + "," + summary.getMedian()
+                            + "," + summary.getAverage()));
+                    p.hset(RedisKeys.PRICE_STATS, itemType, value.toString());
+                }
+                p.sync();
+            }
+        }
+    }
+
+    private void pruneSales(long cutoff) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("DELETE FROM market_sales WHERE sold_at < ? LIMIT ?")) {
+                ps.setLong(1, cutoff);
+                ps.setInt(2, SALE_PRUNE_BATCH_SIZE);
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                logger.error("Failed to prune sales history", e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.SALES)) {
+                jedis.zremrangeByScore(RedisKeys.SALES, Double.NEGATIVE_INFINITY, cutoff);
+                // servers poll the feed every few seconds, so only its tail is kept
+                jedis.zremrangeByRank(RedisKeys.SALES_FEED, 0, -SALE_FEED_LENGTH - 1);
+            }
+        }
+    }
+
+    public EconomyService getEconomyService() {
+        EconomyService service = economyService;
+        if (service == null) {
+            service = game.getServiceManager().provide(EconomyService.class).get();
+            economyService = service;
+        }
+        return service;
+    }
+
+    /**
+     * A player's economy account. Handles are cached so a purchase does not
+     * look the account up again on every call.
+     */
+    public Optional<UniqueAccount> getAccount(UUID uuid) {
+        UniqueAccount account = accounts.get(uuid);
+        if (account == null) {
+            Optional<UniqueAccount> created = getEconomyService().getOrCreateAccount(uuid);
+            if (!created.isPresent()) {
+                return Optional.empty();
+            }
+            account = created.get();
+            accounts.put(uuid, account);
+        }
+        return Optional.of(account);
+    }
+
+    public boolean blacklistAddCmd(String id) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("INSERT IGNORE INTO blacklist(item) VALUES (?)")) {
+                ps.setString(1, id);
+                int rows = ps.executeUpdate();
+                if (rows == 0) return false;
+            } catch (SQLException e) {
+                logger.error("Failed to add blacklist entry", e);
+                return false;
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return false;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.BLACKLIST)) {
+                if (jedis.hexists(RedisKeys.BLACKLIST, id)) return false;
+                jedis.hset(RedisKeys.BLACKLIST, id, String.valueOf(true));
+            }
+        }
+        addIDToBlackList(id);
+        return true;
+    }
+
+    public boolean blacklistRemoveCmd(String id) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("DELETE FROM blacklist WHERE item = ?")) {
+                ps.setString(1, id);
+                int rows = ps.executeUpdate();
+                if (rows == 0) return false;
+            } catch (SQLException e) {
+                logger.error("Failed to remove blacklist entry", e);
+                return false;
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return false;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.BLACKLIST)) {
+                if (!jedis.hexists(RedisKeys.BLACKLIST, id)) return false;
+                jedis.hdel(RedisKeys.BLACKLIST, id);
+            }
+        }
+        rmIDFromBlackList(id);
+        return true;
+    }
+
+    public synchronized void addIDToBlackList(String id) {
+        blacklistedItems.add(id);
+        blacklistChanged();
+    }
+
+    private List<String> getBlacklistedItems() {
+        return blacklistedItems;
+    }
+
+    private void blacklistChanged() {
+        blacklistMatcher = BlacklistMatcher.compile(blacklistedItems);
+    }
+
+    /**
+     * Check an item's block state id, item id and, if there are tag rules,
+     * NBT against the blacklist.
+     */
+    private boolean isBlacklisted(ItemStack itemStack) {
+        BlacklistMatcher matcher = blacklistMatcher;
+        String itemId = itemStack.getItem().getId();
+        String stateId = itemStack.get(Keys.ITEM_BLOCKSTATE).map(BlockState::getId)
+                .orElseGet(() -> itemStack.getItem().getBlock()
+                        .map(blockType -> blockType.getDefaultState().getId())
+                        .orElse(itemId));
+        if (matcher.matches(stateId) || matcher.matches(itemId)) {
+            return true;
+        }
+        if (!matcher.hasTagRules()) {
+            return false;
+        }
+        DataContainer data = itemStack.toContainer();
+        return matcher.matchesTag(tag -> data.contains(DataQuery.of("UnsafeData").then(DataQuery.of('.', tag))));
+    }
+
+    public PaginationList getBlacklistedItemList() {
+        List<Text> texts = new ArrayList<>();
+        for (String blacklistedItem : getBlacklistedItems()) {
+            texts.add(Text.of(blacklistedItem));
+        }
+        return getPaginationService().builder().contents(texts).title(Text.of(TextColors.GREEN, "Market Blacklist")).build();
+    }
+
+    public synchronized void rmIDFromBlackList(String message) {
+        blacklistedItems.remove(message);
+        blacklistChanged();
+    }
+
+    public CompletableFuture<PaginationList> searchForItem(ItemType itemType) {
+        return searchForItem(itemType, false);
+    }
+
+    public CompletableFuture<PaginationList> searchForItem(ItemType itemType, boolean global) {
+        return queryListings("item:" + itemType.getId() + ":" + global, () -> fetchListings(global, null),
+                is -> is.getItem().equals(itemType))
+                .thenApply(texts -> listingPage(orNoListings(texts), Texts.MARKET_SEARCH));
+    }
+
+    public CompletableFuture<PaginationList> searchForUUID(UUID uniqueId) {
+        return searchForUUID(uniqueId, false);
+    }
+
+    public CompletableFuture<PaginationList> searchForUUID(UUID uniqueId, boolean global) {
+        return queryListings("seller:" + uniqueId + ":" + global, () -> fetchListings(global, uniqueId.toString()), is -> true)
+                .thenApply(texts -> listingPage(orNoListings(texts), Texts.MARKET_SEARCH));
+    }
+
+    // results are shared between players, so they are never changed in place
+    private static List<Text> orNoListings(List<Text> texts) {
+        return texts.isEmpty() ? Collections.singletonList(Text.of(TextColors.RED, "No listings found.")) : texts;
+    }
+
+    /**
+     * Drop shared listing results after a listing on this server changed, so
+     * players see their own changes right away. Changes made on other servers
+     * show up once the coalescing window has passed.
+     */
+    private void listingsChanged() {
+        listingQueries.invalidateAll();
+    }
+
+    /**
+     * Search listings by enchantments, durability, unit price, mod or item
+     * type. Filters are evaluated against the attribute indexes written when
+     * listings are created, so only matching items are deserialized.
+     */
+    public PaginationList searchByFilter(ListingFilter filter) {
+        if (isDegraded()) {
+            return listingPage(Collections.singletonList(Text.of(TextColors.RED, "Filtered search is unavailable right now.")),
+                    Texts.MARKET_SEARCH);
+        }
+        List<ListingRecord> records = new ArrayList<>();
+        if (useMySql) {
+            StringBuilder sql = new StringBuilder("SELECT id, seller_uuid, item, stock, price, quantity FROM listings l WHERE 1 = 1");
+            List<Object> params = new ArrayList<>();
+            appendFilterConditions(sql, params, filter);
+            try (Connection conn = database.getReadConnection(LISTINGS_READ_KEY);
+                 PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                for (int i = 0; i < params.size(); i++) {
+                    ps.setObject(i + 1, params.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        records.add(new ListingRecord(new ListingRef(serverName, String.valueOf(rs.getInt("id"))),
+                                rs.getString("seller_uuid"), rs.getString("item"), rs.getInt("stock"),
+                                rs.getInt("price"), rs.getInt("quantity")));
                     }
                 }
             } catch (SQLException e) {
                 logger.error("Failed to search listings", e);
             }
         } else {
-            JedisPool pool = getJedis();
-            if (pool != null) {
-                try (Jedis jedis = pool.getResource()) {
-                    Set<String> openListings = jedis.hgetAll(RedisKeys.forSale()).keySet();
-                    for (String openListing : openListings) {
-                        Map<String, String> listing = jedis.hgetAll(RedisKeys.marketItemKey(openListing));
-                        if (listing.get("Seller").equals(uniqueId.toString())) {
-                            Text.Builder l = Text.builder();
-                            Optional<ItemStack> is = deserializeItemStack(listing.get("Item"));
-                            if (!is.isPresent()) continue;
-                            l.append(Texts.quickItemFormat(is.get()));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.WHITE, "@"));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.GREEN, "$" + listing.get("Price")));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.WHITE, "for"));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.GREEN, listing.get("Quantity") + "x"));
-                            l.append(Text.of(" "));
-                            l.append(Text.of(TextColors.WHITE, "Seller:"));
-                            l.append(Text.of(TextColors.LIGHT_PURPLE, " " + jedis.hget(RedisKeys.UUID_CACHE, listing.get("Seller"))));
-                            l.append(Text.of(" "));
-                            l.append(Text.builder()
-                                    .color(TextColors.GREEN)
-                                    .onClick(TextActions.runCommand("/market check " + openListing))
-                                    .append(Text.of("[Info]"))
-                                    .onHover(TextActions.showText(Text.of("View more info about this listing.")))
-                                    .build());
-                            texts.add(l.build());
+            RedisProvider redis = getJedis();
+            if (redis != null) {
+                try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+                    Set<String> ids = findFilteredIds(jedis, serverName, filter);
+                    records.addAll(fetchRecords(jedis, serverName, ids, true));
+                }
+            }
+        }
+        List<Text> texts = formatListings(records, is -> true);
+        if (texts.size() == 0) texts.add(Text.of(TextColors.RED, "No listings found."));
+        return listingPage(texts, Texts.MARKET_SEARCH);
+    }
+
+    /**
+     * The open listings of this server matching {@code filter}, or all of
+     * them if it is null, cheapest unit price first. Only ids are read, so
+     * the index stays cheap on large markets; the listings themselves are
+     * read a page at a time with {@link #loadListings(List)}.
+     */
+    List<ListingRef> getListingIndex(ListingFilter filter) {
+        List<ListingRef> refs = new ArrayList<>();
+        if (useMySql) {
+            StringBuilder sql = new StringBuilder("SELECT id FROM listings l WHERE 1 = 1");
+            List<Object> params = new ArrayList<>();
+            if (filter != null) {
+                appendFilterConditions(sql, params, filter);
+            }
+            sql.append(" ORDER BY l.unit_price, l.id");
+            try (Connection conn = database.getReadConnection(LISTINGS_READ_KEY);
+                 PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                for (int i = 0; i < params.size(); i++) {
+                    ps.setObject(i + 1, params.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        refs.add(new ListingRef(serverName, String.valueOf(rs.getInt("id"))));
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to index listings", e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return refs;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+                Set<String> matching = filter == null ? null : findFilteredIds(jedis, serverName, filter);
+                for (String id : jedis.zrange(RedisKeys.attributeIndex(serverName, "unitprice"), 0, -1)) {
+                    if (matching == null || matching.contains(id)) {
+                        refs.add(new ListingRef(serverName, id));
+                    }
+                }
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Read listings of this server in the given order and parse their items,
+     * leaving out ones that closed meanwhile or whose item cannot be parsed.
+     * This is safe to run off the main thread; the items are turned into
+     * stacks with {@link #toItemStack(DataView)}.
+     */
+    List<Map.Entry<ListingRecord, DataView>> loadListings(List<ListingRef> refs) {
+        List<ListingRecord> records = new ArrayList<>();
+        if (refs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (useMySql) {
+            String sql = "SELECT id, seller_uuid, item, stock, price, quantity FROM listings WHERE id IN ("
+                    + String.join(", ", Collections.nCopies(refs.size(), "?")) + ")";
+            Map<String, ListingRecord> byId = new HashMap<>();
+            try (Connection conn = database.getReadConnection(LISTINGS_READ_KEY);
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < refs.size(); i++) {
+                    ps.setInt(i + 1, Integer.parseInt(refs.get(i).getId()));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String id = String.valueOf(rs.getInt("id"));
+                        byId.put(id, new ListingRecord(new ListingRef(serverName, id), rs.getString("seller_uuid"),
+                                rs.getString("item"), rs.getInt("stock"), rs.getInt("price"), rs.getInt("quantity")));
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to load listings", e);
+            }
+            for (ListingRef ref : refs) {
+                ListingRecord record = byId.get(ref.getId());
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return Collections.emptyList();
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+                records.addAll(fetchRecords(jedis, serverName,
+                        refs.stream().map(ListingRef::getId).collect(Collectors.toList()), true));
+            }
+        }
+        return parseRecords(records);
+    }
+
+    /**
+     * Parse the items of many listings in parallel, leaving out listings whose
+     * item cannot be parsed. This is safe to run off the main thread.
+     */
+    private List<Map.Entry<ListingRecord, DataView>> parseRecords(List<ListingRecord> records) {
+        return itemDecoder.decode(records, record -> parseItem(record.getItem()),
+                (record, view) -> view == null ? null : new AbstractMap.SimpleImmutableEntry<>(record, view));
+    }
+
+    /**
+     * Append the SQL conditions of a filter on the listings table aliased
+     * {@code l}, adding their parameters to {@code params}.
+     */
+    private static void appendFilterConditions(StringBuilder sql, List<Object> params, ListingFilter filter) {
+        for (ListingFilter.Condition condition : filter.getConditions()) {
+            String op = condition.getOperator().getSymbol();
+            switch (condition.getAttribute()) {
+                case ENCHANT:
+                    sql.append(" AND EXISTS (SELECT 1 FROM listing_enchantments e WHERE e.listing_id = l.id"
+                            + " AND (e.enchant = ? OR e.enchant LIKE ?) AND e.level ").append(op).append(" ?)");
+                    params.add(condition.getKey());
+                    params.add(namespacedLike(condition.getKey()));
+                    params.add(condition.getValue());
+                    break;
+                case DURABILITY:
+                    sql.append(" AND l.durability_pct ").append(op).append(" ?");
+                    params.add(condition.getValue());
+                    break;
+                case UNIT_PRICE:
+                    sql.append(" AND l.unit_price ").append(op).append(" ?");
+                    params.add(condition.getValue());
+                    break;
+                case MOD:
+                    sql.append(" AND l.mod_id = ?");
+                    params.add(condition.getKey());
+                    break;
+                case TYPE:
+                    sql.append(" AND (l.item_type = ? OR l.item_type LIKE ?)");
+                    params.add(condition.getKey());
+                    params.add(namespacedLike(condition.getKey()));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * LIKE pattern matching an id in any namespace when the filter id has none.
+     */
+    private static String namespacedLike(String id) {
+        String escaped = id.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        return id.indexOf(':') >= 0 ? escaped : "%:" + escaped;
+    }
+
+    private Set<String> findFilteredIds(Jedis jedis, String server, ListingFilter filter) {
+        Set<String> result = null;
+        for (ListingFilter.Condition condition : filter.getConditions()) {
+            Set<String> ids = new HashSet<>();
+            switch (condition.getAttribute()) {
+                case ENCHANT:
+                    for (String enchant : jedis.smembers(RedisKeys.attributeIndex(server, "enchants"))) {
+                        if (ListingFilter.matchesId(enchant, condition.getKey())) {
+                            ids.addAll(rangeByCondition(jedis, RedisKeys.attributeIndex(server, "ench:" + enchant), condition));
+                        }
+                    }
+                    break;
+                case DURABILITY:
+                    ids.addAll(rangeByCondition(jedis, RedisKeys.attributeIndex(server, "durability"), condition));
+                    break;
+                case UNIT_PRICE:
+                    ids.addAll(rangeByCondition(jedis, RedisKeys.attributeIndex(server, "unitprice"), condition));
+                    break;
+                case MOD:
+                    ids.addAll(jedis.smembers(RedisKeys.attributeIndex(server, "mod:" + condition.getKey())));
+                    break;
+                case TYPE:
+                    for (String type : jedis.smembers(RedisKeys.attributeIndex(server, "types"))) {
+                        if (ListingFilter.matchesId(type, condition.getKey())) {
+                            ids.addAll(jedis.smembers(RedisKeys.attributeIndex(server, "type:" + type)));
                         }
                     }
+                    break;
+            }
+            if (result == null) {
+                result = ids;
+            } else {
+                result.retainAll(ids);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result == null ? Collections.emptySet() : result;
+    }
+
+    private static Set<String> rangeByCondition(Jedis jedis, String key, ListingFilter.Condition condition) {
+        String value = String.valueOf(condition.getValue());
+        switch (condition.getOperator()) {
+            case GT:
+                return jedis.zrangeByScore(key, "(" + value, "+inf");
+            case GE:
+                return jedis.zrangeByScore(key, value, "+inf");
+            case LT:
+                return jedis.zrangeByScore(key, "-inf", "(" + value);
+            case LE:
+                return jedis.zrangeByScore(key, "-inf", value);
+            default:
+                return jedis.zrangeByScore(key, value, value);
+        }
+    }
+
+    private ItemAttributes extractAttributes(ItemStack itemStack, int price, int quantity) {
+        Map<String, Integer> enchantments = new LinkedHashMap<>();
+        for (Enchantment enchantment : itemStack.get(Keys.ITEM_ENCHANTMENTS).orElse(Collections.emptyList())) {
+            enchantments.merge(enchantment.getType().getId(), enchantment.getLevel(), Math::max);
+        }
+        int durability = -1;
+        Optional<Integer> uses = itemStack.get(Keys.ITEM_DURABILITY);
+        Optional<UseLimitProperty> maxUses = itemStack.getProperty(UseLimitProperty.class);
+        if (uses.isPresent() && maxUses.isPresent() && maxUses.get().getValue() != null && maxUses.get().getValue() > 0) {
+            durability = (int) Math.round(uses.get() * 100.0 / maxUses.get().getValue());
+        }
+        return new ItemAttributes(itemStack.getType().getId(), durability, enchantments, (double) price / quantity);
+    }
+
+    private static void setAttributeParameters(PreparedStatement ps, int index, ItemAttributes attributes) throws SQLException {
+        ps.setString(index, attributes.getItemType());
+        ps.setString(index + 1, attributes.getModId());
+        if (attributes.hasDurability()) {
+            ps.setInt(index + 2, attributes.getDurabilityPct());
+        } else {
+            ps.setNull(index + 2, Types.SMALLINT);
+        }
+        ps.setDouble(index + 3, attributes.getUnitPrice());
+    }
+
+    private static void insertEnchantments(Connection conn, int listingId, ItemAttributes attributes) throws SQLException {
+        if (attributes.getEnchantments().isEmpty()) {
+            return;
+        }
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT IGNORE INTO listing_enchantments (listing_id, enchant, level) VALUES (?, ?, ?)")) {
+            for (Map.Entry<String, Integer> enchantment : attributes.getEnchantments().entrySet()) {
+                ps.setInt(1, listingId);
+                ps.setString(2, enchantment.getKey());
+                ps.setInt(3, enchantment.getValue());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * Queue the attribute index writes of a Redis listing on a transaction or
+     * pipeline. The attributes are also kept on the listing hash so the
+     * indexes can be cleaned up without deserializing the item.
+     */
+    private static void indexAttributes(PipelineBase p, RedisLayout layout, String server, String id, ItemAttributes attributes) {
+        String key = layout.key(server, id);
+        p.hset(key, layout.field(id, "Type"), attributes.getItemType());
+        p.sadd(RedisKeys.attributeIndex(server, "types"), attributes.getItemType());
+        p.sadd(RedisKeys.attributeIndex(server, "type:" + attributes.getItemType()), id);
+        p.sadd(RedisKeys.attributeIndex(server, "mod:" + attributes.getModId()), id);
+        if (!attributes.getEnchantments().isEmpty()) {
+            p.hset(layout.key(server, id, "Enchants"), layout.field(id, "Enchants"), attributes.encodeEnchantments());
+            attributes.getEnchantments().forEach((enchant, level) -> {
+                p.sadd(RedisKeys.attributeIndex(server, "enchants"), enchant);
+                p.zadd(RedisKeys.attributeIndex(server, "ench:" + enchant), level, id);
+            });
+        }
+        if (attributes.hasDurability()) {
+            p.hset(key, layout.field(id, "Durability"), String.valueOf(attributes.getDurabilityPct()));
+            p.zadd(RedisKeys.attributeIndex(server, "durability"), attributes.getDurabilityPct(), id);
+        }
+        p.zadd(RedisKeys.attributeIndex(server, "unitprice"), attributes.getUnitPrice(), id);
+        p.sadd(RedisKeys.attributeIndex(server, "indexed"), id);
+    }
+
+    private static void unindexAttributes(Jedis jedis, String server, String id, String type, String enchants) {
+        Pipeline p = jedis.pipelined();
+        if (type != null) {
+            p.srem(RedisKeys.attributeIndex(server, "type:" + type), id);
+            p.srem(RedisKeys.attributeIndex(server, "mod:" + new ItemAttributes(type, -1, Collections.emptyMap(), 0).getModId()), id);
+        }
+        for (String enchant : ItemAttributes.decodeEnchantments(enchants).keySet()) {
+            p.zrem(RedisKeys.attributeIndex(server, "ench:" + enchant), id);
+        }
+        p.zrem(RedisKeys.attributeIndex(server, "durability"), id);
+        p.zrem(RedisKeys.attributeIndex(server, "unitprice"), id);
+        p.srem(RedisKeys.attributeIndex(server, "indexed"), id);
+        p.sync();
+    }
+
+    /**
+     * Index the attributes of listings created before attribute indexing
+     * existed. Each batch is read asynchronously, deserialized on the main
+     * thread and written back asynchronously; the next batch follows until
+     * no listing is left.
+     */
+    private void backfillAttributes() {
+        List<ListingRecord> batch = new ArrayList<>();
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "SELECT id, seller_uuid, item, stock, price, quantity FROM listings WHERE item_type IS NULL LIMIT ?")) {
+                ps.setInt(1, BACKFILL_BATCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        batch.add(new ListingRecord(new ListingRef(serverName, String.valueOf(rs.getInt("id"))),
+                                rs.getString("seller_uuid"), rs.getString("item"), rs.getInt("stock"),
+                                rs.getInt("price"), rs.getInt("quantity")));
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Failed to load listings for attribute indexing", e);
+                return;
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName))) {
+                Set<String> ids = new HashSet<>(jedis.hkeys(RedisKeys.forSale(serverName)));
+                ids.removeAll(jedis.smembers(RedisKeys.attributeIndex(serverName, "indexed")));
+                batch.addAll(fetchRecords(jedis, serverName, ids.stream().limit(BACKFILL_BATCH_SIZE).collect(Collectors.toList()), false));
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        getScheduler().createTaskBuilder()
+                .execute(() -> {
+                    Map<ListingRecord, ItemAttributes> attributes = new LinkedHashMap<>();
+                    List<Map.Entry<ListingRecord, ItemAttributes>> extracted = itemDecoder.decode(batch,
+                            record -> parseItem(record.getItem()),
+                            // items that cannot be read are marked with an empty type so they are not retried
+                            (record, view) -> new AbstractMap.SimpleImmutableEntry<ListingRecord, ItemAttributes>(record, toItemStack(view)
+                                    .map(is -> extractAttributes(is, record.getPrice(), record.getQuantity()))
+                                    .orElseGet(() -> new ItemAttributes("", -1, Collections.emptyMap(),
+                                            (double) record.getPrice() / Math.max(1, record.getQuantity())))));
+                    extracted.forEach(entry -> attributes.put(entry.getKey(), entry.getValue()));
+                    getScheduler().createTaskBuilder()
+                            .async()
+                            .execute(() -> {
+                                storeAttributes(attributes);
+                                if (batch.size() == BACKFILL_BATCH_SIZE) {
+                                    backfillAttributes();
+                                }
+                            })
+                            .submit(this);
+                })
+                .name("Market Attribute Backfill")
+                .submit(this);
+    }
+
+    private void storeAttributes(Map<ListingRecord, ItemAttributes> attributes) {
+        if (useMySql) {
+            try (Connection conn = database.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "UPDATE listings SET item_type = ?, mod_id = ?, durability_pct = ?, unit_price = ? WHERE id = ?")) {
+                for (Map.Entry<ListingRecord, ItemAttributes> entry : attributes.entrySet()) {
+                    int id = Integer.parseInt(entry.getKey().getRef().getId());
+                    setAttributeParameters(ps, 1, entry.getValue());
+                    ps.setInt(5, id);
+                    ps.addBatch();
+                    insertEnchantments(conn, id, entry.getValue());
                 }
+                ps.executeBatch();
+            } catch (SQLException e) {
+                logger.error("Failed to store listing attributes", e);
+            }
+        } else {
+            RedisProvider redis = getJedis();
+            if (redis == null) {
+                return;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.forSale(serverName));
+                 RedisLayouts.Pin pin = layouts.pin()) {
+                RedisLayouts.Snapshot layout = layouts.get(jedis, serverName);
+                Pipeline p = jedis.pipelined();
+                attributes.forEach((record, extracted) -> indexAttributes(p, layout.of(record.getRef().getId()), serverName,
+                        record.getRef().getId(), extracted));
+                p.sync();
             }
         }
+    }
+
+    /**
+     * Full text search over the names, lore, translations and mod ids of the
+     * open listings, answered from the in-memory {@link SearchIndex}.
+     */
+    public PaginationList searchForText(String query) {
+        List<Text> texts = new ArrayList<>();
+        for (SearchIndex.Document doc : searchIndex.search(query, MAX_TEXT_RESULTS)) {
+            texts.add(formatListing(Text.of(TextColors.AQUA, "[" + doc.getName() + "]"),
+                    ListingRef.parse(doc.getRef(), serverName).format(serverName),
+                    doc.getPrice(), doc.getQuantity(), doc.getSellerName()));
+        }
         if (texts.size() == 0) texts.add(Text.of(TextColors.RED, "No listings found."));
-        return getPaginationService().builder().contents(texts).title(Texts.MARKET_SEARCH).build();
+        return listingPage(texts, Texts.MARKET_SEARCH);
+    }
+
+    private void indexListing(ListingRef ref, String sellerName, ItemStack itemStack, int price, int quantity) {
+        searchIndex.add(listingDocument(ref, sellerName, itemStack, price, quantity));
+    }
+
+    private static SearchIndex.Document listingDocument(ListingRef ref, String sellerName, ItemStack itemStack, int price, int quantity) {
+        String translation = itemStack.getTranslation().get();
+        String name = itemStack.get(Keys.DISPLAY_NAME).map(Text::toPlain).orElse(translation);
+        String itemId = itemStack.getType().getId();
+        SearchIndex.Document doc = new SearchIndex.Document(ref.toString(), name, sellerName, price, quantity)
+                .field(name, SearchIndex.NAME)
+                .field(translation, SearchIndex.TRANSLATION)
+                .field(itemId.substring(itemId.indexOf(':') + 1), SearchIndex.TRANSLATION)
+                .field(itemId.substring(0, Math.max(0, itemId.indexOf(':'))), SearchIndex.MOD);
+        for (Text line : itemStack.get(Keys.ITEM_LORE).orElse(Collections.emptyList())) {
+            doc.field(line.toPlain(), SearchIndex.LORE);
+        }
+        return doc;
+    }
+
+    private Path listingSnapshotFile() {
+        return defaultCfg.toPath().resolveSibling("listings.snapshot");
+    }
+
+    /**
+     * Write the decoded listings of this server to the snapshot file so the
+     * next start can skip deserializing them.
+     */
+    private void saveListingSnapshot() {
+        List<SearchIndex.Document> documents = searchIndex.getDocuments();
+        try {
+            ListingSnapshot.write(listingSnapshotFile(), serverName, System.currentTimeMillis(), documents);
+            logger.info("Saved {} listings to the listing snapshot", documents.size());
+        } catch (IOException e) {
+            logger.error("Failed to write listing snapshot", e);
+        }
+    }
+
+    /**
+     * Fill the search index from the snapshot written at the last shutdown.
+     * The first index refresh then catches up with the backend: listings
+     * closed since the snapshot are dropped and only listings created since
+     * are deserialized.
+     */
+    private void loadListingSnapshot() {
+        Path file = listingSnapshotFile();
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            ListingSnapshot snapshot = ListingSnapshot.read(file, serverName);
+            snapshot.getDocuments().forEach(searchIndex::add);
+            logger.info("Loaded {} listings from the listing snapshot", snapshot.getDocuments().size());
+        } catch (IOException e) {
+            logger.warn("Ignoring listing snapshot: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Bring the search index in line with the backend. Runs asynchronously;
+     * only listings missing from the index are deserialized, on the main
+     * thread, since listed items never change. Listings indexed or closed on
+     * this server while the backend is read are left as they are; closes on
+     * other servers are caught by the next refresh.
+     */
+    private void refreshSearchIndex() {
+        if (!searchRefreshRunning.compareAndSet(false, true)) {
+            return;
+        }
+        // listings indexed after this were created or closed after the read below started
+        long generation = searchIndex.getGeneration();
+        List<ListingRecord> records;
+        try {
+            records = fetchListings(false, null);
+        } catch (JedisException | StorageException e) {
+            // an empty result would drop every listing from the index
+            logger.error("Failed to refresh the search index", e);
+            searchRefreshRunning.set(false);
+            return;
+        }
+        Set<String> open = new HashSet<>();
+        List<ListingRecord> missing = new ArrayList<>();
+        for (ListingRecord record : records) {
+            open.add(record.getRef().toString());
+            if (!searchIndex.contains(record.getRef().toString())) {
+                missing.add(record);
+            }
+        }
+        searchIndex.retainOpen(open, generation);
+        if (missing.isEmpty()) {
+            searchIndex.forgetRemovalsBefore(generation);
+            searchRefreshRunning.set(false);
+            return;
+        }
+        Map<String, String> names;
+        try {
+            names = getNamesFromUUIDs(missing.stream().map(ListingRecord::getSeller).collect(Collectors.toSet()));
+        } catch (RuntimeException e) {
+            searchRefreshRunning.set(false);
+            throw e;
+        }
+        getScheduler().createTaskBuilder()
+                .execute(() -> {
+                    try {
+                        for (Map.Entry<ListingRecord, ItemStack> entry : decodeRecords(missing)) {
+                            ListingRecord record = entry.getKey();
+                            // listings bought or removed here since the read are not added back
+                            searchIndex.addUnlessRemovedSince(listingDocument(record.getRef(),
+                                    names.getOrDefault(record.getSeller(), record.getSeller()),
+                                    entry.getValue(), record.getPrice(), record.getQuantity()), generation);
+                        }
+                        searchIndex.forgetRemovalsBefore(generation);
+                    } finally {
+                        searchRefreshRunning.set(false);
+                    }
+                })
+                .name("Market Search Index")
+                .submit(this);
+    }
+
+    /**
+     * Names of servers that sent a heartbeat recently, cached for a minute.
+     */
+    public List<String> getKnownServers() {
+        long now = System.currentTimeMillis();
+        if (now < knownServersExpiry) {
+            return knownServers;
+        }
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return Collections.singletonList(serverName);
+        }
+        List<String> servers = new ArrayList<>();
+        try (Jedis jedis = redis.getResource(RedisKeys.SERVERS)) {
+            jedis.hgetAll(RedisKeys.SERVERS).forEach((server, lastSeen) -> {
+                if (now - Long.parseLong(lastSeen) < SERVER_TIMEOUT_MILLIS) {
+                    servers.add(server);
+                }
+            });
+        }
+        if (!servers.contains(serverName)) {
+            servers.add(serverName);
+        }
+        knownServers = servers;
+        knownServersExpiry = now + TimeUnit.MINUTES.toMillis(1);
+        return servers;
+    }
+
+    private void sendHeartbeat() {
+        RedisProvider redis = getJedis();
+        if (redis == null) {
+            return;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.SERVERS)) {
+            jedis.hset(RedisKeys.SERVERS, serverName, String.valueOf(System.currentTimeMillis()));
+        }
+    }
+
+    SpongeExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = getScheduler().createAsyncExecutor(this);
+        }
+        return asyncExecutor;
     }
 
     public Scheduler getScheduler() {
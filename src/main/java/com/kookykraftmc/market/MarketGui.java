@@ -0,0 +1,228 @@
+package com.kookykraftmc.market;
+
+import com.kookykraftmc.market.tasks.InvFullTask;
+import org.spongepowered.api.data.DataView;
+import org.spongepowered.api.data.key.Keys;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.event.item.inventory.ClickInventoryEvent;
+import org.spongepowered.api.item.ItemType;
+import org.spongepowered.api.item.ItemTypes;
+import org.spongepowered.api.item.inventory.Inventory;
+import org.spongepowered.api.item.inventory.InventoryArchetypes;
+import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.item.inventory.property.InventoryTitle;
+import org.spongepowered.api.item.inventory.property.SlotIndex;
+import org.spongepowered.api.item.inventory.transaction.SlotTransaction;
+import org.spongepowered.api.service.economy.account.UniqueAccount;
+import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.format.TextColors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * A player's chest view of the market: five rows of listings, cheapest unit
+ * price first, and a row to page through them. Clicking a listing buys one
+ * lot of it.
+ *
+ * <p>Opening the view reads only the ids of the matching listings. Listings
+ * are read and their items parsed a page at a time by {@link LazyPages}, off
+ * the main thread, with the next page loaded ahead; the page shown is turned
+ * into item stacks and icons on the main thread. The view keeps the ids it
+ * was opened with; listings closed since then are left out of their page.</p>
+ */
+public class MarketGui {
+
+    static final int PAGE_SIZE = 45;
+    private static final int PREVIOUS = 45;
+    private static final int INFO = 49;
+    private static final int NEXT = 53;
+
+    private final Market pl;
+    private final Player player;
+    private final LazyPages<ListingRef, Listing> pages;
+    private final Inventory inventory;
+    private final List<Inventory> slots = new ArrayList<>();
+    private List<Entry> shown = Collections.emptyList();
+    private int page;
+
+    private MarketGui(Market pl, Player player, List<ListingRef> index, Text title) {
+        this.pl = pl;
+        this.player = player;
+        this.pages = new LazyPages<>(index, PAGE_SIZE, this::load, pl.getAsyncExecutor());
+        this.inventory = Inventory.builder()
+                .of(InventoryArchetypes.DOUBLE_CHEST)
+                .property(InventoryTitle.PROPERTY_NAME, InventoryTitle.of(title))
+                .listener(ClickInventoryEvent.class, this::onClick)
+                .build(pl);
+        inventory.slots().forEach(slots::add);
+    }
+
+    /**
+     * Open the market view for a player, limited to listings matching
+     * {@code filter} if it is not null. The listing index is read in the
+     * background and the view opens once it is ready.
+     */
+    public static void open(Market pl, Player player, ListingFilter filter) {
+        Text title = filter == null ? Texts.MARKET_LISTINGS : Texts.MARKET_SEARCH;
+        pl.getScheduler().createTaskBuilder()
+                .async()
+                .execute(() -> {
+                    List<ListingRef> index = pl.getListingIndex(filter);
+                    pl.getScheduler().createTaskBuilder()
+                            .execute(() -> {
+                                MarketGui gui = new MarketGui(pl, player, index, title);
+                                player.openInventory(gui.inventory);
+                                gui.show(0);
+                            })
+                            .submit(pl);
+                })
+                .submit(pl);
+    }
+
+    private void show(int page) {
+        this.page = Math.max(0, Math.min(page, pages.getPageCount() - 1));
+        int showing = this.page;
+        pages.getPage(showing).whenComplete((listings, error) -> pl.getScheduler().createTaskBuilder()
+                .execute(() -> {
+                    if (showing != this.page) {
+                        return;
+                    }
+                    if (error != null) {
+                        player.sendMessage(Texts.MARKET_UNAVAILABLE);
+                    }
+                    render(error == null ? build(listings) : Collections.<Entry>emptyList());
+                })
+                .submit(pl));
+    }
+
+    /**
+     * Turn a loaded page into icons. This deserializes the items, so it runs
+     * on the main thread.
+     */
+    private List<Entry> build(List<Listing> listings) {
+        List<Entry> entries = new ArrayList<>(listings.size());
+        for (Listing listing : listings) {
+            pl.toItemStack(listing.item)
+                    .ifPresent(item -> entries.add(new Entry(listing.record, icon(listing.record, item, listing.sellerName))));
+        }
+        return entries;
+    }
+
+    private void render(List<Entry> entries) {
+        shown = entries;
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            if (i < entries.size()) {
+                slots.get(i).set(entries.get(i).icon);
+            } else {
+                slots.get(i).clear();
+            }
+        }
+        setButton(PREVIOUS, page > 0, ItemTypes.ARROW, Text.of(TextColors.GREEN, "Previous page"));
+        setButton(NEXT, page + 1 < pages.getPageCount(), ItemTypes.ARROW, Text.of(TextColors.GREEN, "Next page"));
+        setButton(INFO, true, ItemTypes.PAPER, Text.of(TextColors.WHITE, "Page " + (page + 1) + " of " + pages.getPageCount()
+                + " (" + pages.size() + " listings)"));
+    }
+
+    private void setButton(int slot, boolean visible, ItemType type, Text name) {
+        if (visible) {
+            slots.get(slot).set(ItemStack.builder().itemType(type).quantity(1).add(Keys.DISPLAY_NAME, name).build());
+        } else {
+            slots.get(slot).clear();
+        }
+    }
+
+    private void onClick(ClickInventoryEvent event) {
+        event.setCancelled(true);
+        for (SlotTransaction transaction : event.getTransactions()) {
+            Optional<SlotIndex> index = transaction.getSlot().getInventoryProperty(SlotIndex.class);
+            // slots past the chest belong to the player's own inventory
+            if (index.isPresent() && index.get().getValue() != null && index.get().getValue() < slots.size()) {
+                click(index.get().getValue());
+                return;
+            }
+        }
+    }
+
+    private void click(int slot) {
+        if (slot == PREVIOUS && page > 0) {
+            show(page - 1);
+        } else if (slot == NEXT && page + 1 < pages.getPageCount()) {
+            show(page + 1);
+        } else if (slot < shown.size()) {
+            buy(shown.get(slot).record);
+        }
+    }
+
+    private void buy(ListingRecord record) {
+        if (pl.isDegraded()) {
+            player.sendMessage(Texts.MARKET_UNAVAILABLE);
+            return;
+        }
+        // the economy is only touched from the main thread, as /market buy does
+        Optional<UniqueAccount> account = pl.getAccount(player.getUniqueId());
+        List<ItemStack> items = account.isPresent() ? pl.purchase(account.get(), record.getRef().toString()) : null;
+        if (items == null) {
+            player.sendMessage(Texts.NO_BUY_ITEM);
+            return;
+        }
+        player.sendMessage(InvFullTask.give(player, items) ? Texts.PURCHASE_SUCCESSFUL : Texts.INV_FULL);
+        pages.invalidate(page);
+        show(page);
+    }
+
+    /**
+     * Read a page of listings and parse their items, off the main thread.
+     */
+    private List<Listing> load(List<ListingRef> refs) {
+        List<Map.Entry<ListingRecord, DataView>> listings = pl.loadListings(refs);
+        Map<String, String> names = pl.getNamesFromUUIDs(listings.stream()
+                .map(listing -> listing.getKey().getSeller())
+                .collect(Collectors.toSet()));
+        List<Listing> loaded = new ArrayList<>(listings.size());
+        for (Map.Entry<ListingRecord, DataView> listing : listings) {
+            ListingRecord record = listing.getKey();
+            loaded.add(new Listing(record, listing.getValue(), names.getOrDefault(record.getSeller(), record.getSeller())));
+        }
+        return loaded;
+    }
+
+    private static ItemStack icon(ListingRecord record, ItemStack item, String sellerName) {
+        ItemStack icon = item.copy();
+        icon.setQuantity(Math.max(1, Math.min(record.getQuantity(), icon.getMaxStackQuantity())));
+        List<Text> lore = new ArrayList<>(icon.get(Keys.ITEM_LORE).orElse(Collections.emptyList()));
+        lore.add(Text.of(TextColors.GREEN, "$" + record.getPrice(), TextColors.WHITE, " for ",
+                TextColors.GREEN, record.getQuantity() + "x"));
+        lore.add(Text.of(TextColors.WHITE, "Stock: ", TextColors.GREEN, record.getStock()));
+        lore.add(Text.of(TextColors.WHITE, "Seller: ", TextColors.LIGHT_PURPLE, sellerName));
+        lore.add(Text.of(TextColors.GRAY, "Listing " + record.getRef().getId() + ". Click to buy one lot."));
+        icon.offer(Keys.ITEM_LORE, lore);
+        return icon;
+    }
+
+    private static final class Listing {
+        private final ListingRecord record;
+        private final DataView item;
+        private final String sellerName;
+
+        private Listing(ListingRecord record, DataView item, String sellerName) {
+            this.record = record;
+            this.item = item;
+            this.sellerName = sellerName;
+        }
+    }
+
+    private static final class Entry {
+        private final ListingRecord record;
+        private final ItemStack icon;
+
+        private Entry(ListingRecord record, ItemStack icon) {
+            this.record = record;
+            this.icon = icon;
+        }
+    }
+}
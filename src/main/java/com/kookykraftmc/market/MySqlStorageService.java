@@ -11,13 +11,18 @@ import java.util.List;
  * Basic MySQL backed storage used to synchronize data between servers.
  *
  * <p>This service manages a {@code market_events} table that stores changes
- * that other servers should apply locally.</p>
+ * that other servers should apply locally. Processed events are deleted by
+ * {@link #pruneEvents(long)} once they are older than the retention window,
+ * so the table and the cost of polling it stay bounded.</p>
  */
 public class MySqlStorageService {
 
     private final DataSource dataSource;
     private final Logger logger;
     private static final String EVENTS_TABLE = "market_events";
+    private static final int POLL_BATCH_SIZE = 500;
+    private static final int PRUNE_BATCH_SIZE = 1000;
+    private static final int PRUNE_MAX_BATCHES = 50;
 
     public MySqlStorageService(DataSource dataSource, Logger logger) throws SQLException {
         this.dataSource = dataSource;
@@ -52,12 +57,14 @@ public class MySqlStorageService {
 
     public List<MarketEvent> pollEvents() {
         List<MarketEvent> events = new ArrayList<>();
-        String sql = "SELECT id, type, item FROM " + EVENTS_TABLE + " WHERE processed = 0";
+        String sql = "SELECT id, type, item FROM " + EVENTS_TABLE + " WHERE processed = 0 ORDER BY id LIMIT ?";
         try (Connection connection = dataSource.getConnection();
-             PreparedStatement ps = connection.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) {
-                events.add(new MarketEvent(rs.getInt("id"), rs.getString("type"), rs.getString("item")));
+             PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setInt(1, POLL_BATCH_SIZE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    events.add(new MarketEvent(rs.getInt("id"), rs.getString("type"), rs.getString("item")));
+                }
             }
         } catch (SQLException e) {
             logger.error("Failed to poll events", e);
@@ -75,4 +82,30 @@ public class MySqlStorageService {
             logger.error("Failed to mark event as processed", e);
         }
     }
+
+    /**
+     * Delete processed events created before {@code cutoff}, in batches small
+     * enough not to hold locks that would stall inserts.
+     *
+     * @return the number of events deleted
+     */
+    public int pruneEvents(long cutoff) {
+        String sql = "DELETE FROM " + EVENTS_TABLE + " WHERE processed = 1 AND created_at < ? LIMIT ?";
+        int pruned = 0;
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setTimestamp(1, new Timestamp(cutoff));
+            ps.setInt(2, PRUNE_BATCH_SIZE);
+            for (int batch = 0; batch < PRUNE_MAX_BATCHES; batch++) {
+                int deleted = ps.executeUpdate();
+                pruned += deleted;
+                if (deleted < PRUNE_BATCH_SIZE) {
+                    break;
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Failed to prune events", e);
+        }
+        return pruned;
+    }
 }
@@ -0,0 +1,103 @@
+package com.kookykraftmc.market;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory buy orders per item type in price-time priority: highest price
+ * first, oldest first among equal prices. Finding the best order and adding
+ * or removing one are O(log n).
+ */
+public class OrderBook {
+
+    private static final Comparator<BuyOrder> PRIORITY = Comparator
+            .comparingInt(BuyOrder::getMaxUnitPrice).reversed()
+            .thenComparingLong(BuyOrder::getCreatedAt)
+            .thenComparingInt(BuyOrder::getId);
+
+    private final Map<String, NavigableSet<BuyOrder>> books = new HashMap<>();
+    private final Map<Integer, BuyOrder> orders = new HashMap<>();
+
+    public synchronized void add(BuyOrder order) {
+        remove(order.getId());
+        orders.put(order.getId(), order);
+        books.computeIfAbsent(order.getItemType(), t -> new TreeSet<>(PRIORITY)).add(order);
+    }
+
+    /**
+     * @return the removed order or null if there was none
+     */
+    public synchronized BuyOrder remove(int id) {
+        BuyOrder order = orders.remove(id);
+        if (order == null) {
+            return null;
+        }
+        NavigableSet<BuyOrder> book = books.get(order.getItemType());
+        book.remove(order);
+        if (book.isEmpty()) {
+            books.remove(order.getItemType());
+        }
+        return order;
+    }
+
+    public synchronized BuyOrder get(int id) {
+        return orders.get(id);
+    }
+
+    /**
+     * The order with the highest priority for an item type, or null.
+     */
+    public synchronized BuyOrder best(String itemType) {
+        NavigableSet<BuyOrder> book = books.get(itemType);
+        return book == null ? null : book.first();
+    }
+
+    /**
+     * Orders for an item type willing to pay at least {@code minUnitPrice},
+     * in priority order.
+     */
+    public synchronized List<BuyOrder> matching(String itemType, double minUnitPrice) {
+        NavigableSet<BuyOrder> book = books.get(itemType);
+        List<BuyOrder> matches = new ArrayList<>();
+        if (book == null) {
+            return matches;
+        }
+        for (BuyOrder order : book) {
+            if (order.getMaxUnitPrice() < minUnitPrice) {
+                break;
+            }
+            matches.add(order);
+        }
+        return matches;
+    }
+
+    /**
+     * All orders for an item type in priority order.
+     */
+    public synchronized List<BuyOrder> getOrders(String itemType) {
+        NavigableSet<BuyOrder> book = books.get(itemType);
+        return book == null ? new ArrayList<>() : new ArrayList<>(book);
+    }
+
+    public synchronized List<BuyOrder> getOrdersOf(String player) {
+        return orders.values().stream()
+                .filter(order -> order.getPlayer().equals(player))
+                .sorted(Comparator.comparingInt(BuyOrder::getId))
+                .collect(Collectors.toList());
+    }
+
+    public synchronized void clear() {
+        books.clear();
+        orders.clear();
+    }
+
+    public synchronized int size() {
+        return orders.size();
+    }
+}
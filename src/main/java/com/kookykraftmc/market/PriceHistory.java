@@ -0,0 +1,215 @@
+package com.kookykraftmc.market;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolling price aggregates per item type over the last hour, day and week.
+ *
+ * <p>Each window keeps the sales it covers in arrival order together with a
+ * sorted multiset of their unit prices and running totals. Recording a sale
+ * and expiring old ones only touch the affected entries, so answering a
+ * query never scans the raw history.</p>
+ */
+public class PriceHistory {
+
+    public enum Period {
+        HOUR("1h", TimeUnit.HOURS.toMillis(1)),
+        DAY("24h", TimeUnit.DAYS.toMillis(1)),
+        WEEK("7d", TimeUnit.DAYS.toMillis(7));
+
+        private final String label;
+        private final long millis;
+
+        Period(String label, long millis) {
+            this.label = label;
+            this.millis = millis;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    private final Map<String, Map<Period, Window>> items = new HashMap<>();
+    private final Set<String> dirty = new HashSet<>();
+
+    /**
+     * Add a sale to every window it still falls into.
+     */
+    public synchronized void record(Sale sale, long now) {
+        Map<Period, Window> windows = items.computeIfAbsent(sale.getItemType(), t -> {
+            Map<Period, Window> map = new EnumMap<>(Period.class);
+            for (Period period : Period.values()) {
+                map.put(period, new Window(period));
+            }
+            return map;
+        });
+        for (Window window : windows.values()) {
+            if (sale.getTimestamp() > now - window.period.millis) {
+                window.add(sale);
+            }
+        }
+        dirty.add(sale.getItemType());
+    }
+
+    /**
+     * Current aggregates of one item type, empty if it has not sold in the
+     * last week.
+     */
+    public synchronized Map<Period, Summary> getSummaries(String itemType, long now) {
+        Map<Period, Window> windows = items.get(itemType);
+        if (windows == null) {
+            return Collections.emptyMap();
+        }
+        Map<Period, Summary> summaries = new EnumMap<>(Period.class);
+        for (Window window : windows.values()) {
+            window.expire(now);
+            if (window.count > 0) {
+                summaries.put(window.period, window.summarize());
+            }
+        }
+        if (summaries.isEmpty()) {
+            items.remove(itemType);
+        }
+        return summaries;
+    }
+
+    /**
+     * Expire old sales of all items, marking changed items dirty and dropping
+     * items without sales in the last week.
+     */
+    public synchronized void expire(long now) {
+        items.entrySet().removeIf(entry -> {
+            boolean empty = true;
+            for (Window window : entry.getValue().values()) {
+                if (window.expire(now)) {
+                    dirty.add(entry.getKey());
+                }
+                empty &= window.count == 0;
+            }
+            return empty;
+        });
+    }
+
+    /**
+     * Item types whose aggregates changed since the last call.
+     */
+    public synchronized Set<String> drainDirty() {
+        Set<String> drained = new HashSet<>(dirty);
+        dirty.clear();
+        return drained;
+    }
+
+    private static class Window {
+        private final Period period;
+        private final Deque<Sale> sales = new ArrayDeque<>();
+        private final TreeMap<Double, Integer> prices = new TreeMap<>();
+        private int count;
+        private long volume;
+        private double turnover;
+
+        Window(Period period) {
+            this.period = period;
+        }
+
+        void add(Sale sale) {
+            // sales from other servers may arrive slightly out of order; expiry
+            // stops at the first recent sale so a late old one only lingers
+            sales.addLast(sale);
+            prices.merge(sale.getUnitPrice(), 1, Integer::sum);
+            count++;
+            volume += sale.getQuantity();
+            turnover += sale.getUnitPrice() * sale.getQuantity();
+        }
+
+        /**
+         * @return whether any sale was removed
+         */
+        boolean expire(long now) {
+            long cutoff = now - period.millis;
+            boolean changed = false;
+            while (!sales.isEmpty() && sales.peekFirst().getTimestamp() <= cutoff) {
+                Sale sale = sales.pollFirst();
+                prices.computeIfPresent(sale.getUnitPrice(), (price, n) -> n == 1 ? null : n - 1);
+                count--;
+                volume -= sale.getQuantity();
+                turnover -= sale.getUnitPrice() * sale.getQuantity();
+                changed = true;
+            }
+            return changed;
+        }
+
+        Summary summarize() {
+            int middle = (count - 1) / 2;
+            double lower = 0;
+            double upper = 0;
+            int seen = 0;
+            for (Map.Entry<Double, Integer> entry : prices.entrySet()) {
+                if (seen <= middle && middle < seen + entry.getValue()) {
+                    lower = entry.getKey();
+                }
+                if (seen <= count / 2 && count / 2 < seen + entry.getValue()) {
+                    upper = entry.getKey();
+                    break;
+                }
+                seen += entry.getValue();
+            }
+            double median = count % 2 == 1 ? lower : (lower + upper) / 2;
+            double average = volume > 0 ? turnover / volume : 0;
+            return new Summary(count, volume, prices.firstKey(), median, average);
+        }
+    }
+
+    /**
+     * Aggregates of one item type over one period. The average is weighted by
+     * the quantity sold.
+     */
+    public static class Summary {
+        private final int sales;
+        private final long volume;
+        private final double min;
+        private final double median;
+        private final double average;
+
+        public Summary(int sales, long volume, double min, double median, double average) {
+            this.sales = sales;
+            this.volume = volume;
+            this.min = min;
+            this.median = median;
+            this.average = average;
+        }
+
+        public int getSales() {
+            return sales;
+        }
+
+        public long getVolume() {
+            return volume;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        public double getAverage() {
+            return average;
+        }
+    }
+}
@@ -2,17 +2,56 @@ package com.kookykraftmc.market;
 
 /**
  * Created by TimeTheCat on 4/3/2017.
+ *
+ * <p>Per server keys wrap the server name in a hash tag ({@code market:{server}:...})
+ * so that every key of one server maps to the same Redis Cluster slot and
+ * multi-key operations such as {@code MULTI} keep working on a cluster.</p>
  */
 public class RedisKeys {
     public static final String UUID_CACHE = "market:uuidcache";
     public static final String BLACKLIST = "market:blacklist";
+    public static final String SERVERS = "market:servers";
+    // Sorted set of sales across the network, scored by time
+    public static final String SALES = "market:sales";
+    // Sorted set of the same sales scored by the order they were written in,
+    // and the counter numbering them; hash tagged into the slot of SALES
+    public static final String SALES_FEED = "{market:sales}:feed";
+    public static final String SALES_SEQUENCE = "{market:sales}:seq";
+    // Hash of item type to its encoded price aggregates
+    public static final String PRICE_STATS = "market:pricestats";
+    // Hash of storage migration positions, see StorageMigration
+    public static final String MIGRATION = "market:migration";
+    // Hash of seller uuid to proceeds waiting for the next batched payout
+    public static final String PAYOUTS = "market:payouts";
+
+    /**
+     * Claim on a seller's pending payout while a server deposits it, hash
+     * tagged into the slot of {@link #PAYOUTS}.
+     */
+    public static String payoutClaim(String seller) {
+        return "{market:payouts}:claim:" + seller;
+    }
+
+    /**
+     * Sorted set of one player's transaction history, scored by time.
+     */
+    public static String ledger(String uuid) {
+        return "market:ledger:" + uuid;
+    }
+
+    /**
+     * List of items waiting to be delivered to a player.
+     */
+    public static String mailbox(String uuid) {
+        return "market:mailbox:" + uuid;
+    }
 
     public static String lastMarketId() {
         return lastMarketId(Market.instance.getServerName());
     }
 
     public static String lastMarketId(String serverName) {
-        return "market:" + serverName + ":lastID";
+        return namespace(serverName) + ":lastID";
     }
 
     public static String marketItemKey(String id) {
@@ -20,7 +59,7 @@ public class RedisKeys {
     }
 
     public static String marketItemKey(String serverName, String id) {
-        return "market:" + serverName + ":" + id;
+        return namespace(serverName) + ":" + id;
     }
 
     public static String forSale() {
@@ -28,6 +67,74 @@ public class RedisKeys {
     }
 
     public static String forSale(String serverName) {
-        return "market:" + serverName + ":open";
+        return namespace(serverName) + ":open";
+    }
+
+    /**
+     * Hash holding the fields of a group of listings in the compact layout,
+     * see {@link RedisLayout#COMPACT}.
+     */
+    public static String listingBucket(String serverName, long bucket) {
+        return namespace(serverName) + ":l:" + bucket;
+    }
+
+    /**
+     * Hash holding the large fields of the listings of a bucket, see
+     * {@link RedisLayout#COMPACT}.
+     */
+    public static String listingBlobs(String serverName, long bucket) {
+        return namespace(serverName) + ":lb:" + bucket;
+    }
+
+    /**
+     * Hash describing which {@link RedisLayout} a server's listings use.
+     */
+    public static String layout(String serverName) {
+        return namespace(serverName) + ":layout";
+    }
+
+    /**
+     * Hash of a server's buy orders by id.
+     */
+    public static String orders(String serverName) {
+        return namespace(serverName) + ":orders";
+    }
+
+    public static String lastOrderId(String serverName) {
+        return namespace(serverName) + ":lastOrderID";
+    }
+
+    /**
+     * Sorted set of a server's listing ids scored by expiry time.
+     */
+    public static String expiry(String serverName) {
+        return namespace(serverName) + ":expiry";
+    }
+
+    /**
+     * Hash of the stock of a server's expired listings by listing id, held
+     * until it is mailed to the sellers.
+     */
+    public static String expiredStock(String serverName) {
+        return namespace(serverName) + ":expired";
+    }
+
+    /**
+     * Key of a listing attribute index, e.g. {@code market:{server}:idx:mod:thermal}.
+     */
+    public static String attributeIndex(String serverName, String index) {
+        return namespace(serverName) + ":idx:" + index;
+    }
+
+    public static String namespace(String serverName) {
+        return "market:{" + serverName + "}";
+    }
+
+    /**
+     * Prefix used by the key layout before hash tags were introduced. Only
+     * needed to migrate old data.
+     */
+    public static String legacyNamespace(String serverName) {
+        return "market:" + serverName;
     }
 }
@@ -0,0 +1,242 @@
+package com.kookykraftmc.market;
+
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * How the fields of a Redis listing are stored.
+ *
+ * <p>Fields are always named as in the legacy layout ({@code Item},
+ * {@code Seller}, {@code Stock}, ...); each layout maps a listing id and a
+ * field name to the hash key and hash field actually used, and encodes the
+ * values it packs. A listing's fields may be spread over more than one hash;
+ * {@link #write}, {@link #read} and {@link #delete} take care of that.</p>
+ */
+public enum RedisLayout {
+
+    /**
+     * One hash per listing, {@code market:{server}:<id>}, with the field
+     * names as they are.
+     */
+    LEGACY {
+        @Override
+        public String key(String server, String id) {
+            return RedisKeys.marketItemKey(server, id);
+        }
+
+        @Override
+        public String field(String id, String name) {
+            return name;
+        }
+
+        @Override
+        public String encode(String name, String value) {
+            return value;
+        }
+
+        @Override
+        public String decode(String name, String value) {
+            return value;
+        }
+    },
+
+    /**
+     * {@value #BUCKET_SIZE} consecutive listings share one hash,
+     * {@code market:{server}:l:<id / BUCKET_SIZE>}, with fields named by the
+     * listing id and a one letter code, e.g. {@code 123k} for the stock of
+     * listing 123. Sellers are packed from 36 characters to 22, so a bucket
+     * only holds short values and stays within the listpack encoding, which
+     * saves the per key and per field overhead of a hash per listing. Items
+     * and enchantment lists can be far larger than
+     * {@code hash-max-listpack-value} and would turn the whole bucket into a
+     * hash table, so they are kept apart in
+     * {@code market:{server}:lb:<id / BUCKET_SIZE>}.
+     */
+    COMPACT {
+        @Override
+        public String key(String server, String id) {
+            return RedisKeys.listingBucket(server, Long.parseLong(id) / BUCKET_SIZE);
+        }
+
+        @Override
+        public String key(String server, String id, String name) {
+            return BLOBS.contains(name) ? RedisKeys.listingBlobs(server, Long.parseLong(id) / BUCKET_SIZE) : key(server, id);
+        }
+
+        @Override
+        public String field(String id, String name) {
+            String code = CODES.get(name);
+            if (code == null) {
+                throw new IllegalArgumentException("Unknown listing field " + name);
+            }
+            return id + code;
+        }
+
+        @Override
+        public String encode(String name, String value) {
+            return value != null && name.equals("Seller") ? packUuid(value) : value;
+        }
+
+        @Override
+        public String decode(String name, String value) {
+            return value != null && name.equals("Seller") ? unpackUuid(value) : value;
+        }
+    };
+
+    /**
+     * Listings per bucket. With all {@link #FIELDS} set a bucket has 96
+     * fields, below the default {@code hash-max-listpack-entries} of 128.
+     */
+    public static final int BUCKET_SIZE = 16;
+
+    public static final String[] FIELDS = {"Item", "Seller", "Stock", "Price", "Quantity", "Type", "Enchants", "Durability"};
+
+    // fields of unbounded size, kept out of compact buckets
+    private static final List<String> BLOBS = Arrays.asList("Item", "Enchants");
+
+    private static final Map<String, String> CODES = new HashMap<>();
+
+    static {
+        String codes = "iskpqted";
+        for (int i = 0; i < FIELDS.length; i++) {
+            CODES.put(FIELDS[i], String.valueOf(codes.charAt(i)));
+        }
+    }
+
+    /**
+     * Hash key holding the fields of a listing, other than those
+     * {@link #key(String, String, String)} puts elsewhere.
+     */
+    public abstract String key(String server, String id);
+
+    /**
+     * Hash key holding the field {@code name} of a listing.
+     */
+    public String key(String server, String id, String name) {
+        return key(server, id);
+    }
+
+    /**
+     * Hash field holding a field of a listing.
+     */
+    public abstract String field(String id, String name);
+
+    public abstract String encode(String name, String value);
+
+    public abstract String decode(String name, String value);
+
+    public String[] fields(String id, String... names) {
+        String[] fields = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            fields[i] = field(id, names[i]);
+        }
+        return fields;
+    }
+
+    /**
+     * Queue writing the fields of a listing.
+     */
+    public void write(PipelineBase p, String server, String id, Map<String, String> listing) {
+        group(server, id, listing.keySet()).forEach((key, names) -> {
+            Map<String, String> encoded = new HashMap<>();
+            names.forEach(name -> encoded.put(field(id, name), encode(name, listing.get(name))));
+            p.hset(key, encoded);
+        });
+    }
+
+    /**
+     * Queue reading fields of a listing. The returned supplier decodes them,
+     * leaving out missing ones, once the pipeline or transaction has run.
+     */
+    public Supplier<Map<String, String>> read(PipelineBase p, String server, String id, String... names) {
+        Map<String, List<String>> groups = group(server, id, Arrays.asList(names));
+        Map<List<String>, Response<List<String>>> responses = new LinkedHashMap<>();
+        groups.forEach((key, grouped) -> responses.put(grouped, p.hmget(key, fields(id, grouped.toArray(new String[0])))));
+        return () -> {
+            Map<String, String> values = new HashMap<>();
+            responses.forEach((grouped, response) -> {
+                List<String> reply = response.get();
+                for (int i = 0; i < grouped.size(); i++) {
+                    values.put(grouped.get(i), reply.get(i));
+                }
+            });
+            Map<String, String> listing = new LinkedHashMap<>();
+            for (String name : names) {
+                if (values.get(name) != null) {
+                    listing.put(name, decode(name, values.get(name)));
+                }
+            }
+            return listing;
+        };
+    }
+
+    /**
+     * Queue deleting all fields of a listing.
+     */
+    public void delete(PipelineBase p, String server, String id) {
+        group(server, id, Arrays.asList(FIELDS)).forEach((key, names) -> p.hdel(key, fields(id, names.toArray(new String[0]))));
+    }
+
+    // field names by the hash key holding them
+    private Map<String, List<String>> group(String server, String id, Iterable<String> names) {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String name : names) {
+            groups.computeIfAbsent(key(server, id, name), key -> new ArrayList<>()).add(name);
+        }
+        return groups;
+    }
+
+    /**
+     * Decode the reply to an {@code HMGET} of {@code names}, leaving out
+     * missing fields.
+     */
+    public Map<String, String> decodeAll(List<String> values, String... names) {
+        Map<String, String> listing = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (values.get(i) != null) {
+                listing.put(names[i], decode(names[i], values.get(i)));
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Value stored for a listing in the open listings hash.
+     */
+    public String openValue(String seller) {
+        return encode("Seller", seller);
+    }
+
+    /**
+     * The seller stored in the open listings hash, in either layout.
+     */
+    public static String sellerOf(String openValue) {
+        return openValue.length() == PACKED_UUID_LENGTH ? unpackUuid(openValue) : openValue;
+    }
+
+    private static final int PACKED_UUID_LENGTH = 22;
+
+    static String packUuid(String uuid) {
+        UUID parsed = UUID.fromString(uuid);
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(parsed.getMostSignificantBits());
+        bytes.putLong(parsed.getLeastSignificantBits());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.array());
+    }
+
+    static String unpackUuid(String packed) {
+        ByteBuffer bytes = ByteBuffer.wrap(Base64.getUrlDecoder().decode(packed));
+        return new UUID(bytes.getLong(), bytes.getLong()).toString();
+    }
+}
@@ -0,0 +1,100 @@
+package com.kookykraftmc.market;
+
+import redis.clients.jedis.Jedis;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Tracks which {@link RedisLayout} the listings of each server use.
+ *
+ * <p>The layout of a server is kept in the {@link RedisKeys#layout(String)}
+ * hash: {@code Version} 2 means every listing is compact; otherwise listings
+ * with an id below {@code Watermark} have been moved to the compact layout by
+ * a {@link LayoutMigration} and the others are still legacy. The state is
+ * cached and read again after {@link #REFRESH_MILLIS}, so a server sees the
+ * progress of another server's migration with that delay.</p>
+ */
+public class RedisLayouts {
+
+    public static final long REFRESH_MILLIS = 5000;
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The layout state of a server, read from Redis if the cached one is
+     * stale. Must not be called while a pipeline or transaction is open on
+     * {@code jedis}.
+     */
+    public Snapshot get(Jedis jedis, String server) {
+        Snapshot snapshot = snapshots.get(server);
+        long now = System.currentTimeMillis();
+        if (snapshot == null || (!snapshot.isCompact() && now - snapshot.loadedAt >= REFRESH_MILLIS)) {
+            List<String> state = jedis.hmget(RedisKeys.layout(server), "Version", "Watermark");
+            snapshot = new Snapshot("2".equals(state.get(0)), state.get(1) == null ? 0 : Long.parseLong(state.get(1)), now);
+            snapshots.put(server, snapshot);
+        }
+        return snapshot;
+    }
+
+    void update(String server, boolean compact, long watermark) {
+        snapshots.put(server, new Snapshot(compact, watermark, System.currentTimeMillis()));
+    }
+
+    /**
+     * Keep this server's listings from being migrated until the pin is
+     * closed. Code that writes listing fields holds a pin so it does not write
+     * to a layout the listing has just left.
+     */
+    public Pin pin() {
+        lock.readLock().lock();
+        return () -> lock.readLock().unlock();
+    }
+
+    ReadWriteLock getLock() {
+        return lock;
+    }
+
+    public interface Pin extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    public static final class Snapshot {
+        private final boolean compact;
+        private final long watermark;
+        private final long loadedAt;
+
+        Snapshot(boolean compact, long watermark, long loadedAt) {
+            this.compact = compact;
+            this.watermark = watermark;
+            this.loadedAt = loadedAt;
+        }
+
+        public boolean isCompact() {
+            return compact;
+        }
+
+        public long getWatermark() {
+            return watermark;
+        }
+
+        public RedisLayout of(String id) {
+            if (compact) {
+                return RedisLayout.COMPACT;
+            }
+            if (watermark == 0) {
+                return RedisLayout.LEGACY;
+            }
+            try {
+                return Long.parseLong(id) < watermark ? RedisLayout.COMPACT : RedisLayout.LEGACY;
+            } catch (NumberFormatException e) {
+                return RedisLayout.LEGACY;
+            }
+        }
+    }
+}
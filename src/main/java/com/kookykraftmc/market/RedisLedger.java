@@ -0,0 +1,76 @@
+package com.kookykraftmc.market;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A player's transaction history in Redis, a sorted set of encoded
+ * {@link LedgerEntry} members.
+ *
+ * <p>Scores are the timestamp in milliseconds with three digits appended that
+ * number the entries of that millisecond. The digits are assigned by Redis as
+ * the entries are added, not by the writing server, so entries written by
+ * different servers never share a score and a page cursor names exactly one
+ * entry.</p>
+ */
+final class RedisLedger {
+
+    // Adds the members ARGV[2], ARGV[4], ... written at the timestamps
+    // ARGV[1], ARGV[3], ... to the ledger KEYS[1], each at the first free
+    // score of its millisecond. Members already present are left alone, so a
+    // batch that failed half way can be written again.
+    private static final String APPEND_SCRIPT =
+            "for i = 1, #ARGV, 2 do\n"
+                    + "  if not redis.call('ZSCORE', KEYS[1], ARGV[i + 1]) then\n"
+                    + "    local n = redis.call('ZCOUNT', KEYS[1], ARGV[i] .. '000', ARGV[i] .. '999')\n"
+                    + "    local score = ARGV[i] .. string.format('%03d', n)\n"
+                    + "    while #redis.call('ZRANGEBYSCORE', KEYS[1], score, score, 'LIMIT', 0, 1) > 0 do\n"
+                    + "      n = n + 1\n"
+                    + "      score = ARGV[i] .. string.format('%03d', n)\n"
+                    + "    end\n"
+                    + "    redis.call('ZADD', KEYS[1], score, ARGV[i + 1])\n"
+                    + "  end\n"
+                    + "end";
+
+    private RedisLedger() {
+    }
+
+    /**
+     * Add entries of one player to their ledger.
+     */
+    static void append(Jedis jedis, String player, List<LedgerEntry> entries) {
+        List<String> args = new ArrayList<>(entries.size() * 2);
+        for (LedgerEntry e : entries) {
+            args.add(String.valueOf(e.getTimestamp()));
+            args.add(e.encode());
+        }
+        jedis.eval(APPEND_SCRIPT, Collections.singletonList(RedisKeys.ledger(player)), args);
+    }
+
+    /**
+     * Newest entries of a player's ledger, starting after a cursor.
+     *
+     * @param before timestamp and sequence from {@link LedgerEntry#parseCursor}
+     *               or null for the newest entries
+     * @return the entries, each with the sequence of its score
+     */
+    static List<LedgerEntry> page(Jedis jedis, String player, long[] before, int limit) {
+        String max = before == null ? "+inf" : "(" + score(before[0], before[1]);
+        List<LedgerEntry> entries = new ArrayList<>();
+        for (Tuple member : jedis.zrevrangeByScoreWithScores(RedisKeys.ledger(player), max, "-inf", 0, limit)) {
+            LedgerEntry entry = LedgerEntry.decode(player, member.getElement(), (long) member.getScore() % 1000);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    static long score(long timestamp, long sequence) {
+        return timestamp * 1000 + sequence;
+    }
+}
@@ -0,0 +1,253 @@
+package com.kookykraftmc.market;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPoolAbstract;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.JedisClusterCRC16;
+import redis.clients.jedis.util.Pool;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out {@link Jedis} connections for standalone, sentinel and cluster
+ * deployments.
+ *
+ * <p>Connections are requested for a key. With a single node or a sentinel
+ * managed master every key lives on the same node, so the key is ignored. On
+ * a cluster the connection is bound to the node that owns the key's slot.
+ * Because all keys of one server share a hash tag (see {@link RedisKeys}),
+ * a connection obtained for one of them can be used for all of them,
+ * including inside {@code MULTI} blocks. Keys outside that namespace, such as
+ * {@link RedisKeys#UUID_CACHE}, need a connection of their own.</p>
+ *
+ * <p>Cluster connections are plain node connections and do not follow
+ * {@code MOVED} or {@code ASK} replies. The slot map is renewed when a
+ * connection breaks, as it does when a node fails over, and at least every
+ * ten seconds; commands sent to a node that lost the slot fail until then. A server's slot must therefore not be
+ * resharded while the server runs: {@code WATCH}/{@code MULTI}, Lua scripts
+ * and {@code SCAN} all need every key of the server on one node.</p>
+ */
+public abstract class RedisProvider implements AutoCloseable {
+
+    /**
+     * Borrow a connection able to serve {@code key}. The connection must be
+     * closed to return it to its pool.
+     */
+    public Jedis getResource(String key) {
+        return getResource(key, broken -> {
+        });
+    }
+
+    /**
+     * Borrow a connection able to serve {@code key}, and have {@code listener}
+     * told when it is closed whether a command on it failed to reach the
+     * server or timed out.
+     */
+    public abstract Jedis getResource(String key, ReturnListener listener);
+
+    /**
+     * Whether keys of different slots may live on different nodes.
+     */
+    public abstract boolean isCluster();
+
+    @Override
+    public abstract void close();
+
+    public interface ReturnListener {
+        void returned(boolean broken);
+    }
+
+    /**
+     * Have a connection borrowed from {@code pool} returned through
+     * {@code listener}.
+     */
+    private static Jedis onReturn(Jedis jedis, Pool<Jedis> pool, ReturnListener listener) {
+        jedis.setDataSource(new ReturningPool(pool, listener));
+        return jedis;
+    }
+
+    public static RedisProvider of(Pool<Jedis> pool) {
+        return new PooledProvider(pool);
+    }
+
+    public static RedisProvider cluster(Set<HostAndPort> nodes, int connectTimeout, int readTimeout, String password,
+                                        String clientName, JedisPoolConfig config) {
+        return new ClusterProvider(new SlotJedisCluster(nodes, connectTimeout, readTimeout, password, clientName, config));
+    }
+
+    /**
+     * Wrap a provider so connections are refused while {@code breaker} is
+     * open and failures to obtain one are reported to it.
+     */
+    public static RedisProvider guarded(RedisProvider provider, CircuitBreaker breaker) {
+        return new GuardedProvider(provider, breaker);
+    }
+
+    private static class PooledProvider extends RedisProvider {
+        private final Pool<Jedis> pool;
+
+        PooledProvider(Pool<Jedis> pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public Jedis getResource(String key, ReturnListener listener) {
+            return onReturn(pool.getResource(), pool, listener);
+        }
+
+        @Override
+        public boolean isCluster() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            pool.close();
+        }
+    }
+
+    private static class ClusterProvider extends RedisProvider {
+        static final long RENEW_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+        private final SlotJedisCluster cluster;
+        // time the slot map was last renewed, 0 to renew it on the next borrow
+        private final AtomicLong renewed = new AtomicLong(System.currentTimeMillis());
+
+        ClusterProvider(SlotJedisCluster cluster) {
+            this.cluster = cluster;
+        }
+
+        @Override
+        public Jedis getResource(String key, ReturnListener listener) {
+            long last = renewed.get();
+            long now = System.currentTimeMillis();
+            // one borrower renews, the others go on with the current map
+            if (now - last >= RENEW_MILLIS && renewed.compareAndSet(last, now)) {
+                cluster.renewSlotCache();
+            }
+            Jedis jedis = cluster.getConnectionFromSlot(JedisClusterCRC16.getSlot(key));
+            Pool<Jedis> pool = cluster.getClusterNodes().get(jedis.getClient().getHost() + ":" + jedis.getClient().getPort());
+            if (pool == null) {
+                return jedis;
+            }
+            return onReturn(jedis, pool, broken -> {
+                if (broken) {
+                    renewed.set(0);
+                }
+                listener.returned(broken);
+            });
+        }
+
+        @Override
+        public boolean isCluster() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            cluster.close();
+        }
+    }
+
+    /**
+     * A connection returned broken counts as a failure: a command on it could
+     * not reach the server or timed out. One returned intact counts as a
+     * success. Borrowing itself only counts when it fails, since idle pooled
+     * connections are handed out even while the server hangs.
+     */
+    private static class GuardedProvider extends RedisProvider {
+        private final RedisProvider provider;
+        private final CircuitBreaker breaker;
+
+        GuardedProvider(RedisProvider provider, CircuitBreaker breaker) {
+            this.provider = provider;
+            this.breaker = breaker;
+        }
+
+        @Override
+        public Jedis getResource(String key, ReturnListener listener) {
+            if (!breaker.allowRequest()) {
+                throw new JedisConnectionException("Market Redis unavailable, circuit breaker open");
+            }
+            try {
+                return provider.getResource(key, broken -> {
+                    if (broken) {
+                        breaker.recordFailure();
+                    } else {
+                        breaker.recordSuccess();
+                    }
+                    listener.returned(broken);
+                });
+            } catch (JedisException e) {
+                breaker.recordFailure();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isCluster() {
+            return provider.isCluster();
+        }
+
+        @Override
+        public void close() {
+            provider.close();
+        }
+    }
+
+    /**
+     * Exposes the slot based connection handler of {@link JedisCluster} so
+     * plain {@link Jedis} connections can be borrowed for a slot.
+     */
+    private static class SlotJedisCluster extends JedisCluster {
+        private static final int MAX_ATTEMPTS = 5;
+
+        SlotJedisCluster(Set<HostAndPort> nodes, int connectTimeout, int readTimeout, String password, String clientName,
+                         JedisPoolConfig config) {
+            super(nodes, connectTimeout, readTimeout, MAX_ATTEMPTS, password, clientName, config);
+        }
+
+        Jedis getConnectionFromSlot(int slot) {
+            return connectionHandler.getConnectionFromSlot(slot);
+        }
+
+        void renewSlotCache() {
+            connectionHandler.renewSlotCache();
+        }
+    }
+
+    /**
+     * Set as a borrowed connection's pool, so closing the connection tells a
+     * listener whether it broke before returning it to the pool it came from.
+     * A connection breaks when a command on it fails to reach the server or
+     * times out.
+     */
+    private static final class ReturningPool extends JedisPoolAbstract {
+        private final Pool<Jedis> pool;
+        private final ReturnListener listener;
+
+        ReturningPool(Pool<Jedis> pool, ReturnListener listener) {
+            this.pool = pool;
+            this.listener = listener;
+        }
+
+        @Override
+        public void returnResource(Jedis jedis) {
+            // the pool resets the connection's state first, which may break it
+            pool.returnResource(jedis);
+            listener.returned(jedis.isBroken());
+        }
+
+        @Override
+        public void returnBrokenResource(Jedis jedis) {
+            pool.returnBrokenResource(jedis);
+            listener.returned(true);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.kookykraftmc.market;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent identical reads share one backend fetch.
+ *
+ * <p>The first caller for a key runs the loader; callers arriving while it
+ * runs wait for and share its result. A finished result keeps being served for
+ * the freshness window, so a burst of identical commands costs one fetch per
+ * window instead of one per player. A failed fetch is not cached: its waiters
+ * see the failure and the next caller tries again.</p>
+ *
+ * <p>Callers on the main thread use {@link #getAsync}, whose loader starts the
+ * fetch in the background, so requests arriving while it runs share it rather
+ * than each blocking the thread in turn.</p>
+ */
+public class RequestCoalescer<K, V> {
+
+    private final Map<K, Flight<V>> flights = new ConcurrentHashMap<>();
+    private final long freshnessMillis;
+    private final LongSupplier clock;
+
+    public RequestCoalescer(long freshnessMillis) {
+        this(freshnessMillis, System::currentTimeMillis);
+    }
+
+    RequestCoalescer(long freshnessMillis, LongSupplier clock) {
+        this.freshnessMillis = freshnessMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Get the value for {@code key}, joining an in-flight or fresh fetch if
+     * there is one and running {@code loader} otherwise.
+     */
+    public V get(K key, Supplier<V> loader) {
+        while (true) {
+            Flight<V> flight = flights.get(key);
+            if (flight != null && isUsable(flight)) {
+                return join(flight);
+            }
+            Flight<V> own = new Flight<>();
+            boolean leader = flight == null ? flights.putIfAbsent(key, own) == null : flights.replace(key, flight, own);
+            if (!leader) {
+                continue;
+            }
+            removeStale();
+            try {
+                V value = loader.get();
+                own.completedAt = clock.getAsLong();
+                own.future.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                // waiters must see errors too, or they would wait forever
+                flights.remove(key, own);
+                own.future.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Get the value for {@code key} without blocking: join an in-flight or
+     * fresh fetch if there is one and start {@code loader} otherwise.
+     */
+    public CompletableFuture<V> getAsync(K key, Supplier<CompletableFuture<V>> loader) {
+        while (true) {
+            Flight<V> flight = flights.get(key);
+            if (flight != null && isUsable(flight)) {
+                return flight.future;
+            }
+            Flight<V> own = new Flight<>();
+            boolean leader = flight == null ? flights.putIfAbsent(key, own) == null : flights.replace(key, flight, own);
+            if (!leader) {
+                continue;
+            }
+            removeStale();
+            CompletableFuture<V> loading;
+            try {
+                loading = loader.get();
+            } catch (RuntimeException | Error e) {
+                loading = new CompletableFuture<>();
+                loading.completeExceptionally(e);
+            }
+            loading.whenComplete((value, error) -> {
+                if (error != null) {
+                    flights.remove(key, own);
+                    own.future.completeExceptionally(error);
+                } else {
+                    own.completedAt = clock.getAsLong();
+                    own.future.complete(value);
+                }
+            });
+            return own.future;
+        }
+    }
+
+    /**
+     * Forget finished results so the next read of every key fetches again.
+     * Fetches still in flight are shared with their current waiters only.
+     */
+    public void invalidateAll() {
+        flights.clear();
+    }
+
+    int size() {
+        return flights.size();
+    }
+
+    private boolean isUsable(Flight<V> flight) {
+        if (!flight.future.isDone()) {
+            return true;
+        }
+        return !flight.future.isCompletedExceptionally() && clock.getAsLong() - flight.completedAt < freshnessMillis;
+    }
+
+    private void removeStale() {
+        flights.values().removeIf(flight -> flight.future.isDone() && !isUsable(flight));
+    }
+
+    private static <V> V join(Flight<V> flight) {
+        try {
+            return flight.future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static class Flight<V> {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        volatile long completedAt;
+    }
+}
@@ -0,0 +1,64 @@
+package com.kookykraftmc.market;
+
+/**
+ * One completed purchase, as stored in the sales history.
+ */
+public class Sale {
+    private final String itemType;
+    private final double unitPrice;
+    private final int quantity;
+    private final long timestamp;
+    private final String server;
+
+    public Sale(String itemType, double unitPrice, int quantity, long timestamp, String server) {
+        this.itemType = itemType;
+        this.unitPrice = unitPrice;
+        this.quantity = quantity;
+        this.timestamp = timestamp;
+        this.server = server;
+    }
+
+    public String getItemType() {
+        return itemType;
+    }
+
+    public double getUnitPrice() {
+        return unitPrice;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * Encode the sale as a Redis sorted set member. {@code sequence} keeps
+     * members of identical sales made in the same millisecond distinct.
+     */
+    public String encode(long sequence) {
+        return itemType + "|" + unitPrice + "|" + quantity + "|" + server + "|" + timestamp + "|" + sequence;
+    }
+
+    /**
+     * @return the decoded sale or null if the member is malformed
+     */
+    public static Sale decode(String member) {
+        String[] parts = member.split("\\|");
+        if (parts.length < 5) {
+            return null;
+        }
+        try {
+            return new Sale(parts[0], Double.parseDouble(parts[1]), Integer.parseInt(parts[2]),
+                    Long.parseLong(parts[4]), parts[3]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.kookykraftmc.market;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over the searchable text of open listings.
+ *
+ * <p>Tokens are kept in a sorted map so a query token matches every indexed
+ * token it is a prefix of. Each posting stores the weight of the best field the
+ * token appeared in; exact token matches score double. A listing must match
+ * every query token to be returned. Documents carry everything needed to show
+ * a result, so searching never deserializes an item.</p>
+ *
+ * <p>Every change bumps a generation, so a rebuild that read the listings
+ * at some generation can tell documents added and removed since then apart
+ * from those it has seen; see {@link #retainOpen} and
+ * {@link #addUnlessRemovedSince}.</p>
+ */
+public class SearchIndex {
+
+    public static final int NAME = 4;
+    public static final int TRANSLATION = 3;
+    public static final int MOD = 2;
+    public static final int LORE = 1;
+
+    private final NavigableMap<String, Map<String, Integer>> postings = new TreeMap<>();
+    private final Map<String, Document> documents = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long generation;
+    // generation each document was added at, and each removed ref was removed at
+    private final Map<String, Long> addedAt = new HashMap<>();
+    private final Map<String, Long> removedAt = new HashMap<>();
+
+    public void add(Document document) {
+        lock.writeLock().lock();
+        try {
+            addUnlocked(document);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a document unless its ref was removed after {@code generation}.
+     *
+     * @return whether the document was added
+     */
+    public boolean addUnlessRemovedSince(Document document, long generation) {
+        lock.writeLock().lock();
+        try {
+            if (removedAt.getOrDefault(document.getRef(), Long.MIN_VALUE) > generation) {
+                return false;
+            }
+            addUnlocked(document);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addUnlocked(Document document) {
+        removeUnlocked(document.getRef());
+        documents.put(document.getRef(), document);
+        document.getTokens().forEach((token, weight) ->
+                postings.computeIfAbsent(token, t -> new HashMap<>()).put(document.getRef(), weight));
+        addedAt.put(document.getRef(), ++generation);
+        removedAt.remove(document.getRef());
+    }
+
+    public void remove(String ref) {
+        lock.writeLock().lock();
+        try {
+            removeUnlocked(ref);
+            removedAt.put(ref, ++generation);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the documents not in {@code open} that were added at or before
+     * {@code generation}; later ones are newer than what {@code open} was
+     * read from.
+     */
+    public void retainOpen(Set<String> open, long generation) {
+        lock.writeLock().lock();
+        try {
+            for (String ref : new ArrayList<>(documents.keySet())) {
+                if (!open.contains(ref) && addedAt.get(ref) <= generation) {
+                    removeUnlocked(ref);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forget removals made before {@code generation}, once no rebuild that
+     * started earlier is pending.
+     */
+    public void forgetRemovalsBefore(long generation) {
+        lock.writeLock().lock();
+        try {
+            removedAt.values().removeIf(removed -> removed < generation);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The current generation, bumped by every change.
+     */
+    public long getGeneration() {
+        lock.readLock().lock();
+        try {
+            return generation;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void removeUnlocked(String ref) {
+        Document old = documents.remove(ref);
+        addedAt.remove(ref);
+        if (old == null) {
+            return;
+        }
+        for (String token : old.getTokens().keySet()) {
+            Map<String, Integer> docs = postings.get(token);
+            if (docs != null) {
+                docs.remove(ref);
+                if (docs.isEmpty()) {
+                    postings.remove(token);
+                }
+            }
+        }
+    }
+
+    public boolean contains(String ref) {
+        lock.readLock().lock();
+        try {
+            return documents.containsKey(ref);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Refs of all indexed documents.
+     */
+    public Set<String> getRefs() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<>(documents.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copy of all indexed documents.
+     */
+    public List<Document> getDocuments() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(documents.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find documents matching every token of the query, best matches first
+     * and cheaper unit prices first among equal scores.
+     *
+     * @param limit maximum number of documents to return
+     */
+    public List<Document> search(String query, int limit) {
+        List<String> queryTokens = tokenize(query);
+        if (queryTokens.isEmpty()) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            Map<String, Integer> scores = null;
+            for (String queryToken : queryTokens) {
+                Map<String, Integer> tokenScores = new HashMap<>();
+                for (Map.Entry<String, Map<String, Integer>> entry
+                        : postings.subMap(queryToken, true, queryToken + Character.MAX_VALUE, false).entrySet()) {
+                    boolean exact = entry.getKey().equals(queryToken);
+                    entry.getValue().forEach((ref, weight) ->
+                            tokenScores.merge(ref, exact ? weight * 2 : weight, Math::max));
+                }
+                if (scores == null) {
+                    scores = tokenScores;
+                } else {
+                    scores.keySet().retainAll(tokenScores.keySet());
+                    for (Map.Entry<String, Integer> score : scores.entrySet()) {
+                        score.setValue(score.getValue() + tokenScores.get(score.getKey()));
+                    }
+                }
+                if (scores.isEmpty()) {
+                    return Collections.emptyList();
+                }
+            }
+            final Map<String, Integer> finalScores = scores;
+            List<Document> results = new ArrayList<>(finalScores.size());
+            for (String ref : finalScores.keySet()) {
+                results.add(documents.get(ref));
+            }
+            results.sort(Comparator.<Document>comparingInt(d -> -finalScores.get(d.getRef()))
+                    .thenComparingDouble(Document::getUnitPrice));
+            return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Split text into lower case alphanumeric tokens, dropping Minecraft
+     * formatting codes.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        String plain = text.replaceAll("\u00a7.", "").toLowerCase(Locale.ROOT);
+        for (String token : plain.split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Searchable view of one listing.
+     */
+    public static class Document {
+        private final String ref;
+        private final String name;
+        private final String sellerName;
+        private final int price;
+        private final int quantity;
+        private final Map<String, Integer> tokens = new HashMap<>();
+
+        public Document(String ref, String name, String sellerName, int price, int quantity) {
+            this.ref = ref;
+            this.name = name;
+            this.sellerName = sellerName;
+            this.price = price;
+            this.quantity = quantity;
+        }
+
+        /**
+         * Index the tokens of {@code text} with the given field weight.
+         */
+        public Document field(String text, int weight) {
+            for (String token : tokenize(text)) {
+                tokens.merge(token, weight, Math::max);
+            }
+            return this;
+        }
+
+        public String getRef() {
+            return ref;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getSellerName() {
+            return sellerName;
+        }
+
+        public int getPrice() {
+            return price;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public double getUnitPrice() {
+            return (double) price / Math.max(1, quantity);
+        }
+
+        Map<String, Integer> getTokens() {
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.kookykraftmc.market;
+
+/**
+ * A read from the storage backend failed. Unchecked so it passes through
+ * loaders such as {@link RequestCoalescer}, where a partial or empty result
+ * would otherwise be taken for a real one.
+ */
+public class StorageException extends RuntimeException {
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
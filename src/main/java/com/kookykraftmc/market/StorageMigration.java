@@ -0,0 +1,371 @@
+package com.kookykraftmc.market;
+
+import org.slf4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Copies listings, the blacklist and the UUID cache from one storage backend
+ * to the other.
+ *
+ * <p>Data is streamed in batches: Redis hashes are read with {@code HSCAN}
+ * cursors and MySQL tables with keyset pages, so the market is never held in
+ * memory as a whole. After each batch the read position is saved in the target
+ * ({@code market_migration} table or {@link RedisKeys#MIGRATION} hash) and an
+ * interrupted migration resumes from there. Writes are idempotent, so a batch
+ * that is copied twice, or returned twice by a scan, is not duplicated.</p>
+ */
+public class StorageMigration {
+
+    public enum Direction {
+        REDIS_TO_MYSQL, MYSQL_TO_REDIS
+    }
+
+    private static final String DONE = "done";
+
+    private final Direction direction;
+    private final RedisProvider redis;
+    private final DataSource mysql;
+    private final String server;
+    private final int batchSize;
+    private final int rowsPerSecond;
+    private final Logger logger;
+    private final RedisLayouts layouts;
+
+    private long startedAt;
+    private long rows;
+
+    /**
+     * @param layouts       the plugin's layouts, so listing copies hold off compaction
+     * @param server        Redis namespace listings are read from or written to
+     * @param rowsPerSecond throughput limit, 0 for none
+     */
+    public StorageMigration(Direction direction, RedisProvider redis, DataSource mysql, RedisLayouts layouts,
+                            String server, int batchSize, int rowsPerSecond, Logger logger) {
+        this.direction = direction;
+        this.redis = redis;
+        this.mysql = mysql;
+        this.layouts = layouts;
+        this.server = server;
+        this.batchSize = Math.max(1, batchSize);
+        this.rowsPerSecond = Math.max(0, rowsPerSecond);
+        this.logger = logger;
+    }
+
+    /**
+     * Run the migration, resuming from the saved positions unless
+     * {@code restart} is set.
+     *
+     * @return the number of rows copied per data set
+     */
+    public Map<String, Integer> run(boolean restart) throws SQLException, InterruptedException {
+        startedAt = System.currentTimeMillis();
+        rows = 0;
+        Map<String, Integer> copied = new LinkedHashMap<>();
+        if (direction == Direction.REDIS_TO_MYSQL) {
+            copied.put("blacklist", scanHash(RedisKeys.BLACKLIST, "blacklist", restart, this::writeBlacklist));
+            copied.put("uuid cache", scanHash(RedisKeys.UUID_CACHE, "uuid_cache", restart, this::writeUuidCache));
+            copied.put("listings", scanHash(RedisKeys.forSale(server), "listings:" + server, restart, this::writeListings));
+        } else {
+            copied.put("blacklist", readBlacklist(restart));
+            copied.put("uuid cache", readUuidCache(restart));
+            copied.put("listings", readListings(restart));
+        }
+        return copied;
+    }
+
+    private interface BatchWriter {
+        void write(List<Map.Entry<String, String>> batch) throws SQLException;
+    }
+
+    //////////////////////////////// REDIS TO MYSQL ////////////////////////////////
+
+    private int scanHash(String key, String name, boolean restart, BatchWriter writer) throws SQLException, InterruptedException {
+        String cursor = restart ? ScanParams.SCAN_POINTER_START : loadCheckpoint(name, ScanParams.SCAN_POINTER_START);
+        if (DONE.equals(cursor)) {
+            return 0;
+        }
+        ScanParams params = new ScanParams().count(batchSize);
+        int count = 0;
+        boolean complete = false;
+        while (!complete) {
+            ScanResult<Map.Entry<String, String>> result;
+            try (Jedis jedis = redis.getResource(key)) {
+                result = jedis.hscan(key, cursor, params);
+            }
+            if (!result.getResult().isEmpty()) {
+                writer.write(result.getResult());
+                count += result.getResult().size();
+            }
+            cursor = result.getCursor();
+            complete = result.isCompleteIteration();
+            saveCheckpoint(name, complete ? DONE : cursor);
+            logger.info("Migrated {} entries of {}", count, name);
+            throttle(result.getResult().size());
+        }
+        return count;
+    }
+
+    private void writeBlacklist(List<Map.Entry<String, String>> batch) throws SQLException {
+        try (Connection conn = mysql.getConnection();
+             PreparedStatement ps = conn.prepareStatement("INSERT IGNORE INTO blacklist (item) VALUES (?)")) {
+            for (Map.Entry<String, String> entry : batch) {
+                ps.setString(1, entry.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private void writeUuidCache(List<Map.Entry<String, String>> batch) throws SQLException {
+        try (Connection conn = mysql.getConnection();
+             PreparedStatement ps = conn.prepareStatement("REPLACE INTO uuid_cache (uuid, name) VALUES (?, ?)")) {
+            for (Map.Entry<String, String> entry : batch) {
+                ps.setString(1, entry.getKey());
+                ps.setString(2, entry.getValue());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    // the open listings hash maps listing ids to sellers; the listing itself is read per id
+    private void writeListings(List<Map.Entry<String, String>> batch) throws SQLException {
+        List<Supplier<Map<String, String>>> listings = new ArrayList<>(batch.size());
+        List<Response<Double>> expiries = new ArrayList<>(batch.size());
+        try (Jedis jedis = redis.getResource(RedisKeys.forSale(server));
+             RedisLayouts.Pin pin = layouts.pin()) {
+            RedisLayouts.Snapshot layout = layouts.get(jedis, server);
+            Pipeline p = jedis.pipelined();
+            for (Map.Entry<String, String> entry : batch) {
+                listings.add(layout.of(entry.getKey()).read(p, server, entry.getKey(),
+                        "Seller", "Item", "Stock", "Price", "Quantity"));
+                expiries.add(p.zscore(RedisKeys.expiry(server), entry.getKey()));
+            }
+            p.sync();
+        }
+        try (Connection conn = mysql.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "INSERT IGNORE INTO listings (seller_uuid, item, stock, price, quantity, expires_at, source_ref) "
+                             + "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < batch.size(); i++) {
+                Map<String, String> listing = listings.get(i).get();
+                if (listing.size() < 5) {
+                    continue;
+                }
+                ps.setString(1, listing.get("Seller"));
+                ps.setString(2, listing.get("Item"));
+                ps.setInt(3, Integer.parseInt(listing.get("Stock")));
+                ps.setInt(4, Integer.parseInt(listing.get("Price")));
+                ps.setInt(5, Integer.parseInt(listing.get("Quantity")));
+                Double expiresAt = expiries.get(i).get();
+                if (expiresAt != null) {
+                    ps.setLong(6, expiresAt.longValue());
+                } else {
+                    ps.setNull(6, Types.BIGINT);
+                }
+                ps.setString(7, new ListingRef(server, batch.get(i).getKey()).toString());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    //////////////////////////////// MYSQL TO REDIS ////////////////////////////////
+
+    private int readBlacklist(boolean restart) throws SQLException, InterruptedException {
+        String name = "blacklist";
+        String after = restart ? "" : loadCheckpoint(name, "");
+        if (DONE.equals(after)) {
+            return 0;
+        }
+        int count = 0;
+        while (true) {
+            List<String> items = new ArrayList<>();
+            try (Connection conn = mysql.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("SELECT item FROM blacklist WHERE item > ? ORDER BY item LIMIT ?")) {
+                ps.setFetchSize(batchSize);
+                ps.setString(1, after);
+                ps.setInt(2, batchSize);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        items.add(rs.getString("item"));
+                    }
+                }
+            }
+            if (items.isEmpty()) {
+                saveCheckpoint(name, DONE);
+                return count;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.BLACKLIST)) {
+                Pipeline p = jedis.pipelined();
+                items.forEach(item -> p.hset(RedisKeys.BLACKLIST, item, String.valueOf(true)));
+                p.sync();
+            }
+            count += items.size();
+            after = items.get(items.size() - 1);
+            saveCheckpoint(name, after);
+            throttle(items.size());
+        }
+    }
+
+    private int readUuidCache(boolean restart) throws SQLException, InterruptedException {
+        String name = "uuid_cache";
+        String after = restart ? "" : loadCheckpoint(name, "");
+        if (DONE.equals(after)) {
+            return 0;
+        }
+        int count = 0;
+        while (true) {
+            Map<String, String> names = new LinkedHashMap<>();
+            try (Connection conn = mysql.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("SELECT uuid, name FROM uuid_cache WHERE uuid > ? ORDER BY uuid LIMIT ?")) {
+                ps.setFetchSize(batchSize);
+                ps.setString(1, after);
+                ps.setInt(2, batchSize);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        names.put(rs.getString("uuid"), rs.getString("name"));
+                        after = rs.getString("uuid");
+                    }
+                }
+            }
+            if (names.isEmpty()) {
+                saveCheckpoint(name, DONE);
+                return count;
+            }
+            try (Jedis jedis = redis.getResource(RedisKeys.UUID_CACHE)) {
+                jedis.hset(RedisKeys.UUID_CACHE, names);
+            }
+            count += names.size();
+            saveCheckpoint(name, after);
+            throttle(names.size());
+        }
+    }
+
+    // listings keep their MySQL ids, so copying a listing again overwrites it
+    private int readListings(boolean restart) throws SQLException, InterruptedException {
+        String name = "listings:" + server;
+        String checkpoint = restart ? "0" : loadCheckpoint(name, "0");
+        if (DONE.equals(checkpoint)) {
+            return 0;
+        }
+        int after = Integer.parseInt(checkpoint);
+        int count = 0;
+        while (true) {
+            int last = after;
+            int copied = 0;
+            try (Connection conn = mysql.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(
+                         "SELECT id, seller_uuid, item, stock, price, quantity, expires_at FROM listings WHERE id > ? ORDER BY id LIMIT ?")) {
+                ps.setFetchSize(batchSize);
+                ps.setInt(1, after);
+                ps.setInt(2, batchSize);
+                try (ResultSet rs = ps.executeQuery();
+                     Jedis jedis = redis.getResource(RedisKeys.forSale(server));
+                     RedisLayouts.Pin pin = layouts.pin()) {
+                    RedisLayouts.Snapshot layout = layouts.get(jedis, server);
+                    Pipeline p = jedis.pipelined();
+                    while (rs.next()) {
+                        String id = String.valueOf(rs.getInt("id"));
+                        RedisLayout listingLayout = layout.of(id);
+                        Map<String, String> listing = new LinkedHashMap<>();
+                        listing.put("Item", rs.getString("item"));
+                        listing.put("Seller", rs.getString("seller_uuid"));
+                        listing.put("Stock", String.valueOf(rs.getInt("stock")));
+                        listing.put("Price", String.valueOf(rs.getInt("price")));
+                        listing.put("Quantity", String.valueOf(rs.getInt("quantity")));
+                        listingLayout.write(p, server, id, listing);
+                        p.hset(RedisKeys.forSale(server), id, listingLayout.openValue(rs.getString("seller_uuid")));
+                        long expiresAt = rs.getLong("expires_at");
+                        if (!rs.wasNull()) {
+                            p.zadd(RedisKeys.expiry(server), expiresAt, id);
+                        }
+                        last = rs.getInt("id");
+                        copied++;
+                    }
+                    if (copied > 0) {
+                        reserveIds(p, last);
+                    }
+                    p.sync();
+                }
+            }
+            if (copied == 0) {
+                saveCheckpoint(name, DONE);
+                return count;
+            }
+            count += copied;
+            after = last;
+            saveCheckpoint(name, String.valueOf(after));
+            logger.info("Migrated {} entries of {}", count, name);
+            throttle(copied);
+        }
+    }
+
+    // make sure new listings are numbered after the copied ones
+    private void reserveIds(Pipeline p, int lastId) {
+        p.eval("local next = tonumber(redis.call('GET', KEYS[1]) or '0') "
+                        + "if next <= tonumber(ARGV[1]) then redis.call('SET', KEYS[1], ARGV[1] + 1) end",
+                1, RedisKeys.lastMarketId(server), String.valueOf(lastId));
+    }
+
+    //////////////////////////////// CHECKPOINTS ////////////////////////////////
+
+    private String loadCheckpoint(String name, String initial) throws SQLException {
+        if (direction == Direction.REDIS_TO_MYSQL) {
+            try (Connection conn = mysql.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("SELECT position FROM market_migration WHERE name = ?")) {
+                ps.setString(1, name);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getString("position") : initial;
+                }
+            }
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.MIGRATION)) {
+            String position = jedis.hget(RedisKeys.MIGRATION, name);
+            return position == null ? initial : position;
+        }
+    }
+
+    private void saveCheckpoint(String name, String position) throws SQLException {
+        if (direction == Direction.REDIS_TO_MYSQL) {
+            try (Connection conn = mysql.getConnection();
+                 PreparedStatement ps = conn.prepareStatement("REPLACE INTO market_migration (name, position, updated_at) VALUES (?, ?, ?)")) {
+                ps.setString(1, name);
+                ps.setString(2, position);
+                ps.setLong(3, System.currentTimeMillis());
+                ps.executeUpdate();
+            }
+            return;
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.MIGRATION)) {
+            jedis.hset(RedisKeys.MIGRATION, name, position);
+        }
+    }
+
+    private void throttle(int count) throws InterruptedException {
+        rows += count;
+        if (rowsPerSecond == 0) {
+            return;
+        }
+        long wait = startedAt + rows * 1000 / rowsPerSecond - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+}
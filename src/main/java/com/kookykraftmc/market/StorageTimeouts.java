@@ -0,0 +1,35 @@
+package com.kookykraftmc.market;
+
+/**
+ * Network timeouts for the storage backends, in milliseconds. Without them a
+ * hung Redis or MySQL server blocks the calling thread forever.
+ */
+public class StorageTimeouts {
+
+    private final int connectMillis;
+    private final int readMillis;
+    private final int borrowMillis;
+
+    /**
+     * @param connectMillis time allowed to open a connection
+     * @param readMillis    time allowed for the reply to a command or query
+     * @param borrowMillis  time allowed to wait for a free pooled connection
+     */
+    public StorageTimeouts(int connectMillis, int readMillis, int borrowMillis) {
+        this.connectMillis = connectMillis;
+        this.readMillis = readMillis;
+        this.borrowMillis = borrowMillis;
+    }
+
+    public int getConnectMillis() {
+        return connectMillis;
+    }
+
+    public int getReadMillis() {
+        return readMillis;
+    }
+
+    public int getBorrowMillis() {
+        return borrowMillis;
+    }
+}
@@ -10,7 +10,8 @@ import org.spongepowered.api.text.format.TextColors;
  */
 public class Texts {
     public static Text MARKET_BASE = Text.builder().color(TextColors.GREEN).append(Text.of("Market")).build();
-    public static Text NO_BUY_ITEM = Text.builder().color(TextColors.RED).append(Text.of("Unable to buy item. Be sure you have enough money to buy it.")).build();
+    public static Text NO_BUY_ITEM = Text.builder().color(TextColors.RED).append(Text.of("Unable to buy item. Be sure you have enough money to buy it and the listing has enough stock.")).build();
+    public static Text INVALID_LOTS = Text.builder().color(TextColors.RED).append(Text.of("The number of lots must be at least 1.")).build();
     public static Text NOT_ENOUGH_ITEMS = Text.builder().color(TextColors.RED).append(Text.of("You cannot set the quantity to more than what you have in your hand.")).build();
     public static Text INVALID_LISTING = Text.builder().color(TextColors.RED).append(Text.of("Unable to get listing.")).build();
     public static Text INV_FULL = Text.builder().color(TextColors.RED).append(Text.of("Unable to add the item to your inventory. Please make sure it is not full. Will try to add the item to your inventory again in 30 seconds.")).build();
@@ -19,11 +20,29 @@ public class Texts {
     public static Text USE_ADD_STOCK = Text.builder().color(TextColors.RED).append(Text.of("You already have a listing of a similar item, please use /market addstock <listing id>.")).build();
 
     public static Text MARKET_LISTING(String id) { return Text.builder().color(TextColors.GREEN).append(Text.of("Market Listing " + id)).build(); }
+    public static Text MARKET_HISTORY(String name) { return Text.builder().color(TextColors.GREEN).append(Text.of("Transactions of " + name)).build(); }
+    public static Text MAIL_DELIVERED(int count) { return Text.builder().color(TextColors.GREEN).append(Text.of(count + " market item(s) from your mailbox were added to your inventory.")).build(); }
+    public static Text ORDER_PLACED(int id) { return Text.builder().color(TextColors.GREEN).append(Text.of("Buy order #" + id + " placed. Bought items are delivered to your inventory.")).build(); }
+    public static Text SOLD_TO_ORDERS(int quantity) { return Text.builder().color(TextColors.GREEN).append(Text.of("Sold " + quantity + " item(s) to buy orders.")).build(); }
+    public static Text MARKET_ORDERS = Text.builder().color(TextColors.GREEN).append(Text.of("Buy Orders")).build();
+    public static Text MIGRATION_DONE(String copied) { return Text.builder().color(TextColors.GREEN).append(Text.of("Storage migration finished, copied " + copied + ". Change Storage.Type and restart to switch backends.")).build(); }
     public static Text MARKET_LISTINGS = Text.builder().color(TextColors.GREEN).append(Text.of("Market Listings")).build();
     public static Text MARKET_SEARCH = Text.builder().color(TextColors.GREEN).append(Text.of("Search Results")).build();
+    public static Text MARKET_PRICES = Text.builder().color(TextColors.GREEN).append(Text.of("Price History")).build();
     public static Text AIR_ITEM = Text.builder().color(TextColors.RED).append(Text.of("Please hold something in your hand.")).build();
     public static Text COULD_NOT_MAKE_LISTNG = Text.builder().color(TextColors.RED).append(Text.of("Could not make listing, sorry.")).build();
     public static Text COULD_NOT_ADD_STOCK = Text.builder().color(TextColors.RED).append(Text.of("Unable to add stock. This means the item you are holding has different data then the item you listed before.")).build();
+    public static Text HISTORY_OTHERS = Text.builder().color(TextColors.RED).append(Text.of("You do not have permission to view the history of other players.")).build();
+    public static Text MAIL_INV_FULL = Text.builder().color(TextColors.RED).append(Text.of("Some returned items did not fit in your inventory. They will be delivered the next time you join.")).build();
+    public static Text ORDER_FAILED = Text.builder().color(TextColors.RED).append(Text.of("Could not place the buy order. Be sure you have enough money for the full order.")).build();
+    public static Text ORDER_CANCELLED = Text.builder().color(TextColors.GREEN).append(Text.of("Buy order cancelled and the remaining escrow refunded.")).build();
+    public static Text ORDER_CANCEL_FAILED = Text.builder().color(TextColors.RED).append(Text.of("Unable to cancel the buy order. Please make sure the id is correct.")).build();
+    public static Text NO_MATCHING_ORDERS = Text.builder().color(TextColors.RED).append(Text.of("There are no buy orders for the item in your hand.")).build();
+    public static Text MIGRATION_STARTED = Text.builder().color(TextColors.GREEN).append(Text.of("Storage migration started. Progress is written to the server log.")).build();
+    public static Text MIGRATION_RUNNING = Text.builder().color(TextColors.RED).append(Text.of("A storage migration is already running.")).build();
+    public static Text MIGRATION_FAILED = Text.builder().color(TextColors.RED).append(Text.of("Storage migration failed. Run the command again to resume, see the server log for details.")).build();
+    public static Text MARKET_UNAVAILABLE = Text.builder().color(TextColors.RED).append(Text.of("The market is temporarily unavailable. Please try again in a moment.")).build();
+    public static Text MARKET_DEGRADED = Text.builder().color(TextColors.RED).append(Text.of("Market degraded: showing the last known listings, which may be out of date.")).build();
     public static Text PLAYERS_ONLY = Text.builder().color(TextColors.RED).append(Text.of("This command can only be used by players.")).build();
     public static Text BLACKLIST_NO_ADD = Text.builder().color(TextColors.RED).append(Text.of("Could not add to blacklist.. maybe try holding something?")).build();
     public static Text BLACKLIST_NO_ADD_2 = Text.builder().color(TextColors.RED).append(Text.of("Could not add to blacklist.")).build();
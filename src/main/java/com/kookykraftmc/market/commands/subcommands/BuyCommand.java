@@ -10,14 +10,11 @@ import org.spongepowered.api.command.args.CommandContext;
 import org.spongepowered.api.command.spec.CommandExecutor;
 import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.item.inventory.ItemStack;
-import org.spongepowered.api.item.inventory.entity.Hotbar;
-import org.spongepowered.api.item.inventory.transaction.InventoryTransactionResult;
-import org.spongepowered.api.item.inventory.type.GridInventory;
 import org.spongepowered.api.service.economy.account.UniqueAccount;
 import org.spongepowered.api.text.Text;
 
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Created by TimeTheCat on 3/18/2017.
@@ -26,6 +23,10 @@ public class BuyCommand implements CommandExecutor {
     Market pl = Market.instance;
     @Override
     public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+        if (pl.isDegraded()) {
+            src.sendMessage(Texts.MARKET_UNAVAILABLE);
+            return CommandResult.success();
+        }
         Optional<String> id = args.getOne(Text.of("id"));
         if (id.isPresent()) {
             if (!(src instanceof Player)) {
@@ -33,24 +34,18 @@ public class BuyCommand implements CommandExecutor {
                 return CommandResult.success();
             }
             Player player = (Player) src;
-            Optional<UniqueAccount> acc = pl.getEconomyService().getOrCreateAccount(player.getUniqueId());
+            int lots = args.<Integer>getOne(Text.of("lots")).orElse(1);
+            if (lots <= 0) {
+                player.sendMessage(Texts.INVALID_LOTS);
+                return CommandResult.success();
+            }
+            Optional<UniqueAccount> acc = pl.getAccount(player.getUniqueId());
             if (acc.isPresent()) {
-                ItemStack a = pl.purchase(acc.get(), id.get());
-                if (a == null) player.sendMessage(Texts.NO_BUY_ITEM);
+                List<ItemStack> items = pl.purchase(acc.get(), id.get(), lots);
+                if (items == null) player.sendMessage(Texts.NO_BUY_ITEM);
                 else {
-                    InventoryTransactionResult offer = player.getInventory().query(Hotbar.class, GridInventory.class).offer(a);
-                    if (!offer.getType().equals(InventoryTransactionResult.Type.SUCCESS)) {
-                        player.sendMessage(Texts.INV_FULL);
-                        pl.getScheduler().createTaskBuilder()
-                                .name("Market " + player.getName() + " " + id)
-                                .execute(new InvFullTask(a, player))
-                                .delay(30, TimeUnit.SECONDS)
-                                .submit(pl);
-                        return CommandResult.success();
-                    } else {
-                        player.sendMessage(Texts.PURCHASE_SUCCESSFUL);
-                        return CommandResult.success();
-                    }
+                    player.sendMessage(InvFullTask.give(player, items) ? Texts.PURCHASE_SUCCESSFUL : Texts.INV_FULL);
+                    return CommandResult.success();
                 }
             }
         }
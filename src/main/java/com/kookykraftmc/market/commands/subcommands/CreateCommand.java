@@ -21,6 +21,10 @@ public class CreateCommand implements CommandExecutor {
     Market pl = Market.instance;
     @Override
     public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+        if (pl.isDegraded()) {
+            src.sendMessage(Texts.MARKET_UNAVAILABLE);
+            return CommandResult.success();
+        }
         if (!(src instanceof Player)) {
             src.sendMessage(Texts.PLAYERS_ONLY);
             return CommandResult.success();
@@ -0,0 +1,43 @@
+package com.kookykraftmc.market.commands.subcommands;
+
+import com.kookykraftmc.market.ListingFilter;
+import com.kookykraftmc.market.Market;
+import com.kookykraftmc.market.MarketGui;
+import com.kookykraftmc.market.Texts;
+import org.spongepowered.api.command.CommandException;
+import org.spongepowered.api.command.CommandResult;
+import org.spongepowered.api.command.CommandSource;
+import org.spongepowered.api.command.args.CommandContext;
+import org.spongepowered.api.command.spec.CommandExecutor;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.format.TextColors;
+
+import java.util.Optional;
+
+public class GuiCommand implements CommandExecutor {
+    Market pl = Market.instance;
+    @Override
+    public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+        if (!(src instanceof Player)) {
+            src.sendMessage(Texts.PLAYERS_ONLY);
+            return CommandResult.success();
+        }
+        if (pl.isDegraded()) {
+            src.sendMessage(Texts.MARKET_UNAVAILABLE);
+            return CommandResult.success();
+        }
+        Optional<String> filters = args.getOne(Text.of("filters"));
+        ListingFilter filter = null;
+        if (filters.isPresent()) {
+            try {
+                filter = ListingFilter.parse(filters.get());
+            } catch (IllegalArgumentException e) {
+                src.sendMessage(Text.of(TextColors.RED, e.getMessage()));
+                return CommandResult.success();
+            }
+        }
+        MarketGui.open(pl, (Player) src, filter);
+        return CommandResult.success();
+    }
+}
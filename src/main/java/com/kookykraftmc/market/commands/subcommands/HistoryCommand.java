@@ -0,0 +1,44 @@
+package com.kookykraftmc.market.commands.subcommands;
+
+import com.kookykraftmc.market.Market;
+import com.kookykraftmc.market.Texts;
+import org.spongepowered.api.command.CommandException;
+import org.spongepowered.api.command.CommandResult;
+import org.spongepowered.api.command.CommandSource;
+import org.spongepowered.api.command.args.CommandContext;
+import org.spongepowered.api.command.spec.CommandExecutor;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.entity.living.player.User;
+import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.format.TextColors;
+
+import java.util.Optional;
+
+public class HistoryCommand implements CommandExecutor {
+    Market pl = Market.instance;
+    @Override
+    public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+        Optional<User> user = args.getOne(Text.of("player"));
+        Optional<String> cursor = args.getOne(Text.of("cursor"));
+        User target;
+        if (user.isPresent()) {
+            target = user.get();
+            boolean self = src instanceof Player && ((Player) src).getUniqueId().equals(target.getUniqueId());
+            if (!self && !src.hasPermission("market.command.history.others")) {
+                src.sendMessage(Texts.HISTORY_OTHERS);
+                return CommandResult.success();
+            }
+        } else if (src instanceof Player) {
+            target = (Player) src;
+        } else {
+            src.sendMessage(Texts.PLAYERS_ONLY);
+            return CommandResult.success();
+        }
+        try {
+            pl.getHistory(target.getUniqueId(), target.getName(), cursor.orElse(null)).sendTo(src);
+        } catch (IllegalArgumentException e) {
+            src.sendMessage(Text.of(TextColors.RED, e.getMessage()));
+        }
+        return CommandResult.success();
+    }
+}
@@ -14,7 +14,7 @@ public class ListingsCommand implements CommandExecutor {
     Market pl = Market.instance;
     @Override
     public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
-        pl.getListings().sendTo(src);
+        pl.getListings(args.hasAny("g")).thenAccept(page -> page.sendTo(src));
         return CommandResult.success();
     }
 }
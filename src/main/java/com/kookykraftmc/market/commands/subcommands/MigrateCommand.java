@@ -0,0 +1,22 @@
+package com.kookykraftmc.market.commands.subcommands;
+
+import com.kookykraftmc.market.Market;
+import com.kookykraftmc.market.Texts;
+import org.spongepowered.api.command.CommandException;
+import org.spongepowered.api.command.CommandResult;
+import org.spongepowered.api.command.CommandSource;
+import org.spongepowered.api.command.args.CommandContext;
+import org.spongepowered.api.command.spec.CommandExecutor;
+
+public class MigrateCommand implements CommandExecutor {
+    Market pl = Market.instance;
+    @Override
+    public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+        if (pl.migrateStorage(src, args.hasAny("r"))) {
+            src.sendMessage(Texts.MIGRATION_STARTED);
+        } else {
+            src.sendMessage(Texts.MIGRATION_RUNNING);
+        }
+        return CommandResult.success();
+    }
+}
@@ -0,0 +1,93 @@
+package com.kookykraftmc.market.commands.subcommands;
+
+import com.kookykraftmc.market.Market;
+import com.kookykraftmc.market.Texts;
+import org.spongepowered.api.command.CommandException;
+import org.spongepowered.api.command.CommandResult;
+import org.spongepowered.api.command.CommandSource;
+import org.spongepowered.api.command.args.CommandContext;
+import org.spongepowered.api.command.spec.CommandExecutor;
+import org.spongepowered.api.data.type.HandTypes;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.item.ItemType;
+import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.action.TextActions;
+import org.spongepowered.api.text.format.TextColors;
+
+import java.util.ArrayList;
+import java.util.Optional;
+
+public class OrderCommand implements CommandExecutor {
+    static Market pl = Market.instance;
+    @Override
+    public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+        java.util.List<Text> texts = new ArrayList<>();
+        texts.add(Text.builder().onClick(TextActions.suggestCommand("/market order create ")).append(Text.of("create <quantity> <price> [item] - Buy items at up to a price each. The money is held until the order fills or is cancelled.")).build());
+        texts.add(Text.builder().onClick(TextActions.suggestCommand("/market order cancel ")).append(Text.of("cancel <id> - Cancel a buy order and get the rest of the money back.")).build());
+        texts.add(Text.builder().onClick(TextActions.suggestCommand("/market order list")).append(Text.of("list [item] - List your buy orders, or all buy orders for an item.")).build());
+        pl.getPaginationService().builder().contents(texts).title(Text.of(TextColors.GREEN, "Market Buy Order Help")).sendTo(src);
+        return CommandResult.success();
+    }
+
+    public static class Create implements CommandExecutor {
+        @Override
+        public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+            if (pl.isDegraded()) {
+                src.sendMessage(Texts.MARKET_UNAVAILABLE);
+                return CommandResult.success();
+            }
+            if (!(src instanceof Player)) {
+                src.sendMessage(Texts.PLAYERS_ONLY);
+                return CommandResult.success();
+            }
+            Player player = (Player) src;
+            Optional<ItemType> itemType = args.getOne(Text.of("item"));
+            if (!itemType.isPresent()) {
+                Optional<ItemStack> held = player.getItemInHand(HandTypes.MAIN_HAND);
+                if (!held.isPresent() || held.get().isEmpty()) {
+                    player.sendMessage(Texts.AIR_ITEM);
+                    return CommandResult.success();
+                }
+                itemType = Optional.of(held.get().getType());
+            }
+            int quantity = args.<Integer>getOne(Text.of("quantity")).get();
+            int price = args.<Integer>getOne(Text.of("price")).get();
+            int id = pl.createBuyOrder(player, itemType.get(), quantity, price);
+            player.sendMessage(id > 0 ? Texts.ORDER_PLACED(id) : Texts.ORDER_FAILED);
+            return CommandResult.success();
+        }
+    }
+
+    public static class Cancel implements CommandExecutor {
+        @Override
+        public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+            if (pl.isDegraded()) {
+                src.sendMessage(Texts.MARKET_UNAVAILABLE);
+                return CommandResult.success();
+            }
+            if (!(src instanceof Player)) {
+                src.sendMessage(Texts.PLAYERS_ONLY);
+                return CommandResult.success();
+            }
+            Player player = (Player) src;
+            int id = args.<Integer>getOne(Text.of("id")).get();
+            boolean cancelled = pl.cancelBuyOrder(player.getUniqueId(), id, player.hasPermission("market.command.staff.cancelorder"));
+            player.sendMessage(cancelled ? Texts.ORDER_CANCELLED : Texts.ORDER_CANCEL_FAILED);
+            return CommandResult.success();
+        }
+    }
+
+    public static class ListOrders implements CommandExecutor {
+        @Override
+        public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+            Optional<ItemType> itemType = args.getOne(Text.of("item"));
+            if (!itemType.isPresent() && !(src instanceof Player)) {
+                src.sendMessage(Texts.PLAYERS_ONLY);
+                return CommandResult.success();
+            }
+            pl.getBuyOrders(itemType.isPresent() ? null : ((Player) src).getUniqueId(), itemType.orElse(null)).sendTo(src);
+            return CommandResult.success();
+        }
+    }
+}
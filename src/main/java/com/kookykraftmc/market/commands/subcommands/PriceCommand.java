@@ -0,0 +1,38 @@
+package com.kookykraftmc.market.commands.subcommands;
+
+import com.kookykraftmc.market.Market;
+import com.kookykraftmc.market.Texts;
+import org.spongepowered.api.command.CommandException;
+import org.spongepowered.api.command.CommandResult;
+import org.spongepowered.api.command.CommandSource;
+import org.spongepowered.api.command.args.CommandContext;
+import org.spongepowered.api.command.spec.CommandExecutor;
+import org.spongepowered.api.data.type.HandTypes;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.item.ItemType;
+import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.text.Text;
+
+import java.util.Optional;
+
+public class PriceCommand implements CommandExecutor {
+    Market pl = Market.instance;
+    @Override
+    public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+        Optional<ItemType> itemType = args.getOne(Text.of("item"));
+        if (!itemType.isPresent()) {
+            if (!(src instanceof Player)) {
+                src.sendMessage(Texts.PLAYERS_ONLY);
+                return CommandResult.success();
+            }
+            Optional<ItemStack> held = ((Player) src).getItemInHand(HandTypes.MAIN_HAND);
+            if (!held.isPresent() || held.get().isEmpty()) {
+                src.sendMessage(Texts.AIR_ITEM);
+                return CommandResult.success();
+            }
+            itemType = Optional.of(held.get().getType());
+        }
+        pl.getPriceSummary(itemType.get()).sendTo(src);
+        return CommandResult.success();
+    }
+}
@@ -1,5 +1,6 @@
 package com.kookykraftmc.market.commands.subcommands;
 
+import com.kookykraftmc.market.ListingFilter;
 import com.kookykraftmc.market.Market;
 import org.spongepowered.api.command.CommandException;
 import org.spongepowered.api.command.CommandResult;
@@ -24,8 +25,10 @@ public class SearchCommand implements CommandExecutor {
     @Override
     public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
         List<Text> texts = new ArrayList<>();
-        texts.add(Text.builder().onClick(TextActions.suggestCommand("/market search name ")).append(Text.of("name - Search for a seller by their name.")).build());
-        texts.add(Text.builder().onClick(TextActions.suggestCommand("/market search item ")).append(Text.of("item - Search for an item id. (Careful with tabbing this one, may freeze your game.)")).build());
+        texts.add(Text.builder().onClick(TextActions.suggestCommand("/market search name ")).append(Text.of("name - Search for a seller by their name. Add -g to search every server.")).build());
+        texts.add(Text.builder().onClick(TextActions.suggestCommand("/market search text ")).append(Text.of("text - Search item names, lore and mods, e.g. diamond sword.")).build());
+        texts.add(Text.builder().onClick(TextActions.suggestCommand("/market search filter ")).append(Text.of("filter - Filter listings, e.g. enchant:sharpness>=4 durability>80% unit-price<=100 mod:thermal")).build());
+        texts.add(Text.builder().onClick(TextActions.suggestCommand("/market search item ")).append(Text.of("item - Search for an item id. Add -g to search every server. (Careful with tabbing this one, may freeze your game.)")).build());
         pl.getPaginationService().builder().contents(texts).title(Text.of(TextColors.GREEN, "Market Search Help")).sendTo(src);
         return CommandResult.success();
     }
@@ -35,7 +38,7 @@ public class SearchCommand implements CommandExecutor {
         public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
             Optional<ItemType> oit = args.getOne(Text.of("item"));
             if (oit.isPresent()) {
-                pl.searchForItem(oit.get()).sendTo(src);
+                pl.searchForItem(oit.get(), args.hasAny("g")).thenAccept(page -> page.sendTo(src));
             } else {
                 src.sendMessage(Text.of(TextColors.RED, "Invalid item type."));
             }
@@ -48,11 +51,41 @@ public class SearchCommand implements CommandExecutor {
         public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
             Optional<User> ou = args.getOne(Text.of("user"));
             if (ou.isPresent()) {
-                pl.searchForUUID(ou.get().getUniqueId()).sendTo(src);
+                pl.searchForUUID(ou.get().getUniqueId(), args.hasAny("g")).thenAccept(page -> page.sendTo(src));
             } else {
                 src.sendMessage(Text.of(TextColors.RED, "Invalid player name."));
             }
             return CommandResult.success();
         }
     }
+
+    public static class TextSearch implements CommandExecutor {
+        @Override
+        public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+            Optional<String> query = args.getOne(Text.of("query"));
+            if (query.isPresent()) {
+                pl.searchForText(query.get()).sendTo(src);
+            } else {
+                src.sendMessage(Text.of(TextColors.RED, "Please enter something to search for."));
+            }
+            return CommandResult.success();
+        }
+    }
+
+    public static class FilterSearch implements CommandExecutor {
+        @Override
+        public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+            Optional<String> filters = args.getOne(Text.of("filters"));
+            if (!filters.isPresent()) {
+                src.sendMessage(Text.of(TextColors.RED, "Please enter at least one filter."));
+                return CommandResult.success();
+            }
+            try {
+                pl.searchByFilter(ListingFilter.parse(filters.get())).sendTo(src);
+            } catch (IllegalArgumentException e) {
+                src.sendMessage(Text.of(TextColors.RED, e.getMessage()));
+            }
+            return CommandResult.success();
+        }
+    }
 }
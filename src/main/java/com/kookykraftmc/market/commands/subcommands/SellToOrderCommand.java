@@ -0,0 +1,55 @@
+package com.kookykraftmc.market.commands.subcommands;
+
+import com.kookykraftmc.market.Market;
+import com.kookykraftmc.market.Texts;
+import org.spongepowered.api.command.CommandException;
+import org.spongepowered.api.command.CommandResult;
+import org.spongepowered.api.command.CommandSource;
+import org.spongepowered.api.command.args.CommandContext;
+import org.spongepowered.api.command.spec.CommandExecutor;
+import org.spongepowered.api.data.type.HandTypes;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.text.Text;
+
+import java.util.Optional;
+
+public class SellToOrderCommand implements CommandExecutor {
+    Market pl = Market.instance;
+    @Override
+    public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+        if (pl.isDegraded()) {
+            src.sendMessage(Texts.MARKET_UNAVAILABLE);
+            return CommandResult.success();
+        }
+        if (!(src instanceof Player)) {
+            src.sendMessage(Texts.PLAYERS_ONLY);
+            return CommandResult.success();
+        }
+        Player player = (Player) src;
+        Optional<ItemStack> ois = player.getItemInHand(HandTypes.MAIN_HAND);
+        if (!ois.isPresent() || ois.get().isEmpty()) {
+            player.sendMessage(Texts.AIR_ITEM);
+            return CommandResult.success();
+        }
+        ItemStack itemStack = ois.get();
+        int quantity = args.<Integer>getOne(Text.of("quantity")).orElse(itemStack.getQuantity());
+        if (quantity <= 0) {
+            player.sendMessage(Texts.NO_MATCHING_ORDERS);
+            return CommandResult.success();
+        }
+        int sold = pl.sellToOrders(player, itemStack, quantity);
+        if (sold == 0) {
+            player.sendMessage(Texts.NO_MATCHING_ORDERS);
+            return CommandResult.success();
+        }
+        if (sold >= itemStack.getQuantity()) {
+            player.setItemInHand(HandTypes.MAIN_HAND, null);
+        } else {
+            itemStack.setQuantity(itemStack.getQuantity() - sold);
+            player.setItemInHand(HandTypes.MAIN_HAND, itemStack);
+        }
+        player.sendMessage(Texts.SOLD_TO_ORDERS(sold));
+        return CommandResult.success();
+    }
+}
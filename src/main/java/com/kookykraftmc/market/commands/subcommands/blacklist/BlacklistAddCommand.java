@@ -1,5 +1,6 @@
 package com.kookykraftmc.market.commands.subcommands.blacklist;
 
+import com.kookykraftmc.market.BlacklistMatcher;
 import com.kookykraftmc.market.Market;
 import com.kookykraftmc.market.Texts;
 import com.kookykraftmc.market.MySqlStorageService;
@@ -23,6 +24,11 @@ public class BlacklistAddCommand implements CommandExecutor {
     Market pl = Market.instance;
     @Override
     public CommandResult execute(CommandSource src, CommandContext args) throws CommandException {
+        Optional<String> pattern = args.getOne("pattern");
+        if (pattern.isPresent()) {
+            add(src, pattern.get());
+            return CommandResult.success();
+        }
         if (!(src instanceof Player)) {
             src.sendMessage(Texts.PLAYERS_ONLY);
             return CommandResult.success();
@@ -39,19 +45,23 @@ public class BlacklistAddCommand implements CommandExecutor {
             } else {
                 id = si.getItem().getId();
             }
-            boolean s = pl.blacklistAddCmd(id);
-            if (s) {
-                src.sendMessage(Texts.ADD_TO_BLACKLIST(id));
-                MySqlStorageService sql = pl.getMySqlStorageService();
-                if (sql != null) {
-                    sql.insertBlacklistEvent("BLACKLIST_ADD", id);
-                }
-            } else {
-                src.sendMessage(Texts.BLACKLIST_NO_ADD_2);
-            }
+            add(src, id);
         } else {
             src.sendMessage(Texts.BLACKLIST_NO_ADD);
         }
         return CommandResult.success();
     }
+
+    private void add(CommandSource src, String id) {
+        boolean s = BlacklistMatcher.isValid(id) && pl.blacklistAddCmd(id);
+        if (s) {
+            src.sendMessage(Texts.ADD_TO_BLACKLIST(id));
+            MySqlStorageService sql = pl.getMySqlStorageService();
+            if (sql != null) {
+                sql.insertBlacklistEvent("BLACKLIST_ADD", id);
+            }
+        } else {
+            src.sendMessage(Texts.BLACKLIST_NO_ADD_2);
+        }
+    }
 }
@@ -1,30 +1,86 @@
 package com.kookykraftmc.market.sql;
 
+import com.kookykraftmc.market.CircuitBreaker;
+import com.kookykraftmc.market.StorageTimeouts;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import org.slf4j.Logger;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class Database {
 
+    // MySQL: duplicate column, duplicate key name. H2: column exists, index exists.
+    private static final Set<Integer> ALREADY_APPLIED_ERRORS = new HashSet<>(Arrays.asList(1060, 1061, 42121, 42111));
+
     private final HikariDataSource dataSource;
+    private final StorageTimeouts timeouts;
     private final Logger logger;
+    private volatile CircuitBreaker breaker;
+
+    // Optional read replicas used for browse and search queries
+    private final List<HikariDataSource> replicas = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
 
-    public Database(String host, int port, String database, String username, String password, Logger logger) {
+    // Keys (player uuids, listing ids) written recently, mapped to the time the
+    // replication lag guard for them expires
+    private final Map<String, Long> recentWrites = new ConcurrentHashMap<>();
+    private long lagGuardMillis = TimeUnit.SECONDS.toMillis(5);
+
+    public Database(String host, int port, String database, String username, String password,
+                    StorageTimeouts timeouts, Logger logger) {
+        this(mySqlConfig(host, port, database, username, password, timeouts, logger), timeouts, logger);
+    }
+
+    private Database(HikariConfig config, StorageTimeouts timeouts, Logger logger) {
         this.logger = logger;
+        this.timeouts = timeouts;
+        this.dataSource = new HikariDataSource(config);
+    }
 
+    /**
+     * Open the embedded H2 database stored in {@code directory}, for servers
+     * without MySQL or Redis. H2 runs in MySQL compatibility mode so the same
+     * schema and queries work unchanged. Commits are written through before
+     * they return, and the store stays consistent if the server crashes.
+     */
+    public static Database embedded(File directory, Logger logger) {
+        HikariConfig config = new HikariConfig();
+        config.setDriverClassName("org.h2.Driver");
+        config.setJdbcUrl("jdbc:h2:file:" + new File(directory, "market").getAbsolutePath()
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;CASE_INSENSITIVE_IDENTIFIERS=TRUE;WRITE_DELAY=0");
+        config.setUsername("sa");
+        config.setPassword("");
+        config.setMaximumPoolSize(4);
+        config.setMinimumIdle(1);
+        config.setPoolName("MarketHikari-Embedded");
+        return new Database(config, null, logger);
+    }
+
+    private static HikariConfig mySqlConfig(String host, int port, String database, String username, String password,
+                                            StorageTimeouts timeouts, Logger logger) {
         // Ensure the target database exists before initializing the pool. Some
         // MySQL setups do not create databases automatically which would cause
         // later connection attempts to fail and no tables to be created.
-        String baseJdbc = "jdbc:mysql://" + host + ":" + port + "/";
+        String baseJdbc = "jdbc:mysql://" + host + ":" + port + "/?" + timeoutParameters(timeouts);
         try (Connection conn = DriverManager.getConnection(baseJdbc, username, password);
              Statement st = conn.createStatement()) {
             st.executeUpdate("CREATE DATABASE IF NOT EXISTS `" + database + "`");
@@ -33,19 +89,147 @@ public class Database {
         }
 
         HikariConfig config = new HikariConfig();
-        config.setJdbcUrl("jdbc:mysql://" + host + ":" + port + "/" + database + "?useSSL=false&serverTimezone=UTC");
+        config.setJdbcUrl(mySqlUrl(host, port, database, timeouts));
         config.setUsername(username);
         config.setPassword(password);
         config.setMaximumPoolSize(10);
         config.setMinimumIdle(2);
         config.setPoolName("MarketHikari");
-        this.dataSource = new HikariDataSource(config);
+        applyTimeouts(config, timeouts);
+        return config;
+    }
+
+    private static String mySqlUrl(String host, int port, String database, StorageTimeouts timeouts) {
+        return "jdbc:mysql://" + host + ":" + port + "/" + database + "?useSSL=false&serverTimezone=UTC&" + timeoutParameters(timeouts);
+    }
+
+    private static String timeoutParameters(StorageTimeouts timeouts) {
+        return "connectTimeout=" + timeouts.getConnectMillis() + "&socketTimeout=" + timeouts.getReadMillis();
+    }
+
+    private static void applyTimeouts(HikariConfig config, StorageTimeouts timeouts) {
+        // Hikari refuses anything below 250ms
+        config.setConnectionTimeout(Math.max(250, timeouts.getBorrowMillis()));
+        config.setValidationTimeout(Math.max(250, Math.min(timeouts.getBorrowMillis(), timeouts.getReadMillis())));
+    }
+
+    /**
+     * Report the outcome of every primary connection to {@code breaker}, and
+     * refuse connections while it is open.
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    /**
+     * Get a connection to the primary database.
+     *
+     * @throws SQLTransientConnectionException if the circuit breaker is open
+     */
+    public Connection getConnection() throws SQLException {
+        CircuitBreaker breaker = this.breaker;
+        if (breaker == null) {
+            return dataSource.getConnection();
+        }
+        if (!breaker.allowRequest()) {
+            throw new SQLTransientConnectionException("Market database unavailable, circuit breaker open", "08001");
+        }
+        Connection connection;
+        try {
+            connection = dataSource.getConnection();
+        } catch (SQLException e) {
+            if (GuardedConnection.isOutage(e)) {
+                breaker.recordFailure();
+            }
+            throw e;
+        }
+        return GuardedConnection.wrap(connection, breaker);
     }
 
     public HikariDataSource getDataSource() {
         return dataSource;
     }
 
+    /**
+     * Register a read replica of the primary database. Replicas are used in
+     * round robin order by {@link #getReadConnection(String...)}. A replica
+     * that cannot be reached is skipped, so reads stay on the primary and the
+     * other replicas until the next restart.
+     */
+    public void addReplica(String host, int port, String database, String username, String password) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(mySqlUrl(host, port, database, timeouts));
+        config.setUsername(username);
+        config.setPassword(password);
+        config.setMaximumPoolSize(10);
+        config.setMinimumIdle(2);
+        config.setReadOnly(true);
+        applyTimeouts(config, timeouts);
+        config.setPoolName("MarketHikari-Replica-" + (replicas.size() + 1));
+        try {
+            replicas.add(new HikariDataSource(config));
+        } catch (RuntimeException e) {
+            logger.warn("Read replica {}:{} unavailable, not using it", host, port, e);
+        }
+    }
+
+    public void setReplicaLagGuard(long time, TimeUnit unit) {
+        this.lagGuardMillis = unit.toMillis(time);
+    }
+
+    /**
+     * Record that the given keys were just written on the primary. Reads for
+     * these keys are served by the primary until the lag guard expires so a
+     * player always sees their own writes.
+     */
+    public void markWritten(String... keys) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (recentWrites.size() > 1024) {
+            recentWrites.values().removeIf(expiry -> expiry <= now);
+        }
+        for (String key : keys) {
+            recentWrites.put(key, now + lagGuardMillis);
+        }
+    }
+
+    /**
+     * Get a connection for a read only query. A replica is used unless one of
+     * the given keys was written recently, or no replica is reachable, in
+     * which case the primary serves the read.
+     */
+    public Connection getReadConnection(String... keys) throws SQLException {
+        if (replicas.isEmpty() || isRecentlyWritten(keys)) {
+            return getConnection();
+        }
+        int start = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            HikariDataSource replica = replicas.get((start + i) % replicas.size());
+            try {
+                return replica.getConnection();
+            } catch (SQLException e) {
+                logger.warn("Read replica {} unavailable, trying next", replica.getPoolName(), e);
+            }
+        }
+        return getConnection();
+    }
+
+    private boolean isRecentlyWritten(String... keys) {
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            Long expiry = recentWrites.get(key);
+            if (expiry != null) {
+                if (expiry > now) {
+                    return true;
+                }
+                recentWrites.remove(key, expiry);
+            }
+        }
+        return false;
+    }
+
     public void runMigrations() {
         try (Connection conn = dataSource.getConnection();
              Statement st = conn.createStatement();
@@ -59,8 +243,17 @@ public class Database {
                 String sql = reader.lines().collect(Collectors.joining("\n"));
                 for (String statement : sql.split(";")) {
                     String trimmed = statement.trim();
-                    if (!trimmed.isEmpty()) {
+                    if (trimmed.isEmpty()) {
+                        continue;
+                    }
+                    try {
                         st.execute(trimmed);
+                    } catch (SQLException e) {
+                        // ALTER TABLE and CREATE INDEX have no IF NOT EXISTS in MySQL,
+                        // so re-running them on an up to date schema fails harmlessly
+                        if (!ALREADY_APPLIED_ERRORS.contains(e.getErrorCode())) {
+                            throw e;
+                        }
                     }
                 }
             }
@@ -70,6 +263,9 @@ public class Database {
     }
 
     public void close() {
+        for (HikariDataSource replica : replicas) {
+            replica.close();
+        }
         if (dataSource != null) {
             dataSource.close();
         }
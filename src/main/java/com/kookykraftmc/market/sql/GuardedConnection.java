@@ -0,0 +1,104 @@
+package com.kookykraftmc.market.sql;
+
+import com.kookykraftmc.market.CircuitBreaker;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reports the outcome of a connection's use to a {@link CircuitBreaker}.
+ *
+ * <p>The connection and the statements and result sets it creates are
+ * wrapped. An exception showing that the server is unreachable or did not
+ * answer in time counts as a failure; closing a connection that saw no such
+ * exception counts as a success. Ordinary SQL errors such as constraint
+ * violations say nothing about availability and are ignored.</p>
+ */
+final class GuardedConnection implements InvocationHandler {
+
+    private static final Set<Class<?>> WRAPPED = new HashSet<>(Arrays.asList(
+            Statement.class, PreparedStatement.class, CallableStatement.class, ResultSet.class));
+
+    private final Object target;
+    private final Use use;
+
+    private GuardedConnection(Object target, Use use) {
+        this.target = target;
+        this.use = use;
+    }
+
+    static Connection wrap(Connection connection, CircuitBreaker breaker) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new GuardedConnection(connection, new Use(breaker)));
+    }
+
+    static boolean isOutage(SQLException e) {
+        return e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLTimeoutException || e instanceof SQLRecoverableException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("08"));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Object result;
+        try {
+            result = method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException && isOutage((SQLException) cause)) {
+                use.failed();
+            }
+            throw cause;
+        }
+        if (target instanceof Connection && method.getName().equals("close")) {
+            use.closed();
+        }
+        if (result != null && WRAPPED.contains(method.getReturnType())) {
+            return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{method.getReturnType()},
+                    new GuardedConnection(result, use));
+        }
+        return result;
+    }
+
+    /**
+     * One borrowed connection's outcome, reported once.
+     */
+    private static final class Use {
+        private final CircuitBreaker breaker;
+        private boolean failed;
+        private boolean reported;
+
+        Use(CircuitBreaker breaker) {
+            this.breaker = breaker;
+        }
+
+        synchronized void failed() {
+            if (!failed) {
+                failed = true;
+                breaker.recordFailure();
+            }
+        }
+
+        synchronized void closed() {
+            if (!failed && !reported) {
+                reported = true;
+                breaker.recordSuccess();
+            }
+        }
+    }
+}
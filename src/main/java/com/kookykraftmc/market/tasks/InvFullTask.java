@@ -4,10 +4,12 @@ import com.kookykraftmc.market.Market;
 import com.kookykraftmc.market.Texts;
 import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.item.inventory.ItemStackSnapshot;
 import org.spongepowered.api.item.inventory.entity.Hotbar;
 import org.spongepowered.api.item.inventory.transaction.InventoryTransactionResult;
 import org.spongepowered.api.item.inventory.type.GridInventory;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -30,6 +32,29 @@ public class InvFullTask implements Runnable {
         this.attemptsLeft = attemptsLeft;
     }
 
+    /**
+     * Put bought items into a player's inventory. Items that do not fit are
+     * tried again later.
+     *
+     * @return false if some items did not fit
+     */
+    public static boolean give(Player player, List<ItemStack> items) {
+        Market pl = Market.instance;
+        boolean fit = true;
+        for (ItemStack item : items) {
+            InventoryTransactionResult offer = player.getInventory().query(Hotbar.class, GridInventory.class).offer(item);
+            for (ItemStackSnapshot rejected : offer.getRejectedItems()) {
+                fit = false;
+                pl.getScheduler().createTaskBuilder()
+                        .name("Market Delivery")
+                        .execute(new InvFullTask(rejected.createStack(), player))
+                        .delay(30, TimeUnit.SECONDS)
+                        .submit(pl);
+            }
+        }
+        return fit;
+    }
+
     @Override
     public void run() {
         InventoryTransactionResult offer = player.getInventory().query(Hotbar.class, GridInventory.class).offer(item);
@@ -15,3 +15,107 @@ CREATE TABLE IF NOT EXISTS uuid_cache (
     uuid VARCHAR(36) PRIMARY KEY,
     name VARCHAR(16) NOT NULL
 );
+
+ALTER TABLE listings ADD COLUMN item_type VARCHAR(128);
+ALTER TABLE listings ADD COLUMN mod_id VARCHAR(64);
+ALTER TABLE listings ADD COLUMN durability_pct SMALLINT;
+ALTER TABLE listings ADD COLUMN unit_price DOUBLE;
+CREATE INDEX idx_listings_item_type ON listings (item_type);
+CREATE INDEX idx_listings_mod_id ON listings (mod_id);
+CREATE INDEX idx_listings_durability ON listings (durability_pct);
+CREATE INDEX idx_listings_unit_price ON listings (unit_price);
+
+CREATE TABLE IF NOT EXISTS listing_enchantments (
+    listing_id INT NOT NULL,
+    enchant VARCHAR(128) NOT NULL,
+    level INT NOT NULL,
+    PRIMARY KEY (listing_id, enchant),
+    FOREIGN KEY (listing_id) REFERENCES listings (id) ON DELETE CASCADE
+);
+CREATE INDEX idx_listing_enchantments_level ON listing_enchantments (enchant, level);
+
+CREATE TABLE IF NOT EXISTS market_sales (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    item_type VARCHAR(128) NOT NULL,
+    unit_price DOUBLE NOT NULL,
+    quantity INT NOT NULL,
+    sold_at BIGINT NOT NULL,
+    server VARCHAR(64) NOT NULL
+);
+CREATE INDEX idx_market_sales_sold_at ON market_sales (sold_at);
+CREATE INDEX idx_market_sales_item ON market_sales (item_type, sold_at);
+
+CREATE TABLE IF NOT EXISTS market_price_stats (
+    item_type VARCHAR(128) NOT NULL,
+    period VARCHAR(8) NOT NULL,
+    sales INT NOT NULL,
+    volume BIGINT NOT NULL,
+    min_price DOUBLE NOT NULL,
+    median_price DOUBLE NOT NULL,
+    avg_price DOUBLE NOT NULL,
+    updated_at BIGINT NOT NULL,
+    PRIMARY KEY (item_type, period)
+);
+
+CREATE TABLE IF NOT EXISTS market_ledger (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    player_uuid VARCHAR(36) NOT NULL,
+    ts BIGINT NOT NULL,
+    action VARCHAR(16) NOT NULL,
+    other_uuid VARCHAR(36),
+    listing VARCHAR(96) NOT NULL,
+    item_type VARCHAR(128) NOT NULL,
+    quantity INT NOT NULL,
+    price INT NOT NULL,
+    server VARCHAR(64) NOT NULL
+);
+CREATE INDEX idx_market_ledger_player ON market_ledger (player_uuid, ts, id);
+
+ALTER TABLE listings ADD COLUMN expires_at BIGINT;
+CREATE INDEX idx_listings_expires_at ON listings (expires_at);
+
+CREATE TABLE IF NOT EXISTS market_mailbox (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    player_uuid VARCHAR(36) NOT NULL,
+    item TEXT NOT NULL,
+    quantity INT NOT NULL,
+    created_at BIGINT NOT NULL
+);
+CREATE INDEX idx_market_mailbox_player ON market_mailbox (player_uuid);
+
+CREATE TABLE IF NOT EXISTS market_orders (
+    id INT AUTO_INCREMENT PRIMARY KEY,
+    player_uuid VARCHAR(36) NOT NULL,
+    item_type VARCHAR(128) NOT NULL,
+    max_price INT NOT NULL,
+    remaining INT NOT NULL,
+    escrow BIGINT NOT NULL,
+    created_at BIGINT NOT NULL,
+    server VARCHAR(64) NOT NULL
+);
+CREATE INDEX idx_market_orders_server ON market_orders (server);
+
+ALTER TABLE listings ADD COLUMN source_ref VARCHAR(128);
+CREATE UNIQUE INDEX idx_listings_source_ref ON listings (source_ref);
+
+CREATE TABLE IF NOT EXISTS market_migration (
+    name VARCHAR(128) PRIMARY KEY,
+    position VARCHAR(255) NOT NULL,
+    updated_at BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS market_payouts (
+    seller_uuid VARCHAR(36) PRIMARY KEY,
+    amount BIGINT NOT NULL
+);
+-- Set while a server deposits the payout; a claim older than the lease is taken over
+ALTER TABLE market_payouts ADD COLUMN claimed_at BIGINT;
+
+CREATE TABLE IF NOT EXISTS market_events (
+    id INT AUTO_INCREMENT PRIMARY KEY,
+    type VARCHAR(64) NOT NULL,
+    item VARCHAR(255) NOT NULL,
+    processed TINYINT(1) DEFAULT 0,
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+);
+CREATE INDEX idx_market_events_processed ON market_events (processed, created_at);
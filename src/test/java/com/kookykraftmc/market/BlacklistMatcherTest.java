@@ -0,0 +1,62 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class BlacklistMatcherTest {
+
+    private final BlacklistMatcher matcher = BlacklistMatcher.compile(Arrays.asList(
+            "minecraft:stone",
+            "minecraft:wool[color=red]",
+            "avaritia:*",
+            "minecraft:stained_*",
+            "nbt:Locked",
+            "bad*pattern"));
+
+    @Test
+    public void testExactIdMatchesAllVariants() {
+        assertTrue(matcher.matches("minecraft:stone"));
+        assertTrue(matcher.matches("minecraft:stone[variant=granite]"));
+        assertFalse(matcher.matches("minecraft:stone_slab"));
+        assertFalse(matcher.matches("minecraft:ston"));
+    }
+
+    @Test
+    public void testBlockStateMatchesOnlyThatState() {
+        assertTrue(matcher.matches("minecraft:wool[color=red]"));
+        assertFalse(matcher.matches("minecraft:wool[color=blue]"));
+        assertFalse(matcher.matches("minecraft:wool"));
+    }
+
+    @Test
+    public void testPrefixPatterns() {
+        assertTrue(matcher.matches("avaritia:infinity_sword"));
+        assertTrue(matcher.matches("avaritia:"));
+        assertTrue(matcher.matches("minecraft:stained_glass[color=red]"));
+        assertFalse(matcher.matches("avaritiaextras:block"));
+        assertFalse(matcher.matches("bad"));
+    }
+
+    @Test
+    public void testTagRules() {
+        assertTrue(matcher.hasTagRules());
+        assertTrue(matcher.matchesTag("Locked"::equals));
+        assertFalse(matcher.matchesTag("Unbreakable"::equals));
+        assertFalse(matcher.matches("nbt:Locked"));
+        assertFalse(BlacklistMatcher.compile(Collections.singletonList("minecraft:dirt")).hasTagRules());
+    }
+
+    @Test
+    public void testValidPatterns() {
+        assertTrue(BlacklistMatcher.isValid("minecraft:dirt"));
+        assertTrue(BlacklistMatcher.isValid("mod:*"));
+        assertFalse(BlacklistMatcher.isValid("*:dirt"));
+        assertFalse(BlacklistMatcher.isValid("nbt:"));
+        assertFalse(BlacklistMatcher.isValid(""));
+        assertFalse(BlacklistMatcher.isValid(null));
+    }
+}
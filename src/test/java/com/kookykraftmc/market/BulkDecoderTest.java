@@ -0,0 +1,70 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class BulkDecoderTest {
+
+    private static List<Integer> inputs(int count) {
+        return IntStream.range(0, count).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    public void testOrderIsKept() {
+        try (BulkDecoder decoder = new BulkDecoder(4, 100, false)) {
+            List<String> results = decoder.decode(inputs(5000), i -> i * 2, (i, parsed) -> i + "=" + parsed);
+            assertEquals(5000, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i + "=" + i * 2, results.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFinishRunsOnCallingThread() {
+        Set<Thread> parseThreads = ConcurrentHashMap.newKeySet();
+        Set<Thread> finishThreads = ConcurrentHashMap.newKeySet();
+        try (BulkDecoder decoder = new BulkDecoder(4, 50, false)) {
+            decoder.decode(inputs(1000), i -> {
+                parseThreads.add(Thread.currentThread());
+                return i;
+            }, (i, parsed) -> {
+                finishThreads.add(Thread.currentThread());
+                return parsed;
+            });
+        }
+        assertFalse(parseThreads.contains(Thread.currentThread()));
+        assertEquals(1, finishThreads.size());
+        assertTrue(finishThreads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void testNullResultsAreDropped() {
+        try (BulkDecoder decoder = new BulkDecoder(4, 7, true)) {
+            List<Integer> results = decoder.decode(inputs(100), i -> i % 2 == 0 ? i : null, (i, parsed) -> parsed);
+            assertEquals(50, results.size());
+            assertEquals(98, (int) results.get(49));
+        }
+    }
+
+    @Test
+    public void testSingleThreaded() {
+        try (BulkDecoder decoder = new BulkDecoder(1, 10, false)) {
+            Set<Thread> threads = ConcurrentHashMap.newKeySet();
+            List<Integer> results = decoder.decode(inputs(25), i -> {
+                threads.add(Thread.currentThread());
+                return i + 1;
+            }, (i, parsed) -> parsed);
+            assertEquals(25, results.size());
+            assertEquals(1, (int) results.get(0));
+            assertTrue(threads.contains(Thread.currentThread()));
+        }
+    }
+}
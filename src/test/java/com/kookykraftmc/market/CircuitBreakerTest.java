@@ -0,0 +1,85 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+    private final CircuitBreaker breaker = new CircuitBreaker(3, 100, now::get);
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.isRejecting());
+        breaker.recordFailure();
+        assertTrue(breaker.isRejecting());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testSingleTrialAfterOpenPeriod() {
+        trip();
+        now.addAndGet(99);
+        assertFalse(breaker.allowRequest());
+        now.addAndGet(1);
+        // checking does not use up the trial
+        assertFalse(breaker.isRejecting());
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.isRejecting());
+    }
+
+    @Test
+    public void testTrialSuccessCloses() {
+        trip();
+        now.addAndGet(100);
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertFalse(breaker.isRejecting());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testTrialFailureReopens() {
+        trip();
+        now.addAndGet(100);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        now.addAndGet(50);
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testLostTrialIsReplaced() {
+        trip();
+        now.addAndGet(100);
+        assertTrue(breaker.allowRequest());
+        now.addAndGet(100);
+        assertTrue(breaker.allowRequest());
+    }
+
+    private void trip() {
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+        assertTrue(breaker.isRejecting());
+    }
+}
@@ -0,0 +1,79 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class LazyPagesTest {
+
+    private final List<List<Integer>> loads = new ArrayList<>();
+    private boolean failing;
+
+    private LazyPages<Integer, String> pages(int size) {
+        List<Integer> index = IntStream.range(0, size).boxed().collect(Collectors.toList());
+        return new LazyPages<>(index, 10, keys -> {
+            loads.add(keys);
+            if (failing) {
+                throw new IllegalStateException("backend down");
+            }
+            return keys.stream().map(String::valueOf).collect(Collectors.toList());
+        }, Runnable::run);
+    }
+
+    @Test
+    public void testLoadsRequestedAndNextPageOnly() {
+        LazyPages<Integer, String> pages = pages(50000);
+        assertEquals(5000, pages.getPageCount());
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), pages.getPage(0).join());
+        assertEquals(2, loads.size());
+        assertEquals(10, loads.get(1).get(0).intValue());
+
+        // the prefetched page is served without loading it again
+        assertEquals("10", pages.getPage(1).join().get(0));
+        assertEquals(3, loads.size());
+        assertEquals(20, loads.get(2).get(0).intValue());
+    }
+
+    @Test
+    public void testPagesClampedAndLastPageShort() {
+        LazyPages<Integer, String> pages = pages(25);
+        assertEquals(3, pages.getPageCount());
+        assertEquals(5, pages.getPage(7).join().size());
+        assertEquals("0", pages.getPage(-1).join().get(0));
+        assertEquals(Collections.emptyList(), pages(0).getPage(0).join());
+    }
+
+    @Test
+    public void testOldPagesEvicted() {
+        LazyPages<Integer, String> pages = pages(1000);
+        for (int page = 0; page < 10; page++) {
+            pages.getPage(page).join();
+        }
+        int loaded = loads.size();
+        pages.getPage(9).join();
+        assertEquals(loaded, loads.size());
+        pages.getPage(0).join();
+        assertEquals(loaded + 2, loads.size());
+    }
+
+    @Test
+    public void testFailedAndInvalidatedPagesReloaded() {
+        LazyPages<Integer, String> pages = pages(15);
+        failing = true;
+        assertTrue(pages.getPage(0).isCompletedExceptionally());
+        failing = false;
+        assertEquals("0", pages.getPage(0).join().get(0));
+
+        int loaded = loads.size();
+        pages.invalidate(0);
+        pages.getPage(0).join();
+        assertEquals(loaded + 1, loads.size());
+    }
+}
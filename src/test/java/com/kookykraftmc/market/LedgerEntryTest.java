@@ -0,0 +1,60 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LedgerEntryTest {
+
+    private static final String BUYER = "8d8a4ad5-7a3a-4b6e-9d9a-0c6f3f6b1a01";
+    private static final String SELLER = "1b4e28ba-2fa1-11d2-883f-0016d3cca427";
+
+    @Test
+    public void testEncodeDecode() {
+        LedgerEntry entry = new LedgerEntry(7, BUYER, 1700000000123L, LedgerEntry.Action.BUY, SELLER,
+                "lobby:42", "minecraft:diamond", 3, 150, "lobby");
+        LedgerEntry decoded = LedgerEntry.decode(BUYER, entry.encode(), 2);
+        assertNotNull(decoded);
+        assertEquals(2, decoded.getSequence());
+        assertEquals(BUYER, decoded.getPlayer());
+        assertEquals(1700000000123L, decoded.getTimestamp());
+        assertEquals(LedgerEntry.Action.BUY, decoded.getAction());
+        assertEquals(SELLER, decoded.getOtherPlayer());
+        assertEquals("lobby:42", decoded.getListing());
+        assertEquals("minecraft:diamond", decoded.getItemType());
+        assertEquals(3, decoded.getQuantity());
+        assertEquals(150, decoded.getPrice());
+        assertEquals("lobby", decoded.getServer());
+    }
+
+    @Test
+    public void testDecodeWithoutOtherPlayer() {
+        LedgerEntry entry = new LedgerEntry(1, SELLER, 1700000000123L, LedgerEntry.Action.EXPIRE, null,
+                "lobby:42", "minecraft:diamond", 64, 0, "lobby");
+        assertNull(LedgerEntry.decode(SELLER, entry.encode(), 0).getOtherPlayer());
+    }
+
+    @Test
+    public void testDecodeMalformed() {
+        assertNull(LedgerEntry.decode(BUYER, "BUY|x|lobby:42", 0));
+        assertNull(LedgerEntry.decode(BUYER, "STEAL||lobby:42|minecraft:dirt|1|1|lobby|1700000000123|1", 0));
+        assertNull(LedgerEntry.decode(BUYER, "BUY||lobby:42|minecraft:dirt|one|1|lobby|1700000000123|1", 0));
+    }
+
+    @Test
+    public void testCursorRoundTrip() {
+        LedgerEntry entry = new LedgerEntry(12, BUYER, 1700000000123L, LedgerEntry.Action.SELL, SELLER,
+                "lobby:42", "minecraft:diamond", 1, 10, "lobby");
+        assertArrayEquals(new long[]{1700000000123L, 12}, LedgerEntry.parseCursor(entry.getCursor()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseCursorWithoutSequence() {
+        LedgerEntry.parseCursor("1700000000123");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseCursorNotANumber() {
+        LedgerEntry.parseCursor("yesterday-1");
+    }
+}
@@ -0,0 +1,46 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ListingFilterTest {
+
+    private static ItemAttributes sword(int sharpness, int durability, double unitPrice) {
+        Map<String, Integer> enchantments = new HashMap<>();
+        enchantments.put("minecraft:sharpness", sharpness);
+        return new ItemAttributes("minecraft:diamond_sword", durability, enchantments, unitPrice);
+    }
+
+    @Test
+    public void testEnchantFilterMatchesWithoutNamespace() {
+        ListingFilter filter = ListingFilter.parse("enchant:sharpness>=4");
+        assertTrue(filter.test(sword(5, 100, 10)));
+        assertFalse(filter.test(sword(3, 100, 10)));
+    }
+
+    @Test
+    public void testFiltersAreCombined() {
+        ListingFilter filter = ListingFilter.parse("durability>80% unit-price<=100 mod:minecraft");
+        assertEquals(3, filter.getConditions().size());
+        assertTrue(filter.test(sword(1, 90, 100)));
+        assertFalse(filter.test(sword(1, 80, 100)));
+        assertFalse(filter.test(sword(1, 90, 101)));
+    }
+
+    @Test
+    public void testDurabilityRequiresDamageableItem() {
+        ItemAttributes dirt = new ItemAttributes("minecraft:dirt", -1, Collections.emptyMap(), 1);
+        assertFalse(ListingFilter.parse("durability>=0").test(dirt));
+        assertTrue(ListingFilter.parse("type:dirt").test(dirt));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFilterIsRejected() {
+        ListingFilter.parse("colour:red");
+    }
+}
@@ -0,0 +1,134 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntUnaryOperator;
+
+import static org.junit.Assert.*;
+
+public class ListingLocksTest {
+
+    private final ListingLocks locks = new ListingLocks();
+    private final AtomicInteger stock = new AtomicInteger();
+    private final List<Integer> updates = new ArrayList<>();
+
+    private final IntUnaryOperator backend = amount -> {
+        synchronized (updates) {
+            updates.add(amount);
+        }
+        if (stock.get() < amount) {
+            return -1;
+        }
+        return stock.addAndGet(-amount);
+    };
+
+    @Test
+    public void testSingleReservation() {
+        stock.set(10);
+        assertEquals(7, locks.reserve("a:1", 3, backend));
+        assertEquals(-1, locks.reserve("a:1", 8, backend));
+        assertEquals(7, stock.get());
+    }
+
+    @Test
+    public void testQueuedReservationsCombined() throws Exception {
+        stock.set(10);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            CountDownLatch holding = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Future<?> holder = pool.submit(() -> {
+                try (ListingLocks.Hold hold = locks.lock("a:1")) {
+                    holding.countDown();
+                    release.await();
+                }
+                return null;
+            });
+            holding.await();
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                results.add(pool.submit(() -> locks.reserve("a:1", 2, backend)));
+            }
+            while (locks.queueLength("a:1") < 3) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            holder.get(10, TimeUnit.SECONDS);
+            for (Future<Integer> result : results) {
+                assertEquals(4, result.get(10, TimeUnit.SECONDS).intValue());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, updates.size());
+        assertEquals(6, updates.get(0).intValue());
+    }
+
+    @Test
+    public void testCombinedShortfallFallsBackToSingleUpdates() throws Exception {
+        stock.set(5);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        int reserved = 0;
+        try {
+            CountDownLatch holding = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            pool.submit(() -> {
+                try (ListingLocks.Hold hold = locks.lock("a:1")) {
+                    holding.countDown();
+                    release.await();
+                }
+                return null;
+            });
+            holding.await();
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                results.add(pool.submit(() -> locks.reserve("a:1", 2, backend)));
+            }
+            while (locks.queueLength("a:1") < 3) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<Integer> result : results) {
+                if (result.get(10, TimeUnit.SECONDS) >= 0) {
+                    reserved += 2;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(4, reserved);
+        assertEquals(1, stock.get());
+    }
+
+    @Test
+    public void testConcurrentReservationsNeverOversell() throws Exception {
+        stock.set(100);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        AtomicInteger reserved = new AtomicInteger();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(pool.submit(() -> {
+                    if (locks.reserve("a:1", 1, backend) >= 0) {
+                        reserved.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(100, reserved.get());
+        assertEquals(0, stock.get());
+    }
+}
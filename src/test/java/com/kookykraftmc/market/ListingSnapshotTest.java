@@ -0,0 +1,78 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ListingSnapshotTest {
+
+    private static SearchIndex.Document doc(String ref, String name, int price) {
+        return new SearchIndex.Document(ref, name, "seller", price, 2)
+                .field(name, SearchIndex.NAME)
+                .field("thermal", SearchIndex.MOD);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path file = Files.createTempFile("listings", ".snapshot");
+        try {
+            ListingSnapshot.write(file, "TEST", 1234L, Arrays.asList(doc("TEST:1", "Diamond Sword", 10), doc("TEST:2", "\u00c9p\u00e9e", 7)));
+            ListingSnapshot snapshot = ListingSnapshot.read(file, "TEST");
+            assertEquals(1234L, snapshot.getWrittenAt());
+            List<SearchIndex.Document> docs = snapshot.getDocuments();
+            assertEquals(2, docs.size());
+            assertEquals("\u00c9p\u00e9e", docs.get(1).getName());
+            assertEquals(7, docs.get(1).getPrice());
+            assertEquals(2, docs.get(1).getQuantity());
+
+            SearchIndex index = new SearchIndex();
+            docs.forEach(index::add);
+            assertEquals("TEST:1", index.search("diamond therm", 10).get(0).getRef());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testLargeWeightsRoundTrip() throws IOException {
+        Path file = Files.createTempFile("listings", ".snapshot");
+        try {
+            SearchIndex.Document doc = new SearchIndex.Document("TEST:1", "Diamond", "seller", 10, 1).field("diamond", 1000);
+            ListingSnapshot.write(file, "TEST", 1L, Arrays.asList(doc));
+            assertEquals(1000, (int) ListingSnapshot.read(file, "TEST").getDocuments().get(0).getTokens().get("diamond"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptSnapshotIsRejected() throws IOException {
+        Path file = Files.createTempFile("listings", ".snapshot");
+        try {
+            ListingSnapshot.write(file, "TEST", 1L, Arrays.asList(doc("TEST:1", "Diamond", 10)));
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[bytes.length / 2] ^= 1;
+            Files.write(file, bytes);
+            ListingSnapshot.read(file, "TEST");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOtherServerIsRejected() throws IOException {
+        Path file = Files.createTempFile("listings", ".snapshot");
+        try {
+            ListingSnapshot.write(file, "TEST", 1L, Arrays.asList(doc("TEST:1", "Diamond", 10)));
+            ListingSnapshot.read(file, "OTHER");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.kookykraftmc.market;
+
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.item.inventory.ItemStack;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the {@link Market} API with a synthetic workload and writes a JSON
+ * report.
+ *
+ * <p>N simulated players spread over M simulated servers run a weighted mix
+ * of create, buy, browse, search and addstock operations against one backend,
+ * booted through {@link MarketHarness}. The report holds throughput and
+ * p50/p99/p999 latency per operation, consistency violations found by
+ * comparing what was stocked and bought with what the backend holds, and
+ * backend round trips per operation. Round trips are measured in a separate
+ * single threaded pass afterwards so no operation is charged for another
+ * thread's traffic; browse results are coalesced as in production, so
+ * repeated browses may cost nothing.</p>
+ *
+ * <p>Run with {@code ./gradlew loadTest -Pargs="--backend=redis --servers=2"}.
+ * Options: {@code --backend=h2|redis}, {@code --servers}, {@code --players},
+ * {@code --threads}, {@code --operations}, {@code --profile},
+ * {@code --mix=create:10,buy:40,browse:20,search:20,addstock:10},
+ * {@code --seed} and {@code --report=<file>}.</p>
+ */
+public class LoadGenerator {
+
+    enum Operation {
+        CREATE, BUY, BROWSE, SEARCH, ADDSTOCK
+    }
+
+    private static final String[] ITEMS = {
+            "dirt", "stone", "cobblestone", "sand", "gravel", "log", "planks", "glass",
+            "coal", "iron_ingot", "gold_ingot", "diamond", "redstone", "emerald", "wheat", "bread"
+    };
+    private static final int BALANCE = 100_000_000;
+
+    private final Map<String, String> options;
+    private final MarketHarness harness;
+    private final List<SimPlayer> players = new ArrayList<>();
+    private final List<Listing> listings = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private final Operation[] mix;
+    private final AtomicLong seeds;
+
+    private LoadGenerator(Map<String, String> options) throws IOException {
+        this.options = options;
+        this.harness = option("backend", "h2").equals("redis") ? MarketHarness.redis() : MarketHarness.mySql();
+        this.mix = parseMix(option("mix", "create:10,buy:40,browse:20,search:20,addstock:10"));
+        this.seeds = new AtomicLong(Long.parseLong(option("seed", "1")));
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+        List<Market> servers = new ArrayList<>();
+        servers.add(harness.getMarket());
+        int serverCount = Integer.parseInt(option("servers", "1"));
+        for (int i = 1; i < serverCount; i++) {
+            servers.add(harness.addServer("server" + i));
+        }
+        int playerCount = Integer.parseInt(option("players", "50"));
+        for (int i = 0; i < playerCount; i++) {
+            Market home = servers.get(i % servers.size());
+            players.add(new SimPlayer(harness.player("player" + i, BALANCE), home));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        String report;
+        LoadGenerator generator = new LoadGenerator(options);
+        try {
+            report = generator.run();
+        } finally {
+            generator.harness.close();
+        }
+        String file = options.get("report");
+        if (file == null) {
+            System.out.println(report);
+        } else {
+            Path path = Paths.get(file);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Files.write(path, report.getBytes(StandardCharsets.UTF_8));
+            System.out.println("Wrote " + path.toAbsolutePath());
+        }
+        // the fakes leave non daemon threads behind
+        System.exit(0);
+    }
+
+    private String option(String name, String def) {
+        return options.getOrDefault(name, def);
+    }
+
+    private static Operation[] parseMix(String mix) {
+        List<Operation> weighted = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] entry = part.split(":");
+            Operation operation = Operation.valueOf(entry[0].trim().toUpperCase(Locale.ROOT));
+            for (int i = Integer.parseInt(entry[1].trim()); i > 0; i--) {
+                weighted.add(operation);
+            }
+        }
+        if (weighted.isEmpty()) {
+            throw new IllegalArgumentException("Empty operation mix");
+        }
+        return weighted.toArray(new Operation[0]);
+    }
+
+    private String run() throws Exception {
+        BigDecimal moneyBefore = harness.totalBalance();
+        Random random = new Random(seeds.getAndIncrement());
+        for (SimPlayer player : players) {
+            create(player, random);
+        }
+
+        int threads = Integer.parseInt(option("threads", "8"));
+        int operations = Integer.parseInt(option("operations", "20000"));
+        AtomicInteger remaining = new AtomicInteger(operations);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            long seed = seeds.getAndIncrement();
+            pool.execute(() -> {
+                Random r = new Random(seed);
+                try {
+                    while (remaining.getAndDecrement() > 0) {
+                        execute(mix[r.nextInt(mix.length)], r, stats);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        Map<Operation, Double> roundTrips = profile(Integer.parseInt(option("profile", "100")), random);
+        return report(operations, threads, elapsed, roundTrips, checkConsistency(moneyBefore));
+    }
+
+    /**
+     * Run one operation as a random player and record its latency.
+     */
+    private void execute(Operation operation, Random random, Map<Operation, Stats> into) {
+        SimPlayer player = players.get(random.nextInt(players.size()));
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+            switch (operation) {
+                case CREATE:
+                    ok = create(player, random);
+                    break;
+                case BUY:
+                    ok = buy(player, random);
+                    break;
+                case BROWSE:
+                    ok = player.home.getListings(false).join() != null;
+                    break;
+                case SEARCH:
+                    ok = player.home.searchForText(ITEMS[random.nextInt(ITEMS.length)]) != null;
+                    break;
+                default:
+                    ok = addStock(random);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            into.get(operation).error(System.nanoTime() - start, e);
+            return;
+        }
+        into.get(operation).record(System.nanoTime() - start, ok);
+    }
+
+    private boolean create(SimPlayer player, Random random) {
+        String type = "minecraft:" + ITEMS[random.nextInt(ITEMS.length)];
+        int quantity = 1 + random.nextInt(4);
+        int stock = quantity * (5 + random.nextInt(16));
+        int price = quantity * (1 + random.nextInt(10));
+        int id = player.home.addListing(player.player, MarketHarness.item(type, stock), quantity, price);
+        if (id <= 0) {
+            return false;
+        }
+        listings.add(new Listing(player, id, type, quantity, stock));
+        return true;
+    }
+
+    private boolean buy(SimPlayer buyer, Random random) {
+        Listing listing = randomListing(random);
+        if (listing == null || listing.seller == buyer) {
+            return false;
+        }
+        List<ItemStack> items = buyer.home.purchase(harness.account(buyer.player), listing.ref(), 1);
+        if (items == null) {
+            return false;
+        }
+        listing.sold.addAndGet(items.stream().mapToInt(ItemStack::getQuantity).sum());
+        return true;
+    }
+
+    private boolean addStock(Random random) {
+        Listing listing = randomListing(random);
+        if (listing == null) {
+            return false;
+        }
+        int amount = listing.quantity * (1 + random.nextInt(5));
+        if (!listing.seller.home.addStock(MarketHarness.item(listing.type, amount), String.valueOf(listing.id),
+                listing.seller.player.getUniqueId())) {
+            return false;
+        }
+        listing.stocked.addAndGet(amount);
+        return true;
+    }
+
+    private Listing randomListing(Random random) {
+        synchronized (listings) {
+            return listings.isEmpty() ? null : listings.get(random.nextInt(listings.size()));
+        }
+    }
+
+    /**
+     * Average backend round trips of each operation, run one at a time.
+     */
+    private Map<Operation, Double> profile(int samples, Random random) throws SQLException {
+        Map<Operation, Stats> ignored = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            ignored.put(operation, new Stats());
+        }
+        Map<Operation, Double> roundTrips = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            if (samples <= 0) {
+                break;
+            }
+            long before = harness.roundTrips();
+            for (int i = 0; i < samples; i++) {
+                execute(operation, random, ignored);
+            }
+            roundTrips.put(operation, (double) (harness.roundTrips() - before) / samples);
+        }
+        return roundTrips;
+    }
+
+    /**
+     * Compare what every listing should hold with what the backend holds.
+     */
+    private Map<String, Object> checkConsistency(BigDecimal moneyBefore) throws SQLException {
+        int oversold = 0;
+        int stockMismatch = 0;
+        List<Listing> all;
+        synchronized (listings) {
+            all = new ArrayList<>(listings);
+        }
+        for (Listing listing : all) {
+            int expected = listing.stocked.get() - listing.sold.get();
+            if (expected < 0) {
+                oversold++;
+                continue;
+            }
+            int stock = harness.stock(listing.server(), listing.id);
+            // a listing closes once less than one lot is left; the rest is mailed back
+            boolean consistent = stock < 0 ? expected < listing.quantity : stock == expected;
+            if (!consistent) {
+                stockMismatch++;
+            }
+        }
+        Map<String, Object> violations = new LinkedHashMap<>();
+        violations.put("listings", all.size());
+        violations.put("oversold", oversold);
+        violations.put("stockMismatch", stockMismatch);
+        violations.put("moneyDrift", harness.totalBalance().subtract(moneyBefore));
+        return violations;
+    }
+
+    private String report(int operations, int threads, long elapsedNanos, Map<Operation, Double> roundTrips,
+                          Map<String, Object> violations) {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"backend\": \"").append(option("backend", "h2")).append("\",\n");
+        json.append("  \"servers\": ").append(option("servers", "1")).append(",\n");
+        json.append("  \"players\": ").append(players.size()).append(",\n");
+        json.append("  \"threads\": ").append(threads).append(",\n");
+        json.append("  \"totalOperations\": ").append(operations).append(",\n");
+        json.append("  \"elapsedMillis\": ").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append(",\n");
+        json.append("  \"throughput\": ").append(format(operations / seconds)).append(",\n");
+        json.append("  \"operations\": {\n");
+        List<String> entries = new ArrayList<>();
+        for (Operation operation : Operation.values()) {
+            Stats s = stats.get(operation);
+            long[] latencies = s.sorted();
+            entries.add("    \"" + operation.name().toLowerCase(Locale.ROOT) + "\": {"
+                    + "\"count\": " + latencies.length
+                    + ", \"succeeded\": " + s.succeeded
+                    + ", \"rejected\": " + s.rejected
+                    + ", \"errors\": " + s.errors
+                    + ", \"throughput\": " + format(latencies.length / seconds)
+                    + ", \"p50Micros\": " + percentile(latencies, 0.5)
+                    + ", \"p99Micros\": " + percentile(latencies, 0.99)
+                    + ", \"p999Micros\": " + percentile(latencies, 0.999)
+                    + ", \"roundTrips\": " + (roundTrips.containsKey(operation) ? format(roundTrips.get(operation)) : "null")
+                    + "}");
+        }
+        json.append(String.join(",\n", entries)).append("\n  },\n");
+        json.append("  \"violations\": {");
+        List<String> fields = new ArrayList<>();
+        violations.forEach((name, value) -> fields.add("\"" + name + "\": " + value));
+        json.append(String.join(", ", fields)).append("}\n}\n");
+        return json.toString();
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private static class SimPlayer {
+        private final Player player;
+        private final Market home;
+
+        SimPlayer(Player player, Market home) {
+            this.player = player;
+            this.home = home;
+        }
+    }
+
+    private static class Listing {
+        private final SimPlayer seller;
+        private final int id;
+        private final String type;
+        private final int quantity;
+        private final AtomicInteger stocked;
+        private final AtomicInteger sold = new AtomicInteger();
+
+        Listing(SimPlayer seller, int id, String type, int quantity, int stocked) {
+            this.seller = seller;
+            this.id = id;
+            this.type = type;
+            this.quantity = quantity;
+            this.stocked = new AtomicInteger(stocked);
+        }
+
+        String server() {
+            return seller.home.getServerName();
+        }
+
+        String ref() {
+            return new ListingRef(server(), String.valueOf(id)).toString();
+        }
+    }
+
+    /**
+     * Latencies and outcomes of one operation.
+     */
+    private static class Stats {
+        private long[] latencies = new long[1024];
+        private int size;
+        private int succeeded;
+        private int rejected;
+        private int errors;
+
+        synchronized void record(long nanos, boolean ok) {
+            add(nanos);
+            if (ok) {
+                succeeded++;
+            } else {
+                rejected++;
+            }
+        }
+
+        synchronized void error(long nanos, RuntimeException e) {
+            add(nanos);
+            // print only the first failure, later ones are usually the same
+            if (errors++ == 0) {
+                e.printStackTrace();
+            }
+        }
+
+        private void add(long nanos) {
+            if (size == latencies.length) {
+                latencies = Arrays.copyOf(latencies, size * 2);
+            }
+            latencies[size++] = nanos;
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(latencies, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
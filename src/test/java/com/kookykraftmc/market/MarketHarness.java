@@ -0,0 +1,479 @@
+package com.kookykraftmc.market;
+
+import com.github.fppt.jedismock.RedisServer;
+import com.kookykraftmc.market.sql.Database;
+import ninja.leaping.configurate.commented.SimpleCommentedConfigurationNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.Game;
+import org.spongepowered.api.Server;
+import org.spongepowered.api.data.DataContainer;
+import org.spongepowered.api.data.DataManager;
+import org.spongepowered.api.data.DataQuery;
+import org.spongepowered.api.data.DataView;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.item.ItemType;
+import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.item.inventory.ItemStackSnapshot;
+import org.spongepowered.api.scheduler.Scheduler;
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.service.ServiceManager;
+import org.spongepowered.api.service.economy.Currency;
+import org.spongepowered.api.service.economy.EconomyService;
+import org.spongepowered.api.service.economy.account.UniqueAccount;
+import org.spongepowered.api.service.economy.transaction.ResultType;
+import org.spongepowered.api.service.economy.transaction.TransactionResult;
+import org.spongepowered.api.service.pagination.PaginationList;
+import org.spongepowered.api.service.pagination.PaginationService;
+import org.spongepowered.api.text.translation.Translation;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Boots a {@link Market} without a server, for tests that exercise whole
+ * listing flows against real storage.
+ *
+ * <p>Storage is either H2 in MySQL mode or an in-process Redis server. The
+ * game, scheduler, economy and data manager are fakes: scheduled tasks run
+ * inline, accounts live in memory and items are mocks that only know their
+ * type and quantity. Items are stored as {@code type*quantity} because the
+ * real HOCON format needs Sponge's data translators.</p>
+ *
+ * <p>Several servers can share the backend, see {@link #addServer(String)}.
+ * Backend round trips are counted so tests and the load generator can check
+ * how chatty an operation is: Redis traffic goes through a
+ * {@link RoundTripCounter} and H2 counts executed statements.</p>
+ */
+class MarketHarness implements AutoCloseable {
+
+    static final String SERVER = "test";
+
+    private static final DataQuery TYPE = DataQuery.of("ItemType");
+    private static final DataQuery COUNT = DataQuery.of("Count");
+    private static final Map<String, ItemType> TYPES = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final Database database;
+    private final RedisServer redisServer;
+    private final RoundTripCounter redisCounter;
+    private final RedisProvider redis;
+    private final Logger logger = LoggerFactory.getLogger("Market");
+
+    private final Map<UUID, BigDecimal> balances = new ConcurrentHashMap<>();
+    private final Map<UUID, UniqueAccount> accounts = new ConcurrentHashMap<>();
+    private final Set<UUID> failingDeposits = ConcurrentHashMap.newKeySet();
+    private final TransactionResult success = result(ResultType.SUCCESS);
+    private final TransactionResult noFunds = result(ResultType.ACCOUNT_NO_FUNDS);
+    private final TransactionResult failed = result(ResultType.FAILED);
+    private final Game game = fakeGame();
+    private final List<Market> servers = new ArrayList<>();
+
+    private MarketHarness(boolean useMySql) throws IOException {
+        directory = Files.createTempDirectory("market-test");
+        if (useMySql) {
+            database = Database.embedded(directory.toFile(), logger);
+            database.runMigrations();
+            try (Connection conn = database.getDataSource().getConnection();
+                 Statement st = conn.createStatement()) {
+                st.execute("SET QUERY_STATISTICS_MAX_ENTRIES 100000");
+                st.execute("SET QUERY_STATISTICS TRUE");
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            redisServer = null;
+            redisCounter = null;
+            redis = null;
+        } else {
+            database = null;
+            redisServer = RedisServer.newRedisServer();
+            redisServer.start();
+            redisCounter = new RoundTripCounter(redisServer.getHost(), redisServer.getBindPort());
+            redis = RedisProvider.of(new JedisPool(redisCounter.getHost(), redisCounter.getPort()));
+        }
+        Market.instance = addServer(SERVER);
+    }
+
+    /**
+     * A market on an empty H2 database in MySQL compatibility mode.
+     */
+    static MarketHarness mySql() throws IOException {
+        return new MarketHarness(true);
+    }
+
+    /**
+     * A market on an empty in-process Redis server.
+     */
+    static MarketHarness redis() throws IOException {
+        return new MarketHarness(false);
+    }
+
+    Market getMarket() {
+        return servers.get(0);
+    }
+
+    /**
+     * Start another server on the same backend and economy.
+     */
+    Market addServer(String name) {
+        Market market = new HarnessMarket();
+        set(market, "logger", logger);
+        set(market, "game", game);
+        set(market, "cfg", SimpleCommentedConfigurationNode.root());
+        set(market, "defaultCfg", new File(directory.toFile(), name + ".conf"));
+        set(market, "serverName", name);
+        set(market, "useMySql", database != null);
+        set(market, "database", database);
+        set(market, "redisProvider", redis);
+        servers.add(market);
+        return market;
+    }
+
+    /**
+     * Backend round trips so far. For H2 this is the number of executed
+     * statements, each of which is a round trip on MySQL.
+     */
+    long roundTrips() throws SQLException {
+        if (database == null) {
+            return redisCounter.getRoundTrips();
+        }
+        try (Connection conn = database.getDataSource().getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COALESCE(SUM(EXECUTION_COUNT), 0) FROM INFORMATION_SCHEMA.QUERY_STATISTICS "
+                     + "WHERE SQL_STATEMENT NOT LIKE '%QUERY_STATISTICS%'")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * A player with the given starting balance.
+     */
+    Player player(String name, int balance) {
+        UUID uuid = UUID.nameUUIDFromBytes(name.getBytes());
+        balances.put(uuid, BigDecimal.valueOf(balance));
+        Player player = mock(Player.class);
+        when(player.getUniqueId()).thenReturn(uuid);
+        when(player.getName()).thenReturn(name);
+        return player;
+    }
+
+    UniqueAccount account(Player player) {
+        return account(player.getUniqueId());
+    }
+
+    int balance(Player player) {
+        return balances.getOrDefault(player.getUniqueId(), BigDecimal.ZERO).intValueExact();
+    }
+
+    /**
+     * Money held by all players together.
+     */
+    BigDecimal totalBalance() {
+        return balances.values().stream().reduce(BigDecimal.ZERO, BigDecimal::add);
+    }
+
+    /**
+     * Remaining stock of an open listing, or -1 if it is closed.
+     */
+    int stock(int id) throws SQLException {
+        return stock(SERVER, id);
+    }
+
+    /**
+     * Remaining stock of an open listing of a server, or -1 if it is closed.
+     */
+    int stock(String server, int id) throws SQLException {
+        if (database != null) {
+            try (Connection conn = database.getDataSource().getConnection();
+                 PreparedStatement ps = conn.prepareStatement("SELECT stock FROM listings WHERE id = ?")) {
+                ps.setInt(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getInt("stock") : -1;
+                }
+            }
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.forSale(server))) {
+            if (!jedis.hexists(RedisKeys.forSale(server), String.valueOf(id))) {
+                return -1;
+            }
+            String listing = String.valueOf(id);
+            RedisLayout layout = new RedisLayouts().get(jedis, server).of(listing);
+            return Integer.parseInt(jedis.hget(layout.key(server, listing), layout.field(listing, "Stock")));
+        }
+    }
+
+    /**
+     * Whether any field of a Redis listing is still stored, open or not.
+     */
+    boolean listingStored(int id) {
+        String listing = String.valueOf(id);
+        try (Jedis jedis = redis.getResource(RedisKeys.forSale(SERVER))) {
+            RedisLayout layout = new RedisLayouts().get(jedis, SERVER).of(listing);
+            Pipeline p = jedis.pipelined();
+            Supplier<Map<String, String>> fields = layout.read(p, SERVER, listing, RedisLayout.FIELDS);
+            p.sync();
+            return !fields.get().isEmpty();
+        }
+    }
+
+    /**
+     * Close a Redis listing the way closing worked before listings were
+     * deleted, leaving its fields behind.
+     */
+    void orphan(int id) {
+        try (Jedis jedis = redis.getResource(RedisKeys.forSale(SERVER))) {
+            jedis.hdel(RedisKeys.forSale(SERVER), String.valueOf(id));
+        }
+    }
+
+    /**
+     * Number of entries waiting in a player's mailbox.
+     */
+    int mailCount(Player player) throws SQLException {
+        String uuid = player.getUniqueId().toString();
+        if (database != null) {
+            try (Connection conn = database.getDataSource().getConnection();
+                 PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM market_mailbox WHERE player_uuid = ?")) {
+                ps.setString(1, uuid);
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    return rs.getInt(1);
+                }
+            }
+        }
+        try (Jedis jedis = redis.getResource(RedisKeys.mailbox(uuid))) {
+            return jedis.llen(RedisKeys.mailbox(uuid)).intValue();
+        }
+    }
+
+    /**
+     * Give listings a lifetime, in milliseconds.
+     */
+    void setListingLifetime(long millis) {
+        for (Market market : servers) {
+            set(market, "listingLifetimeMillis", millis);
+        }
+    }
+
+    /**
+     * Credit seller proceeds to pending payouts instead of paying at once.
+     */
+    void setBatchPayouts(boolean batched) {
+        for (Market market : servers) {
+            set(market, "batchPayouts", batched);
+        }
+    }
+
+    /**
+     * Make the economy reject deposits into a player's account.
+     */
+    void setDepositsFail(Player player, boolean fail) {
+        if (fail) {
+            failingDeposits.add(player.getUniqueId());
+        } else {
+            failingDeposits.remove(player.getUniqueId());
+        }
+    }
+
+    void sweepExpiredListings() {
+        try {
+            Method method = Market.class.getDeclaredMethod("sweepExpiredListings");
+            method.setAccessible(true);
+            method.invoke(getMarket());
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Market.instance = null;
+        if (database != null) {
+            database.close();
+        }
+        if (redis != null) {
+            redis.close();
+            redisCounter.close();
+            redisServer.stop();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * A stack of {@code quantity} items of a type. Stacks of the same type
+     * and quantity are equal.
+     */
+    static ItemStack item(String type, int quantity) {
+        ItemType itemType = TYPES.computeIfAbsent(type, id -> {
+            ItemType t = mock(ItemType.class);
+            when(t.getId()).thenReturn(id);
+            return t;
+        });
+        AtomicInteger count = new AtomicInteger(quantity);
+        ItemStack stack = mock(ItemStack.class);
+        when(stack.getType()).thenReturn(itemType);
+        when(stack.getItem()).thenReturn(itemType);
+        when(stack.getQuantity()).thenAnswer(i -> count.get());
+        doAnswer(i -> {
+            count.set(i.getArgument(0));
+            return null;
+        }).when(stack).setQuantity(anyInt());
+        when(stack.getMaxStackQuantity()).thenReturn(64);
+        when(stack.copy()).thenAnswer(i -> item(type, count.get()));
+        when(stack.equalTo(any())).thenAnswer(i -> {
+            ItemStack other = i.getArgument(0);
+            return other.getType().getId().equals(type) && other.getQuantity() == count.get();
+        });
+        Translation translation = mock(Translation.class);
+        when(translation.get()).thenReturn(type);
+        when(stack.getTranslation()).thenReturn(translation);
+        when(stack.createSnapshot()).thenReturn(mock(ItemStackSnapshot.class));
+        return stack;
+    }
+
+    private UniqueAccount account(UUID uuid) {
+        return accounts.computeIfAbsent(uuid, id -> {
+            UniqueAccount account = mock(UniqueAccount.class);
+            when(account.getUniqueId()).thenReturn(id);
+            when(account.withdraw(any(), any(), any())).thenAnswer(i -> transfer(id, i.<BigDecimal>getArgument(1).negate()));
+            when(account.deposit(any(), any(), any())).thenAnswer(i -> failingDeposits.contains(id)
+                    ? failed : transfer(id, i.getArgument(1)));
+            return account;
+        });
+    }
+
+    private synchronized TransactionResult transfer(UUID player, BigDecimal amount) {
+        BigDecimal balance = balances.getOrDefault(player, BigDecimal.ZERO).add(amount);
+        if (balance.signum() < 0) {
+            return noFunds;
+        }
+        balances.put(player, balance);
+        return success;
+    }
+
+    private static TransactionResult result(ResultType type) {
+        TransactionResult result = mock(TransactionResult.class);
+        when(result.getResult()).thenReturn(type);
+        return result;
+    }
+
+    private Game fakeGame() {
+        EconomyService economy = mock(EconomyService.class);
+        when(economy.getDefaultCurrency()).thenReturn(mock(Currency.class));
+        when(economy.getOrCreateAccount(any(UUID.class))).thenAnswer(i -> Optional.of(account(i.<UUID>getArgument(0))));
+
+        PaginationService pagination = mock(PaginationService.class);
+        when(pagination.builder()).thenAnswer(i -> {
+            PaginationList.Builder builder = mock(PaginationList.Builder.class, RETURNS_SELF);
+            when(builder.build()).thenReturn(mock(PaginationList.class));
+            return builder;
+        });
+
+        ServiceManager services = mock(ServiceManager.class);
+        when(services.provide(EconomyService.class)).thenReturn(Optional.of(economy));
+        when(services.provide(PaginationService.class)).thenReturn(Optional.of(pagination));
+
+        DataManager data = mock(DataManager.class);
+        when(data.deserialize(eq(ItemStack.class), any(DataView.class))).thenAnswer(i -> {
+            DataView view = i.getArgument(1);
+            return Optional.of(item(view.getString(TYPE).get(), view.getInt(COUNT).get()));
+        });
+
+        Scheduler scheduler = mock(Scheduler.class);
+        when(scheduler.createTaskBuilder()).thenAnswer(i -> inlineTask());
+
+        Game game = mock(Game.class);
+        when(game.getServiceManager()).thenReturn(services);
+        when(game.getDataManager()).thenReturn(data);
+        when(game.getScheduler()).thenReturn(scheduler);
+        when(game.getServer()).thenReturn(mock(Server.class));
+        return game;
+    }
+
+    /**
+     * A task builder that runs the task on the submitting thread.
+     */
+    private static Task.Builder inlineTask() {
+        AtomicReference<Runnable> runnable = new AtomicReference<>();
+        Task.Builder builder = mock(Task.Builder.class, RETURNS_SELF);
+        when(builder.execute(any(Runnable.class))).thenAnswer(i -> {
+            runnable.set(i.getArgument(0));
+            return builder;
+        });
+        when(builder.submit(any())).thenAnswer(i -> {
+            runnable.get().run();
+            return mock(Task.class);
+        });
+        return builder;
+    }
+
+    private static void set(Market market, String field, Object value) {
+        try {
+            Field f = Market.class.getDeclaredField(field);
+            f.setAccessible(true);
+            f.set(market, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Market with the item codec replaced by {@code type*quantity} strings.
+     */
+    private static class HarnessMarket extends Market {
+        @Override
+        String serializeItem(ItemStack itemStack) {
+            return itemStack.getType().getId() + "*" + itemStack.getQuantity();
+        }
+
+        @Override
+        DataView parseItem(String item) {
+            int split = item.lastIndexOf('*');
+            if (split < 0) {
+                return null;
+            }
+            return DataContainer.createNew()
+                    .set(TYPE, item.substring(0, split))
+                    .set(COUNT, Integer.parseInt(item.substring(split + 1)));
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.kookykraftmc.market;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.spongepowered.api.data.DataView;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.item.inventory.ItemStack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs listing flows end to end against both storage backends, see
+ * {@link MarketHarness}.
+ */
+@RunWith(Parameterized.class)
+public class MarketIntegrationTest {
+
+    private static final String DIRT = "minecraft:dirt";
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> backends() {
+        return Arrays.asList(new Object[][]{{"h2"}, {"redis"}, {"redis-compact"}});
+    }
+
+    private final String backend;
+    private MarketHarness harness;
+    private Market market;
+
+    public MarketIntegrationTest(String backend) {
+        this.backend = backend;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        harness = backend.equals("h2") ? MarketHarness.mySql() : MarketHarness.redis();
+        market = harness.getMarket();
+        if (backend.equals("redis-compact")) {
+            market.compactListings();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        harness.close();
+    }
+
+    private static int count(List<ItemStack> stacks) {
+        return stacks.stream().mapToInt(ItemStack::getQuantity).sum();
+    }
+
+    @Test
+    public void testListingLifecycle() throws Exception {
+        Player seller = harness.player("seller", 0);
+        Player buyer = harness.player("buyer", 100);
+
+        int id = market.addListing(seller, MarketHarness.item(DIRT, 10), 2, 5);
+        assertTrue(id > 0);
+        assertEquals(10, harness.stock(id));
+
+        assertTrue(market.addStock(MarketHarness.item(DIRT, 4), String.valueOf(id), seller.getUniqueId()));
+        assertFalse(market.addStock(MarketHarness.item("minecraft:stone", 4), String.valueOf(id), seller.getUniqueId()));
+        assertEquals(14, harness.stock(id));
+
+        List<ItemStack> bought = market.purchase(harness.account(buyer), String.valueOf(id), 3);
+        assertNotNull(bought);
+        assertEquals(6, count(bought));
+        assertEquals(85, harness.balance(buyer));
+        assertEquals(15, harness.balance(seller));
+        assertEquals(8, harness.stock(id));
+
+        assertFalse(market.removeListing(String.valueOf(id), buyer.getUniqueId().toString(), false).isPresent());
+        Optional<List<ItemStack>> removed = market.removeListing(String.valueOf(id), seller.getUniqueId().toString(), false);
+        assertTrue(removed.isPresent());
+        assertEquals(8, count(removed.get()));
+        assertEquals(-1, harness.stock(id));
+
+        assertNull(market.purchase(harness.account(buyer), String.valueOf(id)));
+        assertEquals(85, harness.balance(buyer));
+    }
+
+    @Test
+    public void testDuplicateListingRejected() {
+        Player seller = harness.player("seller", 0);
+        assertTrue(market.addListing(seller, MarketHarness.item(DIRT, 10), 1, 1) > 0);
+        assertEquals(-1, market.addListing(seller, MarketHarness.item(DIRT, 10), 1, 1));
+    }
+
+    @Test
+    public void testListingIndexLoadsPagesInUnitPriceOrder() {
+        Player seller = harness.player("seller", 0);
+        int dear = market.addListing(seller, MarketHarness.item(DIRT, 10), 1, 5);
+        int cheap = market.addListing(seller, MarketHarness.item("minecraft:stone", 10), 2, 2);
+        int middle = market.addListing(seller, MarketHarness.item("minecraft:sand", 10), 1, 3);
+
+        List<ListingRef> index = market.getListingIndex(null);
+        List<String> ids = new ArrayList<>();
+        index.forEach(ref -> ids.add(ref.getId()));
+        assertEquals(Arrays.asList(String.valueOf(cheap), String.valueOf(middle), String.valueOf(dear)), ids);
+
+        assertTrue(market.removeListing(String.valueOf(middle), seller.getUniqueId().toString(), false).isPresent());
+        List<Map.Entry<ListingRecord, DataView>> page = market.loadListings(index);
+        assertEquals(2, page.size());
+        assertEquals(String.valueOf(cheap), page.get(0).getKey().getRef().getId());
+        assertEquals(String.valueOf(dear), page.get(1).getKey().getRef().getId());
+        assertEquals(5, page.get(1).getKey().getPrice());
+    }
+
+    @Test
+    public void testPurchaseWithoutFunds() throws Exception {
+        Player seller = harness.player("seller", 0);
+        Player buyer = harness.player("buyer", 4);
+        int id = market.addListing(seller, MarketHarness.item(DIRT, 10), 1, 5);
+
+        assertNull(market.purchase(harness.account(buyer), String.valueOf(id)));
+        assertEquals(4, harness.balance(buyer));
+        assertEquals(0, harness.balance(seller));
+        assertEquals(10, harness.stock(id));
+    }
+
+    @Test
+    public void testPurchaseMoreThanStockRefunds() throws Exception {
+        Player seller = harness.player("seller", 0);
+        Player buyer = harness.player("buyer", 100);
+        int id = market.addListing(seller, MarketHarness.item(DIRT, 4), 2, 5);
+
+        assertNull(market.purchase(harness.account(buyer), String.valueOf(id), 3));
+        assertEquals(100, harness.balance(buyer));
+        assertEquals(4, harness.stock(id));
+    }
+
+    @Test
+    public void testLastLotClosesListingAndMailsRemainder() throws Exception {
+        Player seller = harness.player("seller", 0);
+        Player buyer = harness.player("buyer", 100);
+        int id = market.addListing(seller, MarketHarness.item(DIRT, 5), 2, 5);
+
+        assertNotNull(market.purchase(harness.account(buyer), String.valueOf(id), 2));
+        assertEquals(-1, harness.stock(id));
+        assertEquals(1, harness.mailCount(seller));
+    }
+
+    @Test
+    public void testBatchedPayoutsSettleOnce() throws Exception {
+        Player seller = harness.player("seller", 0);
+        Player buyer = harness.player("buyer", 100);
+        harness.setBatchPayouts(true);
+        Market other = harness.addServer("other");
+        int id = market.addListing(seller, MarketHarness.item(DIRT, 10), 2, 5);
+
+        assertNotNull(market.purchase(harness.account(buyer), String.valueOf(id), 2));
+        assertNotNull(market.purchase(harness.account(buyer), String.valueOf(id), 1));
+        assertEquals(85, harness.balance(buyer));
+        assertEquals(0, harness.balance(seller));
+
+        market.settlePayouts();
+        other.settlePayouts();
+        assertEquals(15, harness.balance(seller));
+        assertEquals(100, harness.totalBalance().intValueExact());
+    }
+
+    @Test
+    public void testFailedProceedsDepositRetried() throws Exception {
+        Player seller = harness.player("seller", 0);
+        Player buyer = harness.player("buyer", 100);
+        int id = market.addListing(seller, MarketHarness.item(DIRT, 10), 2, 5);
+
+        harness.setDepositsFail(seller, true);
+        assertNotNull(market.purchase(harness.account(buyer), String.valueOf(id), 2));
+        assertEquals(90, harness.balance(buyer));
+        assertEquals(0, harness.balance(seller));
+
+        market.settlePayouts();
+        assertEquals(0, harness.balance(seller));
+        harness.setDepositsFail(seller, false);
+        market.settlePayouts();
+        assertEquals(10, harness.balance(seller));
+        assertEquals(100, harness.totalBalance().intValueExact());
+    }
+
+    @Test
+    public void testListingsMovedToCompactLayout() throws Exception {
+        assumeTrue(backend.equals("redis"));
+        Player seller = harness.player("seller", 0);
+        Player buyer = harness.player("buyer", 100);
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(market.addListing(seller, MarketHarness.item("minecraft:item" + i, 10), 2, 1));
+        }
+        assertNotNull(market.purchase(harness.account(buyer), String.valueOf(ids.get(0)), 5));
+
+        market.compactListings();
+        assertEquals(-1, harness.stock(ids.get(0)));
+        for (int id : ids.subList(1, ids.size())) {
+            assertEquals(10, harness.stock(id));
+        }
+        assertNotNull(market.purchase(harness.account(buyer), String.valueOf(ids.get(1)), 1));
+        assertEquals(8, harness.stock(ids.get(1)));
+        assertTrue(market.removeListing(String.valueOf(ids.get(2)), seller.getUniqueId().toString(), false).isPresent());
+        int created = market.addListing(seller, MarketHarness.item(DIRT, 4), 2, 1);
+        assertTrue(created > 0);
+        assertEquals(4, harness.stock(created));
+        assertEquals(-1, market.addListing(seller, MarketHarness.item("minecraft:item3", 4), 2, 1));
+    }
+
+    @Test
+    public void testClosedListingsDeletedAndOrphansSwept() throws Exception {
+        assumeTrue(!backend.equals("h2"));
+        Player seller = harness.player("seller", 0);
+        Player buyer = harness.player("buyer", 100);
+        int soldOut = market.addListing(seller, MarketHarness.item(DIRT, 4), 2, 1);
+        int removed = market.addListing(seller, MarketHarness.item("minecraft:stone", 4), 2, 1);
+        int leaked = market.addListing(seller, MarketHarness.item("minecraft:sand", 4), 2, 1);
+
+        assertNotNull(market.purchase(harness.account(buyer), String.valueOf(soldOut), 2));
+        assertTrue(market.removeListing(String.valueOf(removed), seller.getUniqueId().toString(), false).isPresent());
+        assertFalse(harness.listingStored(soldOut));
+        assertFalse(harness.listingStored(removed));
+
+        harness.orphan(leaked);
+        int open = market.addListing(seller, MarketHarness.item("minecraft:gravel", 4), 2, 1);
+        assertTrue(harness.listingStored(leaked));
+        market.sweepOrphanedListings();
+        assertFalse(harness.listingStored(leaked));
+        assertEquals(4, harness.stock(open));
+    }
+
+    @Test
+    public void testExpiredListingMailedBack() throws Exception {
+        Player seller = harness.player("seller", 0);
+        Player buyer = harness.player("buyer", 100);
+        harness.setListingLifetime(1);
+        int id = market.addListing(seller, MarketHarness.item(DIRT, 10), 1, 1);
+        Thread.sleep(10);
+
+        harness.sweepExpiredListings();
+        assertEquals(-1, harness.stock(id));
+        assertEquals(1, harness.mailCount(seller));
+        assertNull(market.purchase(harness.account(buyer), String.valueOf(id)));
+        assertEquals(100, harness.balance(buyer));
+    }
+
+    @Test
+    public void testConcurrentPurchasesNeverOversell() throws Exception {
+        int stock = 20;
+        int buyers = 40;
+        Player seller = harness.player("seller", 0);
+        int id = market.addListing(seller, MarketHarness.item(DIRT, stock), 1, 3);
+
+        List<Player> players = new ArrayList<>();
+        for (int i = 0; i < buyers; i++) {
+            players.add(harness.player("buyer" + i, 10));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<ItemStack>>> results = new ArrayList<>();
+        try {
+            for (Player player : players) {
+                Callable<List<ItemStack>> buy = () -> {
+                    start.await();
+                    return market.purchase(harness.account(player), String.valueOf(id));
+                };
+                results.add(pool.submit(buy));
+            }
+            start.countDown();
+            int bought = 0;
+            for (Future<List<ItemStack>> result : results) {
+                List<ItemStack> items = result.get(30, TimeUnit.SECONDS);
+                if (items != null) {
+                    bought += count(items);
+                }
+            }
+            assertEquals(stock, bought);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(-1, harness.stock(id));
+        assertEquals(stock * 3, harness.balance(seller));
+        int spent = 0;
+        for (Player player : players) {
+            spent += 10 - harness.balance(player);
+        }
+        assertEquals(stock * 3, spent);
+    }
+}
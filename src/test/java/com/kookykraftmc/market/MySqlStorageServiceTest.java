@@ -0,0 +1,97 @@
+package com.kookykraftmc.market;
+
+import com.kookykraftmc.market.sql.Database;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class MySqlStorageServiceTest {
+
+    private final Logger logger = LoggerFactory.getLogger("Market");
+    private Path directory;
+    private Database database;
+    private MySqlStorageService service;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("market-events");
+        database = Database.embedded(directory.toFile(), logger);
+        database.runMigrations();
+        service = new MySqlStorageService(database.getDataSource(), logger);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        database.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testPollReturnsUnprocessedInOrder() {
+        service.insertBlacklistEvent("BLACKLIST_ADD", "minecraft:dirt");
+        service.insertBlacklistEvent("BLACKLIST_ADD", "minecraft:stone");
+        List<MarketEvent> events = service.pollEvents();
+        assertEquals(2, events.size());
+        assertEquals("minecraft:dirt", events.get(0).getItem());
+
+        service.markProcessed(events.get(0).getId());
+        events = service.pollEvents();
+        assertEquals(1, events.size());
+        assertEquals("minecraft:stone", events.get(0).getItem());
+    }
+
+    @Test
+    public void testPruneDeletesOnlyOldProcessedEvents() throws Exception {
+        long now = System.currentTimeMillis();
+        service.insertBlacklistEvent("BLACKLIST_ADD", "minecraft:dirt");
+        service.insertBlacklistEvent("BLACKLIST_ADD", "minecraft:stone");
+        service.insertBlacklistEvent("BLACKLIST_ADD", "minecraft:sand");
+        List<MarketEvent> events = service.pollEvents();
+        service.markProcessed(events.get(0).getId());
+        service.markProcessed(events.get(2).getId());
+        // the first two events are old, only the first is processed
+        age(events.get(0).getId(), now - TimeUnit.DAYS.toMillis(2));
+        age(events.get(1).getId(), now - TimeUnit.DAYS.toMillis(2));
+
+        assertEquals(1, service.pruneEvents(now - TimeUnit.DAYS.toMillis(1)));
+        assertEquals(2, count());
+        assertEquals(1, service.pollEvents().size());
+    }
+
+    private void age(int id, long createdAt) throws SQLException {
+        try (Connection conn = database.getDataSource().getConnection();
+             PreparedStatement ps = conn.prepareStatement("UPDATE market_events SET created_at = ? WHERE id = ?")) {
+            ps.setTimestamp(1, new Timestamp(createdAt));
+            ps.setInt(2, id);
+            ps.executeUpdate();
+        }
+    }
+
+    private int count() throws SQLException {
+        try (Connection conn = database.getDataSource().getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM market_events");
+             ResultSet rs = ps.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class OrderBookTest {
+
+    private static final String DIAMOND = "minecraft:diamond";
+
+    private static BuyOrder order(int id, int price, long createdAt) {
+        return new BuyOrder(id, "buyer" + id, DIAMOND, price, 10, price * 10L, createdAt);
+    }
+
+    private static List<Integer> ids(List<BuyOrder> orders) {
+        return orders.stream().map(BuyOrder::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testPriceTimePriority() {
+        OrderBook book = new OrderBook();
+        book.add(order(1, 5, 100));
+        book.add(order(2, 7, 300));
+        book.add(order(3, 7, 200));
+        assertEquals(3, book.best(DIAMOND).getId());
+        assertEquals(Arrays.asList(3, 2, 1), ids(book.getOrders(DIAMOND)));
+    }
+
+    @Test
+    public void testMatchingStopsBelowPrice() {
+        OrderBook book = new OrderBook();
+        book.add(order(1, 5, 100));
+        book.add(order(2, 7, 200));
+        assertEquals(Collections.singletonList(2), ids(book.matching(DIAMOND, 6.5)));
+        assertTrue(book.matching("minecraft:dirt", 0).isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        OrderBook book = new OrderBook();
+        book.add(order(1, 5, 100));
+        assertEquals(1, book.remove(1).getId());
+        assertNull(book.best(DIAMOND));
+        assertNull(book.remove(1));
+        assertEquals(0, book.size());
+    }
+}
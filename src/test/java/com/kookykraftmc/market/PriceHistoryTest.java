@@ -0,0 +1,63 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PriceHistoryTest {
+
+    private static final long NOW = TimeUnit.DAYS.toMillis(30);
+    private static final String DIAMOND = "minecraft:diamond";
+
+    private static Sale sale(double unitPrice, int quantity, long age) {
+        return new Sale(DIAMOND, unitPrice, quantity, NOW - age, "TEST");
+    }
+
+    @Test
+    public void testAggregatesPerPeriod() {
+        PriceHistory history = new PriceHistory();
+        history.record(sale(10, 1, TimeUnit.MINUTES.toMillis(5)), NOW);
+        history.record(sale(20, 3, TimeUnit.MINUTES.toMillis(30)), NOW);
+        history.record(sale(4, 2, TimeUnit.HOURS.toMillis(5)), NOW);
+
+        Map<PriceHistory.Period, PriceHistory.Summary> summaries = history.getSummaries(DIAMOND, NOW);
+        PriceHistory.Summary hour = summaries.get(PriceHistory.Period.HOUR);
+        assertEquals(2, hour.getSales());
+        assertEquals(4, hour.getVolume());
+        assertEquals(10, hour.getMin(), 0.001);
+        assertEquals(15, hour.getMedian(), 0.001);
+        assertEquals(17.5, hour.getAverage(), 0.001);
+
+        PriceHistory.Summary day = summaries.get(PriceHistory.Period.DAY);
+        assertEquals(3, day.getSales());
+        assertEquals(4, day.getMin(), 0.001);
+        assertEquals(10, day.getMedian(), 0.001);
+    }
+
+    @Test
+    public void testOldSalesExpire() {
+        PriceHistory history = new PriceHistory();
+        history.record(sale(10, 1, TimeUnit.MINUTES.toMillis(50)), NOW);
+        history.drainDirty();
+
+        history.expire(NOW + TimeUnit.MINUTES.toMillis(20));
+        assertTrue(history.drainDirty().contains(DIAMOND));
+        Map<PriceHistory.Period, PriceHistory.Summary> summaries =
+                history.getSummaries(DIAMOND, NOW + TimeUnit.MINUTES.toMillis(20));
+        assertNull(summaries.get(PriceHistory.Period.HOUR));
+        assertEquals(1, summaries.get(PriceHistory.Period.WEEK).getSales());
+
+        history.expire(NOW + TimeUnit.DAYS.toMillis(8));
+        assertTrue(history.getSummaries(DIAMOND, NOW + TimeUnit.DAYS.toMillis(8)).isEmpty());
+    }
+
+    @Test
+    public void testSalesOutsideAllPeriodsAreIgnored() {
+        PriceHistory history = new PriceHistory();
+        history.record(sale(10, 1, TimeUnit.DAYS.toMillis(8)), NOW);
+        assertTrue(history.getSummaries(DIAMOND, NOW).isEmpty());
+    }
+}
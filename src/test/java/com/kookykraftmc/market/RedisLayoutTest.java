@@ -0,0 +1,114 @@
+package com.kookykraftmc.market;
+
+import com.github.fppt.jedismock.RedisServer;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class RedisLayoutTest {
+
+    // the Redis defaults a compact bucket has to stay within
+    private static final int LISTPACK_ENTRIES = 128;
+    private static final int LISTPACK_VALUE = 64;
+
+    private static final String ITEM = "ContentVersion=1\nCount=1\nDamage=0\nItemType=\"minecraft:diamond_sword\"\n"
+            + "UnsafeData {\n    ench=[\n" + String.join("", Collections.nCopies(6,
+            "        {\n            id=16\n            lvl=5\n        },\n")) + "    ]\n}\n";
+    private static final String ENCHANTS = "minecraft:sharpness=5,minecraft:unbreaking=3,minecraft:looting=3,minecraft:mending=1";
+
+    private static Map<String, String> listing() {
+        Map<String, String> listing = new LinkedHashMap<>();
+        listing.put("Item", ITEM);
+        listing.put("Seller", UUID.randomUUID().toString());
+        listing.put("Stock", "2147483647");
+        listing.put("Price", "2147483647");
+        listing.put("Quantity", "64");
+        listing.put("Type", "thermalexpansion:machine_frame_reinforced");
+        listing.put("Enchants", ENCHANTS);
+        listing.put("Durability", "100");
+        return listing;
+    }
+
+    private static void fillBucket(Jedis jedis, String server) {
+        Pipeline p = jedis.pipelined();
+        for (int id = 0; id < RedisLayout.BUCKET_SIZE; id++) {
+            RedisLayout.COMPACT.write(p, server, String.valueOf(id), listing());
+        }
+        p.sync();
+    }
+
+    @Test
+    public void testFilledBucketHoldsOnlyShortValues() throws IOException {
+        RedisServer server = RedisServer.newRedisServer();
+        server.start();
+        try (Jedis jedis = new Jedis(server.getHost(), server.getBindPort())) {
+            fillBucket(jedis, "test");
+            Map<String, String> bucket = jedis.hgetAll(RedisKeys.listingBucket("test", 0));
+            assertTrue(bucket.size() <= LISTPACK_ENTRIES);
+            for (Map.Entry<String, String> field : bucket.entrySet()) {
+                assertTrue(field.getKey(), field.getValue().getBytes(StandardCharsets.UTF_8).length <= LISTPACK_VALUE);
+            }
+            assertEquals(2 * RedisLayout.BUCKET_SIZE, jedis.hlen(RedisKeys.listingBlobs("test", 0)).intValue());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testFieldsReadBackAndDeleted() throws IOException {
+        RedisServer server = RedisServer.newRedisServer();
+        server.start();
+        try (Jedis jedis = new Jedis(server.getHost(), server.getBindPort())) {
+            Map<String, String> listing = listing();
+            Pipeline p = jedis.pipelined();
+            RedisLayout.COMPACT.write(p, "test", "17", listing);
+            Supplier<Map<String, String>> read = RedisLayout.COMPACT.read(p, "test", "17", RedisLayout.FIELDS);
+            p.sync();
+            assertEquals(listing, read.get());
+            assertEquals(Arrays.asList("Item", "Seller", "Stock", "Price", "Quantity", "Type", "Enchants", "Durability"),
+                    Arrays.asList(read.get().keySet().toArray()));
+
+            p = jedis.pipelined();
+            RedisLayout.COMPACT.delete(p, "test", "17");
+            read = RedisLayout.COMPACT.read(p, "test", "17", RedisLayout.FIELDS);
+            p.sync();
+            assertTrue(read.get().isEmpty());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Needs a real Redis, whose address is taken from
+     * {@code MARKET_TEST_REDIS} as {@code host:port}; the in-process server
+     * has no object encodings.
+     */
+    @Test
+    public void testFilledBucketUsesListpackEncoding() {
+        String address = System.getenv("MARKET_TEST_REDIS");
+        assumeTrue(address != null);
+        String server = "layout-test-" + UUID.randomUUID();
+        int colon = address.lastIndexOf(':');
+        try (Jedis jedis = new Jedis(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)))) {
+            try {
+                fillBucket(jedis, server);
+                String encoding = jedis.objectEncoding(RedisKeys.listingBucket(server, 0));
+                assertTrue(encoding, encoding.equals("listpack") || encoding.equals("ziplist"));
+            } finally {
+                jedis.del(RedisKeys.listingBucket(server, 0), RedisKeys.listingBlobs(server, 0));
+            }
+        }
+    }
+}
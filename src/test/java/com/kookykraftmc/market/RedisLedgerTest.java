@@ -0,0 +1,110 @@
+package com.kookykraftmc.market;
+
+import com.github.fppt.jedismock.RedisServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RedisLedgerTest {
+
+    private static final String PLAYER = "8d8a4ad5-7a3a-4b6e-9d9a-0c6f3f6b1a01";
+    private static final long NOW = 1700000000123L;
+
+    private RedisServer server;
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws IOException {
+        server = RedisServer.newRedisServer();
+        server.start();
+        jedis = new Jedis(server.getHost(), server.getBindPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        jedis.close();
+        server.stop();
+    }
+
+    private static LedgerEntry entry(String server, long sequence, long timestamp) {
+        return new LedgerEntry(sequence, PLAYER, timestamp, LedgerEntry.Action.BUY, null,
+                server + ":" + sequence, "minecraft:dirt", 1, 1, server);
+    }
+
+    private List<LedgerEntry> readAll(int pageSize) {
+        List<LedgerEntry> all = new ArrayList<>();
+        long[] before = null;
+        List<LedgerEntry> page;
+        do {
+            page = RedisLedger.page(jedis, PLAYER, before, pageSize);
+            all.addAll(page);
+            if (!page.isEmpty()) {
+                before = LedgerEntry.parseCursor(page.get(page.size() - 1).getCursor());
+            }
+        } while (page.size() == pageSize);
+        return all;
+    }
+
+    @Test
+    public void testServersWritingTheSameMillisecondGetDistinctScores() {
+        // both servers count from 1, as after a restart
+        RedisLedger.append(jedis, PLAYER, Arrays.asList(entry("lobby", 1, NOW), entry("lobby", 2, NOW)));
+        RedisLedger.append(jedis, PLAYER, Arrays.asList(entry("survival", 1, NOW), entry("survival", 2, NOW)));
+
+        List<LedgerEntry> all = readAll(10);
+        assertEquals(4, all.size());
+        Set<Long> sequences = new HashSet<>();
+        for (LedgerEntry e : all) {
+            assertEquals(NOW, e.getTimestamp());
+            sequences.add(e.getSequence());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(0L, 1L, 2L, 3L)), sequences);
+    }
+
+    @Test
+    public void testPagesBreakingInsideAMillisecondSkipNothing() {
+        RedisLedger.append(jedis, PLAYER, Arrays.asList(entry("lobby", 1, NOW - 1), entry("lobby", 2, NOW),
+                entry("lobby", 3, NOW), entry("lobby", 4, NOW + 1)));
+        RedisLedger.append(jedis, PLAYER, Arrays.asList(entry("survival", 1, NOW), entry("survival", 2, NOW),
+                entry("survival", 3, NOW + 1)));
+
+        List<LedgerEntry> all = readAll(2);
+        assertEquals(7, all.size());
+        Set<String> listings = new HashSet<>();
+        for (int i = 0; i < all.size(); i++) {
+            listings.add(all.get(i).getListing());
+            if (i > 0) {
+                assertTrue(all.get(i).getTimestamp() <= all.get(i - 1).getTimestamp());
+            }
+        }
+        assertEquals(7, listings.size());
+        assertEquals(NOW + 1, all.get(0).getTimestamp());
+        assertEquals(NOW - 1, all.get(6).getTimestamp());
+    }
+
+    @Test
+    public void testRewritingABatchAddsNothing() {
+        List<LedgerEntry> batch = Arrays.asList(entry("lobby", 1, NOW), entry("lobby", 2, NOW));
+        RedisLedger.append(jedis, PLAYER, batch);
+        RedisLedger.append(jedis, PLAYER, batch);
+        assertEquals(2, readAll(10).size());
+    }
+
+    @Test
+    public void testPageAfterLastEntryIsEmpty() {
+        RedisLedger.append(jedis, PLAYER, Arrays.asList(entry("lobby", 1, NOW)));
+        List<LedgerEntry> page = RedisLedger.page(jedis, PLAYER, null, 10);
+        assertEquals(1, page.size());
+        assertTrue(RedisLedger.page(jedis, PLAYER, LedgerEntry.parseCursor(page.get(0).getCursor()), 10).isEmpty());
+    }
+}
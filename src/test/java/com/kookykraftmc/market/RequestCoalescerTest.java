@@ -0,0 +1,171 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class RequestCoalescerTest {
+
+    @Test
+    public void testConcurrentCallsShareOneFetch() throws Exception {
+        RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<>(1000);
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            results.add(executor.submit(() -> coalescer.get("listings", () -> {
+                started.countDown();
+                await(release);
+                return fetches.incrementAndGet();
+            })));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 7; i++) {
+                results.add(executor.submit(() -> coalescer.get("listings", fetches::incrementAndGet)));
+            }
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(1, (int) result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, fetches.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFreshnessWindow() {
+        AtomicLong now = new AtomicLong(0);
+        RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<>(1000, now::get);
+        AtomicInteger fetches = new AtomicInteger();
+        assertEquals(1, (int) coalescer.get("a", fetches::incrementAndGet));
+        now.set(999);
+        assertEquals(1, (int) coalescer.get("a", fetches::incrementAndGet));
+        assertEquals(2, (int) coalescer.get("b", fetches::incrementAndGet));
+        now.set(1000);
+        assertEquals(3, (int) coalescer.get("a", fetches::incrementAndGet));
+    }
+
+    @Test
+    public void testStaleEntriesAreRemoved() {
+        AtomicLong now = new AtomicLong(0);
+        RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<>(1000, now::get);
+        coalescer.get("a", () -> 1);
+        coalescer.get("b", () -> 2);
+        now.set(5000);
+        coalescer.get("c", () -> 3);
+        assertEquals(1, coalescer.size());
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<>(60000);
+        AtomicInteger fetches = new AtomicInteger();
+        coalescer.get("a", fetches::incrementAndGet);
+        coalescer.invalidateAll();
+        assertEquals(2, (int) coalescer.get("a", fetches::incrementAndGet));
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<>(60000);
+        try {
+            coalescer.get("a", () -> {
+                throw new IllegalStateException("backend down");
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(7, (int) coalescer.get("a", () -> 7));
+    }
+
+    @Test
+    public void testErrorsReachWaiters() throws Exception {
+        RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<>(60000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> leader = executor.submit(() -> coalescer.get("a", () -> {
+                started.countDown();
+                await(release);
+                throw new NoClassDefFoundError("missing");
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<Integer> waiter = executor.submit(() -> coalescer.get("a", () -> 1));
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<Integer> result : Arrays.asList(leader, waiter)) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof NoClassDefFoundError);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncCallsShareInFlightFetch() {
+        RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<>(1000);
+        AtomicInteger fetches = new AtomicInteger();
+        CompletableFuture<Integer> fetch = new CompletableFuture<>();
+        CompletableFuture<Integer> first = coalescer.getAsync("listings", () -> {
+            fetches.incrementAndGet();
+            return fetch;
+        });
+        CompletableFuture<Integer> second = coalescer.getAsync("listings", () -> {
+            fetches.incrementAndGet();
+            return CompletableFuture.completedFuture(2);
+        });
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        fetch.complete(1);
+        assertEquals(1, (int) first.join());
+        assertEquals(1, (int) second.join());
+        assertEquals(1, (int) coalescer.getAsync("listings", () -> CompletableFuture.completedFuture(3)).join());
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void testAsyncFailuresAreNotCached() {
+        RequestCoalescer<String, Integer> coalescer = new RequestCoalescer<>(1000);
+        CompletableFuture<Integer> fetch = new CompletableFuture<>();
+        CompletableFuture<Integer> first = coalescer.getAsync("a", () -> fetch);
+        CompletableFuture<Integer> waiter = coalescer.getAsync("a", () -> CompletableFuture.completedFuture(2));
+        fetch.completeExceptionally(new IllegalStateException("down"));
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(waiter.isCompletedExceptionally());
+        assertEquals(3, (int) coalescer.getAsync("a", () -> CompletableFuture.completedFuture(3)).join());
+        assertTrue(coalescer.getAsync("b", () -> {
+            throw new IllegalStateException("down");
+        }).isCompletedExceptionally());
+        assertEquals(4, (int) coalescer.getAsync("b", () -> CompletableFuture.completedFuture(4)).join());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.kookykraftmc.market;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP proxy that counts request/response round trips to a server.
+ *
+ * <p>A round trip is counted each time a client sends data after having
+ * received a reply, so a pipeline of many commands counts once, as it costs
+ * one network round trip in production.</p>
+ */
+class RoundTripCounter implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final String targetHost;
+    private final int targetPort;
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Market round trip counter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    RoundTripCounter(String targetHost, int targetPort) throws IOException {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        threads.execute(this::accept);
+    }
+
+    String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(targetHost, targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                AtomicBoolean replied = new AtomicBoolean(true);
+                threads.execute(() -> pipe(client, server, () -> {
+                    if (replied.getAndSet(false)) {
+                        roundTrips.incrementAndGet();
+                    }
+                }));
+                threads.execute(() -> pipe(server, client, () -> replied.set(true)));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copy bytes from one socket to the other, calling {@code onData} before
+     * each chunk is forwarded.
+     */
+    private static void pipe(Socket from, Socket to, Runnable onData) {
+        byte[] buffer = new byte[8192];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                onData.run();
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // either side went away
+        } finally {
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        threads.shutdownNow();
+    }
+}
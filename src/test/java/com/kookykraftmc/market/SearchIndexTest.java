@@ -0,0 +1,83 @@
+package com.kookykraftmc.market;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+
+    private static SearchIndex.Document doc(String ref, String name, int price) {
+        return new SearchIndex.Document(ref, name, "seller", price, 1).field(name, SearchIndex.NAME);
+    }
+
+    private static List<String> refs(List<SearchIndex.Document> docs) {
+        return docs.stream().map(SearchIndex.Document::getRef).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testTokenizeStripsFormatting() {
+        assertEquals(Arrays.asList("hello", "world", "42"), SearchIndex.tokenize("\u00a7aHello, World-42"));
+    }
+
+    @Test
+    public void testPrefixMatchRequiresAllTokens() {
+        SearchIndex index = new SearchIndex();
+        index.add(doc("S:1", "Diamond Sword", 10));
+        index.add(doc("S:2", "Diamond", 10));
+        assertEquals(Arrays.asList("S:1"), refs(index.search("diam sw", 10)));
+    }
+
+    @Test
+    public void testExactMatchRanksFirst() {
+        SearchIndex index = new SearchIndex();
+        index.add(doc("S:1", "Diamonds", 1));
+        index.add(doc("S:2", "Diamond", 100));
+        assertEquals(Arrays.asList("S:2", "S:1"), refs(index.search("diamond", 10)));
+    }
+
+    @Test
+    public void testEqualScoresSortByUnitPrice() {
+        SearchIndex index = new SearchIndex();
+        index.add(doc("S:1", "Stone", 30));
+        index.add(doc("S:2", "Stone", 10));
+        assertEquals(Arrays.asList("S:2", "S:1"), refs(index.search("stone", 10)));
+    }
+
+    @Test
+    public void testRemove() {
+        SearchIndex index = new SearchIndex();
+        index.add(doc("S:1", "Stone", 30));
+        index.remove("S:1");
+        assertTrue(index.search("stone", 10).isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testRetainOpenKeepsListingsAddedSince() {
+        SearchIndex index = new SearchIndex();
+        index.add(doc("S:1", "Stone", 30));
+        index.add(doc("S:2", "Dirt", 10));
+        long generation = index.getGeneration();
+        index.add(doc("S:3", "Sand", 10));
+        index.retainOpen(new HashSet<>(Arrays.asList("S:1")), generation);
+        assertEquals(new HashSet<>(Arrays.asList("S:1", "S:3")), index.getRefs());
+    }
+
+    @Test
+    public void testAddUnlessRemovedSince() {
+        SearchIndex index = new SearchIndex();
+        index.remove("S:1");
+        long generation = index.getGeneration();
+        index.remove("S:2");
+        assertTrue(index.addUnlessRemovedSince(doc("S:1", "Stone", 30), generation));
+        assertFalse(index.addUnlessRemovedSince(doc("S:2", "Dirt", 10), generation));
+        index.forgetRemovalsBefore(index.getGeneration() + 1);
+        assertTrue(index.addUnlessRemovedSince(doc("S:2", "Dirt", 10), generation));
+        assertEquals(2, index.size());
+    }
+}